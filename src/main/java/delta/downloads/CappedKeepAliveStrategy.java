@@ -0,0 +1,35 @@
+package delta.downloads;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keep-alive strategy that uses the server hints, up to a maximum duration.
+ * @author DAM
+ */
+public class CappedKeepAliveStrategy implements ConnectionKeepAliveStrategy
+{
+  private long _maxKeepAlive;
+
+  /**
+   * Constructor.
+   * @param maxKeepAlive Maximum keep-alive duration (milliseconds).
+   */
+  public CappedKeepAliveStrategy(long maxKeepAlive)
+  {
+    _maxKeepAlive=maxKeepAlive;
+  }
+
+  @Override
+  public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+  {
+    long duration=DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,context);
+    if ((duration<=0) || (duration>_maxKeepAlive))
+    {
+      duration=_maxKeepAlive;
+    }
+    return duration;
+  }
+}
@@ -0,0 +1,109 @@
+package delta.downloads;
+
+/**
+ * Configuration of a pool of HTTP connections.
+ * @author DAM
+ */
+public class ConnectionPoolConfiguration
+{
+  private int _maxTotal;
+  private int _maxPerRoute;
+  private long _maxKeepAlive;
+  private long _maxIdleTime;
+
+  /**
+   * Constructor.
+   */
+  public ConnectionPoolConfiguration()
+  {
+    _maxTotal=50;
+    _maxPerRoute=10;
+    _maxKeepAlive=30*1000;
+    _maxIdleTime=60*1000;
+  }
+
+  /**
+   * Get the maximum number of connections in the pool.
+   * @return a connections count.
+   */
+  public int getMaxTotal()
+  {
+    return _maxTotal;
+  }
+
+  /**
+   * Set the maximum number of connections in the pool.
+   * @param maxTotal Connections count to set.
+   */
+  public void setMaxTotal(int maxTotal)
+  {
+    _maxTotal=maxTotal;
+  }
+
+  /**
+   * Get the maximum number of connections for a single route.
+   * @return a connections count.
+   */
+  public int getMaxPerRoute()
+  {
+    return _maxPerRoute;
+  }
+
+  /**
+   * Set the maximum number of connections for a single route.
+   * @param maxPerRoute Connections count to set.
+   */
+  public void setMaxPerRoute(int maxPerRoute)
+  {
+    _maxPerRoute=maxPerRoute;
+  }
+
+  /**
+   * Get the maximum time a connection is kept alive: it is used when the server
+   * does not specify a keep-alive timeout, and caps the timeout it specifies.
+   * @return a duration in milliseconds.
+   */
+  public long getMaxKeepAlive()
+  {
+    return _maxKeepAlive;
+  }
+
+  /**
+   * Set the maximum time a connection is kept alive: it is used when the server
+   * does not specify a keep-alive timeout, and caps the timeout it specifies.
+   * @param maxKeepAlive Duration to set (milliseconds).
+   */
+  public void setMaxKeepAlive(long maxKeepAlive)
+  {
+    _maxKeepAlive=maxKeepAlive;
+  }
+
+  /**
+   * Get the time after which idle connections are evicted from the pool.
+   * @return a duration in milliseconds, or <code>0</code> to disable eviction.
+   */
+  public long getMaxIdleTime()
+  {
+    return _maxIdleTime;
+  }
+
+  /**
+   * Set the time after which idle connections are evicted from the pool.
+   * @param maxIdleTime Duration to set (milliseconds), or <code>0</code> to disable eviction.
+   */
+  public void setMaxIdleTime(long maxIdleTime)
+  {
+    _maxIdleTime=maxIdleTime;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb=new StringBuilder();
+    sb.append("Max total=").append(_maxTotal);
+    sb.append(", max per route=").append(_maxPerRoute);
+    sb.append(", max keep alive=").append(_maxKeepAlive).append("ms");
+    sb.append(", max idle time=").append(_maxIdleTime).append("ms");
+    return sb.toString();
+  }
+}
@@ -1,74 +1,143 @@
 package delta.downloads;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.Consts;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
-import delta.common.utils.files.FileCopy;
+import delta.downloads.cache.CacheEntry;
+import delta.downloads.cache.HttpCache;
 
 /**
  * A download service.
+ * <p>
+ * This service is thread-safe: a single instance may be shared by many threads,
+ * that will use the connections of its pool concurrently. Identical GET requests
+ * issued concurrently may share a single transfer: this coalescing is enabled with
+ * {@link #setCoalesceRequests(boolean)}.
  * @author DAM
  */
 public class Downloader
 {
   private static final Logger LOGGER=Logger.getLogger(Downloader.class);
 
+  /**
+   * Size of the chunks used to stream data to files.
+   */
+  private static final int CHUNK_SIZE=64*1024;
+
   // Underlying service
   private CloseableHttpClient _client;
   // Configuration
   //private boolean _followsRedirects;
   //private String _charset;
-  private boolean _storeCookies;
+  private volatile boolean _storeCookies;
+  private volatile boolean _coalesceRequests;
+  private volatile HttpCache _cache;
   // Statistics
-  private long _downloads;
-  private long _bytes;
-  // Session information
-  private HashMap<String,String> _cookies;
+  private AtomicLong _downloads;
+  private AtomicLong _bytes;
+  // Session information (immutable, replaced as a whole)
+  private volatile Map<String,String> _cookies;
+  // In-flight requests, by request key
+  private ConcurrentMap<String,FutureTask<?>> _inFlight;
 
   /**
    * Constructor.
    */
   public Downloader()
   {
-    SSLConnectionSocketFactory sslConnectionSocketFactory=new SSLConnectionSocketFactory(SSLContexts.createDefault(),new String[] {"TLSv1.2"},null,
-        SSLConnectionSocketFactory.getDefaultHostnameVerifier());
-
-    _client=HttpClientBuilder.create().setSSLSocketFactory(sslConnectionSocketFactory).build();
+    this(new ConnectionPoolConfiguration());
+  }
 
+  /**
+   * Constructor.
+   * @param poolConfiguration Configuration of the connections pool.
+   */
+  public Downloader(ConnectionPoolConfiguration poolConfiguration)
+  {
+    _client=buildClient(poolConfiguration);
     //_followsRedirects=true;
     //_charset=EncodingNames.UTF_8;
     _storeCookies=false;
-    _downloads=0;
-    _bytes=0;
-    _cookies=new HashMap<String,String>();
+    _coalesceRequests=false;
+    _downloads=new AtomicLong();
+    _bytes=new AtomicLong();
+    _cookies=Collections.<String,String>emptyMap();
+    _inFlight=new ConcurrentHashMap<String,FutureTask<?>>();
+  }
+
+  private CloseableHttpClient buildClient(ConnectionPoolConfiguration poolConfiguration)
+  {
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Building HTTP client with connections pool: "+poolConfiguration);
+    }
+    SSLConnectionSocketFactory sslConnectionSocketFactory=new SSLConnectionSocketFactory(SSLContexts.createDefault(),new String[] {"TLSv1.2"},null,
+        SSLConnectionSocketFactory.getDefaultHostnameVerifier());
+    Registry<ConnectionSocketFactory> registry=RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http",PlainConnectionSocketFactory.getSocketFactory())
+        .register("https",sslConnectionSocketFactory)
+        .build();
+    PoolingHttpClientConnectionManager connectionManager=new PoolingHttpClientConnectionManager(registry);
+    connectionManager.setMaxTotal(poolConfiguration.getMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(poolConfiguration.getMaxPerRoute());
+
+    HttpClientBuilder builder=HttpClientBuilder.create();
+    builder.setConnectionManager(connectionManager);
+    builder.setKeepAliveStrategy(new CappedKeepAliveStrategy(poolConfiguration.getMaxKeepAlive()));
+    long maxIdleTime=poolConfiguration.getMaxIdleTime();
+    if (maxIdleTime>0)
+    {
+      builder.evictExpiredConnections();
+      builder.evictIdleConnections(maxIdleTime,TimeUnit.MILLISECONDS);
+    }
+    return builder.build();
   }
 
   /**
    * Get the cookies map.
-   * @return a map.
+   * @return an immutable snapshot of the cookies.
    */
   public Map<String,String> getCookies()
   {
@@ -102,12 +171,47 @@ public class Downloader
     _storeCookies=storeCookies;
   }
 
+  /**
+   * Set the value of the 'coalesce requests' flag.
+   * When set, a GET request issued while an identical one is in flight
+   * waits for it and gets its result, instead of doing its own transfer.
+   * It is not set by default.
+   * @param coalesceRequests Flag value to set.
+   */
+  public void setCoalesceRequests(boolean coalesceRequests)
+  {
+    _coalesceRequests=coalesceRequests;
+  }
+
+  /**
+   * Set the cache to use for buffer and string downloads.
+   * @param cache Cache to use, <code>null</code> for no cache.
+   */
+  public void setCache(HttpCache cache)
+  {
+    _cache=cache;
+  }
+
+  /**
+   * Get the cache used for buffer and string downloads.
+   * @return a cache or <code>null</code> if none.
+   */
+  public HttpCache getCache()
+  {
+    return _cache;
+  }
+
   private interface ResultGetter<T>
   {
     public T getResult(HttpGet method, CloseableHttpResponse response) throws Exception;
   }
 
-  private synchronized <T> T privateDowload(String url, ResultGetter<T> getter) throws DownloadException
+  private <T> T privateDowload(String url, ResultGetter<T> getter) throws DownloadException
+  {
+    return privateDowload(url,null,getter);
+  }
+
+  private <T> T privateDowload(String url, CacheEntry cacheEntry, ResultGetter<T> getter) throws DownloadException
   {
     if (LOGGER.isInfoEnabled())
     {
@@ -121,6 +225,10 @@ public class Downloader
       get.setFollowRedirects(_followsRedirects);
       get.getParams().setHttpElementCharset(_charset);
       */
+      if (cacheEntry!=null)
+      {
+        HttpCache.addValidators(get,cacheEntry);
+      }
 
       CloseableHttpResponse response = _client.execute(get);
       int iGetResultCode=response.getStatusLine().getStatusCode();
@@ -128,7 +236,7 @@ public class Downloader
       {
         LOGGER.info("Status code : "+iGetResultCode);
       }
-      if (iGetResultCode >= 200 && iGetResultCode < 300)
+      if ((iGetResultCode >= 200 && iGetResultCode < 300) || ((cacheEntry!=null) && (iGetResultCode==HttpStatus.SC_NOT_MODIFIED)))
       {
         ret=getter.getResult(get,response);
       }
@@ -148,20 +256,208 @@ public class Downloader
     return ret;
   }
 
+  /**
+   * Perform a download, or wait for an identical in-flight download.
+   * Downloads that share a key must have the same result type.
+   * @param key Request key.
+   * @param url Source URL.
+   * @param download Download to perform.
+   * @return the download result.
+   * @throws DownloadException
+   */
+  private <T> T sharedDownload(String key, String url, Callable<T> download) throws DownloadException
+  {
+    if (!_coalesceRequests)
+    {
+      return call(download,url);
+    }
+    FutureTask<T> task=new FutureTask<T>(download);
+    @SuppressWarnings("unchecked")
+    FutureTask<T> inFlight=(FutureTask<T>)_inFlight.putIfAbsent(key,task);
+    boolean leader=(inFlight==null);
+    if (leader)
+    {
+      try
+      {
+        task.run();
+      }
+      finally
+      {
+        _inFlight.remove(key,task);
+      }
+      inFlight=task;
+    }
+    else if (LOGGER.isInfoEnabled())
+    {
+      LOGGER.info("Waiting for in-flight download of URL ["+url+"].");
+    }
+    T ret;
+    try
+    {
+      ret=inFlight.get();
+    }
+    catch(InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      throw new DownloadException("Interrupted while downloading ["+url+"]!",ie);
+    }
+    catch(ExecutionException ee)
+    {
+      Throwable cause=ee.getCause();
+      if (cause instanceof DownloadException)
+      {
+        throw (DownloadException)cause;
+      }
+      throw new DownloadException("Download error for ["+url+"]!",cause);
+    }
+    if ((!leader) && (ret instanceof byte[]))
+    {
+      // Each caller gets its own buffer
+      @SuppressWarnings("unchecked")
+      T copy=(T)((byte[])ret).clone();
+      ret=copy;
+    }
+    else if ((!leader) && (ret instanceof ResponseBody))
+    {
+      ResponseBody body=(ResponseBody)ret;
+      @SuppressWarnings("unchecked")
+      T copy=(T)new ResponseBody(body._bytes.clone(),body._contentType);
+      ret=copy;
+    }
+    return ret;
+  }
+
+  private <T> T call(Callable<T> download, String url) throws DownloadException
+  {
+    try
+    {
+      return download.call();
+    }
+    catch(DownloadException de)
+    {
+      throw de;
+    }
+    catch(Exception e)
+    {
+      throw new DownloadException("Download error for ["+url+"]!",e);
+    }
+  }
+
+  private <T> Callable<T> buildDownload(final String url, final ResultGetter<T> getter)
+  {
+    Callable<T> download=new Callable<T>()
+    {
+      public T call() throws Exception
+      {
+        return privateDowload(url,getter);
+      }
+    };
+    return download;
+  }
+
+  /**
+   * Body of a response.
+   */
+  private static class ResponseBody
+  {
+    private byte[] _bytes;
+    private String _contentType;
+
+    private ResponseBody(byte[] bytes, String contentType)
+    {
+      _bytes=bytes;
+      _contentType=contentType;
+    }
+  }
+
+  /**
+   * Build a download that uses the cache.
+   * Fresh cached responses are used without any request. Stale ones are revalidated.
+   * @param url Source URL.
+   * @param cache Cache to use.
+   * @return A download that gives the response body.
+   */
+  private Callable<ResponseBody> buildCachedDownload(final String url, final HttpCache cache)
+  {
+    Callable<ResponseBody> download=new Callable<ResponseBody>()
+    {
+      public ResponseBody call() throws Exception
+      {
+        return cachedDownload(url,cache);
+      }
+    };
+    return download;
+  }
+
+  private ResponseBody cachedDownload(final String url, final HttpCache cache) throws DownloadException
+  {
+    CacheEntry entry=cache.lookup(url);
+    if ((entry!=null) && (entry.isFresh(System.currentTimeMillis())))
+    {
+      byte[] body=cache.getBody(entry);
+      if (body!=null)
+      {
+        if (LOGGER.isInfoEnabled())
+        {
+          LOGGER.info("Using cached response for URL ["+url+"].");
+        }
+        return new ResponseBody(body,entry.getContentType());
+      }
+    }
+    final CacheEntry validatedEntry=((entry!=null) && (entry.hasValidator()))?entry:null;
+    ResultGetter<ResponseBody> getter=new ResultGetter<ResponseBody>()
+    {
+      public ResponseBody getResult(HttpGet method, CloseableHttpResponse response) throws Exception
+      {
+        try
+        {
+          if (response.getStatusLine().getStatusCode()==HttpStatus.SC_NOT_MODIFIED)
+          {
+            CacheEntry updatedEntry=cache.refresh(validatedEntry,response);
+            byte[] body=cache.getBody(updatedEntry);
+            if (body==null)
+            {
+              throw new IOException("Cached response is lost for ["+url+"]!");
+            }
+            return new ResponseBody(body,updatedEntry.getContentType());
+          }
+          HttpEntity entity=response.getEntity();
+          byte[] body=EntityUtils.toByteArray(entity);
+          updateStatistics(body.length,1);
+          cache.store(url,response,body);
+          Header contentType=entity.getContentType();
+          return new ResponseBody(body,(contentType!=null)?contentType.getValue():null);
+        }
+        finally
+        {
+          response.close();
+        }
+      }
+    };
+    return privateDowload(url,validatedEntry,getter);
+  }
+
   private void updateStatistics(long length, long downloads)
   {
-    _bytes+=length;
-    _downloads+=downloads;
+    _bytes.addAndGet(length);
+    _downloads.addAndGet(downloads);
   }
 
   /**
    * Download an URL as a byte buffer.
+   * The cache is used, if any.
    * @param url Source URL.
    * @return A byte buffer or <code>null</code>.
    * @throws DownloadException
    */
   public byte[] downloadBuffer(String url) throws DownloadException
   {
+    HttpCache cache=_cache;
+    if (cache!=null)
+    {
+      ResponseBody body=sharedDownload("GET cached "+url,url,buildCachedDownload(url,cache));
+      return (body!=null)?body._bytes:null;
+    }
     ResultGetter<byte[]> getter=new ResultGetter<byte[]>()
     {
       public byte[] getResult(HttpGet method, CloseableHttpResponse response) throws Exception
@@ -183,18 +479,38 @@ public class Downloader
         return ret;
       }
     };
-    byte[] ret=privateDowload(url,getter);
+    byte[] ret=sharedDownload("GET buffer "+url,url,buildDownload(url,getter));
     return ret;
   }
 
   /**
    * Download an URL as a string.
+   * The cache is used, if any.
    * @param url Source URL.
    * @return A string or <code>null</code>.
    * @throws DownloadException
    */
   public String downloadString(String url) throws DownloadException
   {
+    HttpCache cache=_cache;
+    if (cache!=null)
+    {
+      ResponseBody body=sharedDownload("GET cached "+url,url,buildCachedDownload(url,cache));
+      if (body==null)
+      {
+        return null;
+      }
+      ByteArrayEntity entity=new ByteArrayEntity(body._bytes);
+      entity.setContentType(body._contentType);
+      try
+      {
+        return EntityUtils.toString(entity);
+      }
+      catch(Exception e)
+      {
+        throw new DownloadException("Could not decode string from ["+url+"]!",e);
+      }
+    }
     ResultGetter<String> getter=new ResultGetter<String>()
     {
       public String getResult(HttpGet method, CloseableHttpResponse response) throws Exception
@@ -217,7 +533,7 @@ public class Downloader
         return ret;
       }
     };
-    String ret=privateDowload(url,getter);
+    String ret=sharedDownload("GET string "+url,url,buildDownload(url,getter));
     return ret;
   }
 
@@ -238,12 +554,11 @@ public class Downloader
         try
         {
           HttpEntity entity=response.getEntity();
-          byte[] buffer=EntityUtils.toByteArray(entity);
-          InputStream is=new ByteArrayInputStream(buffer);
-          ok=FileCopy.copy(is,to);
+          long length=writeToFile(entity,to);
+          ok=(length>=0);
           if (ok)
           {
-            updateStatistics(to.length(),1);
+            updateStatistics(length,1);
           }
         }
         finally
@@ -253,7 +568,7 @@ public class Downloader
         return Boolean.valueOf(ok);
       }
     };
-    Boolean ret=privateDowload(url,getter);
+    Boolean ret=sharedDownload("GET file "+url+" "+to.getAbsolutePath(),url,buildDownload(url,getter));
     return (ret!=null)?ret.booleanValue():false;
   }
 
@@ -313,11 +628,12 @@ public class Downloader
         LOGGER.info("Status code : "+iGetResultCode);
       }
       HttpEntity resultEntity=response.getEntity();
-      byte[] buffer=EntityUtils.toByteArray(resultEntity);
-      InputStream is=new ByteArrayInputStream(buffer);
-      ret=FileCopy.copy(is,to);
-      _bytes+=to.length();
-      _downloads++;
+      long length=writeToFile(resultEntity,to);
+      ret=(length>=0);
+      if (ret)
+      {
+        updateStatistics(length,1);
+      }
       catchCookies(post);
     }
     catch (Exception e)
@@ -338,9 +654,53 @@ public class Downloader
     return ret;
   }
 
+  /**
+   * Stream the contents of an entity to a file.
+   * The data is moved in fixed-size chunks, so that memory use does not depend
+   * on the size of the entity.
+   * @param entity Source entity.
+   * @param to Target file.
+   * @return the number of written bytes, or <code>-1</code> if the entity has no content.
+   * @throws IOException If an I/O error occurs.
+   */
+  private long writeToFile(HttpEntity entity, File to) throws IOException
+  {
+    if (entity==null)
+    {
+      return -1;
+    }
+    File parent=to.getAbsoluteFile().getParentFile();
+    if ((parent!=null) && (!parent.exists()))
+    {
+      parent.mkdirs();
+    }
+    long total=0;
+    InputStream is=entity.getContent();
+    if (is==null)
+    {
+      return -1;
+    }
+    try (ReadableByteChannel source=Channels.newChannel(is);
+        FileOutputStream fos=new FileOutputStream(to))
+    {
+      FileChannel target=fos.getChannel();
+      ByteBuffer buffer=ByteBuffer.allocate(CHUNK_SIZE);
+      while (source.read(buffer)!=-1)
+      {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+          total+=target.write(buffer);
+        }
+        buffer.clear();
+      }
+    }
+    return total;
+  }
+
   private void catchCookies(HttpRequestBase method)
   {
-    _cookies.clear();
+    Map<String,String> cookies=new HashMap<String,String>();
     Header[] headers=method.getAllHeaders();
     for(int i=0;i<headers.length;i++)
     {
@@ -360,10 +720,11 @@ public class Downloader
           {
             cookieValue=cookieValue.substring(0,separator);
           }
-          _cookies.put(cookieName,cookieValue);
+          cookies.put(cookieName,cookieValue);
         }
       }
     }
+    _cookies=Collections.unmodifiableMap(cookies);
   }
 
   /**
@@ -382,7 +743,7 @@ public class Downloader
    */
   public String getStatistics()
   {
-    return "Downloaded "+_downloads+" item(s) - "+((float)_bytes)/(1024*1024)+"Mo";
+    return "Downloaded "+_downloads.get()+" item(s) - "+((float)_bytes.get())/(1024*1024)+"Mo";
   }
 
   /**
@@ -390,7 +751,18 @@ public class Downloader
    */
   public void dispose()
   {
-    _client=null;
-    _cookies.clear();
+    if (_client!=null)
+    {
+      try
+      {
+        _client.close();
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Caught exception when closing the HTTP client!",ioe);
+      }
+      _client=null;
+    }
+    _cookies=Collections.<String,String>emptyMap();
   }
 }
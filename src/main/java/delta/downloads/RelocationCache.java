@@ -0,0 +1,148 @@
+package delta.downloads;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of resolved relocations.
+ * <p>
+ * Maps source URLs to the final location of their redirect chain. A URL that is not
+ * redirected maps to itself. Entries expire after a time to live, that is longer for
+ * chains made of permanent redirects only. The least recently used entries are evicted
+ * when the cache is full.
+ * <p>
+ * This class is thread-safe.
+ * @author DAM
+ */
+public class RelocationCache
+{
+  /**
+   * Default time to live of relocations (milliseconds).
+   */
+  public static final long DEFAULT_TTL=10*60*1000L;
+  /**
+   * Default time to live of permanent relocations (milliseconds).
+   */
+  public static final long DEFAULT_PERMANENT_TTL=24*60*60*1000L;
+  /**
+   * Default maximum number of entries.
+   */
+  public static final int DEFAULT_MAX_ENTRIES=10000;
+
+  private long _ttl;
+  private long _permanentTTL;
+  private int _maxEntries;
+  private LinkedHashMap<String,Relocation> _entries;
+
+  /**
+   * Constructor.
+   */
+  public RelocationCache()
+  {
+    _ttl=DEFAULT_TTL;
+    _permanentTTL=DEFAULT_PERMANENT_TTL;
+    _maxEntries=DEFAULT_MAX_ENTRIES;
+    _entries=new LinkedHashMap<String,Relocation>(16,0.75f,true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String,Relocation> eldest)
+      {
+        return size()>_maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Set the time to live of relocations.
+   * @param ttl Time to live of relocations with temporary redirects (milliseconds).
+   * @param permanentTTL Time to live of relocations with permanent redirects only (milliseconds).
+   */
+  public synchronized void setTTL(long ttl, long permanentTTL)
+  {
+    _ttl=ttl;
+    _permanentTTL=permanentTTL;
+  }
+
+  /**
+   * Set the maximum number of entries.
+   * @param maxEntries Maximum number of entries.
+   */
+  public synchronized void setMaxEntries(int maxEntries)
+  {
+    _maxEntries=maxEntries;
+  }
+
+  /**
+   * Store a relocation.
+   * @param url Source URL.
+   * @param location Final location (the source URL if it is not redirected).
+   * @param permanent <code>true</code> if all the redirects of the chain are permanent.
+   */
+  public synchronized void put(String url, String location, boolean permanent)
+  {
+    long ttl=permanent?_permanentTTL:_ttl;
+    if (ttl<=0)
+    {
+      return;
+    }
+    _entries.put(url,new Relocation(location,System.currentTimeMillis()+ttl));
+  }
+
+  /**
+   * Get the final location of a URL.
+   * @param url Source URL.
+   * @return A location, or <code>null</code> if not known.
+   */
+  public synchronized String lookup(String url)
+  {
+    Relocation relocation=_entries.get(url);
+    if (relocation==null)
+    {
+      return null;
+    }
+    if (relocation._expiration<=System.currentTimeMillis())
+    {
+      _entries.remove(url);
+      return null;
+    }
+    return relocation._location;
+  }
+
+  /**
+   * Remove the relocation of a URL.
+   * @param url Source URL.
+   */
+  public synchronized void remove(String url)
+  {
+    _entries.remove(url);
+  }
+
+  /**
+   * Remove all relocations.
+   */
+  public synchronized void clear()
+  {
+    _entries.clear();
+  }
+
+  /**
+   * Get the number of entries.
+   * @return an entries count.
+   */
+  public synchronized int size()
+  {
+    return _entries.size();
+  }
+
+  private static class Relocation
+  {
+    private String _location;
+    private long _expiration;
+
+    private Relocation(String location, long expiration)
+    {
+      _location=location;
+      _expiration=expiration;
+    }
+  }
+}
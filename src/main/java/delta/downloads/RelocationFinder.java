@@ -1,58 +1,169 @@
 package delta.downloads;
 
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 /**
  * Finds relocations.
+ * <p>
+ * Redirect chains (301, 302, 303, 307 and 308 responses) are followed up to their final location.
+ * Only chains that end with a successful response are cached, and a URL that is not
+ * redirected is not a permanent relocation: it may be redirected later.
  * @author DAM
  */
 public class RelocationFinder
 {
   private static final Logger LOGGER=Logger.getLogger(RelocationFinder.class);
 
+  /**
+   * Maximum number of redirects in a chain.
+   */
+  public static final int MAX_REDIRECTS=10;
+
+  private RelocationCache _cache;
+
+  /**
+   * Constructor.
+   */
+  public RelocationFinder()
+  {
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * @param cache Cache of relocations (may be <code>null</code>).
+   */
+  public RelocationFinder(RelocationCache cache)
+  {
+    _cache=cache;
+  }
+
   /**
    * Finds relocation for the given URL, if any.
    * @param urlStr URL to use.
-   * @return An URL or <code>null</code> if no relocation.
+   * @return the final location of its redirect chain, or <code>null</code> if no relocation.
    */
   public String getRelocation(String urlStr)
   {
-    String loc=null;
-    HttpURLConnection conn=null;
-    try
+    String location=(_cache!=null)?_cache.lookup(urlStr):null;
+    if (location==null)
     {
-      URL url=new URL(urlStr);
-      conn=(HttpURLConnection)url.openConnection();
-      conn.setInstanceFollowRedirects(false);
-      conn.connect();
-      System.out.println(conn.getHeaderFields());
-      int responseCode=conn.getResponseCode();
-      if (responseCode==302)
+      location=resolve(urlStr);
+    }
+    return ((location!=null) && (!location.equals(urlStr)))?location:null;
+  }
+
+  private String resolve(String urlStr)
+  {
+    String current=urlStr;
+    boolean permanent=true;
+    Set<String> visited=new HashSet<String>();
+    visited.add(current);
+    for(int i=0;i<=MAX_REDIRECTS;i++)
+    {
+      HttpURLConnection conn=null;
+      try
+      {
+        URL url=new URL(current);
+        conn=(HttpURLConnection)url.openConnection();
+        conn.setInstanceFollowRedirects(false);
+        conn.setRequestMethod("HEAD");
+        conn.connect();
+        int responseCode=conn.getResponseCode();
+        if (!isRedirect(responseCode))
+        {
+          if ((_cache!=null) && (isCacheable(responseCode)))
+          {
+            _cache.put(urlStr,current,(permanent) && (i>0));
+          }
+          return current;
+        }
+        String next=resolveLocation(current,conn.getHeaderField("Location"));
+        if ((next==null) || (!visited.add(next)))
+        {
+          LOGGER.warn("Bad redirect from "+current+": "+conn.getHeaderField("Location"));
+          return null;
+        }
+        permanent&=isPermanentRedirect(responseCode);
+        current=next;
+      }
+      catch(Exception e)
+      {
+        LOGGER.error("Could not resolve relocation of: "+current,e);
+        return null;
+      }
+      finally
       {
-        loc=conn.getHeaderField("Location");
-        if (loc!=null)
+        if (conn!=null)
         {
-          byte[] b=loc.getBytes("ISO8859-1");
-          loc=new String(b,"UTF-8");
+          conn.disconnect();
         }
       }
     }
-    catch(Exception e)
+    LOGGER.warn("Too many redirects for: "+urlStr);
+    return null;
+  }
+
+  /**
+   * Indicates if a status code is a redirect.
+   * @param statusCode Status code to test.
+   * @return <code>true</code> for 301, 302, 303, 307 and 308.
+   */
+  public static boolean isRedirect(int statusCode)
+  {
+    return ((statusCode==301) || (statusCode==302) || (statusCode==303) || (statusCode==307) || (statusCode==308));
+  }
+
+  /**
+   * Indicates if the final status code of a redirect chain allows to cache it.
+   * @param statusCode Status code to test.
+   * @return <code>true</code> for 2xx and 304.
+   */
+  public static boolean isCacheable(int statusCode)
+  {
+    return (((statusCode>=200) && (statusCode<300)) || (statusCode==304));
+  }
+
+  /**
+   * Indicates if a status code is a permanent redirect.
+   * @param statusCode Status code to test.
+   * @return <code>true</code> for 301 and 308.
+   */
+  public static boolean isPermanentRedirect(int statusCode)
+  {
+    return ((statusCode==301) || (statusCode==308));
+  }
+
+  /**
+   * Resolve the location of a redirect.
+   * Locations are decoded as UTF-8, even if they were received as ISO-8859-1.
+   * @param url URL of the redirected request.
+   * @param location Value of the <code>Location</code> header (may be relative).
+   * @return An absolute URL, or <code>null</code> if the location is missing or not valid.
+   */
+  public static String resolveLocation(String url, String location)
+  {
+    if (location==null)
     {
-      LOGGER.error("",e);
+      return null;
     }
-    finally
+    try
     {
-      if (conn!=null)
-      {
-        conn.disconnect();
-      }
-      conn=null;
+      byte[] b=location.getBytes("ISO8859-1");
+      String decoded=new String(b,"UTF-8");
+      return new URI(url).resolve(decoded.trim().replace(" ","%20")).toString();
+    }
+    catch(Exception e)
+    {
+      LOGGER.debug("Bad location: "+location,e);
+      return null;
     }
-    return loc;
   }
 
   /**
@@ -0,0 +1,398 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receiver that hands received bytes to another receiver asynchronously.
+ * <p>
+ * Received bytes are copied into a queue, that is drained by a task run by an executor.
+ * When the queue holds more than a given capacity, this receiver is full: downloads
+ * stop reading from the network until half of the queue is drained.
+ * <p>
+ * All calls to the delegate receiver are made by the drain task, except for start and
+ * termination, that wait for the queue to be drained: download managers call them out
+ * of the I/O reactor threads. A restart from the beginning while bytes are queued does not
+ * wait: queued bytes are dropped and the drain task restarts the delegate receiver.
+ * @author DAM
+ */
+public class AsyncReceiver implements ResumableReceiver,ByteBufferReceiver,SizeHintReceiver,FlowControlledReceiver
+{
+  private static final Logger LOGGER=Logger.getLogger(AsyncReceiver.class);
+
+  /**
+   * Default capacity (bytes).
+   */
+  public static final int DEFAULT_CAPACITY=4*1024*1024;
+
+  private BytesReceiver _delegate;
+  private ByteBufferReceiver _target;
+  private Executor _executor;
+  private int _capacity;
+  private Runnable _drainTask;
+  // State, protected by this object lock
+  private Deque<ByteBuffer> _queue;
+  private int _queuedBytes;
+  private boolean _draining;
+  private boolean _restart;
+  private boolean _failed;
+  private Runnable _drainCallback;
+  // Pending size hint for the delegate, or -1
+  private long _sizeHint;
+
+  /**
+   * Constructor.
+   * @param delegate Receiver to hand bytes to.
+   * @param executor Executor used to run the delegate receiver.
+   */
+  public AsyncReceiver(BytesReceiver delegate, Executor executor)
+  {
+    this(delegate,executor,DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   * @param delegate Receiver to hand bytes to.
+   * @param executor Executor used to run the delegate receiver.
+   * @param capacity Capacity of the queue (bytes).
+   */
+  public AsyncReceiver(BytesReceiver delegate, Executor executor, int capacity)
+  {
+    _delegate=delegate;
+    _target=BytesReceiverAdapter.adapt(delegate);
+    _executor=executor;
+    _capacity=capacity;
+    _queue=new ArrayDeque<ByteBuffer>();
+    _sizeHint=-1;
+    _drainTask=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        drain();
+      }
+    };
+  }
+
+  /**
+   * Get the receiver that gets the bytes.
+   * @return a receiver.
+   */
+  public BytesReceiver getDelegate()
+  {
+    return _delegate;
+  }
+
+  @Override
+  public boolean start()
+  {
+    reset();
+    return _delegate.start();
+  }
+
+  /**
+   * Start or resume reception.
+   * A restart from the beginning while the drain task runs does not block: the delegate
+   * receiver is restarted by the drain task, and a failure of this restart fails the next bytes.
+   * Other starts wait for the queue to be drained.
+   * @param offset Offset to start from.
+   * @return the offset to resume from, or <code>-1</code> if the reception could not be started.
+   */
+  @Override
+  public long start(long offset)
+  {
+    if ((offset==0) && (restartLater()))
+    {
+      return 0;
+    }
+    reset();
+    return startDelegate(offset);
+  }
+
+  private long startDelegate(long offset)
+  {
+    if (_delegate instanceof ResumableReceiver)
+    {
+      return ((ResumableReceiver)_delegate).start(offset);
+    }
+    return _delegate.start()?0:-1;
+  }
+
+  private void reset()
+  {
+    flush();
+    synchronized(this)
+    {
+      _queue.clear();
+      _queuedBytes=0;
+      _restart=false;
+      _failed=false;
+      _drainCallback=null;
+      _sizeHint=-1;
+    }
+  }
+
+  /**
+   * Drop the queued bytes and let the drain task restart the delegate receiver, if it runs.
+   * @return <code>true</code> if the restart is done by the drain task, <code>false</code> otherwise.
+   */
+  private synchronized boolean restartLater()
+  {
+    if (!_draining)
+    {
+      return false;
+    }
+    for(ByteBuffer chunk : _queue)
+    {
+      _queuedBytes-=chunk.remaining();
+    }
+    _queue.clear();
+    _restart=true;
+    _failed=false;
+    _sizeHint=-1;
+    return true;
+  }
+
+  @Override
+  public void handleExpectedSize(long size)
+  {
+    if (!(_delegate instanceof SizeHintReceiver))
+    {
+      return;
+    }
+    // Given to the delegate by the drain task, before the next bytes
+    boolean schedule;
+    synchronized(this)
+    {
+      _sizeHint=size;
+      schedule=!_draining;
+      _draining=true;
+    }
+    if (schedule)
+    {
+      scheduleDrain();
+    }
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    int count=buffer.remaining();
+    if (count==0)
+    {
+      return true;
+    }
+    ByteBuffer copy=ByteBuffer.allocate(count);
+    copy.put(buffer);
+    copy.flip();
+    boolean schedule;
+    synchronized(this)
+    {
+      if (_failed)
+      {
+        return false;
+      }
+      _queue.add(copy);
+      _queuedBytes+=count;
+      schedule=!_draining;
+      _draining=true;
+    }
+    if (schedule)
+    {
+      return scheduleDrain();
+    }
+    return true;
+  }
+
+  /**
+   * Run the drain task.
+   * If the executor rejects it, this receiver fails and its waiters are released.
+   * @return <code>true</code> if the task was scheduled, <code>false</code> otherwise.
+   */
+  private boolean scheduleDrain()
+  {
+    try
+    {
+      _executor.execute(_drainTask);
+      return true;
+    }
+    catch(RejectedExecutionException ree)
+    {
+      LOGGER.warn("Could not run the drain task for: "+_delegate);
+    }
+    Runnable callback;
+    synchronized(this)
+    {
+      _queue.clear();
+      _queuedBytes=0;
+      _restart=false;
+      _sizeHint=-1;
+      _failed=true;
+      _draining=false;
+      callback=_drainCallback;
+      _drainCallback=null;
+      notifyAll();
+    }
+    if (callback!=null)
+    {
+      callback.run();
+    }
+    return false;
+  }
+
+  private void drain()
+  {
+    while (true)
+    {
+      ByteBuffer chunk;
+      boolean failed;
+      boolean restart;
+      long sizeHint;
+      synchronized(this)
+      {
+        // Chunks are removed before they are handed: a restart drops the next ones only
+        chunk=_queue.poll();
+        restart=_restart;
+        _restart=false;
+        sizeHint=_sizeHint;
+        _sizeHint=-1;
+        if ((chunk==null) && (!restart) && (sizeHint<0))
+        {
+          _draining=false;
+          notifyAll();
+          return;
+        }
+        failed=_failed;
+      }
+      if (restart)
+      {
+        boolean ok=false;
+        try
+        {
+          ok=(startDelegate(0)==0);
+        }
+        catch(RuntimeException re)
+        {
+          LOGGER.warn("Receiver failed: "+_delegate,re);
+        }
+        if (!ok)
+        {
+          LOGGER.warn("Could not restart reception for: "+_delegate);
+          synchronized(this)
+          {
+            _failed=true;
+          }
+          failed=true;
+        }
+      }
+      if (sizeHint>=0)
+      {
+        ((SizeHintReceiver)_delegate).handleExpectedSize(sizeHint);
+      }
+      if (chunk==null)
+      {
+        continue;
+      }
+      int count=chunk.remaining();
+      boolean ok=false;
+      if (!failed)
+      {
+        try
+        {
+          ok=_target.handleBytes(chunk);
+        }
+        catch(RuntimeException re)
+        {
+          LOGGER.warn("Receiver failed: "+_delegate,re);
+        }
+      }
+      Runnable callback=null;
+      synchronized(this)
+      {
+        _queuedBytes-=count;
+        if (!ok)
+        {
+          _failed=true;
+        }
+        if ((_drainCallback!=null) && ((_failed) || (_queuedBytes<=_capacity/2)))
+        {
+          callback=_drainCallback;
+          _drainCallback=null;
+        }
+      }
+      if (callback!=null)
+      {
+        callback.run();
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isFull()
+  {
+    return (_queuedBytes>=_capacity);
+  }
+
+  @Override
+  public synchronized boolean awaitDrain(Runnable callback)
+  {
+    if ((_queuedBytes>=_capacity) && (!_failed))
+    {
+      _drainCallback=callback;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Wait until all queued bytes are handed to the delegate receiver.
+   */
+  public synchronized void flush()
+  {
+    while (_draining)
+    {
+      try
+      {
+        wait();
+      }
+      catch(InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Terminate reception, once all queued bytes are handed to the delegate receiver.
+   * It blocks until then: it shall not be called from an I/O reactor thread.
+   * @return <code>true</code> if OK, <code>false</code> otherwise.
+   */
+  @Override
+  public boolean terminate()
+  {
+    flush();
+    boolean ok=_delegate.terminate();
+    synchronized(this)
+    {
+      return ((ok) && (!_failed));
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Async receiver for: "+_delegate;
+  }
+}
@@ -0,0 +1,111 @@
+package delta.downloads.async;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the bandwidth used by downloads, globally and for each host.
+ * <p>
+ * Limits may be changed at any time, including while downloads are running.
+ * This class is thread-safe.
+ * @author DAM
+ */
+public class BandwidthLimiter
+{
+  private volatile TokenBucket _global;
+  private Map<String,TokenBucket> _hosts;
+
+  /**
+   * Constructor.
+   */
+  public BandwidthLimiter()
+  {
+    _global=null;
+    _hosts=new ConcurrentHashMap<String,TokenBucket>();
+  }
+
+  /**
+   * Set the global limit.
+   * @param bytesPerSecond Limit to set (bytes per second), <code>0</code> for no limit.
+   */
+  public synchronized void setGlobalLimit(long bytesPerSecond)
+  {
+    _global=updateBucket(_global,bytesPerSecond);
+  }
+
+  /**
+   * Get the global limit.
+   * @return a limit in bytes per second, <code>0</code> if there is no limit.
+   */
+  public long getGlobalLimit()
+  {
+    TokenBucket global=_global;
+    return (global!=null)?global.getRate():0;
+  }
+
+  /**
+   * Set the limit for a host.
+   * @param host Host name.
+   * @param bytesPerSecond Limit to set (bytes per second), <code>0</code> for no limit.
+   */
+  public synchronized void setHostLimit(String host, long bytesPerSecond)
+  {
+    String key=host.toLowerCase();
+    TokenBucket bucket=updateBucket(_hosts.get(key),bytesPerSecond);
+    if (bucket!=null)
+    {
+      _hosts.put(key,bucket);
+    }
+    else
+    {
+      _hosts.remove(key);
+    }
+  }
+
+  /**
+   * Get the limit for a host.
+   * @param host Host name.
+   * @return a limit in bytes per second, <code>0</code> if there is no limit.
+   */
+  public long getHostLimit(String host)
+  {
+    TokenBucket bucket=_hosts.get(host.toLowerCase());
+    return (bucket!=null)?bucket.getRate():0;
+  }
+
+  private TokenBucket updateBucket(TokenBucket bucket, long bytesPerSecond)
+  {
+    if (bytesPerSecond<=0)
+    {
+      return null;
+    }
+    if (bucket==null)
+    {
+      return new TokenBucket(bytesPerSecond);
+    }
+    bucket.setRate(bytesPerSecond);
+    return bucket;
+  }
+
+  /**
+   * Account for received bytes.
+   * @param host Source host.
+   * @param count Number of received bytes.
+   * @return the time to wait before reading more bytes, in milliseconds.
+   */
+  public long consume(String host, long count)
+  {
+    long delay=0;
+    TokenBucket global=_global;
+    if (global!=null)
+    {
+      delay=global.consume(count);
+    }
+    TokenBucket bucket=_hosts.get(host);
+    if (bucket!=null)
+    {
+      delay=Math.max(delay,bucket.consume(count));
+    }
+    return delay;
+  }
+}
@@ -1,50 +1,228 @@
 package delta.downloads.async;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Receives bytes into a buffer.
+ * <p>
+ * When the size of the data is announced, a buffer of that size is allocated
+ * and its contents are given back without copy. Otherwise, bytes are stored
+ * in a list of chunks (taken from a pool, if any), that are assembled once.
  * @author DAM
  */
-public class BufferReceiver implements BytesReceiver
+public class BufferReceiver implements ByteBufferReceiver,SizeHintReceiver
 {
-  private ByteArrayOutputStream _bos;
+  /**
+   * Default maximum size of presized buffers (bytes).
+   */
+  public static final int DEFAULT_MAX_PRESIZE=64*1024*1024;
+
+  private static final int DEFAULT_CHUNK_SIZE=16*1024;
+
+  private ChunkPool _pool;
+  private int _maxPresize;
+  // Storage: all chunks are full, except the last one
+  private List<byte[]> _chunks;
+  private int _lastChunkSize;
+  private int _size;
+  // Index of the first chunk that was taken from the pool
+  private int _firstPooled;
 
   /**
    * Constructor.
    */
   public BufferReceiver()
   {
-    _bos=new ByteArrayOutputStream();
+    this(null);
+  }
+
+  /**
+   * Constructor.
+   * @param pool Pool to get chunks from (may be <code>null</code>).
+   */
+  public BufferReceiver(ChunkPool pool)
+  {
+    _pool=pool;
+    _maxPresize=DEFAULT_MAX_PRESIZE;
+    _chunks=new ArrayList<byte[]>();
+    _firstPooled=0;
+  }
+
+  /**
+   * Set the maximum size of buffers allocated from the announced size.
+   * Bigger data is stored in chunks.
+   * @param maxPresize Size to set (bytes).
+   */
+  public void setMaxPresize(int maxPresize)
+  {
+    _maxPresize=maxPresize;
   }
 
   @Override
   public boolean start()
   {
-    _bos=new ByteArrayOutputStream();
+    release();
     return true;
   }
 
+  @Override
+  public void handleExpectedSize(long size)
+  {
+    if ((_size==0) && (size>0) && (size<=_maxPresize))
+    {
+      release();
+      _chunks.add(new byte[(int)size]);
+      _firstPooled=1;
+    }
+  }
+
   @Override
   public boolean handleBytes(byte[] buffer, int offset, int count)
   {
-    _bos.write(buffer,offset,count);
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    while (buffer.hasRemaining())
+    {
+      byte[] chunk=getLastChunk();
+      if ((chunk==null) || (_lastChunkSize==chunk.length))
+      {
+        chunk=newChunk();
+        _chunks.add(chunk);
+        _lastChunkSize=0;
+      }
+      int count=Math.min(buffer.remaining(),chunk.length-_lastChunkSize);
+      buffer.get(chunk,_lastChunkSize,count);
+      _lastChunkSize+=count;
+      _size+=count;
+    }
     return true;
   }
 
+  private byte[] getLastChunk()
+  {
+    int nbChunks=_chunks.size();
+    return (nbChunks>0)?_chunks.get(nbChunks-1):null;
+  }
+
+  private byte[] newChunk()
+  {
+    return (_pool!=null)?_pool.acquire():new byte[DEFAULT_CHUNK_SIZE];
+  }
+
   @Override
   public boolean terminate()
   {
     return true;
   }
 
+  /**
+   * Get the number of received bytes.
+   * @return a size in bytes.
+   */
+  public int getSize()
+  {
+    return _size;
+  }
+
   /**
    * Get the result buffer.
+   * When possible, the backing buffer is given without copy: it shall not be modified.
+   * A given buffer is never released to the pool.
    * @return the result buffer.
    */
   public byte[] getBytes()
   {
-    return _bos.toByteArray();
+    compact();
+    byte[] chunk=getLastChunk();
+    if (chunk==null)
+    {
+      return new byte[0];
+    }
+    if (chunk.length==_size)
+    {
+      // Given to the caller: a pooled chunk is no longer released to the pool
+      _firstPooled=_chunks.size();
+      return chunk;
+    }
+    byte[] ret=new byte[_size];
+    System.arraycopy(chunk,0,ret,0,_size);
+    int size=_size;
+    release();
+    _chunks.add(ret);
+    _lastChunkSize=size;
+    _size=size;
+    _firstPooled=1;
+    return ret;
+  }
+
+  /**
+   * Get a read-only view of the received bytes.
+   * The viewed buffer is never released to the pool.
+   * @return a byte buffer.
+   */
+  public ByteBuffer getByteBuffer()
+  {
+    compact();
+    byte[] chunk=getLastChunk();
+    if (chunk==null)
+    {
+      return ByteBuffer.allocate(0).asReadOnlyBuffer();
+    }
+    _firstPooled=_chunks.size();
+    return ByteBuffer.wrap(chunk,0,_size).asReadOnlyBuffer();
+  }
+
+  /**
+   * Assemble the chunks into a single one.
+   */
+  private void compact()
+  {
+    if (_chunks.size()<=1)
+    {
+      return;
+    }
+    byte[] result=new byte[_size];
+    int offset=0;
+    int nbChunks=_chunks.size();
+    for(int i=0;i<nbChunks;i++)
+    {
+      byte[] chunk=_chunks.get(i);
+      int count=(i==nbChunks-1)?_lastChunkSize:chunk.length;
+      System.arraycopy(chunk,0,result,offset,count);
+      offset+=count;
+    }
+    int size=_size;
+    release();
+    _chunks.add(result);
+    _lastChunkSize=size;
+    _size=size;
+    _firstPooled=1;
+  }
+
+  /**
+   * Release the received bytes.
+   * Pooled chunks are given back to the pool.
+   */
+  public void release()
+  {
+    if (_pool!=null)
+    {
+      int nbChunks=_chunks.size();
+      for(int i=_firstPooled;i<nbChunks;i++)
+      {
+        _pool.release(_chunks.get(i));
+      }
+    }
+    _chunks.clear();
+    _lastChunkSize=0;
+    _size=0;
+    _firstPooled=0;
   }
 
   @Override
@@ -0,0 +1,22 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Interface of a bytes receiver that handles byte buffers directly.
+ * <p>
+ * Download managers give the buffers they read from the network to such receivers,
+ * without copying them into intermediate byte arrays.
+ * @author DAM
+ */
+public interface ByteBufferReceiver extends BytesReceiver
+{
+  /**
+   * Handle the reception of some bytes.
+   * The bytes between the position and the limit of the given buffer shall be consumed.
+   * The buffer is reused by the caller: it shall not be kept after this call.
+   * @param buffer Buffer to read from (may be a direct buffer).
+   * @return <code>true</code> if OK, <code>false</code> otherwise.
+   */
+  boolean handleBytes(ByteBuffer buffer);
+}
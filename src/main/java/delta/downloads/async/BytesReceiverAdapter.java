@@ -0,0 +1,89 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts a plain bytes receiver to the byte buffers interface.
+ * <p>
+ * Heap buffers are given to the receiver through their backing array.
+ * The contents of direct buffers are copied into a scratch array.
+ * @author DAM
+ */
+public class BytesReceiverAdapter implements ByteBufferReceiver
+{
+  private static final int SCRATCH_SIZE=16*1024;
+
+  private BytesReceiver _receiver;
+  private byte[] _scratch;
+
+  /**
+   * Constructor.
+   * @param receiver Receiver to adapt.
+   */
+  public BytesReceiverAdapter(BytesReceiver receiver)
+  {
+    _receiver=receiver;
+  }
+
+  /**
+   * Get a byte buffers receiver for the given receiver.
+   * @param receiver Receiver to use.
+   * @return the given receiver if it handles byte buffers, an adapter otherwise.
+   */
+  public static ByteBufferReceiver adapt(BytesReceiver receiver)
+  {
+    if (receiver instanceof ByteBufferReceiver)
+    {
+      return (ByteBufferReceiver)receiver;
+    }
+    return new BytesReceiverAdapter(receiver);
+  }
+
+  @Override
+  public boolean start()
+  {
+    return _receiver.start();
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    if (buffer.hasArray())
+    {
+      int count=buffer.remaining();
+      boolean ok=_receiver.handleBytes(buffer.array(),buffer.arrayOffset()+buffer.position(),count);
+      buffer.position(buffer.limit());
+      return ok;
+    }
+    if (_scratch==null)
+    {
+      _scratch=new byte[SCRATCH_SIZE];
+    }
+    boolean ok=true;
+    while ((ok) && (buffer.hasRemaining()))
+    {
+      int count=Math.min(buffer.remaining(),_scratch.length);
+      buffer.get(_scratch,0,count);
+      ok=_receiver.handleBytes(_scratch,0,count);
+    }
+    return ok;
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return _receiver.handleBytes(buffer,offset,count);
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    return _receiver.terminate();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Adapter for: "+_receiver;
+  }
+}
@@ -0,0 +1,89 @@
+package delta.downloads.async;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum.
+ * <p>
+ * Table-driven implementation, processing 8 bytes per step.
+ * @author DAM
+ */
+public class CRC32C implements Checksum
+{
+  private static final int POLYNOMIAL=0x82F63B78;
+  private static final int[][] TABLES=buildTables();
+
+  private int _crc;
+
+  /**
+   * Constructor.
+   */
+  public CRC32C()
+  {
+    reset();
+  }
+
+  private static int[][] buildTables()
+  {
+    int[][] tables=new int[8][256];
+    for(int i=0;i<256;i++)
+    {
+      int crc=i;
+      for(int bit=0;bit<8;bit++)
+      {
+        crc=((crc&1)!=0)?((crc>>>1)^POLYNOMIAL):(crc>>>1);
+      }
+      tables[0][i]=crc;
+    }
+    for(int i=0;i<256;i++)
+    {
+      int crc=tables[0][i];
+      for(int t=1;t<8;t++)
+      {
+        crc=tables[0][crc&0xFF]^(crc>>>8);
+        tables[t][i]=crc;
+      }
+    }
+    return tables;
+  }
+
+  @Override
+  public void update(int b)
+  {
+    _crc=TABLES[0][(_crc^b)&0xFF]^(_crc>>>8);
+  }
+
+  @Override
+  public void update(byte[] buffer, int offset, int count)
+  {
+    int crc=_crc;
+    int position=offset;
+    int end=offset+count;
+    while (end-position>=8)
+    {
+      int low=crc^((buffer[position]&0xFF)|((buffer[position+1]&0xFF)<<8)|((buffer[position+2]&0xFF)<<16)|((buffer[position+3]&0xFF)<<24));
+      crc=TABLES[7][low&0xFF]^TABLES[6][(low>>>8)&0xFF]^TABLES[5][(low>>>16)&0xFF]^TABLES[4][low>>>24]
+          ^TABLES[3][buffer[position+4]&0xFF]^TABLES[2][buffer[position+5]&0xFF]
+          ^TABLES[1][buffer[position+6]&0xFF]^TABLES[0][buffer[position+7]&0xFF];
+      position+=8;
+    }
+    while (position<end)
+    {
+      crc=TABLES[0][(crc^buffer[position])&0xFF]^(crc>>>8);
+      position++;
+    }
+    _crc=crc;
+  }
+
+  @Override
+  public long getValue()
+  {
+    return (~_crc)&0xFFFFFFFFL;
+  }
+
+  @Override
+  public void reset()
+  {
+    _crc=0xFFFFFFFF;
+  }
+}
@@ -0,0 +1,86 @@
+package delta.downloads.async;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of reusable byte chunks.
+ * <p>
+ * This class is thread-safe.
+ * @author DAM
+ */
+public class ChunkPool
+{
+  private int _chunkSize;
+  private int _maxPooledChunks;
+  private Queue<byte[]> _chunks;
+  private AtomicInteger _pooledChunks;
+
+  /**
+   * Constructor.
+   * @param chunkSize Size of chunks (bytes).
+   * @param maxPooledChunks Maximum number of chunks kept in this pool.
+   */
+  public ChunkPool(int chunkSize, int maxPooledChunks)
+  {
+    _chunkSize=chunkSize;
+    _maxPooledChunks=maxPooledChunks;
+    _chunks=new ConcurrentLinkedQueue<byte[]>();
+    _pooledChunks=new AtomicInteger();
+  }
+
+  /**
+   * Get the size of chunks.
+   * @return a size in bytes.
+   */
+  public int getChunkSize()
+  {
+    return _chunkSize;
+  }
+
+  /**
+   * Get a chunk.
+   * @return a pooled chunk or a new one.
+   */
+  public byte[] acquire()
+  {
+    byte[] chunk=_chunks.poll();
+    if (chunk!=null)
+    {
+      _pooledChunks.decrementAndGet();
+      return chunk;
+    }
+    return new byte[_chunkSize];
+  }
+
+  /**
+   * Give back a chunk to this pool.
+   * It shall not be used by the caller afterwards.
+   * @param chunk Chunk to release.
+   */
+  public void release(byte[] chunk)
+  {
+    if (chunk.length!=_chunkSize)
+    {
+      return;
+    }
+    if (_pooledChunks.incrementAndGet()<=_maxPooledChunks)
+    {
+      _chunks.offer(chunk);
+    }
+    else
+    {
+      _pooledChunks.decrementAndGet();
+    }
+  }
+
+  /**
+   * Get the number of pooled chunks.
+   * @return a chunks count.
+   */
+  public int getPooledChunksCount()
+  {
+    return _pooledChunks.get();
+  }
+}
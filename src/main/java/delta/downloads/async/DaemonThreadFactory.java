@@ -0,0 +1,34 @@
+package delta.downloads.async;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for named daemon threads.
+ * @author DAM
+ */
+class DaemonThreadFactory implements ThreadFactory
+{
+  private String _name;
+  private AtomicInteger _count;
+
+  /**
+   * Constructor.
+   * @param name Base name of threads.
+   */
+  DaemonThreadFactory(String name)
+  {
+    _name=name;
+    _count=new AtomicInteger();
+  }
+
+  @Override
+  public Thread newThread(Runnable r)
+  {
+    int index=_count.incrementAndGet();
+    String name=(index==1)?_name:_name+" "+index;
+    Thread thread=new Thread(r,name);
+    thread.setDaemon(true);
+    return thread;
+  }
+}
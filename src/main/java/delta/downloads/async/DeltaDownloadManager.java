@@ -0,0 +1,734 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import delta.downloads.blocks.BlockManifest;
+import delta.downloads.blocks.BlockMatcher;
+
+/**
+ * Manager for a delta update of a local file.
+ * <p>
+ * The blocks of the new version, described by a block manifest, are searched in the local
+ * previous version. Found blocks are copied into a temporary file, and the missing byte ranges
+ * are fetched with parallel range requests. When the temporary file matches the digest of the
+ * manifest, it replaces the local file.
+ * <p>
+ * If the server does not support byte ranges, the whole file is downloaded, using the receiver
+ * of the task (that writes to the temporary file).
+ * @author DAM
+ */
+public class DeltaDownloadManager extends SingleAsyncDownloadManager
+{
+  private static final Logger LOGGER=Logger.getLogger(DeltaDownloadManager.class);
+
+  /**
+   * Suffix of the temporary file, next to the updated file.
+   */
+  public static final String TEMPORARY_SUFFIX=".delta";
+  /**
+   * Maximum number of parallel range requests.
+   */
+  public static final int MAX_RANGE_REQUESTS=4;
+  /**
+   * Missing ranges separated by less than this are fetched with a single request (bytes).
+   */
+  public static final long MAX_RANGE_GAP=16*1024;
+
+  private static final int BUFFER_SIZE=64*1024;
+
+  private BlockManifest _manifest;
+  private File _file;
+  private File _temporaryFile;
+  private ExecutorService _executor;
+  private boolean _rangesRefused;
+  private boolean _streaming;
+  // Delta mode
+  private RandomAccessFile _output;
+  private FileChannel _channel;
+  private LinkedList<Range> _pending;
+  private List<Range> _active;
+  private boolean _failed;
+  private boolean _cancelled;
+  private boolean _finished;
+
+  /**
+   * Constructor.
+   * @param client Underlying HTTP client.
+   * @param task Download task, that receives the whole file in the temporary file if byte ranges are not supported.
+   * @param manifest Block manifest of the new version.
+   * @param file Local file to update.
+   * @param temporaryFile Temporary file.
+   * @param executor Executor for the local file scan and the final checks.
+   */
+  public DeltaDownloadManager(CloseableHttpAsyncClient client, DownloadTask task, BlockManifest manifest, File file, File temporaryFile, ExecutorService executor)
+  {
+    super(client,task);
+    _manifest=manifest;
+    _file=file;
+    _temporaryFile=temporaryFile;
+    _executor=executor;
+    _pending=new LinkedList<Range>();
+    _active=new ArrayList<Range>();
+  }
+
+  @Override
+  public boolean start()
+  {
+    initLatch();
+    boolean rangesRefused;
+    synchronized(this)
+    {
+      _streaming=false;
+      _pending.clear();
+      _active.clear();
+      _failed=false;
+      _cancelled=false;
+      _finished=false;
+      rangesRefused=_rangesRefused;
+    }
+    DownloadTask task=getTask();
+    task.incrementAttempts();
+    task.setDownloadState(DownloadState.RUNNING);
+    task.setExpectedSize(Long.valueOf(_manifest.getFileSize()));
+    invokeListener();
+    if (rangesRefused)
+    {
+      startStreaming();
+      return true;
+    }
+    Runnable prepare=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        prepare();
+      }
+    };
+    try
+    {
+      _executor.execute(prepare);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      LOGGER.warn("Could not start delta update: "+task);
+      task.setDownloadState(DownloadState.FAILED);
+      handleTermination();
+    }
+    return true;
+  }
+
+  /**
+   * Find the local blocks, copy them to the temporary file and start the range requests.
+   */
+  private void prepare()
+  {
+    DownloadTask task=getTask();
+    long[] offsets;
+    BlockMatcher matcher=new BlockMatcher(_manifest);
+    try
+    {
+      offsets=matcher.findBlocks(_file);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not scan local file: "+_file+", fetching all blocks",ioe);
+      offsets=new long[_manifest.getBlocksCount()];
+      Arrays.fill(offsets,-1);
+    }
+    List<Range> ranges=buildRanges(offsets);
+    long fetched=0;
+    for(Range range : ranges)
+    {
+      fetched+=range._end-range._start;
+    }
+    long reused=_manifest.getFileSize()-fetched;
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Found "+matcher.getFoundBlocksCount()+"/"+offsets.length+" blocks in "+_file+": reusing "+reused+" bytes, fetching "+fetched+" bytes in "+ranges.size()+" ranges");
+    }
+    try
+    {
+      RandomAccessFile output=new RandomAccessFile(_temporaryFile,"rw");
+      synchronized(this)
+      {
+        _output=output;
+        _channel=output.getChannel();
+      }
+      output.setLength(_manifest.getFileSize());
+      copyLocalBlocks(offsets);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not build temporary file: "+_temporaryFile,ioe);
+      synchronized(this)
+      {
+        _failed=true;
+      }
+      finish();
+      return;
+    }
+    synchronized(task)
+    {
+      task.setReusedSize(reused);
+      task.setDoneSize(reused);
+      task.setDecodedSize(reused);
+    }
+    invokeListener();
+    List<Range> toStart=new ArrayList<Range>();
+    synchronized(this)
+    {
+      _pending.addAll(ranges);
+      while ((!_cancelled) && (_active.size()<MAX_RANGE_REQUESTS) && (!_pending.isEmpty()))
+      {
+        Range range=_pending.removeFirst();
+        _active.add(range);
+        toStart.add(range);
+      }
+      _finished=toStart.isEmpty();
+    }
+    if (toStart.isEmpty())
+    {
+      finish();
+      return;
+    }
+    for(Range range : toStart)
+    {
+      startRange(range);
+    }
+  }
+
+  /**
+   * Build the byte ranges to fetch.
+   * @param offsets Offsets of the blocks in the local file.
+   * @return the missing ranges, sorted.
+   */
+  private List<Range> buildRanges(long[] offsets)
+  {
+    List<Range> ret=new ArrayList<Range>();
+    Range current=null;
+    for(int i=0;i<offsets.length;i++)
+    {
+      if (offsets[i]>=0)
+      {
+        continue;
+      }
+      long start=_manifest.getBlockOffset(i);
+      long end=start+_manifest.getBlockLength(i);
+      if ((current!=null) && (start-current._end<=MAX_RANGE_GAP))
+      {
+        current._end=end;
+      }
+      else
+      {
+        current=new Range(start,end);
+        ret.add(current);
+      }
+    }
+    return ret;
+  }
+
+  private void copyLocalBlocks(long[] offsets) throws IOException
+  {
+    if (!_file.isFile())
+    {
+      return;
+    }
+    try (RandomAccessFile input=new RandomAccessFile(_file,"r"))
+    {
+      FileChannel source=input.getChannel();
+      int blockSize=_manifest.getBlockSize();
+      int index=0;
+      while (index<offsets.length)
+      {
+        if (offsets[index]<0)
+        {
+          index++;
+          continue;
+        }
+        // Copy runs of blocks that are contiguous in both files at once
+        int last=index;
+        while ((last+1<offsets.length) && (offsets[last+1]==offsets[last]+blockSize))
+        {
+          last++;
+        }
+        long position=_manifest.getBlockOffset(index);
+        long length=_manifest.getBlockOffset(last)+_manifest.getBlockLength(last)-position;
+        source.position(offsets[index]);
+        long copied=0;
+        while (copied<length)
+        {
+          long count=_channel.transferFrom(source,position+copied,length-copied);
+          if (count<=0)
+          {
+            throw new IOException("Could not copy block "+index+" from: "+_file);
+          }
+          copied+=count;
+        }
+        index=last+1;
+      }
+    }
+  }
+
+  private void startRange(Range range)
+  {
+    HttpGet get=new HttpGet(getRequestURL());
+    get.setHeader("Range","bytes="+range._start+"-"+(range._end-1));
+    RangeConsumer consumer=new RangeConsumer(range);
+    FutureCallback<HttpResponse> callback=new RangeCallback(range);
+    Future<HttpResponse> future=getClient().execute(HttpAsyncMethods.create(get),consumer,callback);
+    boolean cancel;
+    synchronized(this)
+    {
+      range._future=future;
+      cancel=(_cancelled || _failed);
+    }
+    if (cancel)
+    {
+      future.cancel(true);
+    }
+  }
+
+  private void handleRangeBytes(Range range, ByteBuffer buffer) throws IOException
+  {
+    FileChannel channel;
+    synchronized(this)
+    {
+      if ((_cancelled) || (_failed))
+      {
+        throw new IOException("Delta update aborted: "+getTask().getURL());
+      }
+      channel=_channel;
+    }
+    long remaining=range._end-range._position;
+    int count=(int)Math.max(0,Math.min(buffer.remaining(),remaining));
+    if (count>0)
+    {
+      ByteBuffer data=buffer.duplicate();
+      data.limit(data.position()+count);
+      long position=range._position;
+      while (data.hasRemaining())
+      {
+        position+=channel.write(data,position);
+      }
+      range._position+=count;
+      DownloadTask task=getTask();
+      synchronized(task)
+      {
+        task.setDoneSize(task.getDoneSize()+count);
+        task.setDecodedSize(task.getDoneSize());
+      }
+      invokeListener();
+    }
+    buffer.position(buffer.limit());
+  }
+
+  private void handleRangeTermination(Range range)
+  {
+    Range next=null;
+    boolean finished;
+    synchronized(this)
+    {
+      _active.remove(range);
+      if ((!range.isComplete()) && (!_cancelled) && (!_failed))
+      {
+        if (!_rangesRefused)
+        {
+          LOGGER.warn("Range failed: "+range+" for: "+getTask());
+        }
+        _failed=true;
+        cancelRanges();
+      }
+      if ((!_failed) && (!_cancelled) && (!_pending.isEmpty()))
+      {
+        next=_pending.removeFirst();
+        _active.add(next);
+      }
+      // Nested terminations of cancelled ranges may have finished already
+      finished=((_active.isEmpty()) && (!_finished));
+      if (finished)
+      {
+        _finished=true;
+      }
+    }
+    if (next!=null)
+    {
+      startRange(next);
+    }
+    if (finished)
+    {
+      Runnable finish=new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          finish();
+        }
+      };
+      try
+      {
+        _executor.execute(finish);
+      }
+      catch(RejectedExecutionException ree)
+      {
+        finish.run();
+      }
+    }
+  }
+
+  private void cancelRanges()
+  {
+    // Cancellation callbacks may run in this thread and remove ranges
+    for(Range range : new ArrayList<Range>(_active))
+    {
+      if (range._future!=null)
+      {
+        range._future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Terminate the delta mode: check and install the temporary file.
+   */
+  private void finish()
+  {
+    closeFile();
+    boolean cancelled;
+    boolean failed;
+    boolean rangesRefused;
+    synchronized(this)
+    {
+      cancelled=_cancelled;
+      failed=_failed;
+      rangesRefused=_rangesRefused;
+    }
+    DownloadState state;
+    if (cancelled)
+    {
+      state=DownloadState.CANCELLED;
+    }
+    else if ((failed) && (rangesRefused))
+    {
+      LOGGER.info("Byte ranges not supported, downloading the whole file: "+getTask().getURL());
+      startStreaming();
+      return;
+    }
+    else if (failed)
+    {
+      state=DownloadState.FAILED;
+    }
+    else if (!checkDigest())
+    {
+      state=DownloadState.CHECKSUM_MISMATCH;
+    }
+    else
+    {
+      state=install()?DownloadState.OK:DownloadState.FAILED;
+    }
+    if (state!=DownloadState.OK)
+    {
+      deleteTemporaryFile();
+    }
+    else if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Delta update done: "+getTask());
+    }
+    getTask().setDownloadState(state);
+    handleTermination();
+  }
+
+  /**
+   * Download the whole file to the temporary file, checked against the digest of the manifest.
+   */
+  private void startStreaming()
+  {
+    DownloadTask task=getTask();
+    synchronized(this)
+    {
+      _streaming=true;
+    }
+    String digest=DigestingReceiver.toHex(_manifest.getFileDigest());
+    task.setIntegrityCheck(new IntegrityCheck("SHA-256",digest,Long.valueOf(_manifest.getFileSize())));
+    task.setReusedSize(0);
+    startRequest();
+  }
+
+  private boolean checkDigest()
+  {
+    if (_temporaryFile.length()!=_manifest.getFileSize())
+    {
+      LOGGER.warn("Bad size for assembled file: "+_temporaryFile);
+      return false;
+    }
+    try (InputStream is=new FileInputStream(_temporaryFile))
+    {
+      MessageDigest digest=MessageDigest.getInstance("SHA-256");
+      byte[] buffer=new byte[BUFFER_SIZE];
+      while (true)
+      {
+        int count=is.read(buffer);
+        if (count<0)
+        {
+          break;
+        }
+        digest.update(buffer,0,count);
+      }
+      if (MessageDigest.isEqual(digest.digest(),_manifest.getFileDigest()))
+      {
+        return true;
+      }
+      LOGGER.warn("Digest mismatch for assembled file: "+getTask());
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not read assembled file: "+_temporaryFile,ioe);
+    }
+    catch(NoSuchAlgorithmException nsae)
+    {
+      LOGGER.error("SHA-256 is not available",nsae);
+    }
+    return false;
+  }
+
+  /**
+   * Replace the local file by the temporary file.
+   * @return <code>true</code> if it was done, <code>false</code> otherwise.
+   */
+  private boolean install()
+  {
+    try
+    {
+      try
+      {
+        Files.move(_temporaryFile.toPath(),_file.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch(AtomicMoveNotSupportedException amnse)
+      {
+        Files.move(_temporaryFile.toPath(),_file.toPath(),StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not replace file: "+_file,ioe);
+    }
+    return false;
+  }
+
+  private void deleteTemporaryFile()
+  {
+    if ((_temporaryFile.exists()) && (!_temporaryFile.delete()))
+    {
+      LOGGER.warn("Could not delete temporary file: "+_temporaryFile);
+    }
+  }
+
+  @Override
+  void terminateReception()
+  {
+    boolean streaming;
+    synchronized(this)
+    {
+      streaming=_streaming;
+    }
+    if (!streaming)
+    {
+      closeFile();
+      return;
+    }
+    super.terminateReception();
+    DownloadTask task=getTask();
+    if (task.getDownloadState()==DownloadState.OK)
+    {
+      if (!install())
+      {
+        task.setDownloadState(DownloadState.FAILED);
+        deleteTemporaryFile();
+      }
+    }
+    else
+    {
+      deleteTemporaryFile();
+    }
+  }
+
+  private void closeFile()
+  {
+    // Range consumers may still run: they get a closed channel, never a null one
+    RandomAccessFile output;
+    synchronized(this)
+    {
+      output=_output;
+      _output=null;
+    }
+    try
+    {
+      if (output!=null)
+      {
+        output.close();
+      }
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not close file: "+_temporaryFile,ioe);
+    }
+  }
+
+  @Override
+  public void cancel()
+  {
+    boolean streaming;
+    synchronized(this)
+    {
+      _cancelled=true;
+      streaming=_streaming;
+      if (!streaming)
+      {
+        cancelRanges();
+      }
+    }
+    if (streaming)
+    {
+      super.cancel();
+    }
+  }
+
+  private class RangeConsumer extends AsyncByteConsumer<HttpResponse>
+  {
+    private Range _range;
+    private HttpResponse _response;
+    private InputGate _gate;
+
+    private RangeConsumer(Range range)
+    {
+      _range=range;
+      _gate=new InputGate();
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException
+    {
+      int statusCode=response.getStatusLine().getStatusCode();
+      if (statusCode==HttpStatus.SC_OK)
+      {
+        synchronized(DeltaDownloadManager.this)
+        {
+          _rangesRefused=true;
+        }
+      }
+      if (statusCode!=HttpStatus.SC_PARTIAL_CONTENT)
+      {
+        throw new HttpException("Byte range not honoured for "+_range+": "+response.getStatusLine());
+      }
+      long[] contentRange=ResponseUtils.getContentRange(response);
+      if ((contentRange==null) || (contentRange[0]!=_range._start))
+      {
+        throw new HttpException("Unexpected content range for "+_range+": "+ResponseUtils.getHeader(response,"Content-Range"));
+      }
+      _response=response;
+    }
+
+    @Override
+    protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException
+    {
+      int count=buf.remaining();
+      handleRangeBytes(_range,buf);
+      throttle(count,_gate,ioctrl);
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) throws Exception
+    {
+      return _response;
+    }
+  }
+
+  private class RangeCallback implements FutureCallback<HttpResponse>
+  {
+    private Range _range;
+
+    private RangeCallback(Range range)
+    {
+      _range=range;
+    }
+
+    public void completed(HttpResponse response)
+    {
+      handleRangeTermination(_range);
+    }
+
+    public void failed(Exception ex)
+    {
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Range request failed: "+_range,ex);
+      }
+      handleRangeTermination(_range);
+    }
+
+    public void cancelled()
+    {
+      handleRangeTermination(_range);
+    }
+  }
+
+  /**
+   * Missing byte range of the new version.
+   * The position is only used by the I/O thread of the range request.
+   */
+  private static class Range
+  {
+    private long _start;
+    private long _end;
+    private volatile long _position;
+    private volatile Future<HttpResponse> _future;
+
+    private Range(long start, long end)
+    {
+      _start=start;
+      _end=end;
+      _position=start;
+    }
+
+    private boolean isComplete()
+    {
+      return _position>=_end;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "["+_start+","+_end+"[ at "+_position;
+    }
+  }
+}
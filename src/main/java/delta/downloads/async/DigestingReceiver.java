@@ -0,0 +1,287 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receiver that computes digests of the received bytes, and gives them to another receiver.
+ * <p>
+ * Digests are updated as bytes are received, so that the received entity does not have to be
+ * read back to be verified. Supported algorithms are the ones of {@link MessageDigest}
+ * (<code>SHA-256</code>, <code>SHA-1</code>, <code>MD5</code>...), and the <code>CRC32C</code>,
+ * <code>CRC32</code> and <code>ADLER32</code> checksums.
+ * <p>
+ * A maximum size may be set: reception fails as soon as more bytes are received.
+ * @author DAM
+ */
+public class DigestingReceiver implements ByteBufferReceiver,SizeHintReceiver,FlowControlledReceiver
+{
+  private static final Logger LOGGER=Logger.getLogger(DigestingReceiver.class);
+
+  private static final int BUFFER_SIZE=16*1024;
+
+  private BytesReceiver _target;
+  private ByteBufferReceiver _delegate;
+  // Digest or checksum, by algorithm name
+  private Map<String,Object> _digests;
+  private byte[] _buffer;
+  private long _size;
+  private long _maxSize;
+  private boolean _sizeExceeded;
+
+  /**
+   * Constructor.
+   * @param delegate Receiver to give bytes to.
+   * @param algorithms Digest algorithms.
+   * @throws IllegalArgumentException If an algorithm is not supported.
+   */
+  public DigestingReceiver(BytesReceiver delegate, String... algorithms)
+  {
+    _target=delegate;
+    _delegate=BytesReceiverAdapter.adapt(delegate);
+    _digests=new LinkedHashMap<String,Object>();
+    for(String algorithm : algorithms)
+    {
+      _digests.put(normalize(algorithm),buildDigest(algorithm));
+    }
+    _maxSize=-1;
+  }
+
+  private static String normalize(String algorithm)
+  {
+    return algorithm.trim().toUpperCase();
+  }
+
+  private static Object buildDigest(String algorithm)
+  {
+    String name=normalize(algorithm);
+    if (name.equals("CRC32C"))
+    {
+      return new CRC32C();
+    }
+    if (name.equals("CRC32"))
+    {
+      return new CRC32();
+    }
+    if (name.equals("ADLER32"))
+    {
+      return new Adler32();
+    }
+    try
+    {
+      return MessageDigest.getInstance(name);
+    }
+    catch(NoSuchAlgorithmException nsae)
+    {
+      throw new IllegalArgumentException("Unsupported digest algorithm: "+algorithm,nsae);
+    }
+  }
+
+  /**
+   * Set the maximum number of bytes to receive.
+   * @param maxSize Size to set (bytes), <code>-1</code> for no limit.
+   */
+  public void setMaxSize(long maxSize)
+  {
+    _maxSize=maxSize;
+  }
+
+  @Override
+  public boolean start()
+  {
+    for(Object digest : _digests.values())
+    {
+      if (digest instanceof MessageDigest)
+      {
+        ((MessageDigest)digest).reset();
+      }
+      else
+      {
+        ((Checksum)digest).reset();
+      }
+    }
+    _size=0;
+    _sizeExceeded=false;
+    return _target.start();
+  }
+
+  @Override
+  public void handleExpectedSize(long size)
+  {
+    if (_target instanceof SizeHintReceiver)
+    {
+      ((SizeHintReceiver)_target).handleExpectedSize(size);
+    }
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    int count=buffer.remaining();
+    if ((_maxSize>=0) && (_size+count>_maxSize))
+    {
+      LOGGER.warn("Received more than the expected "+_maxSize+" bytes: "+_target);
+      _sizeExceeded=true;
+      return false;
+    }
+    for(Object digest : _digests.values())
+    {
+      if (digest instanceof MessageDigest)
+      {
+        ((MessageDigest)digest).update(buffer.duplicate());
+      }
+      else
+      {
+        updateChecksum((Checksum)digest,buffer.duplicate());
+      }
+    }
+    _size+=count;
+    return _delegate.handleBytes(buffer);
+  }
+
+  private void updateChecksum(Checksum checksum, ByteBuffer buffer)
+  {
+    if (buffer.hasArray())
+    {
+      checksum.update(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+      return;
+    }
+    if (_buffer==null)
+    {
+      _buffer=new byte[BUFFER_SIZE];
+    }
+    while (buffer.hasRemaining())
+    {
+      int count=Math.min(buffer.remaining(),_buffer.length);
+      buffer.get(_buffer,0,count);
+      checksum.update(_buffer,0,count);
+    }
+  }
+
+  @Override
+  public boolean isFull()
+  {
+    return ((_target instanceof FlowControlledReceiver) && (((FlowControlledReceiver)_target).isFull()));
+  }
+
+  @Override
+  public boolean awaitDrain(Runnable callback)
+  {
+    if (_target instanceof FlowControlledReceiver)
+    {
+      return ((FlowControlledReceiver)_target).awaitDrain(callback);
+    }
+    return false;
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    return _target.terminate();
+  }
+
+  /**
+   * Get the number of received bytes.
+   * @return a size in bytes.
+   */
+  public long getSize()
+  {
+    return _size;
+  }
+
+  /**
+   * Indicates if more bytes than the maximum size were received.
+   * @return <code>true</code> if they were, <code>false</code> otherwise.
+   */
+  public boolean isSizeExceeded()
+  {
+    return _sizeExceeded;
+  }
+
+  /**
+   * Get the value of a digest of the bytes received so far.
+   * @param algorithm Digest algorithm.
+   * @return A lower-case hexadecimal string.
+   * @throws IllegalArgumentException If this digest is not computed.
+   */
+  public String getValue(String algorithm)
+  {
+    Object digest=_digests.get(normalize(algorithm));
+    if (digest==null)
+    {
+      throw new IllegalArgumentException("Digest not computed: "+algorithm);
+    }
+    if (digest instanceof MessageDigest)
+    {
+      try
+      {
+        // Clone, so that the digest can still be updated
+        MessageDigest copy=(MessageDigest)((MessageDigest)digest).clone();
+        return toHex(copy.digest());
+      }
+      catch(CloneNotSupportedException cnse)
+      {
+        throw new IllegalStateException("Digest cannot be cloned: "+algorithm,cnse);
+      }
+    }
+    long value=((Checksum)digest).getValue();
+    String hex=Long.toHexString(value);
+    StringBuilder sb=new StringBuilder();
+    for(int i=hex.length();i<8;i++)
+    {
+      sb.append('0');
+    }
+    return sb.append(hex).toString();
+  }
+
+  /**
+   * Check the received bytes against an expected checksum and size.
+   * @param check Expected checksum and size.
+   * @return <code>true</code> if they match, <code>false</code> otherwise.
+   */
+  public boolean verify(IntegrityCheck check)
+  {
+    Long size=check.getSize();
+    if ((_sizeExceeded) || ((size!=null) && (size.longValue()!=_size)))
+    {
+      return false;
+    }
+    return check.getValue().equals(getValue(check.getAlgorithm()));
+  }
+
+  /**
+   * Format bytes as an hexadecimal string.
+   * @param bytes Bytes to format.
+   * @return A lower-case hexadecimal string.
+   */
+  static String toHex(byte[] bytes)
+  {
+    StringBuilder sb=new StringBuilder(bytes.length*2);
+    for(byte b : bytes)
+    {
+      sb.append(Character.forDigit((b>>4)&0xF,16));
+      sb.append(Character.forDigit(b&0xF,16));
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Digesting receiver "+_digests.keySet()+" for: "+_target;
+  }
+}
@@ -0,0 +1,349 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Journal of the progress of a download, stored in a sidecar file of the target file.
+ * <p>
+ * It records the byte ranges that were received and written, and the validators
+ * (<code>ETag</code>/<code>Last-Modified</code>) of the downloaded resource,
+ * so that an interrupted download can be resumed.
+ * @author DAM
+ */
+public class DownloadJournal
+{
+  private static final Logger LOGGER=Logger.getLogger(DownloadJournal.class);
+
+  /**
+   * Extension of journal files.
+   */
+  public static final String EXTENSION=".journal";
+
+  private static final String URL="url";
+  private static final String ETAG="etag";
+  private static final String LAST_MODIFIED="lastModified";
+  private static final String SIZE="size";
+  private static final String RANGES="ranges";
+
+  private File _file;
+  private String _url;
+  private String _etag;
+  private String _lastModified;
+  private Long _size;
+  // Sorted, disjoint ranges: [start,end[
+  private List<long[]> _ranges;
+
+  /**
+   * Constructor.
+   * @param file Journal file.
+   * @param url URL of the downloaded resource.
+   */
+  public DownloadJournal(File file, String url)
+  {
+    _file=file;
+    _url=url;
+    _ranges=new ArrayList<long[]>();
+  }
+
+  /**
+   * Get the journal file to use for a target file.
+   * @param target Target file.
+   * @return A journal file.
+   */
+  public static File getJournalFile(File target)
+  {
+    return new File(target.getPath()+EXTENSION);
+  }
+
+  /**
+   * Get the journal for a download.
+   * An existing journal is loaded if it exists and matches the given URL.
+   * @param target Target file.
+   * @param url URL of the downloaded resource.
+   * @return A journal.
+   */
+  public static DownloadJournal getJournal(File target, String url)
+  {
+    File file=getJournalFile(target);
+    DownloadJournal journal=new DownloadJournal(file,url);
+    if (file.exists())
+    {
+      boolean loaded=journal.load();
+      if ((!loaded) || (!url.equals(journal._url)))
+      {
+        journal=new DownloadJournal(file,url);
+      }
+    }
+    return journal;
+  }
+
+  /**
+   * Get the URL of the downloaded resource.
+   * @return an URL.
+   */
+  public String getURL()
+  {
+    return _url;
+  }
+
+  /**
+   * Get the entity tag of the downloaded resource.
+   * @return an entity tag or <code>null</code> if not known.
+   */
+  public synchronized String getETag()
+  {
+    return _etag;
+  }
+
+  /**
+   * Get the last modification date of the downloaded resource.
+   * @return an HTTP date or <code>null</code> if not known.
+   */
+  public synchronized String getLastModified()
+  {
+    return _lastModified;
+  }
+
+  /**
+   * Set the validators of the downloaded resource.
+   * @param etag Entity tag (may be <code>null</code>).
+   * @param lastModified Last modification date (may be <code>null</code>).
+   */
+  public synchronized void setValidators(String etag, String lastModified)
+  {
+    _etag=etag;
+    _lastModified=lastModified;
+  }
+
+  /**
+   * Get the validator to use in a <code>If-Range</code> header.
+   * Weak entity tags cannot be used for that.
+   * @return A validator or <code>null</code> if none.
+   */
+  public synchronized String getIfRangeValidator()
+  {
+    if ((_etag!=null) && (!_etag.startsWith("W/")))
+    {
+      return _etag;
+    }
+    return _lastModified;
+  }
+
+  /**
+   * Get the total size of the downloaded resource.
+   * @return a size in bytes or <code>null</code> if not known.
+   */
+  public synchronized Long getSize()
+  {
+    return _size;
+  }
+
+  /**
+   * Set the total size of the downloaded resource.
+   * @param size Size to set (bytes), may be <code>null</code>.
+   */
+  public synchronized void setSize(Long size)
+  {
+    _size=size;
+  }
+
+  /**
+   * Record a received byte range.
+   * @param start Start offset (included).
+   * @param end End offset (excluded).
+   */
+  public synchronized void addRange(long start, long end)
+  {
+    if (end<=start)
+    {
+      return;
+    }
+    List<long[]> ranges=new ArrayList<long[]>();
+    long[] added=new long[] {start,end};
+    for(long[] range : _ranges)
+    {
+      if ((range[1]<added[0]) || (range[0]>added[1]))
+      {
+        ranges.add(range);
+      }
+      else
+      {
+        added[0]=Math.min(added[0],range[0]);
+        added[1]=Math.max(added[1],range[1]);
+      }
+    }
+    int index=0;
+    while ((index<ranges.size()) && (ranges.get(index)[0]<added[0]))
+    {
+      index++;
+    }
+    ranges.add(index,added);
+    _ranges=ranges;
+  }
+
+  /**
+   * Get the received byte ranges.
+   * @return A sorted list of disjoint ranges (start included, end excluded).
+   */
+  public synchronized List<long[]> getRanges()
+  {
+    List<long[]> ret=new ArrayList<long[]>();
+    for(long[] range : _ranges)
+    {
+      ret.add(range.clone());
+    }
+    return Collections.unmodifiableList(ret);
+  }
+
+  /**
+   * Get the number of contiguous bytes received from the start of the resource.
+   * @return a size in bytes.
+   */
+  public synchronized long getContiguousSize()
+  {
+    if ((!_ranges.isEmpty()) && (_ranges.get(0)[0]==0))
+    {
+      return _ranges.get(0)[1];
+    }
+    return 0;
+  }
+
+  /**
+   * Forget the bytes received beyond the given size.
+   * @param size Size to keep (bytes).
+   */
+  public synchronized void truncate(long size)
+  {
+    List<long[]> ranges=new ArrayList<long[]>();
+    for(long[] range : _ranges)
+    {
+      if (range[0]<size)
+      {
+        ranges.add(new long[] {range[0],Math.min(range[1],size)});
+      }
+    }
+    _ranges=ranges;
+  }
+
+  /**
+   * Forget all received ranges and validators.
+   */
+  public synchronized void reset()
+  {
+    _ranges.clear();
+    _etag=null;
+    _lastModified=null;
+    _size=null;
+  }
+
+  private boolean load()
+  {
+    Properties props=new Properties();
+    try (InputStream is=new FileInputStream(_file))
+    {
+      props.load(is);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not load download journal: "+_file,ioe);
+      return false;
+    }
+    _url=props.getProperty(URL);
+    _etag=props.getProperty(ETAG);
+    _lastModified=props.getProperty(LAST_MODIFIED);
+    _size=ResponseUtils.parseLong(props.getProperty(SIZE));
+    _ranges.clear();
+    String rangesStr=props.getProperty(RANGES,"");
+    for(String rangeStr : rangesStr.split(","))
+    {
+      int separator=rangeStr.indexOf('-');
+      if (separator>0)
+      {
+        Long start=ResponseUtils.parseLong(rangeStr.substring(0,separator));
+        Long end=ResponseUtils.parseLong(rangeStr.substring(separator+1));
+        if ((start!=null) && (end!=null))
+        {
+          addRange(start.longValue(),end.longValue());
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Save this journal to its file.
+   * @return <code>true</code> if it was saved, <code>false</code> otherwise.
+   */
+  public synchronized boolean save()
+  {
+    Properties props=new Properties();
+    props.setProperty(URL,_url);
+    if (_etag!=null)
+    {
+      props.setProperty(ETAG,_etag);
+    }
+    if (_lastModified!=null)
+    {
+      props.setProperty(LAST_MODIFIED,_lastModified);
+    }
+    if (_size!=null)
+    {
+      props.setProperty(SIZE,_size.toString());
+    }
+    StringBuilder sb=new StringBuilder();
+    for(long[] range : _ranges)
+    {
+      if (sb.length()>0)
+      {
+        sb.append(',');
+      }
+      sb.append(range[0]).append('-').append(range[1]);
+    }
+    props.setProperty(RANGES,sb.toString());
+    File tmp=new File(_file.getPath()+".tmp");
+    try (OutputStream os=new FileOutputStream(tmp))
+    {
+      props.store(os,"Download journal");
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not save download journal: "+_file,ioe);
+      return false;
+    }
+    _file.delete();
+    return tmp.renameTo(_file);
+  }
+
+  /**
+   * Delete the file of this journal.
+   */
+  public synchronized void delete()
+  {
+    if (_file.exists())
+    {
+      _file.delete();
+    }
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    StringBuilder sb=new StringBuilder();
+    sb.append("Journal ").append(_file);
+    sb.append(": ETag=").append(_etag);
+    sb.append(", Last-Modified=").append(_lastModified);
+    sb.append(", received=").append(getContiguousSize());
+    return sb.toString();
+  }
+}
@@ -8,7 +8,8 @@ public interface DownloadListener
 {
   /**
    * Invoked when a download task has been updated.
-   * @param task Updated task.
+   * @param task Updated task, or a snapshot of it taken at the update when updates are
+   * delivered by a {@link ProgressDispatcher}.
    */
   void downloadTaskUpdated(DownloadTask task);
 }
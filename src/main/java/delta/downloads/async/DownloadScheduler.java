@@ -0,0 +1,594 @@
+package delta.downloads.async;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control for downloads.
+ * <p>
+ * Submitted downloads wait in a priority queue (state {@link DownloadState#QUEUED})
+ * until a slot is free, both globally and for the target host.
+ * <p>
+ * Each host has its own queue, and the hosts that have a free slot and queued downloads are
+ * kept in a queue of ready hosts, ordered by their best download: a dispatch does not walk
+ * the downloads that wait for a busy host.
+ * <p>
+ * Batches of pipelined downloads are queued as a whole: a batch uses a single slot of its host,
+ * but it starts only when the global limit allows all its downloads to run.
+ * @author DAM
+ */
+class DownloadScheduler
+{
+  private static final Logger LOGGER=Logger.getLogger(DownloadScheduler.class);
+
+  private int _maxInFlight;
+  private int _maxPerHost;
+  private Map<String,Integer> _hostLimits;
+  // Hosts with queued or running downloads
+  private Map<String,HostQueue> _hosts;
+  // Hosts with queued downloads and a free slot, best download first
+  private TreeSet<HostQueue> _readyHosts;
+  // Queued downloads
+  private Map<SingleAsyncDownloadManager,QueuedDownload> _queued;
+  private long _sequence;
+  // Running downloads and their host
+  private Map<SingleAsyncDownloadManager,String> _running;
+  // Downloads selected for start, and whether their cancellation was requested
+  private Map<SingleAsyncDownloadManager,Boolean> _starting;
+  // Dispatch state: a single thread dispatches, other threads request a new pass
+  private boolean _dispatching;
+  private boolean _dispatchRequested;
+
+  /**
+   * Constructor.
+   * @param maxInFlight Maximum number of running downloads.
+   * @param maxPerHost Maximum number of running downloads for a single host.
+   */
+  DownloadScheduler(int maxInFlight, int maxPerHost)
+  {
+    _maxInFlight=maxInFlight;
+    _maxPerHost=maxPerHost;
+    _hostLimits=new HashMap<String,Integer>();
+    _hosts=new HashMap<String,HostQueue>();
+    _readyHosts=new TreeSet<HostQueue>(new HostQueueComparator());
+    _queued=new HashMap<SingleAsyncDownloadManager,QueuedDownload>();
+    _sequence=0;
+    _running=new HashMap<SingleAsyncDownloadManager,String>();
+    _starting=new HashMap<SingleAsyncDownloadManager,Boolean>();
+  }
+
+  /**
+   * Set the maximum number of running downloads.
+   * @param maxInFlight Downloads count to set.
+   */
+  void setMaxInFlight(int maxInFlight)
+  {
+    synchronized(this)
+    {
+      _maxInFlight=maxInFlight;
+    }
+    dispatch();
+  }
+
+  /**
+   * Get the maximum number of running downloads.
+   * @return a downloads count.
+   */
+  synchronized int getMaxInFlight()
+  {
+    return _maxInFlight;
+  }
+
+  /**
+   * Set the default maximum number of running downloads for a single host.
+   * @param maxPerHost Downloads count to set.
+   */
+  void setMaxPerHost(int maxPerHost)
+  {
+    synchronized(this)
+    {
+      _maxPerHost=maxPerHost;
+      updateReadyHosts();
+    }
+    dispatch();
+  }
+
+  /**
+   * Set the maximum number of running downloads for a given host.
+   * @param host Host name.
+   * @param limit Downloads count to set, or <code>null</code> to use the default limit.
+   */
+  void setHostLimit(String host, Integer limit)
+  {
+    synchronized(this)
+    {
+      if (limit!=null)
+      {
+        _hostLimits.put(host,limit);
+      }
+      else
+      {
+        _hostLimits.remove(host);
+      }
+      updateReadyHosts();
+    }
+    dispatch();
+  }
+
+  /**
+   * Submit a download.
+   * It is started immediately if a slot is available, queued otherwise.
+   * @param downloadManager Download to submit.
+   */
+  void submit(SingleAsyncDownloadManager downloadManager)
+  {
+    downloadManager.markQueued();
+    synchronized(this)
+    {
+      List<SingleAsyncDownloadManager> downloads=new ArrayList<SingleAsyncDownloadManager>();
+      downloads.add(downloadManager);
+      enqueue(downloads,null);
+    }
+    dispatch();
+  }
+
+  /**
+   * Submit a batch of downloads to a single host.
+   * The batch is started when a slot of its host is available and the global limit allows
+   * all its downloads to run (or when nothing else is running). Its downloads are counted as
+   * running until they are released, one by one.
+   * @param downloads Downloads of the batch. Downloads cancelled before the start of the batch
+   * are removed from this list.
+   * @param start Starts the remaining downloads of the list. They shall be released or
+   * terminated if they can not be started.
+   */
+  void submitBatch(List<SingleAsyncDownloadManager> downloads, Runnable start)
+  {
+    for(SingleAsyncDownloadManager downloadManager : downloads)
+    {
+      downloadManager.markQueued();
+    }
+    synchronized(this)
+    {
+      enqueue(downloads,start);
+    }
+    dispatch();
+  }
+
+  private void enqueue(List<SingleAsyncDownloadManager> downloads, Runnable batchStart)
+  {
+    String host=getHost(downloads.get(0).getTask().getURL());
+    QueuedDownload queued=new QueuedDownload(downloads,batchStart,host,_sequence);
+    _sequence++;
+    for(SingleAsyncDownloadManager downloadManager : downloads)
+    {
+      _queued.put(downloadManager,queued);
+    }
+    HostQueue hostQueue=getHostQueue(host);
+    unready(hostQueue);
+    hostQueue._downloads.add(queued);
+    updateReady(hostQueue);
+  }
+
+  /**
+   * Cancel a download that is not started yet.
+   * A queued download is removed from the queue and cancelled. A download selected for start
+   * is cancelled instead of being started, or just after its start if it is being started.
+   * @param downloadManager Download to cancel.
+   * @return <code>true</code> if it was handled, <code>false</code> if it is neither queued
+   * nor being started.
+   */
+  boolean cancel(SingleAsyncDownloadManager downloadManager)
+  {
+    synchronized(this)
+    {
+      if (_starting.containsKey(downloadManager))
+      {
+        _starting.put(downloadManager,Boolean.TRUE);
+        return true;
+      }
+      QueuedDownload queued=_queued.remove(downloadManager);
+      if (queued==null)
+      {
+        return false;
+      }
+      queued._downloads.remove(downloadManager);
+      if (queued._downloads.isEmpty())
+      {
+        HostQueue hostQueue=_hosts.get(queued._host);
+        unready(hostQueue);
+        hostQueue._downloads.remove(queued);
+        updateReady(hostQueue);
+      }
+    }
+    downloadManager.cancelQueued();
+    return true;
+  }
+
+  /**
+   * Release the slot used by a download.
+   * @param downloadManager Terminated download.
+   */
+  void release(SingleAsyncDownloadManager downloadManager)
+  {
+    boolean released=false;
+    synchronized(this)
+    {
+      String host=_running.remove(downloadManager);
+      if (host!=null)
+      {
+        HostQueue hostQueue=_hosts.get(host);
+        unready(hostQueue);
+        hostQueue._running--;
+        updateReady(hostQueue);
+        released=true;
+      }
+    }
+    if (released)
+    {
+      dispatch();
+    }
+  }
+
+  /**
+   * Get the number of queued downloads.
+   * @return a downloads count.
+   */
+  synchronized int getQueuedCount()
+  {
+    return _queued.size();
+  }
+
+  /**
+   * Get the number of running downloads.
+   * @return a downloads count.
+   */
+  synchronized int getRunningCount()
+  {
+    return _running.size();
+  }
+
+  /**
+   * Start queued downloads while slots are available.
+   * Downloads that fail to start release their slot and request a new pass: passes are run
+   * in a loop by the dispatching thread, instead of recursive calls.
+   */
+  private void dispatch()
+  {
+    synchronized(this)
+    {
+      _dispatchRequested=true;
+      if (_dispatching)
+      {
+        return;
+      }
+      _dispatching=true;
+    }
+    boolean done=false;
+    try
+    {
+      while (true)
+      {
+        List<QueuedDownload> toStart;
+        synchronized(this)
+        {
+          if (!_dispatchRequested)
+          {
+            _dispatching=false;
+            done=true;
+            return;
+          }
+          _dispatchRequested=false;
+          toStart=selectDownloads();
+        }
+        for(QueuedDownload queued : toStart)
+        {
+          startSelected(queued);
+        }
+      }
+    }
+    finally
+    {
+      if (!done)
+      {
+        synchronized(this)
+        {
+          _dispatching=false;
+        }
+      }
+    }
+  }
+
+  private void startSelected(QueuedDownload queued)
+  {
+    List<SingleAsyncDownloadManager> cancelled=new ArrayList<SingleAsyncDownloadManager>();
+    synchronized(this)
+    {
+      Iterator<SingleAsyncDownloadManager> it=queued._downloads.iterator();
+      while (it.hasNext())
+      {
+        SingleAsyncDownloadManager downloadManager=it.next();
+        if (_starting.get(downloadManager).booleanValue())
+        {
+          _starting.remove(downloadManager);
+          it.remove();
+          cancelled.add(downloadManager);
+        }
+      }
+    }
+    for(SingleAsyncDownloadManager downloadManager : cancelled)
+    {
+      downloadManager.cancelQueued();
+      release(downloadManager);
+    }
+    if (queued._downloads.isEmpty())
+    {
+      return;
+    }
+    if (queued._batchStart!=null)
+    {
+      startBatch(queued);
+    }
+    else
+    {
+      startDownload(queued._downloads.get(0));
+    }
+  }
+
+  private void startBatch(QueuedDownload queued)
+  {
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Starting batch of "+queued._downloads.size()+" downloads to: "+queued._host);
+    }
+    List<SingleAsyncDownloadManager> downloads=new ArrayList<SingleAsyncDownloadManager>(queued._downloads);
+    try
+    {
+      queued._batchStart.run();
+    }
+    finally
+    {
+      for(SingleAsyncDownloadManager downloadManager : downloads)
+      {
+        boolean cancelled;
+        synchronized(this)
+        {
+          cancelled=_starting.remove(downloadManager).booleanValue();
+        }
+        if (cancelled)
+        {
+          // Cancellation requested while starting
+          downloadManager.cancel();
+        }
+      }
+    }
+  }
+
+  private void startDownload(SingleAsyncDownloadManager downloadManager)
+  {
+    boolean cancelled;
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Starting: "+downloadManager.getTask());
+    }
+    boolean ok=false;
+    try
+    {
+      ok=downloadManager.start();
+    }
+    finally
+    {
+      synchronized(this)
+      {
+        cancelled=_starting.remove(downloadManager).booleanValue();
+      }
+      if (!ok)
+      {
+        release(downloadManager);
+      }
+    }
+    if (cancelled)
+    {
+      // Cancellation requested while starting
+      downloadManager.cancel();
+    }
+  }
+
+  private List<QueuedDownload> selectDownloads()
+  {
+    List<QueuedDownload> ret=new ArrayList<QueuedDownload>();
+    while ((_running.size()<_maxInFlight) && (!_readyHosts.isEmpty()))
+    {
+      HostQueue hostQueue=_readyHosts.first();
+      QueuedDownload queued=hostQueue._downloads.first();
+      int nbDownloads=queued._downloads.size();
+      if ((_running.size()>0) && (_running.size()+nbDownloads>_maxInFlight))
+      {
+        // A batch waits for enough slots, the next downloads wait for it
+        break;
+      }
+      _readyHosts.pollFirst();
+      hostQueue._ready=false;
+      hostQueue._downloads.pollFirst();
+      for(SingleAsyncDownloadManager downloadManager : queued._downloads)
+      {
+        _queued.remove(downloadManager);
+        _running.put(downloadManager,hostQueue._host);
+        hostQueue._running++;
+        _starting.put(downloadManager,Boolean.FALSE);
+      }
+      ret.add(queued);
+      updateReady(hostQueue);
+    }
+    return ret;
+  }
+
+  private HostQueue getHostQueue(String host)
+  {
+    HostQueue hostQueue=_hosts.get(host);
+    if (hostQueue==null)
+    {
+      hostQueue=new HostQueue(host);
+      _hosts.put(host,hostQueue);
+    }
+    return hostQueue;
+  }
+
+  /**
+   * Remove a host from the ready hosts before a change of its queue or of its running downloads.
+   * @param hostQueue Host to remove.
+   */
+  private void unready(HostQueue hostQueue)
+  {
+    if (hostQueue._ready)
+    {
+      _readyHosts.remove(hostQueue);
+      hostQueue._ready=false;
+    }
+  }
+
+  /**
+   * Update the state of a host after a change of its queue or of its running downloads.
+   * It must not be in the ready hosts: it is added if it is ready, and forgotten if it is idle.
+   * @param hostQueue Host to update.
+   */
+  private void updateReady(HostQueue hostQueue)
+  {
+    if (hostQueue._downloads.isEmpty())
+    {
+      if (hostQueue._running<=0)
+      {
+        _hosts.remove(hostQueue._host);
+      }
+    }
+    else if (hostQueue._running<getHostLimit(hostQueue._host))
+    {
+      _readyHosts.add(hostQueue);
+      hostQueue._ready=true;
+    }
+  }
+
+  /**
+   * Update the ready hosts after a change of the host limits.
+   */
+  private void updateReadyHosts()
+  {
+    _readyHosts.clear();
+    for(HostQueue hostQueue : new ArrayList<HostQueue>(_hosts.values()))
+    {
+      hostQueue._ready=false;
+      updateReady(hostQueue);
+    }
+  }
+
+  private int getHostLimit(String host)
+  {
+    Integer limit=_hostLimits.get(host);
+    return (limit!=null)?limit.intValue():_maxPerHost;
+  }
+
+  /**
+   * Get the host for the given URL.
+   * @param url URL to use.
+   * @return A host name (empty if it could not be found).
+   */
+  static String getHost(String url)
+  {
+    String host=null;
+    try
+    {
+      host=URI.create(url).getHost();
+    }
+    catch(IllegalArgumentException iae)
+    {
+      LOGGER.warn("Bad URL: "+url);
+    }
+    return (host!=null)?host.toLowerCase():"";
+  }
+
+  /**
+   * Queued download, or batch of downloads.
+   */
+  private static class QueuedDownload
+  {
+    private List<SingleAsyncDownloadManager> _downloads;
+    // Start of a batch, null for a single download
+    private Runnable _batchStart;
+    private String _host;
+    private int _priority;
+    private long _sequence;
+
+    private QueuedDownload(List<SingleAsyncDownloadManager> downloads, Runnable batchStart, String host, long sequence)
+    {
+      _downloads=downloads;
+      _batchStart=batchStart;
+      _host=host;
+      _priority=Integer.MIN_VALUE;
+      for(SingleAsyncDownloadManager downloadManager : downloads)
+      {
+        _priority=Math.max(_priority,downloadManager.getTask().getPriority());
+      }
+      _sequence=sequence;
+    }
+  }
+
+  /**
+   * Queued and running downloads of a host.
+   */
+  private static class HostQueue
+  {
+    private String _host;
+    // Queued downloads, best first
+    private TreeSet<QueuedDownload> _downloads;
+    private int _running;
+    // Whether it is in the ready hosts
+    private boolean _ready;
+
+    private HostQueue(String host)
+    {
+      _host=host;
+      _downloads=new TreeSet<QueuedDownload>(new QueuedDownloadComparator());
+      _running=0;
+      _ready=false;
+    }
+  }
+
+  /**
+   * Orders hosts by their best queued download.
+   */
+  private static class HostQueueComparator implements Comparator<HostQueue>
+  {
+    private QueuedDownloadComparator _downloadsComparator=new QueuedDownloadComparator();
+
+    @Override
+    public int compare(HostQueue o1, HostQueue o2)
+    {
+      if (o1==o2)
+      {
+        return 0;
+      }
+      return _downloadsComparator.compare(o1._downloads.first(),o2._downloads.first());
+    }
+  }
+
+  private static class QueuedDownloadComparator implements Comparator<QueuedDownload>
+  {
+    @Override
+    public int compare(QueuedDownload o1, QueuedDownload o2)
+    {
+      if (o1._priority!=o2._priority)
+      {
+        return (o1._priority>o2._priority)?-1:1;
+      }
+      return Long.compare(o1._sequence,o2._sequence);
+    }
+  }
+}
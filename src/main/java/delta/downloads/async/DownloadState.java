@@ -10,10 +10,18 @@ public enum DownloadState
    * Not running/started.
    */
   NOT_RUNNING,
+  /**
+   * Waiting for a download slot.
+   */
+  QUEUED,
   /**
    * Running.
    */
   RUNNING,
+  /**
+   * Waiting before a new attempt, after a transient failure.
+   */
+  RETRYING,
   /**
    * Terminated OK.
    */
@@ -22,6 +30,10 @@ public enum DownloadState
    * Failed.
    */
   FAILED,
+  /**
+   * Failed: received content does not match its expected checksum or size.
+   */
+  CHECKSUM_MISMATCH,
   /**
    * Cancelled.
    */
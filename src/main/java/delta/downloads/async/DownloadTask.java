@@ -12,10 +12,18 @@ public class DownloadTask
 {
   private int _id;
   private String _url;
+  private volatile String _sourceURL;
   private BytesReceiver _receiver;
-  private Integer _expectedSize;
-  private int _doneSize;
-  private DownloadState _state;
+  private DownloadJournal _journal;
+  private IntegrityCheck _integrityCheck;
+  private Long _expectedSize;
+  private long _doneSize;
+  private long _decodedSize;
+  private long _reusedSize;
+  private int _priority;
+  private long _throttledTime;
+  private int _attempts;
+  private volatile DownloadState _state;
   private Future<HttpResponse> _future;
 
   /**
@@ -50,6 +58,26 @@ public class DownloadTask
     return _url;
   }
 
+  /**
+   * Get the URL the bytes are received from.
+   * It differs from the task URL for downloads from mirrors.
+   * @return an URL.
+   */
+  public String getSourceURL()
+  {
+    String sourceURL=_sourceURL;
+    return (sourceURL!=null)?sourceURL:_url;
+  }
+
+  /**
+   * Set the URL the bytes are received from.
+   * @param sourceURL URL to set.
+   */
+  public void setSourceURL(String sourceURL)
+  {
+    _sourceURL=sourceURL;
+  }
+
   /**
    * Get the file to write to.
    * @return A file.
@@ -59,20 +87,61 @@ public class DownloadTask
     return _receiver;
   }
 
+  /**
+   * Get the journal of this download.
+   * @return a journal or <code>null</code> if progress is not journaled.
+   */
+  public DownloadJournal getJournal()
+  {
+    return _journal;
+  }
+
+  /**
+   * Set the journal of this download.
+   * A journaled download with a resumable receiver is resumed where it was interrupted.
+   * @param journal Journal to set.
+   */
+  public void setJournal(DownloadJournal journal)
+  {
+    _journal=journal;
+  }
+
   /**
    * Set the expected download size.
    * @param expectedSize Size to set (bytes).
    */
-  public void setExpectedSize(Integer expectedSize)
+  public void setExpectedSize(Long expectedSize)
   {
     _expectedSize=expectedSize;
   }
 
+  /**
+   * Get the expected checksum and size of the downloaded entity.
+   * @return an integrity check or <code>null</code> if none.
+   */
+  public IntegrityCheck getIntegrityCheck()
+  {
+    return _integrityCheck;
+  }
+
+  /**
+   * Set the expected checksum and size of the downloaded entity.
+   * Received bytes are digested on the fly. If they do not match, the download ends
+   * in state {@link DownloadState#CHECKSUM_MISMATCH}. If the size is given, reception
+   * is aborted as soon as more bytes are received.
+   * Such downloads are not resumed: digests need the whole entity.
+   * @param integrityCheck Check to set (<code>null</code> for none).
+   */
+  public void setIntegrityCheck(IntegrityCheck integrityCheck)
+  {
+    _integrityCheck=integrityCheck;
+  }
+
   /**
    * Get the expected size.
    * @return a size in bytes.
    */
-  public Integer getExpectedSize()
+  public Long getExpectedSize()
   {
     return _expectedSize;
   }
@@ -81,7 +150,7 @@ public class DownloadTask
    * Get the total bytes already downloaded.
    * @return a size (bytes).
    */
-  public int getDoneSize()
+  public long getDoneSize()
   {
     return _doneSize;
   }
@@ -90,11 +159,103 @@ public class DownloadTask
    * Set the total bytes already downloaded.
    * @param doneSize Size to set (bytes).
    */
-  public void setDoneSize(int doneSize)
+  public void setDoneSize(long doneSize)
   {
     _doneSize=doneSize;
   }
 
+  /**
+   * Get the total bytes already given to the receiver.
+   * It differs from the done size when the content is compressed on the wire.
+   * @return a size (bytes).
+   */
+  public long getDecodedSize()
+  {
+    return _decodedSize;
+  }
+
+  /**
+   * Set the total bytes already given to the receiver.
+   * @param decodedSize Size to set (bytes).
+   */
+  public void setDecodedSize(long decodedSize)
+  {
+    _decodedSize=decodedSize;
+  }
+
+  /**
+   * Get the total bytes taken from a local previous version, for delta updates.
+   * These bytes are included in the done size, but were not downloaded.
+   * @return a size (bytes).
+   */
+  public long getReusedSize()
+  {
+    return _reusedSize;
+  }
+
+  /**
+   * Set the total bytes taken from a local previous version.
+   * @param reusedSize Size to set (bytes).
+   */
+  public void setReusedSize(long reusedSize)
+  {
+    _reusedSize=reusedSize;
+  }
+
+  /**
+   * Get the total time this download was paused to respect bandwidth limits.
+   * @return a duration in milliseconds.
+   */
+  public synchronized long getThrottledTime()
+  {
+    return _throttledTime;
+  }
+
+  /**
+   * Add some time to the total time this download was paused to respect bandwidth limits.
+   * @param time Time to add (milliseconds).
+   */
+  public synchronized void addThrottledTime(long time)
+  {
+    _throttledTime+=time;
+  }
+
+  /**
+   * Get the number of attempts of this download.
+   * @return a number of attempts.
+   */
+  public synchronized int getAttempts()
+  {
+    return _attempts;
+  }
+
+  /**
+   * Record a new attempt of this download.
+   */
+  synchronized void incrementAttempts()
+  {
+    _attempts++;
+  }
+
+  /**
+   * Get the priority of this task.
+   * @return a priority (higher values are served first).
+   */
+  public int getPriority()
+  {
+    return _priority;
+  }
+
+  /**
+   * Set the priority of this task.
+   * It is used when the task waits for a download slot.
+   * @param priority Priority to set (higher values are served first, default is 0).
+   */
+  public void setPriority(int priority)
+  {
+    _priority=priority;
+  }
+
   /**
    * Get the download state.
    * @return the download state.
@@ -131,6 +292,42 @@ public class DownloadTask
     _future=future;
   }
 
+  /**
+   * Build a snapshot of this task: a copy of its current state and sizes.
+   * It shares the receiver of this task, but not its future.
+   * @return A new task.
+   */
+  DownloadTask snapshot()
+  {
+    DownloadTask ret=new DownloadTask(_id,_url,_receiver);
+    ret._sourceURL=_sourceURL;
+    ret._journal=_journal;
+    ret._integrityCheck=_integrityCheck;
+    ret._priority=_priority;
+    ret._state=_state;
+    ret.copyProgress(this);
+    return ret;
+  }
+
+  /**
+   * Copy the sizes and counters of another task.
+   * @param task Task to copy from.
+   */
+  void copyProgress(DownloadTask task)
+  {
+    _expectedSize=task._expectedSize;
+    _doneSize=task._doneSize;
+    _decodedSize=task._decodedSize;
+    _reusedSize=task._reusedSize;
+    long throttledTime=task.getThrottledTime();
+    int attempts=task.getAttempts();
+    synchronized(this)
+    {
+      _throttledTime=throttledTime;
+      _attempts=attempts;
+    }
+  }
+
   @Override
   public String toString()
   {
@@ -149,6 +346,14 @@ public class DownloadTask
       sb.append('?');
     }
     sb.append(" bytes");
+    if (_decodedSize!=_doneSize)
+    {
+      sb.append(" (").append(_decodedSize).append(" decoded)");
+    }
+    if (_reusedSize>0)
+    {
+      sb.append(" (").append(_reusedSize).append(" reused)");
+    }
     return sb.toString();
   }
 }
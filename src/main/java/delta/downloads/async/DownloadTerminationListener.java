@@ -0,0 +1,22 @@
+package delta.downloads.async;
+
+/**
+ * Internal listener for the termination of downloads and download attempts.
+ * @author DAM
+ */
+interface DownloadTerminationListener
+{
+  /**
+   * Invoked when a download is terminated (OK, failed or cancelled).
+   * @param downloadManager Terminated download.
+   */
+  void downloadTerminated(SingleAsyncDownloadManager downloadManager);
+
+  /**
+   * Invoked when a download attempt failed and shall be retried.
+   * The download is in state {@link DownloadState#RETRYING}.
+   * @param downloadManager Download to retry.
+   * @param delay Delay before the next attempt (milliseconds).
+   */
+  void downloadRetrying(SingleAsyncDownloadManager downloadManager, long delay);
+}
@@ -2,37 +2,399 @@ package delta.downloads.async;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import javax.net.ssl.SSLContext;
 
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.CloseableHttpPipeliningClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.log4j.Logger;
 
+import delta.downloads.CappedKeepAliveStrategy;
+import delta.downloads.ConnectionPoolConfiguration;
+import delta.downloads.RelocationCache;
+import delta.downloads.blocks.BlockManifest;
+import delta.downloads.cache.CacheEntry;
+import delta.downloads.cache.HttpCache;
+
 /**
  * Synchronous/Asynchronous downloads manager.
+ * <p>
+ * Started downloads go through a scheduler that limits the number of running
+ * downloads, globally and for each host. Other downloads wait in a priority queue.
  * @author DAM
  */
 public class DownloadsManager
 {
   private static final Logger LOGGER=Logger.getLogger(DownloadsManager.class);
 
+  /**
+   * Default number of connections per host for pipelined batches.
+   */
+  public static final int DEFAULT_PIPELINE_CONNECTIONS=2;
+  /**
+   * Default maximum number of requests pipelined on a connection.
+   */
+  public static final int DEFAULT_PIPELINE_DEPTH=16;
+
+  /**
+   * Time without completed response after which a pipelined batch is aborted (milliseconds),
+   * from the lease of its connection.
+   * It also covers connections lost while pipelined requests are sent, that leave batches
+   * without termination.
+   */
+  private static final long PIPELINE_STALL_TIMEOUT=15000;
+  /**
+   * Period of the eviction of terminated tasks (milliseconds).
+   */
+  private static final long EVICTION_PERIOD=60000;
+
   private CloseableHttpAsyncClient _client;
-  private Map<Integer,SingleAsyncDownloadManager> _tasks;
-  private int _nextID;
+  private CloseableHttpPipeliningClient _pipeliningClient;
+  private PoolingNHttpClientConnectionManager _pipeliningConnections;
+  private int _pipelineConnections;
+  private int _pipelineDepth;
+  // Hosts that failed pipelined batches
+  private Set<String> _nonPipeliningHosts;
+  private Set<PipelinedBatch> _batches;
+  private TaskTable _tasks;
+  private DownloadScheduler _scheduler;
+  private ChunkPool _chunkPool;
+  private ProgressDispatcher _progressDispatcher;
+  private BandwidthLimiter _limiter;
+  private ScheduledExecutorService _timer;
+  private ExecutorService _receiverExecutor;
+  private WriteBehindWriter _writer;
+  private RetryPolicy _retryPolicy;
+  private HedgingPolicy _hedgingPolicy;
+  private MirrorPolicy _mirrorPolicy;
+  private RelocationCache _relocationCache;
+  private RelocationResolver _relocationResolver;
+  // Shared transfers, by URL
+  private Map<String,SharedDownload> _shared;
+  private volatile boolean _coalescing;
+  private volatile boolean _compression;
+  private volatile HttpCache _cache;
+  private DownloadTerminationListener _terminationListener;
 
   /**
    * Constructor.
    */
   public DownloadsManager()
   {
-    _nextID=1;
-    _tasks=new HashMap<Integer,SingleAsyncDownloadManager>();
-    _client=buildClient();
+    this(new ConnectionPoolConfiguration());
+  }
+
+  /**
+   * Constructor.
+   * @param poolConfiguration Configuration of the connections pool.
+   * The scheduler limits are initialized from its limits.
+   */
+  public DownloadsManager(ConnectionPoolConfiguration poolConfiguration)
+  {
+    _tasks=new TaskTable();
+    _client=buildClient(poolConfiguration);
+    _scheduler=new DownloadScheduler(poolConfiguration.getMaxTotal(),poolConfiguration.getMaxPerRoute());
+    _chunkPool=new ChunkPool(16*1024,1024);
+    _progressDispatcher=new ProgressDispatcher();
+    _limiter=new BandwidthLimiter();
+    _timer=Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Download timer"));
+    _timer.scheduleWithFixedDelay(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        _tasks.evict();
+      }
+    },EVICTION_PERIOD,EVICTION_PERIOD,TimeUnit.MILLISECONDS);
+    _receiverExecutor=Executors.newCachedThreadPool(new DaemonThreadFactory("Download receiver"));
+    _writer=new WriteBehindWriter();
+    _retryPolicy=new RetryPolicy();
+    _hedgingPolicy=new HedgingPolicy();
+    _mirrorPolicy=new MirrorPolicy();
+    _relocationCache=new RelocationCache();
+    _relocationResolver=new RelocationResolver(_client,_relocationCache);
+    _shared=new HashMap<String,SharedDownload>();
+    _coalescing=false;
+    _pipelineConnections=DEFAULT_PIPELINE_CONNECTIONS;
+    _pipelineDepth=DEFAULT_PIPELINE_DEPTH;
+    _nonPipeliningHosts=Collections.synchronizedSet(new HashSet<String>());
+    _batches=new HashSet<PipelinedBatch>();
+    _terminationListener=new DownloadTerminationListener()
+    {
+      @Override
+      public void downloadTerminated(SingleAsyncDownloadManager downloadManager)
+      {
+        _scheduler.release(downloadManager);
+        releaseShared(downloadManager);
+        _tasks.terminated(downloadManager);
+      }
+
+      @Override
+      public void downloadRetrying(SingleAsyncDownloadManager downloadManager, long delay)
+      {
+        _scheduler.release(downloadManager);
+        scheduleRetry(downloadManager,delay);
+      }
+    };
+  }
+
+  /**
+   * Set the pipelining parameters of download batches.
+   * @param connections Maximum number of connections per host for pipelined requests
+   * (0 to disable pipelining).
+   * @param depth Maximum number of requests pipelined on a connection.
+   * @see #startBatch(List, DownloadListener)
+   */
+  public synchronized void setPipelining(int connections, int depth)
+  {
+    _pipelineConnections=connections;
+    _pipelineDepth=Math.max(depth,1);
+    if ((_pipeliningConnections!=null) && (connections>0))
+    {
+      // Apply the new limits to the pool of the running client
+      _pipeliningConnections.setDefaultMaxPerRoute(connections);
+      _pipeliningConnections.setMaxTotal(connections*16);
+    }
+  }
+
+  /**
+   * Enable or disable the coalescing of identical downloads.
+   * When enabled, a buffer or file download started while another one is running for
+   * the same URL does not transfer anything: it gets the result of the running one.
+   * This is disabled by default.
+   * @param coalescing <code>true</code> to enable, <code>false</code> to disable.
+   */
+  public void setCoalescing(boolean coalescing)
+  {
+    _coalescing=coalescing;
+  }
+
+  /**
+   * Enable or disable the negotiation of compressed content for new downloads.
+   * When enabled, requests accept <code>gzip</code> and <code>deflate</code> encodings,
+   * and encoded content is decoded on the fly. Task progress is counted in received bytes,
+   * see {@link DownloadTask#getDecodedSize()} for the decoded size.
+   * Segmented and resumed downloads always use the identity encoding.
+   * This is disabled by default.
+   * @param compression <code>true</code> to enable, <code>false</code> to disable.
+   */
+  public void setContentCompression(boolean compression)
+  {
+    _compression=compression;
+  }
+
+  /**
+   * Set the cache to use for buffer downloads.
+   * @param cache Cache to use, <code>null</code> for no cache.
+   */
+  public void setCache(HttpCache cache)
+  {
+    _cache=cache;
+  }
+
+  /**
+   * Get the cache used for buffer downloads.
+   * @return a cache or <code>null</code> if none.
+   */
+  public HttpCache getCache()
+  {
+    return _cache;
+  }
+
+  /**
+   * Get the policy for retries of failed downloads.
+   * By default, failed downloads are not retried.
+   * @return the retry policy.
+   */
+  public RetryPolicy getRetryPolicy()
+  {
+    return _retryPolicy;
+  }
+
+  /**
+   * Get the policy for hedged requests.
+   * It is used by {@link #syncDownloadBuffer(String, DownloadListener)}, if enabled.
+   * @return the hedging policy.
+   */
+  public HedgingPolicy getHedgingPolicy()
+  {
+    return _hedgingPolicy;
+  }
+
+  /**
+   * Get the policy for downloads from several mirrors.
+   * It is used by the downloads built by {@link #newMirroredFileDownload(List, File)}.
+   * @return the mirror policy.
+   */
+  public MirrorPolicy getMirrorPolicy()
+  {
+    return _mirrorPolicy;
+  }
+
+  /**
+   * Get the cache of relocations.
+   * Downloads go straight to the cached final location of their URL, without redirects.
+   * @return the relocation cache.
+   */
+  public RelocationCache getRelocationCache()
+  {
+    return _relocationCache;
+  }
+
+  /**
+   * Get the resolver of relocations.
+   * Its results are stored in the relocation cache of this manager.
+   * @return the relocation resolver.
+   */
+  public RelocationResolver getRelocationResolver()
+  {
+    return _relocationResolver;
+  }
+
+  /**
+   * Get the dispatcher of download updates.
+   * Listeners are invoked by this dispatcher, out of the network I/O threads.
+   * @return the progress dispatcher.
+   */
+  public ProgressDispatcher getProgressDispatcher()
+  {
+    return _progressDispatcher;
+  }
+
+  /**
+   * Get the bandwidth limiter.
+   * Its limits apply to all the downloads of this manager and can be changed at any time.
+   * @return the bandwidth limiter.
+   */
+  public BandwidthLimiter getBandwidthLimiter()
+  {
+    return _limiter;
+  }
+
+  /**
+   * Set the maximum number of running downloads.
+   * @param maxInFlight Downloads count to set.
+   */
+  public void setMaxInFlight(int maxInFlight)
+  {
+    _scheduler.setMaxInFlight(maxInFlight);
+  }
+
+  /**
+   * Set the default maximum number of running downloads for a single host.
+   * @param maxPerHost Downloads count to set.
+   */
+  public void setMaxPerHost(int maxPerHost)
+  {
+    _scheduler.setMaxPerHost(maxPerHost);
+  }
+
+  /**
+   * Set the maximum number of running downloads for a given host.
+   * @param host Host name.
+   * @param limit Downloads count to set, or <code>null</code> to use the default limit.
+   */
+  public void setHostLimit(String host, Integer limit)
+  {
+    _scheduler.setHostLimit(host.toLowerCase(),limit);
+  }
+
+  /**
+   * Get the number of downloads waiting for a slot.
+   * @return a downloads count.
+   */
+  public int getQueuedCount()
+  {
+    return _scheduler.getQueuedCount();
+  }
+
+  /**
+   * Get the number of running downloads.
+   * @return a downloads count.
+   */
+  public int getRunningCount()
+  {
+    return _scheduler.getRunningCount();
+  }
+
+  /**
+   * Set the retention of terminated tasks.
+   * Terminated tasks are evicted after the retention time, or when there are more of them
+   * than the retention count. Evicted tasks cannot be started, cancelled or waited for anymore.
+   * @param retentionTime Retention time (milliseconds, default is 10 minutes).
+   * @param retentionCount Maximum number of retained terminated tasks (default is 1000).
+   */
+  public void setTaskRetention(long retentionTime, int retentionCount)
+  {
+    _tasks.setRetention(retentionTime,retentionCount);
+  }
+
+  /**
+   * Set the number of summaries kept for evicted tasks.
+   * @param maxSummaries Maximum number of summaries (default is 0, to keep no summary).
+   */
+  public void setTaskSummaries(int maxSummaries)
+  {
+    _tasks.setMaxSummaries(maxSummaries);
+  }
+
+  /**
+   * Get the summary of an evicted task.
+   * @param taskID Task identifier.
+   * @return A summary, or <code>null</code> if not found.
+   */
+  public TaskSummary getTaskSummary(int taskID)
+  {
+    return _tasks.getSummary(taskID);
+  }
+
+  /**
+   * Get the number of registered tasks (not yet evicted).
+   * @return a tasks count.
+   */
+  public int getTasksCount()
+  {
+    return _tasks.size();
   }
 
   /**
@@ -55,6 +417,7 @@ public class DownloadsManager
 
   /**
    * Synchronous download of a buffer.
+   * If hedging is enabled, a second request may be started when the response is late.
    * @param url URL to get.
    * @param listener Download listener (optional).
    * @return the result buffer.
@@ -65,7 +428,14 @@ public class DownloadsManager
     boolean startOK=startDownload(task,listener);
     if (startOK)
     {
-      waitForTaskTermination(task);
+      if (_hedgingPolicy.isEnabled())
+      {
+        task=waitForHedgedTask(task);
+      }
+      else
+      {
+        waitForTaskTermination(task);
+      }
       DownloadState state=task.getDownloadState();
       if (state==DownloadState.OK)
       {
@@ -89,6 +459,49 @@ public class DownloadsManager
     return newTask(url,receiver);
   }
 
+  /**
+   * Build a new download task (to file), using write-behind.
+   * Bytes are written to disk by writer threads, out of the network I/O threads.
+   * @param url URL to get.
+   * @param to File to write to.
+   * @return A new download task, using a {@link WriteBehindFileReceiver}.
+   */
+  public DownloadTask newWriteBehindFileDownload(String url, File to)
+  {
+    FileReceiver receiver=new WriteBehindFileReceiver(to,_writer);
+    return newTask(url,receiver);
+  }
+
+  /**
+   * Build a new resumable download task (to file).
+   * Its progress is recorded in a journal next to the target file, so that
+   * an interrupted download is resumed where it was interrupted.
+   * @param url URL to get.
+   * @param to File to write to.
+   * @return A new download task.
+   */
+  public DownloadTask newResumableFileDownload(String url, File to)
+  {
+    DownloadTask task=newFileDownload(url,to);
+    task.setJournal(DownloadJournal.getJournal(to,url));
+    return task;
+  }
+
+  /**
+   * Build a new download task for a ZIP archive, that is extracted while it is received.
+   * Extraction is run out of the network I/O threads.
+   * @param url URL to get.
+   * @param to File to write the archive to.
+   * @param targetDir Directory to extract the archive to.
+   * @return A new download task, using an {@link AsyncReceiver} for a {@link ZipExtractingReceiver}.
+   */
+  public DownloadTask newZipDownload(String url, File to, File targetDir)
+  {
+    FileReceiver archive=new FileReceiver(to);
+    ZipExtractingReceiver receiver=new ZipExtractingReceiver(archive,targetDir);
+    return newAsyncDownload(url,receiver,AsyncReceiver.DEFAULT_CAPACITY);
+  }
+
   /**
    * Build a new download task (to buffer).
    * @param url URL to get.
@@ -96,26 +509,140 @@ public class DownloadsManager
    */
   public DownloadTask newBufferDownload(String url)
   {
-    BufferReceiver receiver=new BufferReceiver();
+    BufferReceiver receiver=new BufferReceiver(_chunkPool);
+    return newTask(url,receiver);
+  }
+
+  /**
+   * Build a new segmented download task (to file).
+   * The file is fetched as several byte ranges on parallel connections,
+   * if the server supports it.
+   * @param url URL to get.
+   * @param to File to write to.
+   * @param maxSegments Maximum number of parallel segments.
+   * @return A new download task.
+   */
+  public DownloadTask newSegmentedFileDownload(String url, File to, int maxSegments)
+  {
+    FileReceiver receiver=new FileReceiver(to);
+    DownloadTask task=new DownloadTask(_tasks.nextID(),url,receiver);
+    SegmentedDownloadManager downloadManager=new SegmentedDownloadManager(_client,task,to,maxSegments);
+    register(downloadManager);
+    return task;
+  }
+
+  /**
+   * Build a new download task (to file) from several mirrors.
+   * The best mirrors race for the first bytes. The download switches to another mirror
+   * if the throughput of the current one is too low, or if it fails.
+   * @param urls URLs of the mirrors (the first one is the task URL).
+   * @param to File to write to.
+   * @return A new download task.
+   */
+  public DownloadTask newMirroredFileDownload(List<String> urls, File to)
+  {
+    FileReceiver receiver=new FileReceiver(to);
+    DownloadTask task=new DownloadTask(_tasks.nextID(),urls.get(0),receiver);
+    MirroredDownloadManager downloadManager=new MirroredDownloadManager(_client,task,urls,_mirrorPolicy);
+    register(downloadManager);
+    return task;
+  }
+
+  /**
+   * Build a new delta update task for a local file.
+   * The blocks of the new version that are found in the local file are reused, only the
+   * missing byte ranges are downloaded. The local file is replaced when the new version
+   * is complete and matches the digest of the manifest.
+   * @param url URL of the new version.
+   * @param manifest Block manifest of the new version.
+   * @param file Local file to update (may not exist).
+   * @return A new download task.
+   */
+  public DownloadTask newDeltaFileDownload(String url, BlockManifest manifest, File file)
+  {
+    File temporaryFile=new File(file.getPath()+DeltaDownloadManager.TEMPORARY_SUFFIX);
+    FileReceiver receiver=new FileReceiver(temporaryFile);
+    DownloadTask task=new DownloadTask(_tasks.nextID(),url,receiver);
+    DeltaDownloadManager downloadManager=new DeltaDownloadManager(_client,task,manifest,file,temporaryFile,_receiverExecutor);
+    register(downloadManager);
+    return task;
+  }
+
+  /**
+   * Build a new download task with an asynchronous receiver.
+   * The given receiver is run out of the network I/O threads. Reading from the network
+   * is suspended when it is late by more than the given capacity.
+   * @param url URL to get.
+   * @param receiver Receiver to use.
+   * @param capacity Maximum number of bytes waiting for the receiver.
+   * @return A new download task, using an {@link AsyncReceiver}.
+   */
+  public DownloadTask newAsyncDownload(String url, BytesReceiver receiver, int capacity)
+  {
+    AsyncReceiver asyncReceiver=new AsyncReceiver(receiver,_receiverExecutor,capacity);
+    return newTask(url,asyncReceiver);
+  }
+
+  /**
+   * Build a new download task.
+   * @param url URL to get.
+   * @param receiver Receiver to use.
+   * @return A new download task.
+   */
+  public DownloadTask newDownload(String url, BytesReceiver receiver)
+  {
     return newTask(url,receiver);
   }
 
   private DownloadTask newTask(String url, BytesReceiver receiver)
   {
-    DownloadTask task=new DownloadTask(_nextID,url,receiver);
+    DownloadTask task=new DownloadTask(_tasks.nextID(),url,receiver);
     SingleAsyncDownloadManager downloadManager=new SingleAsyncDownloadManager(_client,task);
-    _tasks.put(Integer.valueOf(_nextID),downloadManager);
-    _nextID++;
+    downloadManager.setContentCompression(_compression);
+    register(downloadManager);
     return task;
   }
 
+  private void register(SingleAsyncDownloadManager downloadManager)
+  {
+    downloadManager.setTerminationListener(_terminationListener);
+    downloadManager.setProgressDispatcher(_progressDispatcher);
+    downloadManager.setBandwidthLimiter(_limiter,_timer);
+    downloadManager.setRetryPolicy(_retryPolicy);
+    downloadManager.setRelocationCache(_relocationCache);
+    downloadManager.setExecutor(_receiverExecutor);
+    _tasks.register(downloadManager);
+  }
+
   /**
    * Start a download.
+   * The download is started as soon as a download slot is available. Until then,
+   * it waits in state {@link DownloadState#QUEUED}.
    * @param task Download task.
    * @param listener Optional listener for download status updates.
-   * @return <code>true</code> if download started, <code>false</code> otherwise.
+   * @return <code>true</code> if download started or queued, <code>false</code> otherwise.
    */
   public boolean startDownload(DownloadTask task, DownloadListener listener)
+  {
+    return startDownload(task,listener,_coalescing);
+  }
+
+  /**
+   * Start a download, without waiting for its termination.
+   * @param task Download task.
+   * @param listener Optional listener for download status updates.
+   * @return A future that is completed with the task when it terminates, whatever its final state.
+   * It is completed by the thread that terminates the download (often an I/O thread): dependent
+   * actions shall be short, or use the asynchronous methods of the future.
+   * @see #startDownload(DownloadTask, DownloadListener)
+   */
+  public CompletableFuture<DownloadTask> startDownloadAsync(DownloadTask task, DownloadListener listener)
+  {
+    startDownload(task,listener);
+    return getTermination(task);
+  }
+
+  private boolean startDownload(DownloadTask task, DownloadListener listener, boolean share)
   {
     boolean ok=false;
     int taskID=task.getID();
@@ -123,7 +650,16 @@ public class DownloadsManager
     if (downloadManager!=null)
     {
       downloadManager.setListener(listener);
-      ok=downloadManager.start();
+      if (useCache(downloadManager))
+      {
+        return true;
+      }
+      if ((share) && (isSingleSource(downloadManager)) && (attach(downloadManager)))
+      {
+        return true;
+      }
+      _scheduler.submit(downloadManager);
+      ok=(task.getDownloadState()!=DownloadState.FAILED);
     }
     else
     {
@@ -133,58 +669,877 @@ public class DownloadsManager
   }
 
   /**
-   * Wait for the termination of a download.
-   * @param task Download task.
+   * Indicates if a download is a plain request of its URL, that may be coalesced or pipelined.
+   * @param downloadManager Download to test.
+   * @return <code>false</code> for delta or mirrored downloads, <code>true</code> otherwise.
    */
-  public void waitForTaskTermination(DownloadTask task)
-  {
-    int taskID=task.getID();
-    SingleAsyncDownloadManager downloadManager=getDownloadManager(taskID);
-    if (downloadManager!=null)
-    {
-      downloadManager.waitForDownloadTermination();
-    }
-  }
-
-  private SingleAsyncDownloadManager getDownloadManager(int taskID)
+  private boolean isSingleSource(SingleAsyncDownloadManager downloadManager)
   {
-    return _tasks.get(Integer.valueOf(taskID));
-  }
-
-  /*
-  LATER: wait for termination of all downloads.
-  public void waitForTermination()
-  {
-    
-  }
-  */
-
-  private CloseableHttpAsyncClient buildClient()
-  {
-    String[] protocols=new String[] {"TLSv1.2"};
-    SSLContext sslcontext=SSLContexts.createDefault();
-    SSLIOSessionStrategy sslSessionStrategy=new SSLIOSessionStrategy(sslcontext,protocols,null,SSLIOSessionStrategy.getDefaultHostnameVerifier());
-    CloseableHttpAsyncClient httpclient=HttpAsyncClients.custom().setSSLStrategy(sslSessionStrategy).build();
-    httpclient.start();
-    return httpclient;
+    return ((!(downloadManager instanceof DeltaDownloadManager)) && (!(downloadManager instanceof MirroredDownloadManager)));
   }
 
   /**
-   * Release all managed resources.
+   * Start a batch of downloads of small resources.
+   * <p>
+   * Downloads from a same host are sent as pipelined HTTP/1.1 requests, on a few persistent
+   * connections: requests are sent without waiting for the previous responses, and each
+   * response is given to the receiver of its task. If a pipelined batch fails, its remaining
+   * downloads fall back to the normal execution, and later batches to the same host are not
+   * pipelined. Segmented, delta and mirrored downloads, and lone downloads to a host always use the normal execution.
+   * <p>
+   * Pipelined batches are queued by the scheduler: a batch uses a single slot of its host, and
+   * starts when the maximum number of running downloads allows all its downloads to run.
+   * Its downloads are counted as running until they terminate.
+   * @param tasks Download tasks.
+   * @param listener Optional listener for download status updates.
    */
-  public void dispose()
+  public void startBatch(List<DownloadTask> tasks, DownloadListener listener)
   {
-    if (_client!=null)
+    Map<HttpHost,List<SingleAsyncDownloadManager>> byHost=new LinkedHashMap<HttpHost,List<SingleAsyncDownloadManager>>();
+    for(DownloadTask task : tasks)
     {
-      try
+      SingleAsyncDownloadManager downloadManager=getDownloadManager(task.getID());
+      HttpHost host=(downloadManager!=null)?getPipeliningHost(downloadManager):null;
+      if (host==null)
       {
-        _client.close();
+        startDownload(task,listener);
+        continue;
       }
-      catch(IOException ioe)
+      downloadManager.setListener(listener);
+      if ((useCache(downloadManager)) || ((_coalescing) && (attach(downloadManager))))
       {
-        LOGGER.warn("Caught exception when closing the HTTP client!", ioe);
+        continue;
+      }
+      List<SingleAsyncDownloadManager> group=byHost.get(host);
+      if (group==null)
+      {
+        group=new ArrayList<SingleAsyncDownloadManager>();
+        byHost.put(host,group);
+      }
+      group.add(downloadManager);
+    }
+    int connections;
+    int depth;
+    synchronized(this)
+    {
+      connections=_pipelineConnections;
+      depth=_pipelineDepth;
+    }
+    // Batches fit in the slots of the scheduler
+    depth=Math.max(1,Math.min(depth,_scheduler.getMaxInFlight()));
+    for(Map.Entry<HttpHost,List<SingleAsyncDownloadManager>> entry : byHost.entrySet())
+    {
+      List<SingleAsyncDownloadManager> group=entry.getValue();
+      int nbDownloads=group.size();
+      if (nbDownloads<2)
+      {
+        _scheduler.submit(group.get(0));
+        continue;
+      }
+      final HttpHost host=entry.getKey();
+      for(final List<SingleAsyncDownloadManager> batch : splitBatches(group,connections,depth))
+      {
+        _scheduler.submitBatch(batch,new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            executeBatch(host,batch);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Split the downloads to a host into pipelined batches.
+   * Downloads are spread on the connections, in batches of limited depth.
+   * @param group Downloads to split.
+   * @param connections Maximum number of connections to the host.
+   * @param depth Maximum number of requests pipelined on a connection.
+   * @return A list of batches, in the order of the downloads.
+   */
+  static <T> List<List<T>> splitBatches(List<T> group, int connections, int depth)
+  {
+    List<List<T>> ret=new ArrayList<List<T>>();
+    int nbDownloads=group.size();
+    if (nbDownloads==0)
+    {
+      return ret;
+    }
+    int batchSize=Math.max(1,Math.min(depth,(nbDownloads+connections-1)/connections));
+    for(int i=0;i<nbDownloads;i+=batchSize)
+    {
+      ret.add(new ArrayList<T>(group.subList(i,Math.min(i+batchSize,nbDownloads))));
+    }
+    return ret;
+  }
+
+  /**
+   * Start a batch of downloads, without waiting for their termination.
+   * @param tasks Download tasks.
+   * @param listener Optional listener for download status updates.
+   * @return A future that is completed with the given tasks when they are all terminated.
+   * @see #startBatch(List, DownloadListener)
+   */
+  public CompletableFuture<List<DownloadTask>> startBatchAsync(final List<DownloadTask> tasks, DownloadListener listener)
+  {
+    startBatch(tasks,listener);
+    return getTermination(tasks).thenApply(new Function<Void,List<DownloadTask>>()
+    {
+      @Override
+      public List<DownloadTask> apply(Void ignored)
+      {
+        return tasks;
+      }
+    });
+  }
+
+  /**
+   * Start the buffer downloads of some URLs, without waiting for their termination.
+   * @param urls URLs to get.
+   * @param listener Optional listener for download status updates.
+   * @return A future that is completed with the download tasks, in the order of the URLs,
+   * when they are all terminated.
+   * @see #startBatch(List, DownloadListener)
+   */
+  public CompletableFuture<List<DownloadTask>> startBufferDownloadsAsync(Collection<String> urls, DownloadListener listener)
+  {
+    List<DownloadTask> tasks=new ArrayList<DownloadTask>();
+    for(String url : urls)
+    {
+      tasks.add(newBufferDownload(url));
+    }
+    return startBatchAsync(tasks,listener);
+  }
+
+  private HttpHost getPipeliningHost(SingleAsyncDownloadManager downloadManager)
+  {
+    synchronized(this)
+    {
+      if (_pipelineConnections<=0)
+      {
+        return null;
+      }
+    }
+    if ((downloadManager instanceof SegmentedDownloadManager) || (!isSingleSource(downloadManager)))
+    {
+      return null;
+    }
+    try
+    {
+      HttpHost host=URIUtils.extractHost(new URI(downloadManager.getRequestURL()));
+      if ((host==null) || (_nonPipeliningHosts.contains(host.toURI())))
+      {
+        return null;
+      }
+      return host;
+    }
+    catch(Exception e)
+    {
+      return null;
+    }
+  }
+
+  private void executeBatch(HttpHost host, List<SingleAsyncDownloadManager> downloads)
+  {
+    CloseableHttpPipeliningClient client=getPipeliningClient();
+    if (client==null)
+    {
+      fallback(downloads);
+      return;
+    }
+    List<HttpAsyncRequestProducer> producers=new ArrayList<HttpAsyncRequestProducer>();
+    List<HttpAsyncResponseConsumer<HttpResponse>> consumers=new ArrayList<HttpAsyncResponseConsumer<HttpResponse>>();
+    List<SingleAsyncDownloadManager> started=new ArrayList<SingleAsyncDownloadManager>();
+    final PipelinedBatch batch=new PipelinedBatch(host,started);
+    for(SingleAsyncDownloadManager downloadManager : downloads)
+    {
+      downloadManager.getTask().incrementAttempts();
+      HttpGet get=downloadManager.prepareRequest();
+      if (get==null)
+      {
+        continue;
+      }
+      downloadManager.setBatch(batch);
+      HttpAsyncRequestProducer producer=HttpAsyncMethods.create(host,get);
+      if (producers.isEmpty())
+      {
+        // The batch may wait for a connection: it is watched from the lease
+        producer=new LeasedRequestProducer(producer,new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            watchBatch(batch);
+          }
+        });
+      }
+      producers.add(producer);
+      consumers.add(downloadManager.buildPipelinedConsumer());
+      downloadManager.getTask().setDownloadState(DownloadState.RUNNING);
+      started.add(downloadManager);
+    }
+    if (started.isEmpty())
+    {
+      return;
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Pipelining "+started.size()+" requests to: "+host);
+    }
+    FutureCallback<List<HttpResponse>> callback=new FutureCallback<List<HttpResponse>>()
+    {
+      @Override
+      public void completed(List<HttpResponse> responses)
+      {
+        handleBatchTermination(batch,null);
+      }
+
+      @Override
+      public void failed(Exception ex)
+      {
+        handleBatchTermination(batch,ex);
+      }
+
+      @Override
+      public void cancelled()
+      {
+        handleBatchTermination(batch,null);
+      }
+    };
+    synchronized(_batches)
+    {
+      _batches.add(batch);
+    }
+    batch.setFuture(client.execute(host,producers,consumers,callback));
+  }
+
+  private void handleBatchTermination(PipelinedBatch batch, Exception failure)
+  {
+    HttpHost host=batch.getHost();
+    List<PipelinedBatch> aborted=new ArrayList<PipelinedBatch>();
+    synchronized(_batches)
+    {
+      _batches.remove(batch);
+      if ((batch.isClosing()) || ((failure!=null) && (_retryPolicy.isRetryable(failure))))
+      {
+        if (_nonPipeliningHosts.add(host.toURI()))
+        {
+          LOGGER.info("Pipelining failed on host: "+host+", using normal requests"+((failure!=null)?": "+failure:""));
+        }
+        // Other batches to this host are likely to fail too
+        for(PipelinedBatch other : _batches)
+        {
+          if (other.getHost().equals(host))
+          {
+            aborted.add(other);
+          }
+        }
+      }
+      else if (failure!=null)
+      {
+        LOGGER.info("Pipelined batch failed on host: "+host+": "+failure);
+      }
+    }
+    for(PipelinedBatch other : aborted)
+    {
+      other.abort();
+    }
+    fallback(batch.getDownloads());
+  }
+
+  /**
+   * Abort a batch if it does not progress.
+   * @param batch Batch to watch.
+   */
+  private void watchBatch(final PipelinedBatch batch)
+  {
+    Runnable check=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (batch.isDone())
+        {
+          return;
+        }
+        if (batch.isStalled())
+        {
+          LOGGER.info("Aborting stalled batch: "+batch);
+          batch.abort();
+          return;
+        }
+        watchBatch(batch);
+      }
+    };
+    try
+    {
+      _timer.schedule(check,PIPELINE_STALL_TIMEOUT,TimeUnit.MILLISECONDS);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      // Disposed
+    }
+  }
+
+  /**
+   * Restart the downloads of a batch that did not terminate, using the normal execution.
+   * @param batch Downloads of the batch.
+   */
+  private void fallback(List<SingleAsyncDownloadManager> batch)
+  {
+    for(SingleAsyncDownloadManager downloadManager : batch)
+    {
+      DownloadState state=downloadManager.getTask().getDownloadState();
+      if ((state!=DownloadState.RUNNING) && (state!=DownloadState.NOT_RUNNING))
+      {
+        continue;
+      }
+      if (downloadManager.isCancelRequested())
+      {
+        downloadManager.handleCancellation();
+      }
+      else
+      {
+        _scheduler.release(downloadManager);
+        downloadManager.markQueued();
+        _scheduler.submit(downloadManager);
+      }
+    }
+  }
+
+  /**
+   * Indicates if pipelining is disabled for a host, after a failed batch.
+   * @param host Host to test.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  boolean isPipeliningDisabled(HttpHost host)
+  {
+    return _nonPipeliningHosts.contains(host.toURI());
+  }
+
+  private synchronized CloseableHttpPipeliningClient getPipeliningClient()
+  {
+    if ((_pipeliningClient==null) && (_client!=null))
+    {
+      try
+      {
+        Registry<SchemeIOSessionStrategy> registry=RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http",NoopIOSessionStrategy.INSTANCE)
+            .register("https",buildSSLStrategy())
+            .build();
+        PoolingNHttpClientConnectionManager connectionManager=new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(),registry);
+        connectionManager.setDefaultMaxPerRoute(_pipelineConnections);
+        connectionManager.setMaxTotal(_pipelineConnections*16);
+        _pipeliningClient=HttpAsyncClients.createPipelining(connectionManager);
+        _pipeliningConnections=connectionManager;
+        _pipeliningClient.start();
+      }
+      catch(IOReactorException iore)
+      {
+        LOGGER.warn("Could not build the pipelining client!",iore);
+      }
+    }
+    return _pipeliningClient;
+  }
+
+  /**
+   * Cancel a download.
+   * @param task Download task.
+   */
+  public void cancelDownload(DownloadTask task)
+  {
+    int taskID=task.getID();
+    SingleAsyncDownloadManager downloadManager=getDownloadManager(taskID);
+    if (downloadManager!=null)
+    {
+      if (cancelShared(downloadManager))
+      {
+        return;
+      }
+      cancel(downloadManager);
+    }
+  }
+
+  private void cancel(SingleAsyncDownloadManager downloadManager)
+  {
+    if (!_scheduler.cancel(downloadManager))
+    {
+      downloadManager.cancel();
+    }
+  }
+
+  /**
+   * Wait for the termination of a download.
+   * @param task Download task.
+   */
+  public void waitForTaskTermination(DownloadTask task)
+  {
+    int taskID=task.getID();
+    SingleAsyncDownloadManager downloadManager=getDownloadManager(taskID);
+    if (downloadManager!=null)
+    {
+      downloadManager.waitForDownloadTermination();
+    }
+  }
+
+  /**
+   * Get a future for the termination of a download.
+   * @param task Download task.
+   * @return A future that is completed with the task when it terminates, whatever its final state.
+   * If the download is restarted after its termination, a new future is used.
+   * It is already completed if the task is not managed anymore.
+   */
+  public CompletableFuture<DownloadTask> getTermination(DownloadTask task)
+  {
+    SingleAsyncDownloadManager downloadManager=getDownloadManager(task.getID());
+    if (downloadManager==null)
+    {
+      return CompletableFuture.completedFuture(task);
+    }
+    return downloadManager.getCompletion();
+  }
+
+  private CompletableFuture<Void> getTermination(Collection<DownloadTask> tasks)
+  {
+    List<CompletableFuture<DownloadTask>> futures=new ArrayList<CompletableFuture<DownloadTask>>();
+    for(DownloadTask task : tasks)
+    {
+      futures.add(getTermination(task));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+  }
+
+  /**
+   * Wait for the termination of some downloads.
+   * @param tasks Download tasks.
+   * @param timeout Maximum time to wait.
+   * @param unit Unit of the timeout.
+   * @return <code>true</code> if all downloads terminated, <code>false</code> otherwise.
+   */
+  public boolean awaitAll(Collection<DownloadTask> tasks, long timeout, TimeUnit unit)
+  {
+    return await(getTermination(tasks),timeout,unit);
+  }
+
+  /**
+   * Wait for the termination of one of some downloads.
+   * @param tasks Download tasks.
+   * @param timeout Maximum time to wait.
+   * @param unit Unit of the timeout.
+   * @return the first terminated task, or <code>null</code> if none terminated in time.
+   */
+  public DownloadTask awaitAny(Collection<DownloadTask> tasks, long timeout, TimeUnit unit)
+  {
+    if (tasks.isEmpty())
+    {
+      return null;
+    }
+    List<CompletableFuture<DownloadTask>> futures=new ArrayList<CompletableFuture<DownloadTask>>();
+    for(DownloadTask task : tasks)
+    {
+      futures.add(getTermination(task));
+    }
+    CompletableFuture<Object> first=CompletableFuture.anyOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+    return await(first,timeout,unit)?(DownloadTask)first.getNow(null):null;
+  }
+
+  /**
+   * Wait for the termination of all the downloads started before this call.
+   */
+  public void waitForTermination()
+  {
+    getTermination(getStartedTasks()).join();
+  }
+
+  /**
+   * Wait for the termination of all the downloads started before this call.
+   * @param timeout Maximum time to wait.
+   * @param unit Unit of the timeout.
+   * @return <code>true</code> if all downloads terminated, <code>false</code> otherwise.
+   */
+  public boolean waitForTermination(long timeout, TimeUnit unit)
+  {
+    return awaitAll(getStartedTasks(),timeout,unit);
+  }
+
+  private List<DownloadTask> getStartedTasks()
+  {
+    List<DownloadTask> ret=new ArrayList<DownloadTask>();
+    for(SingleAsyncDownloadManager downloadManager : _tasks.getAll())
+    {
+      if (downloadManager.isStarted())
+      {
+        ret.add(downloadManager.getTask());
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Wait for a future.
+   * @param future Future to wait for.
+   * @param timeout Maximum time to wait.
+   * @param unit Unit of the timeout.
+   * @return <code>true</code> if it completed normally, <code>false</code> otherwise.
+   */
+  private boolean await(CompletableFuture<?> future, long timeout, TimeUnit unit)
+  {
+    try
+    {
+      future.get(timeout,unit);
+      return true;
+    }
+    catch(TimeoutException te)
+    {
+      return false;
+    }
+    catch(InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    catch(ExecutionException ee)
+    {
+      LOGGER.warn("Caught exception while waiting for downloads!",ee.getCause());
+      return false;
+    }
+  }
+
+  /**
+   * Wait for the termination of a download, hedging it if its response is late.
+   * @param task Download task.
+   * @return the task that won (it may be a hedge of the given task).
+   */
+  private DownloadTask waitForHedgedTask(DownloadTask task)
+  {
+    HedgingPolicy policy=_hedgingPolicy;
+    policy.recordRequest();
+    SingleAsyncDownloadManager primary=getDownloadManager(task.getID());
+    boolean responded=(primary.isAttached()) || (primary.awaitResponse(policy.getHedgeDelay()));
+    if ((responded) || (task.getDownloadState()!=DownloadState.RUNNING) || (!policy.acquireHedge()))
+    {
+      primary.waitForDownloadTermination();
+      policy.recordResponseDelay(primary.getResponseDelay());
+      return task;
+    }
+    DownloadTask hedgeTask=newBufferDownload(task.getURL());
+    hedgeTask.setPriority(task.getPriority());
+    SingleAsyncDownloadManager hedge=getDownloadManager(hedgeTask.getID());
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Hedging: "+task);
+    }
+    CountDownLatch race=new CountDownLatch(1);
+    primary.setTerminationLatch(race);
+    hedge.setTerminationLatch(race);
+    startDownload(hedgeTask,null,false);
+    try
+    {
+      race.await();
+    }
+    catch(InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+    DownloadTask winner=null;
+    if (task.getDownloadState()==DownloadState.OK)
+    {
+      winner=task;
+    }
+    else if (hedgeTask.getDownloadState()==DownloadState.OK)
+    {
+      winner=hedgeTask;
+    }
+    else
+    {
+      // First one failed: wait for the other one
+      primary.waitForDownloadTermination();
+      hedge.waitForDownloadTermination();
+      winner=(hedgeTask.getDownloadState()==DownloadState.OK)?hedgeTask:task;
+    }
+    DownloadTask loser=(winner==task)?hedgeTask:task;
+    cancelDownload(loser);
+    policy.recordResponseDelay(primary.getResponseDelay());
+    policy.recordResponseDelay(hedge.getResponseDelay());
+    policy.recordHedgeResult(winner==hedgeTask);
+    return winner;
+  }
+
+  /**
+   * Use the cache for a buffer download, if any.
+   * Fresh cached responses are given to the download receiver without any request.
+   * Otherwise, the download is set up to revalidate the cached response or to store its response.
+   * @param downloadManager Download to use.
+   * @return <code>true</code> if the download was served from the cache, <code>false</code> if it shall be started.
+   */
+  private boolean useCache(final SingleAsyncDownloadManager downloadManager)
+  {
+    final HttpCache cache=_cache;
+    DownloadTask task=downloadManager.getTask();
+    if ((cache==null) || (!(task.getReceiver() instanceof BufferReceiver)) || (task.getJournal()!=null) || (task.getIntegrityCheck()!=null))
+    {
+      return false;
+    }
+    final CacheEntry entry=cache.lookup(task.getURL());
+    if ((entry==null) || (!entry.isFresh(System.currentTimeMillis())))
+    {
+      downloadManager.setCache(cache,((entry!=null) && (entry.hasValidator()))?entry:null);
+      return false;
+    }
+    downloadManager.markAttached();
+    Runnable serve=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        DownloadTask servedTask=downloadManager.getTask();
+        long size=SharedDownload.replay(servedTask.getReceiver(),null,cache.getBodyFile(entry));
+        if (size==entry.getSize())
+        {
+          servedTask.setExpectedSize(Long.valueOf(size));
+          servedTask.setDoneSize(size);
+          downloadManager.terminateAttached(DownloadState.OK);
+        }
+        else
+        {
+          // Lost cached response: download it
+          cache.remove(entry.getURL());
+          downloadManager.setCache(cache,null);
+          _scheduler.submit(downloadManager);
+        }
+      }
+    };
+    try
+    {
+      _receiverExecutor.execute(serve);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      serve.run();
+    }
+    return true;
+  }
+
+  /**
+   * Attach a download to a running identical download, if any.
+   * Otherwise, the download becomes the leader for later identical downloads.
+   * @param downloadManager Download to attach.
+   * @return <code>true</code> if it was attached, <code>false</code> if it shall be started.
+   */
+  private boolean attach(SingleAsyncDownloadManager downloadManager)
+  {
+    DownloadTask task=downloadManager.getTask();
+    if (!SharedDownload.isShareable(task))
+    {
+      return false;
+    }
+    String url=task.getURL();
+    synchronized(_shared)
+    {
+      SharedDownload shared=_shared.get(url);
+      if (shared==null)
+      {
+        _shared.put(url,new SharedDownload(downloadManager));
+        return false;
+      }
+      shared.addFollower(downloadManager);
+      downloadManager.markAttached();
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Attached to a running download: "+task);
+    }
+    return true;
+  }
+
+  /**
+   * Cancel a download that may share its transfer.
+   * Attached downloads are cancelled at once. A leader download with attached downloads
+   * is detached from its listener: its transfer goes on for the attached downloads, and
+   * it is cancelled when the transfer terminates. The transfer is cancelled when all
+   * the downloads that share it are cancelled.
+   * @param downloadManager Download to cancel.
+   * @return <code>true</code> if it was handled, <code>false</code> if it shall be cancelled by the caller.
+   */
+  private boolean cancelShared(SingleAsyncDownloadManager downloadManager)
+  {
+    String url=downloadManager.getTask().getURL();
+    boolean follower=false;
+    SingleAsyncDownloadManager cancelledLeader=null;
+    synchronized(_shared)
+    {
+      SharedDownload shared=_shared.get(url);
+      if (shared==null)
+      {
+        return false;
+      }
+      if (shared.removeFollower(downloadManager))
+      {
+        follower=true;
+        if ((shared.isLeaderCancelled()) && (!shared.hasFollowers()))
+        {
+          // Nobody wants the result any more
+          _shared.remove(url);
+          cancelledLeader=shared.getLeader();
+        }
+      }
+      else if (shared.getLeader()==downloadManager)
+      {
+        if (!shared.hasFollowers())
+        {
+          _shared.remove(url);
+          return false;
+        }
+        if (!shared.isLeaderCancelled())
+        {
+          shared.cancelLeader(downloadManager.getListener());
+          downloadManager.setListener(null);
+        }
+        return true;
+      }
+    }
+    if (follower)
+    {
+      downloadManager.terminateAttached(DownloadState.CANCELLED);
+    }
+    if (cancelledLeader!=null)
+    {
+      cancel(cancelledLeader);
+    }
+    return follower;
+  }
+
+  /**
+   * Give the result of a terminated download to the downloads attached to it.
+   * @param downloadManager Terminated download.
+   */
+  private void releaseShared(SingleAsyncDownloadManager downloadManager)
+  {
+    String url=downloadManager.getTask().getURL();
+    SharedDownload shared;
+    synchronized(_shared)
+    {
+      shared=_shared.get(url);
+      if ((shared==null) || (shared.getLeader()!=downloadManager))
+      {
+        return;
+      }
+      _shared.remove(url);
+    }
+    List<SingleAsyncDownloadManager> followers=shared.getFollowers();
+    Runnable replay=(!followers.isEmpty())?SharedDownload.buildReplay(downloadManager,followers):null;
+    if (shared.isLeaderCancelled())
+    {
+      // The transfer went on for the followers only
+      DownloadTask task=downloadManager.getTask();
+      task.setDownloadState(DownloadState.CANCELLED);
+      DownloadListener listener=shared.getLeaderListener();
+      if (listener!=null)
+      {
+        listener.downloadTaskUpdated(task);
+      }
+    }
+    if (replay==null)
+    {
+      return;
+    }
+    try
+    {
+      _receiverExecutor.execute(replay);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      replay.run();
+    }
+  }
+
+  private void scheduleRetry(final SingleAsyncDownloadManager downloadManager, long delay)
+  {
+    Runnable retry=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (downloadManager.leaveRetry(DownloadState.QUEUED))
+        {
+          _scheduler.submit(downloadManager);
+        }
+      }
+    };
+    try
+    {
+      _timer.schedule(retry,delay,TimeUnit.MILLISECONDS);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      if (downloadManager.leaveRetry(DownloadState.FAILED))
+      {
+        downloadManager.handleTermination();
+      }
+    }
+  }
+
+  private SingleAsyncDownloadManager getDownloadManager(int taskID)
+  {
+    return _tasks.get(taskID);
+  }
+
+  private CloseableHttpAsyncClient buildClient(ConnectionPoolConfiguration poolConfiguration)
+  {
+    HttpAsyncClientBuilder builder=HttpAsyncClients.custom().setSSLStrategy(buildSSLStrategy());
+    builder.setMaxConnTotal(poolConfiguration.getMaxTotal());
+    builder.setMaxConnPerRoute(poolConfiguration.getMaxPerRoute());
+    builder.setKeepAliveStrategy(new CappedKeepAliveStrategy(poolConfiguration.getMaxKeepAlive()));
+    CloseableHttpAsyncClient httpclient=builder.build();
+    httpclient.start();
+    return httpclient;
+  }
+
+  private SSLIOSessionStrategy buildSSLStrategy()
+  {
+    String[] protocols=new String[] {"TLSv1.2"};
+    SSLContext sslcontext=SSLContexts.createDefault();
+    return new SSLIOSessionStrategy(sslcontext,protocols,null,SSLIOSessionStrategy.getDefaultHostnameVerifier());
+  }
+
+  /**
+   * Release all managed resources.
+   */
+  public void dispose()
+  {
+    if (_client!=null)
+    {
+      try
+      {
+        _client.close();
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Caught exception when closing the HTTP client!", ioe);
+      }
+      _client=null;
+    }
+    synchronized(this)
+    {
+      if (_pipeliningClient!=null)
+      {
+        try
+        {
+          _pipeliningClient.close();
+        }
+        catch(IOException ioe)
+        {
+          LOGGER.warn("Caught exception when closing the pipelining client!", ioe);
+        }
+        _pipeliningClient=null;
+        _pipeliningConnections=null;
       }
-      _client=null;
     }
+    _progressDispatcher.dispose();
+    _timer.shutdownNow();
+    _receiverExecutor.shutdown();
+    _writer.dispose();
   }
 }
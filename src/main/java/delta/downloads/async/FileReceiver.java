@@ -2,21 +2,24 @@ package delta.downloads.async;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import org.apache.log4j.Logger;
 
-import delta.common.utils.files.BinaryFileWriter;
-
 /**
  * Receives bytes into a file.
+ * <p>
+ * Received buffers are written directly to a file channel.
  * @author DAM
  */
-public class FileReceiver implements BytesReceiver
+public class FileReceiver implements ResumableReceiver,ByteBufferReceiver
 {
   private static final Logger LOGGER=Logger.getLogger(FileReceiver.class);
 
   private File _to;
-  private BinaryFileWriter _writer;
+  private FileChannel _channel;
 
   /**
    * Constructor.
@@ -27,21 +30,63 @@ public class FileReceiver implements BytesReceiver
     _to=to;
   }
 
+  /**
+   * Get the target file.
+   * @return the target file.
+   */
+  public File getFile()
+  {
+    return _to;
+  }
+
   @Override
   public boolean start()
   {
-    _writer=new BinaryFileWriter(_to);
-    boolean ok=_writer.start();
-    return ok;
+    return (start(0)==0);
+  }
+
+  @Override
+  public long start(long offset)
+  {
+    close();
+    File parent=_to.getAbsoluteFile().getParentFile();
+    if ((parent!=null) && (!parent.exists()))
+    {
+      parent.mkdirs();
+    }
+    long ret=-1;
+    try
+    {
+      _channel=FileChannel.open(_to.toPath(),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+      ret=Math.min(Math.max(offset,0),_channel.size());
+      _channel.truncate(ret);
+      _channel.position(ret);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not open file: "+_to,ioe);
+      close();
+      ret=-1;
+    }
+    return ret;
   }
 
   @Override
   public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
   {
     boolean ok;
     try
     {
-      _writer.getDataOutputStream().write(buffer,0,count);
+      while (buffer.hasRemaining())
+      {
+        _channel.write(buffer);
+      }
       ok=true;
     }
     catch (IOException ioe)
@@ -55,9 +100,26 @@ public class FileReceiver implements BytesReceiver
   @Override
   public boolean terminate()
   {
-    _writer.terminate();
-    _writer=null;
-    return true;
+    return close();
+  }
+
+  private boolean close()
+  {
+    boolean ok=true;
+    if (_channel!=null)
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Could not close file: "+_to,ioe);
+        ok=false;
+      }
+      _channel=null;
+    }
+    return ok;
   }
 
   @Override
@@ -0,0 +1,25 @@
+package delta.downloads.async;
+
+/**
+ * Interface of a bytes receiver that can ask the network to slow down.
+ * <p>
+ * When such a receiver is full, download managers stop reading from the network
+ * until it is drained, so that memory use stays bounded.
+ * @author DAM
+ */
+public interface FlowControlledReceiver extends BytesReceiver
+{
+  /**
+   * Indicates if this receiver cannot take more bytes for now.
+   * @return <code>true</code> if it is full, <code>false</code> otherwise.
+   */
+  boolean isFull();
+
+  /**
+   * Register a callback to be invoked when this receiver is drained.
+   * @param callback Callback to invoke once, when this receiver is no longer full.
+   * @return <code>true</code> if the callback was registered, <code>false</code>
+   * if this receiver is not full (the callback will not be invoked).
+   */
+  boolean awaitDrain(Runnable callback);
+}
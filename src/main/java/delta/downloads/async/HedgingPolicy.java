@@ -0,0 +1,198 @@
+package delta.downloads.async;
+
+import java.util.Arrays;
+
+/**
+ * Policy for hedged requests.
+ * <p>
+ * When a request has not received its response after a delay, a second identical
+ * request is started. The first one to finish wins and the other one is cancelled.
+ * The hedge delay is a percentile of the recently observed response delays.
+ * A budget caps the fraction of requests that get hedged, so that hedging does not
+ * overload servers that are slow for everyone.
+ * <p>
+ * This class is thread-safe. It also records metrics about hedging.
+ * @author DAM
+ */
+public class HedgingPolicy
+{
+  private static final int HISTORY_SIZE=256;
+  private static final int MIN_SAMPLES=10;
+
+  private boolean _enabled;
+  private int _percentile;
+  private long _defaultDelay;
+  private long _minDelay;
+  private double _budget;
+  // History of response delays (milliseconds)
+  private long[] _history;
+  private int _samples;
+  private int _nextSample;
+  // Metrics
+  private long _requests;
+  private long _hedges;
+  private long _hedgeWins;
+
+  /**
+   * Constructor.
+   * Hedging is disabled by default.
+   */
+  public HedgingPolicy()
+  {
+    _enabled=false;
+    _percentile=95;
+    _defaultDelay=500;
+    _minDelay=10;
+    _budget=0.05;
+    _history=new long[HISTORY_SIZE];
+  }
+
+  /**
+   * Indicates if hedging is enabled.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  public synchronized boolean isEnabled()
+  {
+    return _enabled;
+  }
+
+  /**
+   * Enable or disable hedging.
+   * @param enabled <code>true</code> to enable, <code>false</code> to disable.
+   */
+  public synchronized void setEnabled(boolean enabled)
+  {
+    _enabled=enabled;
+  }
+
+  /**
+   * Set the percentile of response delays to use as hedge delay.
+   * @param percentile Percentile to set (1 to 100, default is 95).
+   */
+  public synchronized void setPercentile(int percentile)
+  {
+    _percentile=Math.max(1,Math.min(percentile,100));
+  }
+
+  /**
+   * Set the bounds of the hedge delay.
+   * @param minDelay Minimum delay (milliseconds).
+   * @param defaultDelay Delay to use until enough response delays are known (milliseconds).
+   */
+  public synchronized void setDelays(long minDelay, long defaultDelay)
+  {
+    _minDelay=minDelay;
+    _defaultDelay=defaultDelay;
+  }
+
+  /**
+   * Set the hedging budget.
+   * @param budget Maximum fraction of requests that may be hedged (default is 0.05).
+   */
+  public synchronized void setBudget(double budget)
+  {
+    _budget=budget;
+  }
+
+  /**
+   * Get the delay to wait for a response before hedging a request.
+   * @return A delay in milliseconds.
+   */
+  public synchronized long getHedgeDelay()
+  {
+    if (_samples<MIN_SAMPLES)
+    {
+      return _defaultDelay;
+    }
+    long[] samples=Arrays.copyOf(_history,_samples);
+    Arrays.sort(samples);
+    int index=(int)Math.ceil(_percentile*_samples/100.0)-1;
+    index=Math.max(0,Math.min(index,_samples-1));
+    return Math.max(samples[index],_minDelay);
+  }
+
+  /**
+   * Record the response delay of a request.
+   * @param delay Delay to record (milliseconds), negative values are ignored.
+   */
+  synchronized void recordResponseDelay(long delay)
+  {
+    if (delay<0)
+    {
+      return;
+    }
+    _history[_nextSample]=delay;
+    _nextSample=(_nextSample+1)%HISTORY_SIZE;
+    if (_samples<HISTORY_SIZE)
+    {
+      _samples++;
+    }
+  }
+
+  /**
+   * Record a request that may be hedged.
+   */
+  synchronized void recordRequest()
+  {
+    _requests++;
+  }
+
+  /**
+   * Try to get the right to hedge a request.
+   * @return <code>true</code> if the budget allows a new hedge, <code>false</code> otherwise.
+   */
+  synchronized boolean acquireHedge()
+  {
+    if (_hedges+1>_budget*_requests)
+    {
+      return false;
+    }
+    _hedges++;
+    return true;
+  }
+
+  /**
+   * Record the end of a hedged request.
+   * @param hedgeWon <code>true</code> if the hedge won, <code>false</code> if the first request won.
+   */
+  synchronized void recordHedgeResult(boolean hedgeWon)
+  {
+    if (hedgeWon)
+    {
+      _hedgeWins++;
+    }
+  }
+
+  /**
+   * Get the number of requests that could have been hedged.
+   * @return a requests count.
+   */
+  public synchronized long getRequestsCount()
+  {
+    return _requests;
+  }
+
+  /**
+   * Get the number of hedges.
+   * @return a requests count.
+   */
+  public synchronized long getHedgesCount()
+  {
+    return _hedges;
+  }
+
+  /**
+   * Get the number of hedges that finished before the first request.
+   * @return a requests count.
+   */
+  public synchronized long getHedgeWinsCount()
+  {
+    return _hedgeWins;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "Hedging: requests="+_requests+", hedges="+_hedges+", hedge wins="+_hedgeWins;
+  }
+}
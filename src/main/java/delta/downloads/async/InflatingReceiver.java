@@ -0,0 +1,475 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receiver that decompresses <code>gzip</code> or <code>deflate</code> encoded bytes
+ * and gives the decoded bytes to another receiver.
+ * <p>
+ * Decompression is incremental: bytes are decoded as they are received.
+ * For <code>gzip</code>, member headers are parsed and trailers are checked.
+ * For <code>deflate</code>, both zlib-wrapped and raw streams are supported.
+ * @author DAM
+ */
+public class InflatingReceiver implements ByteBufferReceiver
+{
+  private static final Logger LOGGER=Logger.getLogger(InflatingReceiver.class);
+
+  /**
+   * Compression format.
+   */
+  public enum Format
+  {
+    /**
+     * gzip (RFC 1952).
+     */
+    GZIP,
+    /**
+     * deflate (RFC 1950 zlib stream, or raw RFC 1951 stream).
+     */
+    DEFLATE
+  }
+
+  private static final int MAX_HEADER_SIZE=64*1024;
+  private static final int BUFFER_SIZE=16*1024;
+  private static final int TRAILER_SIZE=8;
+
+  // Gzip header flags
+  private static final int FHCRC=2;
+  private static final int FEXTRA=4;
+  private static final int FNAME=8;
+  private static final int FCOMMENT=16;
+
+  // States
+  private static final int HEADER=0;
+  private static final int BODY=1;
+  private static final int TRAILER=2;
+  private static final int DONE=3;
+
+  private ByteBufferReceiver _delegate;
+  private BytesReceiver _target;
+  private Format _format;
+  private Inflater _inflater;
+  private CRC32 _crc;
+  private byte[] _input;
+  private byte[] _output;
+  private byte[] _header;
+  private int _headerLength;
+  private byte[] _trailer;
+  private int _trailerLength;
+  private int _state;
+  private int _members;
+  private long _memberSize;
+  private long _inputSize;
+  private long _outputSize;
+  private boolean _failed;
+
+  /**
+   * Constructor.
+   * @param delegate Receiver for decoded bytes.
+   * @param format Compression format.
+   */
+  public InflatingReceiver(BytesReceiver delegate, Format format)
+  {
+    _target=delegate;
+    _delegate=BytesReceiverAdapter.adapt(delegate);
+    _format=format;
+    _crc=new CRC32();
+    _output=new byte[BUFFER_SIZE];
+    _header=new byte[16];
+    _trailer=new byte[TRAILER_SIZE];
+    reset();
+  }
+
+  /**
+   * Get the format for a <code>Content-Encoding</code> header value.
+   * @param contentEncoding Header value (may be <code>null</code>).
+   * @return A format, or <code>null</code> if the content is not encoded.
+   * @throws IllegalArgumentException If the encoding is not supported.
+   */
+  public static Format getFormat(String contentEncoding)
+  {
+    if (contentEncoding==null)
+    {
+      return null;
+    }
+    String encoding=contentEncoding.trim().toLowerCase();
+    if ((encoding.length()==0) || (encoding.equals("identity")))
+    {
+      return null;
+    }
+    if ((encoding.equals("gzip")) || (encoding.equals("x-gzip")))
+    {
+      return Format.GZIP;
+    }
+    if (encoding.equals("deflate"))
+    {
+      return Format.DEFLATE;
+    }
+    throw new IllegalArgumentException("Unsupported content encoding: "+contentEncoding);
+  }
+
+  private void reset()
+  {
+    end();
+    _headerLength=0;
+    _trailerLength=0;
+    _state=HEADER;
+    _members=0;
+    _memberSize=0;
+    _inputSize=0;
+    _outputSize=0;
+    _failed=false;
+    _crc.reset();
+  }
+
+  @Override
+  public boolean start()
+  {
+    reset();
+    return _target.start();
+  }
+
+  /**
+   * Get the number of received (encoded) bytes.
+   * @return a size in bytes.
+   */
+  public long getInputSize()
+  {
+    return _inputSize;
+  }
+
+  /**
+   * Get the number of decoded bytes.
+   * @return a size in bytes.
+   */
+  public long getOutputSize()
+  {
+    return _outputSize;
+  }
+
+  /**
+   * Indicates if the compressed stream is complete.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  public boolean isFinished()
+  {
+    if (_failed)
+    {
+      return false;
+    }
+    if (_state==DONE)
+    {
+      return true;
+    }
+    return ((_format==Format.GZIP) && (_state==HEADER) && (_headerLength==0) && (_members>0));
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return process(buffer,offset,count);
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    if (buffer.hasArray())
+    {
+      boolean ok=process(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+      buffer.position(buffer.limit());
+      return ok;
+    }
+    if (_input==null)
+    {
+      _input=new byte[BUFFER_SIZE];
+    }
+    while (buffer.hasRemaining())
+    {
+      int count=Math.min(buffer.remaining(),_input.length);
+      buffer.get(_input,0,count);
+      if (!process(_input,0,count))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean process(byte[] buffer, int offset, int count)
+  {
+    if (_failed)
+    {
+      return false;
+    }
+    _inputSize+=count;
+    int end=offset+count;
+    int position=offset;
+    while (position<end)
+    {
+      if (_state==HEADER)
+      {
+        int copied=appendHeader(buffer,position,end-position);
+        position+=copied;
+        int headerSize=parseHeader();
+        if (headerSize==-2)
+        {
+          return fail("Bad compressed stream header");
+        }
+        if (headerSize==-1)
+        {
+          if (_headerLength>=MAX_HEADER_SIZE)
+          {
+            return fail("Compressed stream header is too big");
+          }
+          continue;
+        }
+        // Body bytes may have been buffered with the header by previous calls:
+        // they are inflated first, then the body goes on in this buffer
+        int buffered=_headerLength-copied;
+        int bodyStart=headerSize;
+        _headerLength=0;
+        _state=BODY;
+        if (bodyStart<buffered)
+        {
+          if (inflate(_header,bodyStart,buffered-bodyStart)<0)
+          {
+            return false;
+          }
+          bodyStart=buffered;
+        }
+        position-=(copied-(bodyStart-buffered));
+      }
+      else if (_state==BODY)
+      {
+        int remaining=inflate(buffer,position,end-position);
+        if (remaining<0)
+        {
+          return false;
+        }
+        position=end-remaining;
+      }
+      else if (_state==TRAILER)
+      {
+        int copied=Math.min(TRAILER_SIZE-_trailerLength,end-position);
+        System.arraycopy(buffer,position,_trailer,_trailerLength,copied);
+        _trailerLength+=copied;
+        position+=copied;
+        if (_trailerLength==TRAILER_SIZE)
+        {
+          if (!checkTrailer())
+          {
+            return fail("Bad gzip trailer");
+          }
+          _trailerLength=0;
+          _state=HEADER;
+        }
+      }
+      else
+      {
+        // Ignore trailing garbage
+        position=end;
+      }
+    }
+    return true;
+  }
+
+  private int appendHeader(byte[] buffer, int offset, int count)
+  {
+    int copied=Math.min(count,MAX_HEADER_SIZE-_headerLength);
+    if (_headerLength+copied>_header.length)
+    {
+      byte[] newHeader=new byte[Math.min(Math.max(_header.length*2,_headerLength+copied),MAX_HEADER_SIZE)];
+      System.arraycopy(_header,0,newHeader,0,_headerLength);
+      _header=newHeader;
+    }
+    System.arraycopy(buffer,offset,_header,_headerLength,copied);
+    _headerLength+=copied;
+    return copied;
+  }
+
+  /**
+   * Parse the header of the compressed stream, and set up the inflater.
+   * @return the header size, <code>-1</code> if incomplete, <code>-2</code> if invalid.
+   */
+  private int parseHeader()
+  {
+    if (_format==Format.DEFLATE)
+    {
+      if (_headerLength<2)
+      {
+        return -1;
+      }
+      // zlib stream header: deflate method, and check bits
+      int cmf=_header[0]&0xFF;
+      int flg=_header[1]&0xFF;
+      boolean zlib=(((cmf&0x0F)==8) && ((cmf*256+flg)%31==0));
+      _inflater=new Inflater(!zlib);
+      return 0;
+    }
+    if (_headerLength<10)
+    {
+      return -1;
+    }
+    if (((_header[0]&0xFF)!=0x1F) || ((_header[1]&0xFF)!=0x8B) || (_header[2]!=8))
+    {
+      return -2;
+    }
+    int flags=_header[3]&0xFF;
+    int size=10;
+    if ((flags&FEXTRA)!=0)
+    {
+      if (_headerLength<size+2)
+      {
+        return -1;
+      }
+      int extraLength=(_header[size]&0xFF)|((_header[size+1]&0xFF)<<8);
+      size+=2+extraLength;
+    }
+    if ((flags&FNAME)!=0)
+    {
+      size=skipZeroTerminated(size);
+      if (size<0)
+      {
+        return -1;
+      }
+    }
+    if ((flags&FCOMMENT)!=0)
+    {
+      size=skipZeroTerminated(size);
+      if (size<0)
+      {
+        return -1;
+      }
+    }
+    if ((flags&FHCRC)!=0)
+    {
+      size+=2;
+    }
+    if (size>_headerLength)
+    {
+      return -1;
+    }
+    if (_inflater==null)
+    {
+      _inflater=new Inflater(true);
+    }
+    else
+    {
+      _inflater.reset();
+    }
+    _crc.reset();
+    _memberSize=0;
+    return size;
+  }
+
+  private int skipZeroTerminated(int offset)
+  {
+    for(int i=offset;i<_headerLength;i++)
+    {
+      if (_header[i]==0)
+      {
+        return i+1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Inflate some bytes.
+   * @return the number of unused bytes, or <code>-1</code> if it failed.
+   */
+  private int inflate(byte[] buffer, int offset, int count)
+  {
+    _inflater.setInput(buffer,offset,count);
+    try
+    {
+      while (true)
+      {
+        int decoded=_inflater.inflate(_output);
+        if (decoded>0)
+        {
+          _crc.update(_output,0,decoded);
+          _memberSize+=decoded;
+          _outputSize+=decoded;
+          if (!_delegate.handleBytes(ByteBuffer.wrap(_output,0,decoded)))
+          {
+            _failed=true;
+            return -1;
+          }
+        }
+        if (_inflater.finished())
+        {
+          _state=(_format==Format.GZIP)?TRAILER:DONE;
+          return _inflater.getRemaining();
+        }
+        if ((_inflater.needsInput()) || (_inflater.needsDictionary()))
+        {
+          if (_inflater.needsDictionary())
+          {
+            fail("Compressed stream needs a dictionary");
+            return -1;
+          }
+          return 0;
+        }
+      }
+    }
+    catch(DataFormatException dfe)
+    {
+      fail("Bad compressed data: "+dfe.getMessage());
+      return -1;
+    }
+  }
+
+  private boolean checkTrailer()
+  {
+    long crc=readInt(0);
+    long size=readInt(4);
+    _members++;
+    return ((crc==_crc.getValue()) && (size==(_memberSize&0xFFFFFFFFL)));
+  }
+
+  private long readInt(int offset)
+  {
+    return (_trailer[offset]&0xFFL)|((_trailer[offset+1]&0xFFL)<<8)|((_trailer[offset+2]&0xFFL)<<16)|((_trailer[offset+3]&0xFFL)<<24);
+  }
+
+  private boolean fail(String message)
+  {
+    LOGGER.warn(message+" (receiver: "+_target+")");
+    _failed=true;
+    return false;
+  }
+
+  /**
+   * Release the inflater resources.
+   */
+  public void end()
+  {
+    if (_inflater!=null)
+    {
+      _inflater.end();
+      _inflater=null;
+    }
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    boolean ok=isFinished();
+    end();
+    ok&=_target.terminate();
+    return ok;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Inflating receiver ("+_format+") for: "+_target;
+  }
+}
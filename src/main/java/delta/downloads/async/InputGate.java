@@ -0,0 +1,60 @@
+package delta.downloads.async;
+
+import org.apache.http.nio.IOControl;
+
+/**
+ * Controls the input of a connection, that may be suspended for several reasons.
+ * Input is resumed when all suspension reasons are gone.
+ * @author DAM
+ */
+class InputGate
+{
+  /**
+   * Suspension to respect a bandwidth limit.
+   */
+  static final int THROTTLING=1;
+  /**
+   * Suspension until the receiver is drained.
+   */
+  static final int RECEIVER=2;
+
+  private IOControl _ioControl;
+  private int _reasons;
+  private long _suspendedSince;
+
+  /**
+   * Suspend input.
+   * @param reason Suspension reason.
+   * @param ioControl Control of the connection.
+   */
+  synchronized void suspend(int reason, IOControl ioControl)
+  {
+    _ioControl=ioControl;
+    if (_reasons==0)
+    {
+      ioControl.suspendInput();
+      _suspendedSince=System.currentTimeMillis();
+    }
+    _reasons|=reason;
+  }
+
+  /**
+   * Remove a suspension reason.
+   * @param reason Suspension reason.
+   * @return the suspension duration if input was resumed, in milliseconds, <code>0</code> otherwise.
+   */
+  synchronized long resume(int reason)
+  {
+    if ((_reasons&reason)==0)
+    {
+      return 0;
+    }
+    _reasons&=~reason;
+    if (_reasons!=0)
+    {
+      return 0;
+    }
+    _ioControl.requestInput();
+    return System.currentTimeMillis()-_suspendedSince;
+  }
+}
@@ -0,0 +1,65 @@
+package delta.downloads.async;
+
+/**
+ * Expected checksum and size of a downloaded entity.
+ * @author DAM
+ */
+public class IntegrityCheck
+{
+  private String _algorithm;
+  private String _value;
+  private Long _size;
+
+  /**
+   * Constructor.
+   * @param algorithm Checksum algorithm (<code>SHA-256</code>, <code>CRC32C</code>...),
+   * see {@link DigestingReceiver}.
+   * @param value Expected checksum value, as an hexadecimal string.
+   * @param size Expected size in bytes (may be <code>null</code>).
+   */
+  public IntegrityCheck(String algorithm, String value, Long size)
+  {
+    _algorithm=algorithm;
+    _value=value.trim().toLowerCase();
+    _size=size;
+  }
+
+  /**
+   * Get the checksum algorithm.
+   * @return an algorithm name.
+   */
+  public String getAlgorithm()
+  {
+    return _algorithm;
+  }
+
+  /**
+   * Get the expected checksum value.
+   * @return a lower-case hexadecimal string.
+   */
+  public String getValue()
+  {
+    return _value;
+  }
+
+  /**
+   * Get the expected size.
+   * @return a size in bytes, or <code>null</code> if not known.
+   */
+  public Long getSize()
+  {
+    return _size;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb=new StringBuilder();
+    sb.append(_algorithm).append('=').append(_value);
+    if (_size!=null)
+    {
+      sb.append(", size=").append(_size);
+    }
+    return sb.toString();
+  }
+}
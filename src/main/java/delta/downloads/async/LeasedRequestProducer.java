@@ -0,0 +1,98 @@
+package delta.downloads.async;
+
+import java.io.IOException;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Request producer that signals the lease of a connection.
+ * <p>
+ * The request is generated once a connection is leased for it: the first generation runs
+ * the given callback, then all calls are delegated.
+ * @author DAM
+ */
+class LeasedRequestProducer implements HttpAsyncRequestProducer
+{
+  private HttpAsyncRequestProducer _delegate;
+  private Runnable _onLease;
+  private boolean _leased;
+
+  /**
+   * Constructor.
+   * @param delegate Producer to use.
+   * @param onLease Callback to run when a connection is leased.
+   */
+  LeasedRequestProducer(HttpAsyncRequestProducer delegate, Runnable onLease)
+  {
+    _delegate=delegate;
+    _onLease=onLease;
+    _leased=false;
+  }
+
+  @Override
+  public HttpHost getTarget()
+  {
+    return _delegate.getTarget();
+  }
+
+  @Override
+  public HttpRequest generateRequest() throws IOException, HttpException
+  {
+    boolean first=false;
+    synchronized(this)
+    {
+      if (!_leased)
+      {
+        _leased=true;
+        first=true;
+      }
+    }
+    if (first)
+    {
+      _onLease.run();
+    }
+    return _delegate.generateRequest();
+  }
+
+  @Override
+  public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException
+  {
+    _delegate.produceContent(encoder,ioctrl);
+  }
+
+  @Override
+  public void requestCompleted(HttpContext context)
+  {
+    _delegate.requestCompleted(context);
+  }
+
+  @Override
+  public void failed(Exception ex)
+  {
+    _delegate.failed(ex);
+  }
+
+  @Override
+  public boolean isRepeatable()
+  {
+    return _delegate.isRepeatable();
+  }
+
+  @Override
+  public void resetRequest() throws IOException
+  {
+    _delegate.resetRequest();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    _delegate.close();
+  }
+}
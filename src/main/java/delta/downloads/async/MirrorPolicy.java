@@ -0,0 +1,210 @@
+package delta.downloads.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Policy for downloads from several mirrors.
+ * <p>
+ * The first bytes are raced between the best candidate mirrors, and the fastest one
+ * is kept. When the throughput of the kept mirror falls below a threshold, the download
+ * switches to the next best mirror, from its current offset.
+ * <p>
+ * The throughput of each host is remembered as an exponentially weighted moving average,
+ * so that later downloads start on the best mirrors. Hosts without history are ranked as
+ * if they had the minimum throughput: they are preferred to hosts known to be slow.
+ * <p>
+ * This class is thread-safe. It also records metrics about mirrors.
+ * @author DAM
+ */
+public class MirrorPolicy
+{
+  private int _raceSize;
+  private long _minThroughput;
+  private long _gracePeriod;
+  private double _smoothing;
+  // Throughput of hosts (bytes/s)
+  private Map<String,Double> _throughputs;
+  // Metrics
+  private long _races;
+  private long _switches;
+
+  /**
+   * Constructor.
+   */
+  public MirrorPolicy()
+  {
+    _raceSize=2;
+    _minThroughput=32*1024;
+    _gracePeriod=3000;
+    _smoothing=0.3;
+    _throughputs=new HashMap<String,Double>();
+  }
+
+  /**
+   * Get the number of mirrors that race for the first bytes.
+   * @return a mirrors count.
+   */
+  public synchronized int getRaceSize()
+  {
+    return _raceSize;
+  }
+
+  /**
+   * Set the number of mirrors that race for the first bytes.
+   * @param raceSize Mirrors count to set (default is 2, 1 for no race).
+   */
+  public synchronized void setRaceSize(int raceSize)
+  {
+    _raceSize=Math.max(1,raceSize);
+  }
+
+  /**
+   * Get the throughput under which a download switches to another mirror.
+   * @return a throughput in bytes per second.
+   */
+  public synchronized long getMinThroughput()
+  {
+    return _minThroughput;
+  }
+
+  /**
+   * Set the throughput under which a download switches to another mirror.
+   * @param minThroughput Throughput to set (bytes per second, default is 32kB/s, 0 for no switch).
+   */
+  public synchronized void setMinThroughput(long minThroughput)
+  {
+    _minThroughput=minThroughput;
+  }
+
+  /**
+   * Get the time given to a mirror before its throughput is checked.
+   * @return a delay in milliseconds.
+   */
+  public synchronized long getGracePeriod()
+  {
+    return _gracePeriod;
+  }
+
+  /**
+   * Set the time given to a mirror before its throughput is checked.
+   * @param gracePeriod Delay to set (milliseconds, default is 3000).
+   */
+  public synchronized void setGracePeriod(long gracePeriod)
+  {
+    _gracePeriod=gracePeriod;
+  }
+
+  /**
+   * Set the smoothing factor of the throughput averages.
+   * @param smoothing Weight of new samples (0 to 1, default is 0.3).
+   */
+  public synchronized void setSmoothing(double smoothing)
+  {
+    _smoothing=Math.max(0,Math.min(smoothing,1));
+  }
+
+  /**
+   * Get the average throughput of a host.
+   * @param host Host to use.
+   * @return A throughput in bytes per second, or <code>null</code> if not known.
+   */
+  public synchronized Double getThroughput(String host)
+  {
+    return _throughputs.get(host);
+  }
+
+  /**
+   * Rank mirrors, best first.
+   * @param urls URLs of the mirrors.
+   * @return A new sorted list of URLs.
+   */
+  public List<String> rank(List<String> urls)
+  {
+    final Map<String,Double> scores=new HashMap<String,Double>();
+    synchronized(this)
+    {
+      for(String url : urls)
+      {
+        Double throughput=_throughputs.get(DownloadScheduler.getHost(url));
+        scores.put(url,(throughput!=null)?throughput:Double.valueOf(_minThroughput));
+      }
+    }
+    List<String> ret=new ArrayList<String>(urls);
+    // Stable sort: mirrors with the same score keep their order
+    Collections.sort(ret,new Comparator<String>()
+    {
+      @Override
+      public int compare(String url1, String url2)
+      {
+        return scores.get(url2).compareTo(scores.get(url1));
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Record the throughput of a host.
+   * @param host Host to use.
+   * @param throughput Observed throughput (bytes per second).
+   */
+  synchronized void recordThroughput(String host, double throughput)
+  {
+    Double average=_throughputs.get(host);
+    double value=(average!=null)?average.doubleValue()+_smoothing*(throughput-average.doubleValue()):throughput;
+    _throughputs.put(host,Double.valueOf(value));
+  }
+
+  /**
+   * Record the failure of a host.
+   * @param host Host to use.
+   */
+  synchronized void recordFailure(String host)
+  {
+    recordThroughput(host,0);
+  }
+
+  /**
+   * Record a race between mirrors.
+   */
+  synchronized void recordRace()
+  {
+    _races++;
+  }
+
+  /**
+   * Record a switch to another mirror.
+   */
+  synchronized void recordSwitch()
+  {
+    _switches++;
+  }
+
+  /**
+   * Get the number of races between mirrors.
+   * @return a races count.
+   */
+  public synchronized long getRacesCount()
+  {
+    return _races;
+  }
+
+  /**
+   * Get the number of switches to another mirror, because of a low throughput.
+   * @return a switches count.
+   */
+  public synchronized long getSwitchesCount()
+  {
+    return _switches;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "Mirrors: races="+_races+", switches="+_switches+", hosts="+_throughputs;
+  }
+}
@@ -0,0 +1,697 @@
+package delta.downloads.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * Manager for a download from several mirrors.
+ * <p>
+ * The best mirrors, as ranked by the mirror policy, race for the first bytes: the first one
+ * to deliver bytes becomes the source, the other ones are cancelled. When the throughput of the
+ * source falls below the threshold of the policy, or when the source fails, the download goes on
+ * from the current offset with a range request to the next best mirror.
+ * Mirrors shall serve the same entity: a mirror that announces a different size is dropped.
+ * @author DAM
+ */
+public class MirroredDownloadManager extends SingleAsyncDownloadManager
+{
+  private static final Logger LOGGER=Logger.getLogger(MirroredDownloadManager.class);
+
+  private static final long CHECK_INTERVAL=1000;
+
+  private List<String> _urls;
+  private MirrorPolicy _policy;
+  private ByteBufferReceiver _receiver;
+  private DigestingReceiver _digesting;
+  // Lock held while bytes are given to the receiver, out of this object lock
+  private Object _delivery;
+  // Running requests
+  private List<Source> _sources;
+  // Source of the received bytes
+  private Source _current;
+  // Mirrors that failed or were too slow
+  private Set<String> _abandoned;
+  private long _offset;
+  private Long _length;
+  private boolean _finished;
+  private ScheduledFuture<?> _monitor;
+
+  /**
+   * Constructor.
+   * @param client Underlying HTTP client.
+   * @param task Download task, with a resumable receiver.
+   * @param urls URLs of the mirrors.
+   * @param policy Mirror policy.
+   */
+  public MirroredDownloadManager(CloseableHttpAsyncClient client, DownloadTask task, List<String> urls, MirrorPolicy policy)
+  {
+    super(client,task);
+    _urls=new ArrayList<String>(urls);
+    _policy=policy;
+    _sources=new ArrayList<Source>();
+    _abandoned=new HashSet<String>();
+    _delivery=new Object();
+  }
+
+  /**
+   * Get the URLs of the mirrors.
+   * @return a list of URLs.
+   */
+  public List<String> getURLs()
+  {
+    return new ArrayList<String>(_urls);
+  }
+
+  @Override
+  public boolean start()
+  {
+    initLatch();
+    DownloadTask task=getTask();
+    task.incrementAttempts();
+    task.setDownloadState(DownloadState.RUNNING);
+    task.setDoneSize(0);
+    task.setDecodedSize(0);
+    if (!startReceiver())
+    {
+      task.setDownloadState(DownloadState.FAILED);
+      handleTermination();
+      return true;
+    }
+    List<String> ranked=_policy.rank(_urls);
+    int raceSize=Math.min(_policy.getRaceSize(),ranked.size());
+    synchronized(this)
+    {
+      _sources.clear();
+      _current=null;
+      _abandoned.clear();
+      _offset=0;
+      _length=null;
+      _finished=false;
+    }
+    invokeListener();
+    if (raceSize>1)
+    {
+      _policy.recordRace();
+    }
+    for(int i=0;i<raceSize;i++)
+    {
+      startSource(ranked.get(i),0);
+    }
+    startMonitor();
+    return true;
+  }
+
+  private boolean startReceiver()
+  {
+    BytesReceiver receiver=getTask().getReceiver();
+    IntegrityCheck check=getTask().getIntegrityCheck();
+    if (check!=null)
+    {
+      _digesting=new DigestingReceiver(receiver,check.getAlgorithm());
+      if (check.getSize()!=null)
+      {
+        _digesting.setMaxSize(check.getSize().longValue());
+      }
+      _receiver=_digesting;
+    }
+    else
+    {
+      _digesting=null;
+      _receiver=BytesReceiverAdapter.adapt(receiver);
+    }
+    return _receiver.start();
+  }
+
+  private void startMonitor()
+  {
+    ScheduledExecutorService timer=getTimer();
+    if ((timer==null) || (_policy.getMinThroughput()<=0))
+    {
+      return;
+    }
+    Runnable check=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        checkThroughput();
+      }
+    };
+    try
+    {
+      ScheduledFuture<?> monitor=timer.scheduleWithFixedDelay(check,CHECK_INTERVAL,CHECK_INTERVAL,TimeUnit.MILLISECONDS);
+      boolean cancel;
+      synchronized(this)
+      {
+        _monitor=monitor;
+        cancel=_finished;
+      }
+      if (cancel)
+      {
+        monitor.cancel(false);
+      }
+    }
+    catch(RejectedExecutionException ree)
+    {
+      LOGGER.debug("Timer is disposed, no throughput checks for: "+getTask());
+    }
+  }
+
+  private void startSource(String url, long offset)
+  {
+    Source source=new Source(url,offset);
+    HttpGet get=new HttpGet(getRequestURL(url));
+    if (offset>0)
+    {
+      get.setHeader("Range","bytes="+offset+"-");
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Requesting "+source+" for: "+getTask());
+    }
+    synchronized(this)
+    {
+      _sources.add(source);
+    }
+    SourceConsumer consumer=new SourceConsumer(source);
+    SourceCallback callback=new SourceCallback(source);
+    Future<HttpResponse> future=getClient().execute(HttpAsyncMethods.create(get),consumer,callback);
+    boolean cancel;
+    synchronized(this)
+    {
+      source._future=future;
+      cancel=((_finished) || (source._dropped));
+    }
+    if (cancel)
+    {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Check the response of a source.
+   * @param source Source to use.
+   * @param response Response to check.
+   * @throws HttpException If the response cannot be used.
+   */
+  private void checkResponse(Source source, HttpResponse response) throws HttpException
+  {
+    int statusCode=response.getStatusLine().getStatusCode();
+    Long length=null;
+    if (source._offset==0)
+    {
+      if (statusCode!=HttpStatus.SC_OK)
+      {
+        throw new HttpException("Bad response from "+source+": "+response.getStatusLine());
+      }
+      length=ResponseUtils.getContentLength(response);
+    }
+    else
+    {
+      long[] contentRange=(statusCode==HttpStatus.SC_PARTIAL_CONTENT)?ResponseUtils.getContentRange(response):null;
+      if ((contentRange==null) || (contentRange[0]!=source._offset))
+      {
+        throw new HttpException("Byte range not honoured by "+source+": "+response.getStatusLine());
+      }
+      if (contentRange[2]>=0)
+      {
+        length=Long.valueOf(contentRange[2]);
+      }
+    }
+    synchronized(this)
+    {
+      if ((length!=null) && (_length!=null) && (!length.equals(_length)))
+      {
+        throw new HttpException("Size mismatch for "+source+": "+length+" instead of "+_length);
+      }
+      source._length=length;
+    }
+  }
+
+  /**
+   * Handle bytes from a source.
+   * @param source Source to use.
+   * @param buffer Received bytes.
+   * @return <code>true</code> if the bytes were used, <code>false</code> if they were dropped.
+   * @throws IOException If the receiver failed.
+   */
+  private boolean handleSourceBytes(Source source, ByteBuffer buffer) throws IOException
+  {
+    List<Source> losers=null;
+    int count=buffer.remaining();
+    long offset;
+    Long length;
+    synchronized(_delivery)
+    {
+      ByteBufferReceiver receiver;
+      synchronized(this)
+      {
+        if ((_finished) || (source._dropped))
+        {
+          return false;
+        }
+        if (_current==null)
+        {
+          if (source._offset!=_offset)
+          {
+            return false;
+          }
+          losers=win(source);
+        }
+        else if (_current!=source)
+        {
+          return false;
+        }
+        receiver=_receiver;
+      }
+      if (!receiver.handleBytes(buffer))
+      {
+        throw new IOException("Receiver failed: "+receiver);
+      }
+      synchronized(this)
+      {
+        _offset+=count;
+        source._bytes+=count;
+        offset=_offset;
+        length=_length;
+      }
+    }
+    DownloadTask task=getTask();
+    if (losers!=null)
+    {
+      useSource(source,length,losers);
+    }
+    task.setDoneSize(offset);
+    task.setDecodedSize(offset);
+    invokeListener();
+    return true;
+  }
+
+  /**
+   * Make a source the source of the received bytes.
+   * Called with this object lock.
+   * @param source Source to use.
+   * @return the other sources, that are dropped.
+   */
+  private List<Source> win(Source source)
+  {
+    _current=source;
+    source._start=System.currentTimeMillis();
+    source._checkTime=source._start;
+    if (source._length!=null)
+    {
+      _length=source._length;
+    }
+    return dropOtherSources(source);
+  }
+
+  private void useSource(Source source, Long length, List<Source> losers)
+  {
+    DownloadTask task=getTask();
+    task.setSourceURL(source._url);
+    task.setExpectedSize(length);
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Using "+source+" for: "+task);
+    }
+    cancelSources(losers);
+  }
+
+  private List<Source> dropOtherSources(Source kept)
+  {
+    List<Source> ret=new ArrayList<Source>();
+    for(Source source : _sources)
+    {
+      if (source!=kept)
+      {
+        source._dropped=true;
+        ret.add(source);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Indicates if a source that is not dropped is still running.
+   * @return <code>true</code> if there is one, <code>false</code> otherwise.
+   */
+  private boolean hasLiveSources()
+  {
+    for(Source source : _sources)
+    {
+      if (!source._dropped)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void cancelSources(List<Source> sources)
+  {
+    for(Source source : sources)
+    {
+      Future<HttpResponse> future=source._future;
+      if (future!=null)
+      {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Handle the end of the request of a source.
+   * @param source Source to use.
+   * @param completed <code>true</code> if the response was completely received.
+   * @param failure Failure, if any.
+   */
+  private void handleSourceEnd(Source source, boolean completed, Exception failure)
+  {
+    String next=null;
+    long offset;
+    DownloadState state=null;
+    List<Source> losers=null;
+    synchronized(this)
+    {
+      _sources.remove(source);
+      offset=_offset;
+      if ((_finished) || (source._dropped))
+      {
+        return;
+      }
+      if ((_current==null) && (completed) && (_offset==0) && (source._offset==0) && (source._length!=null) && (source._length.longValue()==0))
+      {
+        // Empty entity: no bytes to win the race with
+        losers=win(source);
+        state=DownloadState.OK;
+      }
+      else if ((source==_current) && (completed) && ((_length==null) || (_offset==_length.longValue())))
+      {
+        recordThroughput(source);
+        state=DownloadState.OK;
+      }
+      else
+      {
+        LOGGER.info("Mirror failed: "+source+" for: "+getTask()+((failure!=null)?": "+failure:""));
+        if (source==_current)
+        {
+          _current=null;
+        }
+        _policy.recordFailure(source._host);
+        _abandoned.add(source._url);
+        if (_current==null)
+        {
+          next=selectNextSource();
+          // Other racers may still deliver, dropped ones are being cancelled
+          if ((next==null) && (!hasLiveSources()))
+          {
+            state=DownloadState.FAILED;
+          }
+        }
+      }
+    }
+    if (losers!=null)
+    {
+      useSource(source,source._length,losers);
+    }
+    if (next!=null)
+    {
+      startSource(next,offset);
+    }
+    if (state!=null)
+    {
+      finish(state);
+    }
+  }
+
+  /**
+   * Check the throughput of the current source, and switch to another mirror if it is too low.
+   */
+  private void checkThroughput()
+  {
+    String next=null;
+    Source slow=null;
+    long offset;
+    // Bytes being given to the receiver are counted before the switch offset is taken
+    synchronized(_delivery)
+    {
+      synchronized(this)
+      {
+        Source source=_current;
+        if ((_finished) || (source==null))
+        {
+          return;
+        }
+        long now=System.currentTimeMillis();
+        long elapsed=now-source._checkTime;
+        if (elapsed<=0)
+        {
+          return;
+        }
+        long throughput=(source._bytes-source._checkBytes)*1000/elapsed;
+        source._checkTime=now;
+        source._checkBytes=source._bytes;
+        if ((now-source._start<_policy.getGracePeriod()) || (throughput>=_policy.getMinThroughput()))
+        {
+          return;
+        }
+        _abandoned.add(source._url);
+        next=selectNextSource();
+        if (next==null)
+        {
+          // No better choice: keep it
+          _abandoned.remove(source._url);
+          return;
+        }
+        recordThroughput(source);
+        source._dropped=true;
+        _current=null;
+        slow=source;
+        offset=_offset;
+      }
+    }
+    LOGGER.info("Throughput of "+slow+" is too low, switching to "+next+" at offset "+offset+" for: "+getTask());
+    _policy.recordSwitch();
+    List<Source> toCancel=new ArrayList<Source>();
+    toCancel.add(slow);
+    cancelSources(toCancel);
+    startSource(next,offset);
+  }
+
+  private String selectNextSource()
+  {
+    Set<String> used=new HashSet<String>(_abandoned);
+    for(Source source : _sources)
+    {
+      // Dropped sources are being cancelled: their mirror may be used again
+      if (!source._dropped)
+      {
+        used.add(source._url);
+      }
+    }
+    for(String url : _policy.rank(_urls))
+    {
+      if (!used.contains(url))
+      {
+        return url;
+      }
+    }
+    return null;
+  }
+
+  private void recordThroughput(Source source)
+  {
+    long duration=System.currentTimeMillis()-source._start;
+    if ((source._bytes>0) && (duration>0))
+    {
+      _policy.recordThroughput(source._host,source._bytes*1000.0/duration);
+    }
+  }
+
+  private void finish(DownloadState state)
+  {
+    List<Source> toCancel;
+    ScheduledFuture<?> monitor;
+    synchronized(this)
+    {
+      if (_finished)
+      {
+        return;
+      }
+      _finished=true;
+      monitor=_monitor;
+      _monitor=null;
+      toCancel=new ArrayList<Source>(_sources);
+      for(Source source : toCancel)
+      {
+        source._dropped=true;
+      }
+    }
+    if (monitor!=null)
+    {
+      monitor.cancel(false);
+    }
+    cancelSources(toCancel);
+    DownloadTask task=getTask();
+    if ((state==DownloadState.OK) && (!verifyIntegrity()))
+    {
+      state=DownloadState.CHECKSUM_MISMATCH;
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Mirrored download terminated: "+task+" => "+state);
+    }
+    task.setDownloadState(state);
+    handleTermination();
+  }
+
+  private boolean verifyIntegrity()
+  {
+    IntegrityCheck check=getTask().getIntegrityCheck();
+    DigestingReceiver digesting=_digesting;
+    if ((check==null) || (digesting==null) || (digesting.verify(check)))
+    {
+      return true;
+    }
+    LOGGER.warn("Integrity check failed for: "+getTask()+": expected "+check+", got "+check.getAlgorithm()+"="+digesting.getValue(check.getAlgorithm()));
+    return false;
+  }
+
+  @Override
+  void terminateReception()
+  {
+    ByteBufferReceiver receiver;
+    // Wait for the bytes being given to the receiver: no more bytes are taken once finished
+    synchronized(_delivery)
+    {
+      receiver=_receiver;
+    }
+    if (receiver!=null)
+    {
+      terminateReceiver(receiver);
+    }
+  }
+
+  @Override
+  public void cancel()
+  {
+    finish(DownloadState.CANCELLED);
+  }
+
+  private class SourceConsumer extends AsyncByteConsumer<HttpResponse>
+  {
+    private Source _source;
+    private HttpResponse _response;
+    private InputGate _gate;
+
+    private SourceConsumer(Source source)
+    {
+      _source=source;
+      _gate=new InputGate();
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException
+    {
+      checkResponse(_source,response);
+      _response=response;
+    }
+
+    @Override
+    protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException
+    {
+      int count=buf.remaining();
+      boolean used=handleSourceBytes(_source,buf);
+      buf.position(buf.limit());
+      if (used)
+      {
+        throttle(count,_gate,ioctrl);
+      }
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) throws Exception
+    {
+      return _response;
+    }
+  }
+
+  private class SourceCallback implements FutureCallback<HttpResponse>
+  {
+    private Source _source;
+
+    private SourceCallback(Source source)
+    {
+      _source=source;
+    }
+
+    public void completed(HttpResponse response)
+    {
+      handleSourceEnd(_source,true,null);
+    }
+
+    public void failed(Exception ex)
+    {
+      handleSourceEnd(_source,false,ex);
+    }
+
+    public void cancelled()
+    {
+      handleSourceEnd(_source,false,null);
+    }
+  }
+
+  /**
+   * Request to a mirror.
+   * Fields are protected by the manager lock.
+   */
+  private static class Source
+  {
+    private String _url;
+    private String _host;
+    private long _offset;
+    private Long _length;
+    private volatile Future<HttpResponse> _future;
+    private boolean _dropped;
+    // Time of the first used byte
+    private long _start;
+    private long _bytes;
+    // Last throughput check
+    private long _checkTime;
+    private long _checkBytes;
+
+    private Source(String url, long offset)
+    {
+      _url=url;
+      _host=DownloadScheduler.getHost(url);
+      _offset=offset;
+    }
+
+    @Override
+    public String toString()
+    {
+      return _url+" from offset "+_offset;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package delta.downloads.async;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+
+/**
+ * Batch of downloads sent as pipelined requests on a single connection.
+ * <p>
+ * When a response closes the connection, the requests that follow it would never
+ * get their responses: the batch is aborted once this response is complete.
+ * @author DAM
+ */
+class PipelinedBatch
+{
+  private HttpHost _host;
+  private List<SingleAsyncDownloadManager> _downloads;
+  private volatile Future<?> _future;
+  private volatile boolean _closing;
+  private volatile boolean _aborted;
+  private AtomicInteger _completed;
+  private int _lastCompleted;
+
+  /**
+   * Constructor.
+   * @param host Target host.
+   * @param downloads Downloads of the batch.
+   */
+  PipelinedBatch(HttpHost host, List<SingleAsyncDownloadManager> downloads)
+  {
+    _host=host;
+    _downloads=downloads;
+    _completed=new AtomicInteger();
+    _lastCompleted=0;
+  }
+
+  /**
+   * Get the target host.
+   * @return a host.
+   */
+  HttpHost getHost()
+  {
+    return _host;
+  }
+
+  /**
+   * Get the downloads of this batch.
+   * @return a list of downloads.
+   */
+  List<SingleAsyncDownloadManager> getDownloads()
+  {
+    return _downloads;
+  }
+
+  /**
+   * Set the future of the batch execution.
+   * @param future Future to set.
+   */
+  void setFuture(Future<?> future)
+  {
+    _future=future;
+    if (_aborted)
+    {
+      future.cancel(true);
+    }
+  }
+
+  /**
+   * Indicates if the batch execution is terminated.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  boolean isDone()
+  {
+    Future<?> future=_future;
+    return ((future!=null) && (future.isDone()));
+  }
+
+  /**
+   * Handle the reception of a response of the batch.
+   * @param response Received response.
+   */
+  void handleResponse(HttpResponse response)
+  {
+    if (!isPersistent(response))
+    {
+      _closing=true;
+    }
+  }
+
+  /**
+   * Handle the completion of a response of the batch.
+   */
+  void handleCompletion()
+  {
+    _completed.incrementAndGet();
+    if (_closing)
+    {
+      abort();
+    }
+  }
+
+  /**
+   * Indicates if a response of this batch closed the connection.
+   * @return <code>true</code> if it did, <code>false</code> otherwise.
+   */
+  boolean isClosing()
+  {
+    return _closing;
+  }
+
+  /**
+   * Indicates if no response was completed since the previous call.
+   * @return <code>true</code> if it is stalled, <code>false</code> otherwise.
+   */
+  synchronized boolean isStalled()
+  {
+    int completed=_completed.get();
+    boolean stalled=(completed==_lastCompleted);
+    _lastCompleted=completed;
+    return stalled;
+  }
+
+  /**
+   * Abort the batch execution.
+   * Downloads that are not terminated fall back to the normal execution.
+   */
+  void abort()
+  {
+    _aborted=true;
+    Future<?> future=_future;
+    if (future!=null)
+    {
+      future.cancel(true);
+    }
+  }
+
+  private static boolean isPersistent(HttpResponse response)
+  {
+    if (response.getProtocolVersion().lessEquals(HttpVersion.HTTP_1_0))
+    {
+      return false;
+    }
+    for(Header header : response.getHeaders("Connection"))
+    {
+      if ("close".equalsIgnoreCase(header.getValue().trim()))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Pipelined batch of "+_downloads.size()+" downloads to "+_host;
+  }
+}
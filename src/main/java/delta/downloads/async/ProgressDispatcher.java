@@ -0,0 +1,232 @@
+package delta.downloads.async;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers download updates to listeners, out of the I/O threads.
+ * <p>
+ * Progress updates of a task are coalesced: they are delivered at most once per
+ * minimum interval, unless the progress advanced by more than a given step.
+ * State transitions are always delivered, in order. Listeners get a snapshot of the task,
+ * with the state and sizes of the update, not those of the delivery time.
+ * @author DAM
+ */
+public class ProgressDispatcher
+{
+  private static final Logger LOGGER=Logger.getLogger(ProgressDispatcher.class);
+
+  private ScheduledExecutorService _executor;
+  private boolean _ownExecutor;
+  private volatile long _minInterval;
+  private volatile int _progressStep;
+
+  /**
+   * Constructor.
+   * Events are delivered by a dedicated thread.
+   */
+  public ProgressDispatcher()
+  {
+    this(Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Download progress")));
+    _ownExecutor=true;
+  }
+
+  /**
+   * Constructor.
+   * @param executor Executor to use to deliver events (shall execute them in order).
+   */
+  public ProgressDispatcher(ScheduledExecutorService executor)
+  {
+    _executor=executor;
+    _ownExecutor=false;
+    _minInterval=200;
+    _progressStep=10;
+  }
+
+  /**
+   * Set the minimum interval between two progress updates of a task.
+   * @param minInterval Interval to set (milliseconds).
+   */
+  public void setMinInterval(long minInterval)
+  {
+    _minInterval=minInterval;
+  }
+
+  /**
+   * Set the progress step that triggers an update before the minimum interval.
+   * @param progressStep Step to set (percentage of the expected size).
+   */
+  public void setProgressStep(int progressStep)
+  {
+    _progressStep=progressStep;
+  }
+
+  /**
+   * Build a notifier for a task.
+   * @param task Task to notify.
+   * @param listener Listener to notify.
+   * @return A new notifier.
+   */
+  TaskNotifier buildNotifier(DownloadTask task, DownloadListener listener)
+  {
+    return new TaskNotifier(task,listener);
+  }
+
+  /**
+   * Release all managed resources.
+   */
+  public void dispose()
+  {
+    if (_ownExecutor)
+    {
+      _executor.shutdown();
+    }
+  }
+
+  /**
+   * Notifier for a single task.
+   */
+  class TaskNotifier
+  {
+    private DownloadTask _task;
+    private DownloadListener _listener;
+    private DownloadState _lastState;
+    // Number of state transitions, to drop progress updates enqueued before a transition
+    private long _transitions;
+    private long _lastDelivery;
+    private long _lastDoneSize;
+    // Snapshot of the scheduled progress update, if any
+    private DownloadTask _pending;
+    private boolean _terminated;
+
+    private TaskNotifier(DownloadTask task, DownloadListener listener)
+    {
+      _task=task;
+      _listener=listener;
+    }
+
+    /**
+     * Handle an update of the task.
+     */
+    synchronized void update()
+    {
+      DownloadState state=_task.getDownloadState();
+      if (state!=_lastState)
+      {
+        DownloadTask snapshot=_task.snapshot();
+        _lastState=snapshot.getDownloadState();
+        _terminated=isTerminal(_lastState);
+        _transitions++;
+        _pending=null;
+        submit(new Delivery(snapshot,false,_transitions),0);
+        return;
+      }
+      if (_pending!=null)
+      {
+        // Coalesced: the scheduled update gets the latest sizes
+        _pending.copyProgress(_task);
+        return;
+      }
+      if (_terminated)
+      {
+        return;
+      }
+      _pending=_task.snapshot();
+      _pending.setDownloadState(_lastState);
+      long delay=_lastDelivery+_minInterval-System.currentTimeMillis();
+      if (isStepReached())
+      {
+        delay=0;
+      }
+      submit(new Delivery(_pending,true,_transitions),delay);
+    }
+
+    private void submit(Delivery delivery, long delay)
+    {
+      try
+      {
+        if (delay>0)
+        {
+          _executor.schedule(delivery,delay,TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+          _executor.execute(delivery);
+        }
+      }
+      catch(RejectedExecutionException ree)
+      {
+        LOGGER.debug("Dispatcher is disposed, dropped update for: "+_task);
+      }
+    }
+
+    private boolean isStepReached()
+    {
+      Long expectedSize=_task.getExpectedSize();
+      if ((expectedSize==null) || (expectedSize.longValue()<=0))
+      {
+        return false;
+      }
+      long progress=_task.getDoneSize()-_lastDoneSize;
+      return (progress*100>=_progressStep*expectedSize.longValue());
+    }
+
+    private boolean isTerminal(DownloadState state)
+    {
+      return ((state==DownloadState.OK) || (state==DownloadState.FAILED) || (state==DownloadState.CHECKSUM_MISMATCH) || (state==DownloadState.CANCELLED));
+    }
+
+    private void deliver(Delivery delivery)
+    {
+      synchronized(this)
+      {
+        if (delivery._progress)
+        {
+          if (_pending==delivery._snapshot)
+          {
+            _pending=null;
+          }
+          if ((_terminated) || (delivery._transitions!=_transitions))
+          {
+            // A later transition was delivered
+            return;
+          }
+        }
+        _lastDelivery=System.currentTimeMillis();
+        _lastDoneSize=delivery._snapshot.getDoneSize();
+      }
+      try
+      {
+        _listener.downloadTaskUpdated(delivery._snapshot);
+      }
+      catch(Throwable t)
+      {
+        LOGGER.warn("Download listener failed for: "+_task,t);
+      }
+    }
+
+    private class Delivery implements Runnable
+    {
+      private DownloadTask _snapshot;
+      private boolean _progress;
+      private long _transitions;
+
+      private Delivery(DownloadTask snapshot, boolean progress, long transitions)
+      {
+        _snapshot=snapshot;
+        _progress=progress;
+        _transitions=transitions;
+      }
+
+      @Override
+      public void run()
+      {
+        deliver(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chain of receivers that processes the received bytes in a single pass.
+ * <p>
+ * A pipeline is made of stages (decompression, digests, custom transforms...),
+ * that end in one or several sinks. Each chunk of bytes goes through all the stages
+ * as it is received. Pipelines are built with a {@link Builder}:
+ * <pre>
+ * ReceiverPipeline pipeline=ReceiverPipeline.builder()
+ *   .decompress(InflatingReceiver.Format.GZIP)
+ *   .digest("SHA-256")
+ *   .tee(parser)
+ *   .build(new FileReceiver(file));
+ * </pre>
+ * Reading from the network is suspended while one of the sinks is full.
+ * @author DAM
+ */
+public class ReceiverPipeline implements ByteBufferReceiver,SizeHintReceiver,FlowControlledReceiver
+{
+  /**
+   * Pipeline stage.
+   */
+  public interface Stage
+  {
+    /**
+     * Build the receiver of this stage.
+     * @param next Receiver of the next stage.
+     * @return A receiver that gives its output to the next one.
+     */
+    BytesReceiver wrap(BytesReceiver next);
+  }
+
+  private BytesReceiver _head;
+  private ByteBufferReceiver _adaptedHead;
+  private List<BytesReceiver> _stages;
+  private List<BytesReceiver> _sinks;
+
+  private ReceiverPipeline(BytesReceiver head, List<BytesReceiver> stages, List<BytesReceiver> sinks)
+  {
+    _head=head;
+    _adaptedHead=BytesReceiverAdapter.adapt(head);
+    _stages=stages;
+    _sinks=sinks;
+  }
+
+  /**
+   * Get a new pipeline builder.
+   * @return a new builder.
+   */
+  public static Builder builder()
+  {
+    return new Builder();
+  }
+
+  /**
+   * Get the receivers of the stages, from the first one.
+   * @return a list of receivers.
+   */
+  public List<BytesReceiver> getStages()
+  {
+    return new ArrayList<BytesReceiver>(_stages);
+  }
+
+  /**
+   * Get the value of a digest computed by a digest stage.
+   * @param algorithm Digest algorithm.
+   * @return A lower-case hexadecimal string, or <code>null</code> if no stage computes it.
+   */
+  public String getDigestValue(String algorithm)
+  {
+    for(BytesReceiver stage : _stages)
+    {
+      if (stage instanceof DigestingReceiver)
+      {
+        try
+        {
+          return ((DigestingReceiver)stage).getValue(algorithm);
+        }
+        catch(IllegalArgumentException iae)
+        {
+          // Not computed by this stage
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean start()
+  {
+    return _head.start();
+  }
+
+  @Override
+  public void handleExpectedSize(long size)
+  {
+    // Stages that change the size (decompression) do not forward it
+    if (_head instanceof SizeHintReceiver)
+    {
+      ((SizeHintReceiver)_head).handleExpectedSize(size);
+    }
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return _adaptedHead.handleBytes(buffer,offset,count);
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    return _adaptedHead.handleBytes(buffer);
+  }
+
+  @Override
+  public boolean isFull()
+  {
+    return (getFullSink()!=null);
+  }
+
+  @Override
+  public boolean awaitDrain(Runnable callback)
+  {
+    FlowControlledReceiver full=getFullSink();
+    return ((full!=null) && (full.awaitDrain(callback)));
+  }
+
+  private FlowControlledReceiver getFullSink()
+  {
+    for(BytesReceiver sink : _sinks)
+    {
+      if ((sink instanceof FlowControlledReceiver) && (((FlowControlledReceiver)sink).isFull()))
+      {
+        return (FlowControlledReceiver)sink;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    return _head.terminate();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Pipeline: "+_head;
+  }
+
+  /**
+   * Builder for receiver pipelines.
+   * Stages are given in the order bytes go through them.
+   */
+  public static class Builder
+  {
+    private List<Stage> _stages;
+    private List<BytesReceiver> _sinks;
+
+    private Builder()
+    {
+      _stages=new ArrayList<Stage>();
+      _sinks=new ArrayList<BytesReceiver>();
+    }
+
+    /**
+     * Add a custom stage.
+     * @param stage Stage to add.
+     * @return this builder.
+     */
+    public Builder stage(Stage stage)
+    {
+      _stages.add(stage);
+      return this;
+    }
+
+    /**
+     * Add a decompression stage.
+     * @param format Compression format.
+     * @return this builder.
+     */
+    public Builder decompress(final InflatingReceiver.Format format)
+    {
+      return stage(new Stage()
+      {
+        @Override
+        public BytesReceiver wrap(BytesReceiver next)
+        {
+          return new InflatingReceiver(next,format);
+        }
+      });
+    }
+
+    /**
+     * Add a digest stage.
+     * @param algorithms Digest algorithms, see {@link DigestingReceiver}.
+     * @return this builder.
+     */
+    public Builder digest(final String... algorithms)
+    {
+      return stage(new Stage()
+      {
+        @Override
+        public BytesReceiver wrap(BytesReceiver next)
+        {
+          return new DigestingReceiver(next,algorithms);
+        }
+      });
+    }
+
+    /**
+     * Add a stage that also gives the bytes to other receivers (parsers, callbacks...).
+     * @param receivers Receivers to give bytes to.
+     * @return this builder.
+     */
+    public Builder tee(final BytesReceiver... receivers)
+    {
+      for(BytesReceiver receiver : receivers)
+      {
+        _sinks.add(receiver);
+      }
+      return stage(new Stage()
+      {
+        @Override
+        public BytesReceiver wrap(BytesReceiver next)
+        {
+          BytesReceiver[] all=new BytesReceiver[receivers.length+1];
+          System.arraycopy(receivers,0,all,0,receivers.length);
+          all[receivers.length]=next;
+          return new TeeReceiver(all);
+        }
+      });
+    }
+
+    /**
+     * Build the pipeline.
+     * @param sink Final receiver.
+     * @return A new pipeline.
+     */
+    public ReceiverPipeline build(BytesReceiver sink)
+    {
+      List<BytesReceiver> sinks=new ArrayList<BytesReceiver>(_sinks);
+      sinks.add(sink);
+      List<BytesReceiver> stages=new ArrayList<BytesReceiver>();
+      BytesReceiver head=sink;
+      for(int i=_stages.size()-1;i>=0;i--)
+      {
+        head=_stages.get(i).wrap(head);
+        stages.add(0,head);
+      }
+      return new ReceiverPipeline(head,stages,sinks);
+    }
+  }
+}
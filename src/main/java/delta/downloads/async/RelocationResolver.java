@@ -0,0 +1,292 @@
+package delta.downloads.async;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.log4j.Logger;
+
+import delta.downloads.RelocationCache;
+import delta.downloads.RelocationFinder;
+
+/**
+ * Resolves the relocations of batches of URLs.
+ * <p>
+ * The redirect chains of the URLs are followed with HEAD requests on the asynchronous client,
+ * with a bounded number of parallel requests for each batch. Resolved relocations are stored in
+ * a relocation cache, and cached relocations are used without any request. Chains that do not
+ * end with a successful response are not cached, and URLs that are not redirected are cached
+ * as temporary relocations.
+ * @author DAM
+ */
+public class RelocationResolver
+{
+  private static final Logger LOGGER=Logger.getLogger(RelocationResolver.class);
+
+  /**
+   * Default maximum number of parallel requests for a batch.
+   */
+  public static final int DEFAULT_MAX_REQUESTS=8;
+
+  private static final RequestConfig NO_REDIRECTS=RequestConfig.custom().setRedirectsEnabled(false).build();
+
+  private CloseableHttpAsyncClient _client;
+  private RelocationCache _cache;
+  private volatile int _maxRequests;
+
+  /**
+   * Constructor.
+   * @param client Underlying HTTP client.
+   * @param cache Cache of relocations.
+   */
+  public RelocationResolver(CloseableHttpAsyncClient client, RelocationCache cache)
+  {
+    _client=client;
+    _cache=cache;
+    _maxRequests=DEFAULT_MAX_REQUESTS;
+  }
+
+  /**
+   * Get the cache of relocations.
+   * @return the relocation cache.
+   */
+  public RelocationCache getCache()
+  {
+    return _cache;
+  }
+
+  /**
+   * Set the maximum number of parallel requests for a batch.
+   * @param maxRequests Maximum number of requests.
+   */
+  public void setMaxRequests(int maxRequests)
+  {
+    _maxRequests=Math.max(1,maxRequests);
+  }
+
+  /**
+   * Resolve the relocations of some URLs.
+   * @param urls URLs to resolve.
+   * @param callback Optional callback for the end of the batch.
+   * @return A future map of source URLs to their final location (the source URL if it is not
+   * redirected, <code>null</code> if it could not be resolved).
+   */
+  public Future<Map<String,String>> resolve(Collection<String> urls, FutureCallback<Map<String,String>> callback)
+  {
+    Batch batch=new Batch(urls,callback);
+    batch.start();
+    return batch._future;
+  }
+
+  /**
+   * Resolve the relocations of some URLs, and wait for the results.
+   * @param urls URLs to resolve.
+   * @return A map of source URLs to their final location (the source URL if it is not
+   * redirected, <code>null</code> if it could not be resolved).
+   */
+  public Map<String,String> syncResolve(Collection<String> urls)
+  {
+    try
+    {
+      return resolve(urls,null).get();
+    }
+    catch(InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch(ExecutionException ee)
+    {
+      LOGGER.warn("Relocation resolution failed",ee);
+    }
+    return new LinkedHashMap<String,String>();
+  }
+
+  /**
+   * Batch of URLs to resolve.
+   * Fields are protected by the batch lock.
+   */
+  private class Batch
+  {
+    private BasicFuture<Map<String,String>> _future;
+    private Map<String,String> _results;
+    private LinkedList<Chain> _queue;
+    private int _activeRequests;
+
+    private Batch(Collection<String> urls, FutureCallback<Map<String,String>> callback)
+    {
+      _future=new BasicFuture<Map<String,String>>(callback);
+      _results=new LinkedHashMap<String,String>();
+      _queue=new LinkedList<Chain>();
+      for(String url : urls)
+      {
+        if (_results.containsKey(url))
+        {
+          continue;
+        }
+        String location=_cache.lookup(url);
+        _results.put(url,location);
+        if (location==null)
+        {
+          _queue.add(new Chain(url));
+        }
+      }
+    }
+
+    private void start()
+    {
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Resolving "+_queue.size()+"/"+_results.size()+" relocations");
+      }
+      pump(null);
+    }
+
+    /**
+     * Start queued chains, and complete the batch when all chains are resolved.
+     * @param ended Chain that ended, if any.
+     */
+    private void pump(Chain ended)
+    {
+      List<Chain> toStart=new ArrayList<Chain>();
+      boolean done;
+      synchronized(this)
+      {
+        if (ended!=null)
+        {
+          _activeRequests--;
+          _results.put(ended._source,ended._location);
+        }
+        while ((_activeRequests<_maxRequests) && (!_queue.isEmpty()))
+        {
+          toStart.add(_queue.removeFirst());
+          _activeRequests++;
+        }
+        done=((_activeRequests==0) && (_queue.isEmpty()));
+      }
+      for(Chain chain : toStart)
+      {
+        request(chain);
+      }
+      if (done)
+      {
+        Map<String,String> results;
+        synchronized(this)
+        {
+          results=new LinkedHashMap<String,String>(_results);
+        }
+        _future.completed(results);
+      }
+    }
+
+    private void request(final Chain chain)
+    {
+      HttpHead head=new HttpHead(chain._current);
+      head.setConfig(NO_REDIRECTS);
+      FutureCallback<HttpResponse> callback=new FutureCallback<HttpResponse>()
+      {
+        public void completed(HttpResponse response)
+        {
+          handleResponse(chain,response);
+        }
+        public void failed(Exception ex)
+        {
+          LOGGER.info("Could not resolve relocation of: "+chain._current+": "+ex);
+          pump(chain);
+        }
+        public void cancelled()
+        {
+          pump(chain);
+        }
+      };
+      try
+      {
+        _client.execute(head,callback);
+      }
+      catch(Exception e)
+      {
+        LOGGER.warn("Could not resolve relocation of: "+chain._current,e);
+        pump(chain);
+      }
+    }
+
+    private void handleResponse(Chain chain, HttpResponse response)
+    {
+      int statusCode=response.getStatusLine().getStatusCode();
+      if (!RelocationFinder.isRedirect(statusCode))
+      {
+        chain.resolved(chain._current,RelocationFinder.isCacheable(statusCode));
+        pump(chain);
+        return;
+      }
+      String location=ResponseUtils.getHeader(response,"Location");
+      String next=RelocationFinder.resolveLocation(chain._current,location);
+      if ((next==null) || (!chain._visited.add(next)) || (chain._visited.size()>RelocationFinder.MAX_REDIRECTS+1))
+      {
+        LOGGER.warn("Bad redirect from "+chain._current+": "+location);
+        pump(chain);
+        return;
+      }
+      chain._permanent&=RelocationFinder.isPermanentRedirect(statusCode);
+      chain._current=next;
+      String cached=_cache.lookup(next);
+      if (cached!=null)
+      {
+        // The rest of the chain is known
+        chain._permanent=false;
+        chain.resolved(cached,true);
+        pump(chain);
+        return;
+      }
+      request(chain);
+    }
+  }
+
+  /**
+   * Redirect chain of a source URL.
+   */
+  private class Chain
+  {
+    private String _source;
+    private String _current;
+    private String _location;
+    private boolean _permanent;
+    private Set<String> _visited;
+
+    private Chain(String source)
+    {
+      _source=source;
+      _current=source;
+      _permanent=true;
+      _visited=new HashSet<String>();
+      _visited.add(source);
+    }
+
+    private void resolved(String location, boolean cacheable)
+    {
+      _location=location;
+      if (cacheable)
+      {
+        // A URL that is not redirected may be redirected later
+        boolean redirected=(_visited.size()>1);
+        _cache.put(_source,location,(_permanent) && (redirected));
+      }
+      if ((LOGGER.isDebugEnabled()) && (!location.equals(_source)))
+      {
+        LOGGER.debug("Relocation: "+_source+" => "+location);
+      }
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package delta.downloads.async;
+
+import java.util.Date;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Utility methods for HTTP responses.
+ * @author DAM
+ */
+public class ResponseUtils
+{
+  /**
+   * Get the value of a header.
+   * @param response Response to use.
+   * @param name Header name.
+   * @return A header value or <code>null</code> if not found.
+   */
+  public static String getHeader(HttpResponse response, String name)
+  {
+    Header header=response.getFirstHeader(name);
+    return (header!=null)?header.getValue():null;
+  }
+
+  /**
+   * Get the content length of a response.
+   * @param response Response to use.
+   * @return A length in bytes or <code>null</code> if not known.
+   */
+  public static Long getContentLength(HttpResponse response)
+  {
+    return parseLong(getHeader(response,"Content-Length"));
+  }
+
+  /**
+   * Get the delay asked by a <code>Retry-After</code> header.
+   * @param response Response to use.
+   * @return A delay in milliseconds or <code>null</code> if not found or not valid.
+   */
+  public static Long getRetryAfter(HttpResponse response)
+  {
+    String value=getHeader(response,"Retry-After");
+    if (value==null)
+    {
+      return null;
+    }
+    Long seconds=parseLong(value.trim());
+    if (seconds!=null)
+    {
+      return Long.valueOf(Math.max(seconds.longValue(),0)*1000);
+    }
+    Date date=DateUtils.parseDate(value);
+    if (date!=null)
+    {
+      return Long.valueOf(Math.max(date.getTime()-System.currentTimeMillis(),0));
+    }
+    return null;
+  }
+
+  /**
+   * Indicates if the server accepts byte range requests for the resource of a response.
+   * @param response Response to use.
+   * @return <code>true</code> if it does, <code>false</code> otherwise.
+   */
+  public static boolean acceptsRanges(HttpResponse response)
+  {
+    String acceptRanges=getHeader(response,"Accept-Ranges");
+    return ((acceptRanges!=null) && (acceptRanges.toLowerCase().contains("bytes")));
+  }
+
+  /**
+   * Get the content range of a partial response.
+   * @param response Response to use.
+   * @return An array with start offset (included), end offset (included) and total size
+   * (<code>-1</code> if unknown), or <code>null</code> if not found or not valid.
+   */
+  public static long[] getContentRange(HttpResponse response)
+  {
+    String value=getHeader(response,"Content-Range");
+    if ((value==null) || (!value.startsWith("bytes ")))
+    {
+      return null;
+    }
+    value=value.substring(6).trim();
+    int dash=value.indexOf('-');
+    int slash=value.indexOf('/');
+    if ((dash<=0) || (slash<dash))
+    {
+      return null;
+    }
+    Long start=parseLong(value.substring(0,dash));
+    Long end=parseLong(value.substring(dash+1,slash));
+    String totalStr=value.substring(slash+1).trim();
+    Long total="*".equals(totalStr)?Long.valueOf(-1):parseLong(totalStr);
+    if ((start==null) || (end==null) || (total==null))
+    {
+      return null;
+    }
+    return new long[] {start.longValue(),end.longValue(),total.longValue()};
+  }
+
+  /**
+   * Check the content range of a partial response.
+   * @param response Response to use.
+   * @param start Expected start offset (included).
+   * @param end Expected end offset (included), or <code>-1</code> to accept any.
+   * @param total Expected total size, or <code>-1</code> to accept any. An unknown total size is accepted.
+   * @return An array with start offset (included), end offset (included) and total size
+   * (<code>-1</code> if unknown).
+   * @throws HttpException If the content range is missing or does not match.
+   */
+  public static long[] checkContentRange(HttpResponse response, long start, long end, long total) throws HttpException
+  {
+    long[] contentRange=getContentRange(response);
+    if ((contentRange==null) || (contentRange[0]!=start) || ((end>=0) && (contentRange[1]!=end)) || ((total>=0) && (contentRange[2]>=0) && (contentRange[2]!=total)))
+    {
+      throw new HttpException("Unexpected content range: "+getHeader(response,"Content-Range"));
+    }
+    return contentRange;
+  }
+
+  /**
+   * Get the total size of the entity from the <code>Content-Range</code> header of a response.
+   * Both the satisfied (<code>bytes 0-9/100</code>) and the unsatisfied (<code>bytes *&#47;100</code>)
+   * forms are supported.
+   * @param response Response to use.
+   * @return A size in bytes, or <code>null</code> if missing or not known.
+   */
+  public static Long getContentRangeTotal(HttpResponse response)
+  {
+    String value=getHeader(response,"Content-Range");
+    if ((value==null) || (!value.startsWith("bytes ")))
+    {
+      return null;
+    }
+    int slash=value.indexOf('/');
+    if (slash<0)
+    {
+      return null;
+    }
+    return parseLong(value.substring(slash+1));
+  }
+
+  /**
+   * Parse a long value.
+   * @param value Value to parse.
+   * @return A long value or <code>null</code> if not valid.
+   */
+  public static Long parseLong(String value)
+  {
+    Long ret=null;
+    if (value!=null)
+    {
+      try
+      {
+        ret=Long.valueOf(value.trim());
+      }
+      catch(NumberFormatException nfe)
+      {
+        // Ignored
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,18 @@
+package delta.downloads.async;
+
+/**
+ * Interface of a bytes receiver that can resume an interrupted reception.
+ * @author DAM
+ */
+public interface ResumableReceiver extends BytesReceiver
+{
+  /**
+   * Start this receiver, keeping the bytes that were received before the given offset.
+   * Bytes received afterwards are appended after these bytes.
+   * If this receiver is already started, reception is restarted at the given offset.
+   * @param offset Offset to start from (bytes).
+   * @return the offset reception actually starts from (lower than the requested offset
+   * if less bytes are available), or <code>-1</code> if start failed.
+   */
+  long start(long offset);
+}
@@ -0,0 +1,177 @@
+package delta.downloads.async;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+
+/**
+ * Policy for the retries of failed downloads.
+ * <p>
+ * Only transient failures are retried: connection timeouts and resets,
+ * server errors (5xx) and throttling replies (429) with a <code>Retry-After</code> header.
+ * Retries are delayed using an exponential backoff with full jitter, so that
+ * many downloads that failed at once do not retry at once.
+ * <p>
+ * Retries are disabled by default: they are enabled by setting a maximum number of attempts
+ * greater than 1. Settings may be changed at any time.
+ * @author DAM
+ */
+public class RetryPolicy
+{
+  /**
+   * Status code for 'Too Many Requests'.
+   */
+  private static final int SC_TOO_MANY_REQUESTS=429;
+
+  private volatile int _maxAttempts;
+  private volatile long _baseDelay;
+  private volatile long _maxDelay;
+  private volatile long _maxRetryAfter;
+
+  /**
+   * Constructor.
+   */
+  public RetryPolicy()
+  {
+    _maxAttempts=1;
+    _baseDelay=1000;
+    _maxDelay=60000;
+    _maxRetryAfter=300000;
+  }
+
+  /**
+   * Get the maximum number of attempts for a download.
+   * @return a number of attempts.
+   */
+  public int getMaxAttempts()
+  {
+    return _maxAttempts;
+  }
+
+  /**
+   * Set the maximum number of attempts for a download.
+   * @param maxAttempts Number of attempts to set (<code>1</code> to disable retries).
+   */
+  public void setMaxAttempts(int maxAttempts)
+  {
+    _maxAttempts=maxAttempts;
+  }
+
+  /**
+   * Set the delay bounds.
+   * The maximum delay before retry n is <code>min(maxDelay,baseDelay*2^(n-1))</code>.
+   * @param baseDelay Base delay (milliseconds).
+   * @param maxDelay Maximum delay (milliseconds).
+   */
+  public void setDelays(long baseDelay, long maxDelay)
+  {
+    _baseDelay=baseDelay;
+    _maxDelay=maxDelay;
+  }
+
+  /**
+   * Set the longest <code>Retry-After</code> delay to wait for.
+   * Replies that ask for a longer delay are not retried.
+   * @param maxRetryAfter Delay to set (milliseconds).
+   */
+  public void setMaxRetryAfter(long maxRetryAfter)
+  {
+    _maxRetryAfter=maxRetryAfter;
+  }
+
+  /**
+   * Get the delay before retrying a download that got an unexpected response.
+   * @param response Received response.
+   * @param attempts Number of attempts done so far.
+   * @return A delay in milliseconds, or <code>-1</code> if it shall not be retried.
+   */
+  public long getRetryDelay(HttpResponse response, int attempts)
+  {
+    if (attempts>=_maxAttempts)
+    {
+      return -1;
+    }
+    int statusCode=response.getStatusLine().getStatusCode();
+    Long retryAfter=ResponseUtils.getRetryAfter(response);
+    if (statusCode==SC_TOO_MANY_REQUESTS)
+    {
+      if (retryAfter==null)
+      {
+        return -1;
+      }
+    }
+    else if ((statusCode<500) || (statusCode==HttpStatus.SC_NOT_IMPLEMENTED) || (statusCode==HttpStatus.SC_HTTP_VERSION_NOT_SUPPORTED))
+    {
+      return -1;
+    }
+    long delay=getBackoffDelay(attempts);
+    if (retryAfter!=null)
+    {
+      if (retryAfter.longValue()>_maxRetryAfter)
+      {
+        return -1;
+      }
+      delay=Math.max(delay,retryAfter.longValue());
+    }
+    return delay;
+  }
+
+  /**
+   * Get the delay before retrying a download that failed.
+   * @param failure Failure.
+   * @param attempts Number of attempts done so far.
+   * @return A delay in milliseconds, or <code>-1</code> if it shall not be retried.
+   */
+  public long getRetryDelay(Exception failure, int attempts)
+  {
+    if ((attempts>=_maxAttempts) || (!isRetryable(failure)))
+    {
+      return -1;
+    }
+    return getBackoffDelay(attempts);
+  }
+
+  /**
+   * Indicates if a failure is transient.
+   * @param failure Failure to test.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  public boolean isRetryable(Throwable failure)
+  {
+    Throwable t=failure;
+    while (t!=null)
+    {
+      if ((t instanceof ConnectTimeoutException) || (t instanceof SocketTimeoutException)
+          || (t instanceof ConnectException) || (t instanceof NoHttpResponseException)
+          || (t instanceof ConnectionClosedException) || (t instanceof SocketException))
+      {
+        return true;
+      }
+      t=t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Get a backoff delay.
+   * @param attempts Number of attempts done so far.
+   * @return A random delay between 0 and the maximum delay for the next attempt (milliseconds).
+   */
+  long getBackoffDelay(int attempts)
+  {
+    int shift=Math.min(Math.max(attempts-1,0),30);
+    long cap=Math.min(_maxDelay,_baseDelay<<shift);
+    if (cap<=0)
+    {
+      return 0;
+    }
+    return ThreadLocalRandom.current().nextLong(cap+1);
+  }
+}
@@ -0,0 +1,576 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+/**
+ * Manager for a segmented download.
+ * <p>
+ * The size of the file and the support of byte ranges are probed with a HEAD request.
+ * Then the file is split into byte ranges that are fetched on parallel connections
+ * and written at their offset in a preallocated file. Range requests are conditioned by the
+ * validator of the probe, and their content ranges are checked, so that a resource that changes
+ * during the download fails it instead of producing a corrupted file.
+ * When a connection has finished its range, it takes over the second half of the
+ * biggest remaining range, so that slow connections are relieved by faster ones.
+ * <p>
+ * If the server does not support byte ranges, or if the file is too small,
+ * a single stream download is done, using the receiver of the task.
+ * @author DAM
+ */
+public class SegmentedDownloadManager extends SingleAsyncDownloadManager
+{
+  private static final Logger LOGGER=Logger.getLogger(SegmentedDownloadManager.class);
+
+  /**
+   * Minimum size of a segment (bytes).
+   */
+  public static final long MIN_SEGMENT_SIZE=512*1024;
+
+  private File _to;
+  private int _maxSegments;
+  private Future<HttpResponse> _probe;
+  private boolean _streaming;
+  // Segmented mode
+  private boolean _segmented;
+  private long _length;
+  private String _ifRange;
+  private RandomAccessFile _file;
+  private FileChannel _channel;
+  private List<Segment> _segments;
+  private int _activeRequests;
+  private boolean _failed;
+  private boolean _cancelled;
+
+  /**
+   * Constructor.
+   * @param client Underlying HTTP client.
+   * @param task Download task.
+   * @param to Target file.
+   * @param maxSegments Maximum number of parallel segments.
+   */
+  public SegmentedDownloadManager(CloseableHttpAsyncClient client, DownloadTask task, File to, int maxSegments)
+  {
+    super(client,task);
+    _to=to;
+    _maxSegments=maxSegments;
+    _segments=new ArrayList<Segment>();
+  }
+
+  @Override
+  public boolean start()
+  {
+    initLatch();
+    synchronized(this)
+    {
+      _streaming=false;
+      _segmented=false;
+      _segments.clear();
+      _activeRequests=0;
+      _failed=false;
+      _cancelled=false;
+    }
+    DownloadTask task=getTask();
+    task.incrementAttempts();
+    task.setDownloadState(DownloadState.RUNNING);
+    invokeListener();
+    HttpHead head=new HttpHead(getRequestURL());
+    FutureCallback<HttpResponse> callback=new FutureCallback<HttpResponse>()
+    {
+      public void completed(HttpResponse response)
+      {
+        handleProbe(response);
+      }
+      public void failed(Exception ex)
+      {
+        LOGGER.info("Probe failed for: "+getTask().getURL(),ex);
+        handleProbe(null);
+      }
+      public void cancelled()
+      {
+        handleProbe(null);
+      }
+    };
+    Future<HttpResponse> probe=getClient().execute(head,callback);
+    synchronized(this)
+    {
+      _probe=probe;
+    }
+    return true;
+  }
+
+  private void handleProbe(HttpResponse response)
+  {
+    boolean cancelled;
+    synchronized(this)
+    {
+      _probe=null;
+      cancelled=_cancelled;
+    }
+    if (cancelled)
+    {
+      getTask().setDownloadState(DownloadState.CANCELLED);
+      handleTermination();
+      return;
+    }
+    Long length=null;
+    boolean acceptsRanges=false;
+    String ifRange=null;
+    if ((response!=null) && (response.getStatusLine().getStatusCode()==HttpStatus.SC_OK))
+    {
+      length=ResponseUtils.getContentLength(response);
+      acceptsRanges=ResponseUtils.acceptsRanges(response);
+      ifRange=getIfRangeValidator(response);
+    }
+    // Digests of checked downloads need the bytes in order: use a single stream
+    boolean checked=(getTask().getIntegrityCheck()!=null);
+    if ((acceptsRanges) && (!checked) && (length!=null) && (_maxSegments>1) && (length.longValue()>=2*MIN_SEGMENT_SIZE))
+    {
+      startSegments(length.longValue(),ifRange);
+    }
+    else
+    {
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Using a single stream for: "+getTask().getURL());
+      }
+      synchronized(this)
+      {
+        _streaming=true;
+      }
+      startRequest();
+    }
+  }
+
+  private void startSegments(long length, String ifRange)
+  {
+    DownloadTask task=getTask();
+    task.setExpectedSize(Long.valueOf(length));
+    task.setDoneSize(0);
+    try
+    {
+      RandomAccessFile file=new RandomAccessFile(_to,"rw");
+      synchronized(this)
+      {
+        _file=file;
+        _channel=file.getChannel();
+      }
+      file.setLength(length);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not allocate file: "+_to,ioe);
+      closeFile();
+      task.setDownloadState(DownloadState.FAILED);
+      handleTermination();
+      return;
+    }
+    int count=(int)Math.min(_maxSegments,length/MIN_SEGMENT_SIZE);
+    long segmentSize=length/count;
+    List<Segment> segments=new ArrayList<Segment>();
+    synchronized(this)
+    {
+      _segmented=true;
+      _length=length;
+      _ifRange=ifRange;
+      for(int i=0;i<count;i++)
+      {
+        long start=i*segmentSize;
+        long end=(i==count-1)?length:start+segmentSize;
+        Segment segment=new Segment(start,end);
+        _segments.add(segment);
+        segments.add(segment);
+      }
+      _activeRequests=count;
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Downloading "+length+" bytes in "+count+" segments from: "+task.getURL());
+    }
+    invokeListener();
+    for(Segment segment : segments)
+    {
+      startSegment(segment);
+    }
+  }
+
+  private void startSegment(Segment segment)
+  {
+    HttpGet get=new HttpGet(getRequestURL());
+    get.setHeader("Range","bytes="+segment._start+"-"+(segment._requestEnd-1));
+    String ifRange;
+    synchronized(this)
+    {
+      ifRange=_ifRange;
+    }
+    if (ifRange!=null)
+    {
+      get.setHeader("If-Range",ifRange);
+    }
+    SegmentConsumer consumer=new SegmentConsumer(segment);
+    SegmentCallback callback=new SegmentCallback(segment);
+    Future<HttpResponse> future=getClient().execute(HttpAsyncMethods.create(get),consumer,callback);
+    boolean cancel;
+    synchronized(this)
+    {
+      segment._future=future;
+      cancel=(_cancelled || _failed);
+    }
+    if (cancel)
+    {
+      future.cancel(true);
+    }
+  }
+
+  private void handleSegmentBytes(Segment segment, ByteBuffer buffer) throws IOException
+  {
+    int count;
+    boolean exhausted;
+    FileChannel channel;
+    synchronized(this)
+    {
+      if ((_cancelled) || (_failed))
+      {
+        throw new IOException("Segmented download aborted: "+getTask().getURL());
+      }
+      channel=_channel;
+    }
+    synchronized(segment)
+    {
+      long remaining=segment._end-segment._position;
+      count=(int)Math.max(0,Math.min(buffer.remaining(),remaining));
+      if (count>0)
+      {
+        ByteBuffer data=buffer.duplicate();
+        data.limit(data.position()+count);
+        long position=segment._position;
+        while (data.hasRemaining())
+        {
+          position+=channel.write(data,position);
+        }
+        segment._position+=count;
+      }
+      exhausted=(segment._position>=segment._end);
+    }
+    buffer.position(buffer.limit());
+    if (count>0)
+    {
+      DownloadTask task=getTask();
+      synchronized(this)
+      {
+        task.setDoneSize(task.getDoneSize()+count);
+      }
+      invokeListener();
+    }
+    if ((exhausted) && (segment._end<segment._requestEnd))
+    {
+      // The end of this segment was taken over by another one
+      Future<HttpResponse> future=segment._future;
+      if (future!=null)
+      {
+        future.cancel(true);
+      }
+    }
+  }
+
+  private void handleSegmentTermination(Segment segment)
+  {
+    Segment next=null;
+    boolean finished;
+    synchronized(this)
+    {
+      segment._terminated=true;
+      _activeRequests--;
+      if ((!segment.isComplete()) && (!_cancelled) && (!_failed))
+      {
+        LOGGER.warn("Segment failed: "+segment+" for: "+getTask());
+        _failed=true;
+        cancelSegments();
+      }
+      if ((!_failed) && (!_cancelled))
+      {
+        next=splitBiggestSegment();
+        if (next!=null)
+        {
+          _activeRequests++;
+        }
+      }
+      finished=(_activeRequests==0);
+    }
+    if (next!=null)
+    {
+      startSegment(next);
+    }
+    if (finished)
+    {
+      finish();
+    }
+  }
+
+  private Segment splitBiggestSegment()
+  {
+    Segment victim=null;
+    long biggest=0;
+    for(Segment segment : _segments)
+    {
+      if (!segment._terminated)
+      {
+        long remaining=segment.getRemaining();
+        if (remaining>biggest)
+        {
+          biggest=remaining;
+          victim=segment;
+        }
+      }
+    }
+    if ((victim==null) || (biggest<2*MIN_SEGMENT_SIZE))
+    {
+      return null;
+    }
+    Segment ret=null;
+    synchronized(victim)
+    {
+      long remaining=victim._end-victim._position;
+      if (remaining>=2*MIN_SEGMENT_SIZE)
+      {
+        long middle=victim._position+(remaining/2);
+        ret=new Segment(middle,victim._end);
+        victim._end=middle;
+      }
+    }
+    if (ret!=null)
+    {
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Split "+victim+" => new segment "+ret);
+      }
+      _segments.add(ret);
+    }
+    return ret;
+  }
+
+  private void cancelSegments()
+  {
+    for(Segment segment : _segments)
+    {
+      if ((!segment._terminated) && (segment._future!=null))
+      {
+        segment._future.cancel(true);
+      }
+    }
+  }
+
+  private void finish()
+  {
+    DownloadState state;
+    synchronized(this)
+    {
+      if (_cancelled)
+      {
+        state=DownloadState.CANCELLED;
+      }
+      else if (_failed)
+      {
+        state=DownloadState.FAILED;
+      }
+      else
+      {
+        state=DownloadState.OK;
+      }
+    }
+    getTask().setDownloadState(state);
+    handleTermination();
+  }
+
+  @Override
+  void terminateReception()
+  {
+    boolean segmented;
+    boolean streaming;
+    synchronized(this)
+    {
+      segmented=_segmented;
+      streaming=_streaming;
+    }
+    if (segmented)
+    {
+      closeFile();
+    }
+    else if (streaming)
+    {
+      super.terminateReception();
+    }
+  }
+
+  private void closeFile()
+  {
+    // Segment consumers may still run: they get a closed channel, never a null one
+    RandomAccessFile file;
+    synchronized(this)
+    {
+      file=_file;
+      _file=null;
+    }
+    try
+    {
+      if (file!=null)
+      {
+        file.close();
+      }
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not close file: "+_to,ioe);
+    }
+  }
+
+  @Override
+  public void cancel()
+  {
+    boolean streaming;
+    synchronized(this)
+    {
+      _cancelled=true;
+      streaming=_streaming;
+      if (_probe!=null)
+      {
+        _probe.cancel(true);
+      }
+      if (_segmented)
+      {
+        cancelSegments();
+      }
+    }
+    if (streaming)
+    {
+      super.cancel();
+    }
+  }
+
+  private class SegmentConsumer extends AsyncByteConsumer<HttpResponse>
+  {
+    private Segment _segment;
+    private HttpResponse _response;
+    private InputGate _gate;
+
+    private SegmentConsumer(Segment segment)
+    {
+      _segment=segment;
+      _gate=new InputGate();
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws HttpException, IOException
+    {
+      int statusCode=response.getStatusLine().getStatusCode();
+      if (statusCode!=HttpStatus.SC_PARTIAL_CONTENT)
+      {
+        throw new HttpException("Byte range not honoured for segment "+_segment+": "+response.getStatusLine());
+      }
+      long length;
+      synchronized(SegmentedDownloadManager.this)
+      {
+        length=_length;
+      }
+      ResponseUtils.checkContentRange(response,_segment._start,_segment._requestEnd-1,length);
+      _response=response;
+    }
+
+    @Override
+    protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException
+    {
+      int count=buf.remaining();
+      handleSegmentBytes(_segment,buf);
+      throttle(count,_gate,ioctrl);
+    }
+
+    @Override
+    protected HttpResponse buildResult(HttpContext context) throws Exception
+    {
+      return _response;
+    }
+  }
+
+  private class SegmentCallback implements FutureCallback<HttpResponse>
+  {
+    private Segment _segment;
+
+    private SegmentCallback(Segment segment)
+    {
+      _segment=segment;
+    }
+
+    public void completed(HttpResponse response)
+    {
+      handleSegmentTermination(_segment);
+    }
+
+    public void failed(Exception ex)
+    {
+      LOGGER.info("Segment request failed: "+_segment,ex);
+      handleSegmentTermination(_segment);
+    }
+
+    public void cancelled()
+    {
+      handleSegmentTermination(_segment);
+    }
+  }
+
+  /**
+   * Byte range of the target file.
+   * Position and end are protected by the segment lock.
+   */
+  private static class Segment
+  {
+    private long _start;
+    private long _position;
+    private long _end;
+    private long _requestEnd;
+    private volatile Future<HttpResponse> _future;
+    private boolean _terminated;
+
+    private Segment(long start, long end)
+    {
+      _start=start;
+      _position=start;
+      _end=end;
+      _requestEnd=end;
+    }
+
+    private synchronized long getRemaining()
+    {
+      return _end-_position;
+    }
+
+    private synchronized boolean isComplete()
+    {
+      return _position>=_end;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+      return "["+_start+","+_end+"[ at "+_position;
+    }
+  }
+}
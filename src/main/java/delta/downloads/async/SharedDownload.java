@@ -0,0 +1,246 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A transfer shared by identical downloads.
+ * <p>
+ * The leader download does the transfer. Followers are not started: when the
+ * leader terminates, its result (buffer or file) is replayed into their receivers.
+ * If the leader is cancelled while followers wait, its transfer goes on for them:
+ * the leader is cancelled when the transfer terminates. The transfer is cancelled
+ * when all the downloads that share it are cancelled.
+ * @author DAM
+ */
+class SharedDownload
+{
+  private static final Logger LOGGER=Logger.getLogger(SharedDownload.class);
+
+  private static final int CHUNK_SIZE=64*1024;
+
+  private SingleAsyncDownloadManager _leader;
+  private List<SingleAsyncDownloadManager> _followers;
+  private boolean _leaderCancelled;
+  private DownloadListener _leaderListener;
+
+  /**
+   * Constructor.
+   * @param leader Leader download.
+   */
+  SharedDownload(SingleAsyncDownloadManager leader)
+  {
+    _leader=leader;
+    _followers=new ArrayList<SingleAsyncDownloadManager>();
+  }
+
+  /**
+   * Indicates if a download can share its transfer with identical downloads.
+   * Its result must be a buffer or a file, and it must not be journaled.
+   * @param task Task to test.
+   * @return <code>true</code> if it can, <code>false</code> otherwise.
+   */
+  static boolean isShareable(DownloadTask task)
+  {
+    BytesReceiver receiver=task.getReceiver();
+    return ((task.getJournal()==null) && (task.getIntegrityCheck()==null) && ((receiver instanceof BufferReceiver) || (receiver instanceof FileReceiver)));
+  }
+
+  /**
+   * Get the leader download.
+   * @return the leader download.
+   */
+  SingleAsyncDownloadManager getLeader()
+  {
+    return _leader;
+  }
+
+  /**
+   * Add a follower.
+   * @param follower Follower to add.
+   */
+  void addFollower(SingleAsyncDownloadManager follower)
+  {
+    _followers.add(follower);
+  }
+
+  /**
+   * Remove a follower.
+   * @param follower Follower to remove.
+   * @return <code>true</code> if it was removed, <code>false</code> if it is not a follower.
+   */
+  boolean removeFollower(SingleAsyncDownloadManager follower)
+  {
+    return _followers.remove(follower);
+  }
+
+  /**
+   * Get the followers.
+   * @return a list of followers.
+   */
+  List<SingleAsyncDownloadManager> getFollowers()
+  {
+    return new ArrayList<SingleAsyncDownloadManager>(_followers);
+  }
+
+  /**
+   * Indicates if there are followers.
+   * @return <code>true</code> if there are, <code>false</code> otherwise.
+   */
+  boolean hasFollowers()
+  {
+    return !_followers.isEmpty();
+  }
+
+  /**
+   * Mark the leader as cancelled, while its transfer goes on for the followers.
+   * @param listener Listener of the leader, to notify when it is cancelled.
+   */
+  void cancelLeader(DownloadListener listener)
+  {
+    _leaderCancelled=true;
+    _leaderListener=listener;
+  }
+
+  /**
+   * Indicates if the leader was cancelled.
+   * @return <code>true</code> if it was, <code>false</code> otherwise.
+   */
+  boolean isLeaderCancelled()
+  {
+    return _leaderCancelled;
+  }
+
+  /**
+   * Get the listener of a cancelled leader.
+   * @return a listener or <code>null</code>.
+   */
+  DownloadListener getLeaderListener()
+  {
+    return _leaderListener;
+  }
+
+  /**
+   * Build the replay of the result of a terminated leader to some followers.
+   * The result is fetched by the replay job, since it may copy the received bytes.
+   * @param leader Terminated leader.
+   * @param followers Followers to update.
+   * @return A job that terminates the followers.
+   */
+  static Runnable buildReplay(SingleAsyncDownloadManager leader, final List<SingleAsyncDownloadManager> followers)
+  {
+    DownloadTask leaderTask=leader.getTask();
+    final DownloadState state=leaderTask.getDownloadState();
+    final Long expectedSize=leaderTask.getExpectedSize();
+    final BytesReceiver receiver=leaderTask.getReceiver();
+    Runnable replay=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        byte[] sourceBytes=null;
+        File sourceFile=null;
+        if (state==DownloadState.OK)
+        {
+          if (receiver instanceof BufferReceiver)
+          {
+            sourceBytes=((BufferReceiver)receiver).getBytes();
+          }
+          else
+          {
+            sourceFile=((FileReceiver)receiver).getFile();
+          }
+        }
+        for(SingleAsyncDownloadManager follower : followers)
+        {
+          DownloadState followerState=state;
+          DownloadTask task=follower.getTask();
+          task.setExpectedSize(expectedSize);
+          if (state==DownloadState.OK)
+          {
+            long size=replay(task.getReceiver(),sourceBytes,sourceFile);
+            if (size>=0)
+            {
+              task.setDoneSize(size);
+            }
+            else
+            {
+              followerState=DownloadState.FAILED;
+            }
+          }
+          follower.terminateAttached(followerState);
+        }
+      }
+    };
+    return replay;
+  }
+
+  /**
+   * Give a result to a receiver.
+   * @param receiver Receiver to use.
+   * @param bytes Result bytes, or <code>null</code> to use a file.
+   * @param file Result file (used if there are no result bytes).
+   * @return the number of given bytes, or <code>-1</code> if it failed.
+   */
+  static long replay(BytesReceiver receiver, byte[] bytes, File file)
+  {
+    if ((file!=null) && (receiver instanceof FileReceiver))
+    {
+      if (file.getAbsoluteFile().equals(((FileReceiver)receiver).getFile().getAbsoluteFile()))
+      {
+        // Same file: nothing to do
+        return file.length();
+      }
+    }
+    if (!receiver.start())
+    {
+      return -1;
+    }
+    ByteBufferReceiver target=BytesReceiverAdapter.adapt(receiver);
+    boolean ok;
+    long size=0;
+    if (bytes!=null)
+    {
+      if (receiver instanceof SizeHintReceiver)
+      {
+        ((SizeHintReceiver)receiver).handleExpectedSize(bytes.length);
+      }
+      ok=target.handleBytes(ByteBuffer.wrap(bytes));
+      size=bytes.length;
+    }
+    else
+    {
+      ok=false;
+      try (FileChannel channel=FileChannel.open(file.toPath(),StandardOpenOption.READ))
+      {
+        if (receiver instanceof SizeHintReceiver)
+        {
+          ((SizeHintReceiver)receiver).handleExpectedSize(channel.size());
+        }
+        ByteBuffer buffer=ByteBuffer.allocate(CHUNK_SIZE);
+        ok=true;
+        while ((ok) && (channel.read(buffer)>=0))
+        {
+          buffer.flip();
+          size+=buffer.remaining();
+          ok=target.handleBytes(buffer);
+          buffer.clear();
+        }
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Could not read shared download: "+file,ioe);
+        ok=false;
+      }
+    }
+    ok&=receiver.terminate();
+    return ok?size:-1;
+  }
+}
@@ -2,10 +2,14 @@ package delta.downloads.async;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.Header;
 import org.apache.http.HttpException;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
@@ -20,7 +24,9 @@ import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
-import delta.common.utils.NumericTools;
+import delta.downloads.RelocationCache;
+import delta.downloads.cache.CacheEntry;
+import delta.downloads.cache.HttpCache;
 
 /**
  * Manager for a single download.
@@ -30,11 +36,54 @@ public class SingleAsyncDownloadManager
 {
   private static final Logger LOGGER=Logger.getLogger(SingleAsyncDownloadManager.class);
 
+  /**
+   * Number of bytes between two saves of the download journal.
+   */
+  private static final long CHECKPOINT_SIZE=1024*1024;
+
   private CloseableHttpAsyncClient _client;
   private DownloadTask _task;
   private DownloadListener _listener;
-  private CountDownLatch _latch;
-  
+  private ProgressDispatcher _dispatcher;
+  private ProgressDispatcher.TaskNotifier _notifier;
+  private String _host;
+  private BandwidthLimiter _limiter;
+  private ScheduledExecutorService _timer;
+  private ExecutorService _executor;
+  private RetryPolicy _retryPolicy;
+  private HttpCache _cache;
+  private CacheEntry _cacheEntry;
+  private RelocationCache _relocations;
+  private DownloadTerminationListener _terminationListener;
+  private volatile CountDownLatch _latch;
+  private volatile CompletableFuture<DownloadTask> _completion;
+  private volatile CountDownLatch _responseLatch;
+  private volatile CountDownLatch _terminationLatch;
+  // Time of the request start, and delay until its response (-1 if not known)
+  private long _requestStart;
+  private volatile long _responseDelay;
+  private volatile boolean _attached;
+  private volatile boolean _cancelRequested;
+  // Pipelined batch that carries the current request, if any
+  private volatile PipelinedBatch _batch;
+  private boolean _compression;
+  private ByteBufferReceiver _receiver;
+  // Decoder of the current response, if its content is encoded
+  private InflatingReceiver _inflating;
+  // Digester of the received entity, if it is checked
+  private DigestingReceiver _digesting;
+  private volatile boolean _integrityFailure;
+  // Offset requested for the current response
+  private long _startOffset;
+  // Done size at the last journal save
+  private long _checkpoint;
+  // Generation of the journal state, to drop journal saves that became stale
+  private volatile int _journalGeneration;
+  // Validator of the received entity, used to resume reception
+  private String _validator;
+  // Offset to resume from, for the next attempt
+  private long _resumeOffset;
+
   /**
    * Constructor.
    * @param client Underlying HTTP client.
@@ -44,6 +93,35 @@ public class SingleAsyncDownloadManager
   {
     _client=client;
     _task=task;
+    _host=DownloadScheduler.getHost(task.getURL());
+    _completion=new CompletableFuture<DownloadTask>();
+  }
+
+  /**
+   * Get the underlying HTTP client.
+   * @return the underlying HTTP client.
+   */
+  CloseableHttpAsyncClient getClient()
+  {
+    return _client;
+  }
+
+  /**
+   * Get the managed task.
+   * @return the managed task.
+   */
+  public DownloadTask getTask()
+  {
+    return _task;
+  }
+
+  /**
+   * Get the listener.
+   * @return a listener or <code>null</code>.
+   */
+  DownloadListener getListener()
+  {
+    return _listener;
   }
 
   /**
@@ -53,6 +131,196 @@ public class SingleAsyncDownloadManager
   public void setListener(DownloadListener listener)
   {
     _listener=listener;
+    updateNotifier();
+  }
+
+  /**
+   * Set the dispatcher to use to deliver updates to the listener.
+   * If none, the listener is invoked by the thread that updates the task.
+   * @param dispatcher Dispatcher to use.
+   */
+  void setProgressDispatcher(ProgressDispatcher dispatcher)
+  {
+    _dispatcher=dispatcher;
+    updateNotifier();
+  }
+
+  /**
+   * Set the bandwidth limiter to use.
+   * @param limiter Limiter to use.
+   * @param timer Timer used to resume throttled downloads.
+   */
+  void setBandwidthLimiter(BandwidthLimiter limiter, ScheduledExecutorService timer)
+  {
+    _limiter=limiter;
+    _timer=timer;
+  }
+
+  /**
+   * Set the executor used for blocking work, out of the I/O reactor threads.
+   * @param executor Executor to use (<code>null</code> to run such work in the calling thread).
+   */
+  void setExecutor(ExecutorService executor)
+  {
+    _executor=executor;
+  }
+
+  /**
+   * Run some blocking work (disk I/O...) out of the I/O reactor threads, so that it
+   * does not stall the other connections of the reactor.
+   * @param work Work to run.
+   */
+  void runOffReactor(Runnable work)
+  {
+    ExecutorService executor=_executor;
+    if (executor!=null)
+    {
+      try
+      {
+        executor.execute(work);
+        return;
+      }
+      catch(RejectedExecutionException ree)
+      {
+        // Shut down: run it here
+      }
+    }
+    work.run();
+  }
+
+  /**
+   * Get the timer used by this download.
+   * @return a timer or <code>null</code> if not set.
+   */
+  ScheduledExecutorService getTimer()
+  {
+    return _timer;
+  }
+
+  /**
+   * Set the policy for retries of failed attempts.
+   * Retries are scheduled by the termination listener.
+   * @param retryPolicy Policy to use (<code>null</code> for no retries).
+   */
+  void setRetryPolicy(RetryPolicy retryPolicy)
+  {
+    _retryPolicy=retryPolicy;
+  }
+
+  /**
+   * Set the cache to use.
+   * @param cache Cache to store the response to.
+   * @param cacheEntry Stale cache entry to revalidate (may be <code>null</code>).
+   */
+  void setCache(HttpCache cache, CacheEntry cacheEntry)
+  {
+    _cache=cache;
+    _cacheEntry=cacheEntry;
+  }
+
+  /**
+   * Set the cache of relocations to use.
+   * Requests go straight to the cached final location of their URL.
+   * @param relocations Relocations to use (may be <code>null</code>).
+   */
+  void setRelocationCache(RelocationCache relocations)
+  {
+    _relocations=relocations;
+  }
+
+  /**
+   * Get the URL to request for the task URL.
+   * @return the cached final location of the task URL, or the task URL.
+   */
+  String getRequestURL()
+  {
+    return getRequestURL(_task.getURL());
+  }
+
+  /**
+   * Get the URL to request for a URL.
+   * @param url URL to use.
+   * @return the cached final location of the given URL, or the given URL.
+   */
+  String getRequestURL(String url)
+  {
+    RelocationCache relocations=_relocations;
+    String location=(relocations!=null)?relocations.lookup(url):null;
+    return (location!=null)?location:url;
+  }
+
+  /**
+   * Enable or disable the negotiation of compressed content.
+   * When enabled, requests that do not resume a download accept <code>gzip</code> and
+   * <code>deflate</code> encoded content, that is decoded before it reaches the receiver.
+   * @param compression <code>true</code> to enable, <code>false</code> to disable.
+   */
+  void setContentCompression(boolean compression)
+  {
+    _compression=compression;
+  }
+
+  private void updateNotifier()
+  {
+    if ((_dispatcher!=null) && (_listener!=null))
+    {
+      _notifier=_dispatcher.buildNotifier(_task,_listener);
+    }
+    else
+    {
+      _notifier=null;
+    }
+  }
+
+  /**
+   * Set the termination listener.
+   * @param terminationListener Listener to use.
+   */
+  void setTerminationListener(DownloadTerminationListener terminationListener)
+  {
+    _terminationListener=terminationListener;
+  }
+
+  /**
+   * Mark this download as waiting for a download slot.
+   */
+  void markQueued()
+  {
+    _attached=false;
+    initLatch();
+    _task.setDownloadState(DownloadState.QUEUED);
+    invokeListener();
+  }
+
+  /**
+   * Mark this download as attached to an identical download, that does the transfer,
+   * or to a cached response.
+   */
+  void markAttached()
+  {
+    _attached=true;
+    initLatch();
+    _task.setDownloadState(DownloadState.RUNNING);
+    invokeListener();
+  }
+
+  /**
+   * Indicates if this download is attached to an identical download.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  boolean isAttached()
+  {
+    return _attached;
+  }
+
+  /**
+   * Terminate an attached download.
+   * @param state Final state.
+   */
+  void terminateAttached(DownloadState state)
+  {
+    _task.setDownloadState(state);
+    notifyTermination();
   }
 
   /**
@@ -61,18 +329,23 @@ public class SingleAsyncDownloadManager
    */
   public boolean start()
   {
-    BytesReceiver receiver=_task.getReceiver();
-    boolean ok=receiver.start();
-    if (!ok)
+    _task.incrementAttempts();
+    return startRequest();
+  }
+
+  /**
+   * Start the download request of an attempt.
+   * @return <code>true</code> if start was successfull, <code>false</code> otherwise.
+   */
+  boolean startRequest()
+  {
+    HttpGet get=prepareRequest();
+    if (get==null)
     {
-      _task.setDownloadState(DownloadState.FAILED);
       return false;
     }
-    String url=_task.getURL();
-    final HttpGet get=new HttpGet(url);
     HttpAsyncRequestProducer producer=HttpAsyncMethods.create(get);
-    AsyncByteConsumer<HttpResponse> consumer=buildConsumer();
-    _latch=new CountDownLatch(1);
+    AsyncByteConsumer<HttpResponse> consumer=buildConsumer(false);
     FutureCallback<HttpResponse> callback=buildCallback();
     _task.setDownloadState(DownloadState.RUNNING);
     Future<HttpResponse> future=_client.execute(producer,consumer,callback);
@@ -80,47 +353,415 @@ public class SingleAsyncDownloadManager
     return true;
   }
 
-  private AsyncByteConsumer<HttpResponse> buildConsumer()
+  /**
+   * Prepare the request of an attempt: start the receiver and build the request.
+   * @return A request, or <code>null</code> if the receiver could not be started.
+   */
+  HttpGet prepareRequest()
+  {
+    _cancelRequested=false;
+    _batch=null;
+    initLatch();
+    long offset=startReceiver();
+    if (offset<0)
+    {
+      _task.setDownloadState(DownloadState.FAILED);
+      notifyTermination();
+      return null;
+    }
+    _startOffset=offset;
+    _checkpoint=offset;
+    _task.setDoneSize(offset);
+    _task.setDecodedSize(offset);
+    _requestStart=System.currentTimeMillis();
+    String url=getRequestURL();
+    final HttpGet get=new HttpGet(url);
+    if (offset>0)
+    {
+      get.setHeader("Range","bytes="+offset+"-");
+      get.setHeader("If-Range",_validator);
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Resuming download at offset "+offset+": "+_task);
+      }
+    }
+    else
+    {
+      if (_cacheEntry!=null)
+      {
+        HttpCache.addValidators(get,_cacheEntry);
+      }
+      // Journal ranges are entity offsets: journaled downloads get the identity encoding
+      if ((_compression) && (_task.getJournal()==null))
+      {
+        get.setHeader("Accept-Encoding","gzip, deflate");
+      }
+    }
+    return get;
+  }
+
+  /**
+   * Build the response consumer of a request that is sent in a pipelined batch.
+   * The download is terminated as soon as its response is complete.
+   * @return A response consumer.
+   */
+  AsyncByteConsumer<HttpResponse> buildPipelinedConsumer()
+  {
+    return buildConsumer(true);
+  }
+
+  /**
+   * Set the pipelined batch that carries the current request.
+   * @param batch Batch to set.
+   */
+  void setBatch(PipelinedBatch batch)
+  {
+    _batch=batch;
+  }
+
+  /**
+   * Indicates if the cancellation of this download was requested during the current attempt.
+   * @return <code>true</code> if it was, <code>false</code> otherwise.
+   */
+  boolean isCancelRequested()
+  {
+    return _cancelRequested;
+  }
+
+  /**
+   * Initialize the latch used to wait for the termination of this download,
+   * if not already done.
+   */
+  void initLatch()
+  {
+    if ((_latch==null) || (_latch.getCount()==0))
+    {
+      _latch=new CountDownLatch(1);
+      if (_completion.isDone())
+      {
+        // Restarted: the new run has its own future
+        _completion=new CompletableFuture<DownloadTask>();
+      }
+      _responseLatch=new CountDownLatch(1);
+      _responseDelay=-1;
+    }
+  }
+
+  /**
+   * Indicates if this download was started (queued, attached or running) at least once.
+   * @return <code>true</code> if it was, <code>false</code> otherwise.
+   */
+  boolean isStarted()
+  {
+    return (_latch!=null);
+  }
+
+  /**
+   * Get the future that is completed when this download terminates.
+   * It is completed with the task, whatever its final state, by the thread that terminates
+   * the download (often an I/O thread): dependent actions shall be short or asynchronous.
+   * It is built with this download, and replaced when this download is restarted after its termination.
+   * @return A future.
+   */
+  CompletableFuture<DownloadTask> getCompletion()
+  {
+    return _completion;
+  }
+
+  private void complete()
+  {
+    _completion.complete(_task);
+  }
+
+  /**
+   * Set an additional latch to count down when this download terminates.
+   * @param latch Latch to use.
+   */
+  void setTerminationLatch(CountDownLatch latch)
+  {
+    _terminationLatch=latch;
+    CountDownLatch ownLatch=_latch;
+    if ((ownLatch!=null) && (ownLatch.getCount()==0))
+    {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * Wait until this download gets a response or terminates.
+   * @param timeout Maximum time to wait (milliseconds).
+   * @return <code>true</code> if it got a response or terminated, <code>false</code> otherwise.
+   */
+  boolean awaitResponse(long timeout)
+  {
+    CountDownLatch latch=_responseLatch;
+    if (latch==null)
+    {
+      return false;
+    }
+    try
+    {
+      return latch.await(timeout,TimeUnit.MILLISECONDS);
+    }
+    catch(InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Get the delay between the start of the request and the reception of its response.
+   * @return A delay in milliseconds, or <code>-1</code> if no response was received.
+   */
+  long getResponseDelay()
+  {
+    return _responseDelay;
+  }
+
+  private void markResponseReceived()
+  {
+    if (_responseDelay<0)
+    {
+      _responseDelay=System.currentTimeMillis()-_requestStart;
+    }
+    CountDownLatch latch=_responseLatch;
+    if (latch!=null)
+    {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * Start the receiver of the task.
+   * Resumable receivers are started at the offset found in the task journal, if any,
+   * or where the previous attempt stopped.
+   * @return the offset to start from, or <code>-1</code> if start failed.
+   */
+  private long startReceiver()
+  {
+    BytesReceiver receiver=_task.getReceiver();
+    endDecoding();
+    _integrityFailure=false;
+    IntegrityCheck check=_task.getIntegrityCheck();
+    if (check!=null)
+    {
+      // Digests need the whole entity: always start from the beginning
+      _validator=null;
+      _digesting=new DigestingReceiver(receiver,check.getAlgorithm());
+      if (check.getSize()!=null)
+      {
+        _digesting.setMaxSize(check.getSize().longValue());
+      }
+      _receiver=_digesting;
+      return _digesting.start()?0:-1;
+    }
+    _digesting=null;
+    _receiver=BytesReceiverAdapter.adapt(receiver);
+    if (receiver instanceof ResumableReceiver)
+    {
+      long offset=0;
+      DownloadJournal journal=_task.getJournal();
+      if (journal!=null)
+      {
+        _validator=journal.getIfRangeValidator();
+        if (_validator!=null)
+        {
+          offset=journal.getContiguousSize();
+        }
+      }
+      else if (_validator!=null)
+      {
+        offset=_resumeOffset;
+      }
+      long ret=((ResumableReceiver)receiver).start(offset);
+      if ((ret>=0) && (journal!=null))
+      {
+        journal.truncate(ret);
+      }
+      return ret;
+    }
+    return receiver.start()?0:-1;
+  }
+
+  private AsyncByteConsumer<HttpResponse> buildConsumer(final boolean completes)
   {
     AsyncByteConsumer<HttpResponse> consumer=new AsyncByteConsumer<HttpResponse>()
     {
       private HttpResponse responseStorage;
+      private boolean accepting;
+      private InputGate gate=new InputGate();
 
       @Override
       protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException
       {
-        handleBytesReceived(buf);
+        int count=buf.remaining();
+        if (this.accepting)
+        {
+          handleBytesReceived(buf);
+          applyBackPressure(this.gate,ioctrl);
+        }
+        throttle(count,this.gate,ioctrl);
       }
 
       @Override
       protected HttpResponse buildResult(HttpContext context) throws Exception
       {
+        if (completes)
+        {
+          handleCompletion(this.responseStorage);
+          PipelinedBatch batch=_batch;
+          if (batch!=null)
+          {
+            batch.handleCompletion();
+          }
+        }
         return this.responseStorage;
       }
 
-      @Override
-      protected void onResponseReceived(HttpResponse response) throws HttpException, IOException
-      {
-        if (LOGGER.isDebugEnabled())
-        {
-          LOGGER.debug("Received response: "+response);
-        }
-        this.responseStorage=response;
-        Header[] headers=response.getHeaders("Content-Length");
-        if ((headers!=null)&&(headers.length>0))
-        {
-          String valueStr=headers[0].getValue();
-          Integer expectedLength=NumericTools.parseInteger(valueStr);
-          if (LOGGER.isDebugEnabled())
-          {
-            LOGGER.debug("Expected length: "+expectedLength);
-          }
-          _task.setExpectedSize(expectedLength);
-          invokeListener();
-        }
-      }
-    };
-    return consumer;
+      @Override
+      protected void onResponseReceived(HttpResponse response) throws HttpException, IOException
+      {
+        if (LOGGER.isDebugEnabled())
+        {
+          LOGGER.debug("Received response: "+response);
+        }
+        this.responseStorage=response;
+        markResponseReceived();
+        PipelinedBatch batch=_batch;
+        if ((completes) && (batch!=null))
+        {
+          batch.handleResponse(response);
+        }
+        int statusCode=response.getStatusLine().getStatusCode();
+        this.accepting=((statusCode>=200) && (statusCode<300));
+        if (this.accepting)
+        {
+          handleResponse(response);
+        }
+      }
+    };
+    return consumer;
+  }
+
+  private void handleResponse(HttpResponse response) throws HttpException, IOException
+  {
+    int statusCode=response.getStatusLine().getStatusCode();
+    DownloadJournal journal=_task.getJournal();
+    Long expectedLength=null;
+    if (statusCode==HttpStatus.SC_PARTIAL_CONTENT)
+    {
+      long[] contentRange=ResponseUtils.checkContentRange(response,_startOffset,-1,-1);
+      if (contentRange[2]>=0)
+      {
+        expectedLength=Long.valueOf(contentRange[2]);
+      }
+    }
+    else
+    {
+      if (_startOffset>0)
+      {
+        // The whole entity is sent back: restart reception from the beginning
+        LOGGER.info("Cannot resume download, restarting it: "+_task);
+        long offset=((ResumableReceiver)_task.getReceiver()).start(0);
+        if (offset!=0)
+        {
+          throw new IOException("Could not restart reception for: "+_task);
+        }
+        _startOffset=0;
+        _checkpoint=0;
+        _task.setDoneSize(0);
+      }
+      expectedLength=ResponseUtils.getContentLength(response);
+      _validator=ResponseUtils.acceptsRanges(response)?getIfRangeValidator(response):null;
+      if (journal!=null)
+      {
+        journal.reset();
+        journal.setValidators(ResponseUtils.getHeader(response,"ETag"),ResponseUtils.getHeader(response,"Last-Modified"));
+      }
+    }
+    InflatingReceiver.Format format=getContentFormat(response);
+    checkExpectedSize((format==null)?expectedLength:null);
+    if (format!=null)
+    {
+      if (_startOffset>0)
+      {
+        throw new HttpException("Unexpected encoded partial content for: "+_task);
+      }
+      // Received bytes are not entity bytes: reception cannot be resumed
+      _validator=null;
+      if (journal!=null)
+      {
+        journal.setValidators(null,null);
+      }
+      _inflating=new InflatingReceiver(_receiver,format);
+      _receiver=_inflating;
+    }
+    if (journal!=null)
+    {
+      journal.setSize(expectedLength);
+    }
+    Long contentLength=ResponseUtils.getContentLength(response);
+    if ((format==null) && (contentLength!=null) && (_receiver instanceof SizeHintReceiver))
+    {
+      ((SizeHintReceiver)_receiver).handleExpectedSize(contentLength.longValue());
+    }
+    if (expectedLength!=null)
+    {
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Expected length: "+expectedLength);
+      }
+      _task.setExpectedSize(expectedLength);
+    }
+    invokeListener();
+  }
+
+  /**
+   * Check the announced size of the entity against the integrity check of the task, if any.
+   * @param size Announced size (may be <code>null</code>).
+   * @throws HttpException If it does not match.
+   */
+  private void checkExpectedSize(Long size) throws HttpException
+  {
+    IntegrityCheck check=_task.getIntegrityCheck();
+    if ((size==null) || (check==null) || (check.getSize()==null))
+    {
+      return;
+    }
+    if (size.longValue()!=check.getSize().longValue())
+    {
+      _integrityFailure=true;
+      throw new HttpException("Announced size "+size+" does not match expected size "+check.getSize());
+    }
+  }
+
+  private InflatingReceiver.Format getContentFormat(HttpResponse response) throws HttpException
+  {
+    String contentEncoding=ResponseUtils.getHeader(response,"Content-Encoding");
+    try
+    {
+      return InflatingReceiver.getFormat(contentEncoding);
+    }
+    catch(IllegalArgumentException iae)
+    {
+      throw new HttpException(iae.getMessage());
+    }
+  }
+
+  /**
+   * Get the validator to use in <code>If-Range</code> headers for the entity of a response.
+   * @param response Response to use.
+   * @return A strong ETag, a last modification date, or <code>null</code> if none.
+   */
+  static String getIfRangeValidator(HttpResponse response)
+  {
+    String etag=ResponseUtils.getHeader(response,"ETag");
+    if ((etag!=null) && (!etag.startsWith("W/")))
+    {
+      return etag;
+    }
+    return ResponseUtils.getHeader(response,"Last-Modified");
   }
 
   private FutureCallback<HttpResponse> buildCallback()
@@ -129,7 +770,7 @@ public class SingleAsyncDownloadManager
     {
       public void completed(final HttpResponse response)
       {
-        handleCompletion(response.getStatusLine());
+        handleCompletion(response);
       }
       public void failed(Exception ex)
       {
@@ -143,69 +784,514 @@ public class SingleAsyncDownloadManager
     return futureCb;
   }
 
-  private void handleBytesReceived(ByteBuffer buf)
+  private void handleBytesReceived(ByteBuffer buf) throws IOException
   {
     if (LOGGER.isDebugEnabled())
     {
       LOGGER.debug("Received: "+buf.remaining());
     }
     int bytesCount=buf.remaining();
-    byte[] bytes=buf.array();
-    BytesReceiver receiver=_task.getReceiver();
-    boolean ok=receiver.handleBytes(bytes,0,bytesCount);
+    ByteBufferReceiver receiver=_receiver;
+    boolean ok=receiver.handleBytes(buf);
     if (ok)
     {
-      int doneSize=_task.getDoneSize();
+      long doneSize=_task.getDoneSize();
       doneSize+=bytesCount;
       _task.setDoneSize(doneSize);
+      InflatingReceiver inflating=_inflating;
+      _task.setDecodedSize((inflating!=null)?inflating.getOutputSize():doneSize);
+      checkpoint(doneSize);
       invokeListener();
     }
     else
     {
-      cancel();
-      handleFailure(null);
+      throw new IOException("Receiver failed: "+receiver);
+    }
+  }
+
+  /**
+   * Apply bandwidth limits after the reception of some bytes.
+   * Input is suspended for the time required by the limits.
+   * @param count Number of received bytes.
+   * @param gate Input gate of the connection.
+   * @param ioctrl Control of the connection.
+   */
+  void throttle(int count, final InputGate gate, IOControl ioctrl)
+  {
+    if ((_limiter==null) || (count==0))
+    {
+      return;
+    }
+    long delay=_limiter.consume(_host,count);
+    if (delay<=0)
+    {
+      return;
+    }
+    gate.suspend(InputGate.THROTTLING,ioctrl);
+    Runnable resume=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // Actual suspension time, if throttling was the last reason to resume
+        long suspended=gate.resume(InputGate.THROTTLING);
+        if (suspended>0)
+        {
+          _task.addThrottledTime(suspended);
+        }
+      }
+    };
+    try
+    {
+      _timer.schedule(resume,delay,TimeUnit.MILLISECONDS);
+    }
+    catch(RejectedExecutionException ree)
+    {
+      resume.run();
+    }
+  }
+
+  /**
+   * Suspend input while the receiver is full.
+   * @param gate Input gate of the connection.
+   * @param ioctrl Control of the connection.
+   */
+  void applyBackPressure(final InputGate gate, IOControl ioctrl)
+  {
+    BytesReceiver receiver=_task.getReceiver();
+    if (!(receiver instanceof FlowControlledReceiver))
+    {
+      return;
+    }
+    FlowControlledReceiver flowControlled=(FlowControlledReceiver)receiver;
+    if (!flowControlled.isFull())
+    {
+      return;
+    }
+    gate.suspend(InputGate.RECEIVER,ioctrl);
+    Runnable resume=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        gate.resume(InputGate.RECEIVER);
+      }
+    };
+    if (!flowControlled.awaitDrain(resume))
+    {
+      gate.resume(InputGate.RECEIVER);
+    }
+  }
+
+  private void checkpoint(long doneSize)
+  {
+    DownloadJournal journal=_task.getJournal();
+    if ((journal!=null) && (doneSize-_checkpoint>=CHECKPOINT_SIZE))
+    {
+      journal.addRange(0,doneSize);
+      saveJournal(journal);
+      _checkpoint=doneSize;
     }
   }
 
-  private void handleCompletion(StatusLine statusLine)
+  /**
+   * Save the journal out of the I/O reactor threads.
+   * The save is dropped if the journal was updated by the termination of the download meanwhile.
+   * @param journal Journal to save.
+   */
+  private void saveJournal(final DownloadJournal journal)
+  {
+    final int generation=_journalGeneration;
+    runOffReactor(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        synchronized(journal)
+        {
+          if (generation==_journalGeneration)
+          {
+            journal.save();
+          }
+        }
+      }
+    });
+  }
+
+  private void handleCompletion(HttpResponse response)
   {
+    StatusLine statusLine=response.getStatusLine();
     if (LOGGER.isDebugEnabled())
     {
       LOGGER.debug("COMPLETED "+_task.getURL()+" => "+statusLine);
     }
     int statusCode=statusLine.getStatusCode();
-    if (statusCode==HttpStatus.SC_OK)
+    if ((_inflating!=null) && (!_inflating.isFinished()))
+    {
+      LOGGER.warn("Truncated or corrupted encoded content for: "+_task);
+      _task.setDownloadState(DownloadState.FAILED);
+    }
+    else if ((statusCode==HttpStatus.SC_OK) || (statusCode==HttpStatus.SC_PARTIAL_CONTENT))
+    {
+      if (!verifyIntegrity())
+      {
+        _task.setDownloadState(DownloadState.CHECKSUM_MISMATCH);
+        handleTermination();
+        return;
+      }
+      if ((statusCode==HttpStatus.SC_OK) && (_cache!=null))
+      {
+        // Cache writes are disk I/O: done out of the reactor, before termination
+        final HttpResponse cacheable=response;
+        runOffReactor(new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            storeResponse(cacheable);
+            _task.setDownloadState(DownloadState.OK);
+            finishTermination();
+          }
+        });
+        return;
+      }
+      _task.setDownloadState(DownloadState.OK);
+    }
+    else if ((statusCode==HttpStatus.SC_NOT_MODIFIED) && (_cacheEntry!=null))
+    {
+      // The cached body is replayed out of the reactor, before termination
+      final HttpResponse notModified=response;
+      runOffReactor(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          _task.setDownloadState(useCachedResponse(notModified)?DownloadState.OK:DownloadState.FAILED);
+          finishTermination();
+        }
+      });
+      return;
+    }
+    else if ((statusCode==HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) && (_startOffset>0) && (isFullyReceived(response)))
     {
+      // A previous attempt received all the bytes, but its journal was not deleted
+      LOGGER.info("Download already complete: "+_task);
+      _task.setExpectedSize(Long.valueOf(_startOffset));
       _task.setDownloadState(DownloadState.OK);
     }
+    else if ((statusCode==HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) && (_startOffset>0) && (restart()))
+    {
+      return;
+    }
     else
     {
+      forgetRelocation();
+      RetryPolicy policy=_retryPolicy;
+      if ((policy!=null) && (retry(policy.getRetryDelay(response,_task.getAttempts()))))
+      {
+        return;
+      }
       _task.setDownloadState(DownloadState.FAILED);
     }
     handleTermination();
   }
 
+  /**
+   * Indicates if the entity was fully received by previous attempts, from an unsatisfiable
+   * range response.
+   * @param response Response to use.
+   * @return <code>true</code> if its total size is the resume offset, and the journaled size if any.
+   */
+  private boolean isFullyReceived(HttpResponse response)
+  {
+    Long total=ResponseUtils.getContentRangeTotal(response);
+    if ((total==null) || (total.longValue()!=_startOffset))
+    {
+      return false;
+    }
+    DownloadJournal journal=_task.getJournal();
+    Long journaledSize=(journal!=null)?journal.getSize():null;
+    return ((journaledSize==null) || (journaledSize.longValue()==_startOffset));
+  }
+
+  /**
+   * Drop the received bytes and the journal, and restart the download from the beginning.
+   * @return <code>true</code> if a new attempt is scheduled, <code>false</code> otherwise.
+   */
+  private boolean restart()
+  {
+    LOGGER.info("Cannot resume download, restarting it: "+_task);
+    DownloadJournal journal=_task.getJournal();
+    if (journal!=null)
+    {
+      synchronized(journal)
+      {
+        _journalGeneration++;
+        journal.reset();
+        journal.delete();
+      }
+    }
+    _validator=null;
+    _task.setDoneSize(0);
+    _task.setDecodedSize(0);
+    return retry(0);
+  }
+
+  /**
+   * Forget the cached relocation of the task URL, if any: it may be stale.
+   */
+  private void forgetRelocation()
+  {
+    RelocationCache relocations=_relocations;
+    if (relocations!=null)
+    {
+      relocations.remove(_task.getURL());
+    }
+  }
+
+  /**
+   * Check the received entity against the integrity check of the task, if any.
+   * @return <code>true</code> if it matches or if there is no check, <code>false</code> otherwise.
+   */
+  private boolean verifyIntegrity()
+  {
+    IntegrityCheck check=_task.getIntegrityCheck();
+    DigestingReceiver digesting=_digesting;
+    if ((check==null) || (digesting==null))
+    {
+      return true;
+    }
+    if (digesting.verify(check))
+    {
+      return true;
+    }
+    LOGGER.warn("Integrity check failed for: "+_task+": expected "+check+", got "+check.getAlgorithm()+"="+digesting.getValue(check.getAlgorithm())+", size="+digesting.getSize());
+    return false;
+  }
+
+  private void storeResponse(HttpResponse response)
+  {
+    BytesReceiver receiver=_task.getReceiver();
+    if (receiver instanceof BufferReceiver)
+    {
+      _cache.store(_task.getURL(),response,((BufferReceiver)receiver).getBytes());
+    }
+  }
+
+  private boolean useCachedResponse(HttpResponse response)
+  {
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Using revalidated cached response: "+_task);
+    }
+    CacheEntry entry=_cache.refresh(_cacheEntry,response);
+    long size=SharedDownload.replay(_task.getReceiver(),null,_cache.getBodyFile(entry));
+    if (size!=entry.getSize())
+    {
+      _cache.remove(entry.getURL());
+      return false;
+    }
+    _task.setExpectedSize(Long.valueOf(size));
+    _task.setDoneSize(size);
+    return true;
+  }
+
   private void handleFailure(Exception e)
   {
-    LOGGER.warn("Failure received for: "+_task);
+    DigestingReceiver digesting=_digesting;
+    if ((_integrityFailure) || ((digesting!=null) && (digesting.isSizeExceeded())))
+    {
+      LOGGER.warn("Integrity check failed for: "+_task+": "+e.getMessage());
+      _task.setDownloadState(DownloadState.CHECKSUM_MISMATCH);
+      handleTermination();
+      return;
+    }
+    RetryPolicy policy=_retryPolicy;
+    if ((policy!=null) && (retry(policy.getRetryDelay(e,_task.getAttempts()))))
+    {
+      LOGGER.info("Failure received for: "+_task+": "+e);
+      return;
+    }
+    LOGGER.warn("Failure received for: "+_task,e);
     _task.setDownloadState(DownloadState.FAILED);
     handleTermination();
   }
 
-  private void handleCancellation()
+  /**
+   * Schedule a new attempt of this download.
+   * The next attempt resumes reception where it stopped, if possible.
+   * @param delay Delay before the new attempt (milliseconds), <code>-1</code> for no retry.
+   * @return <code>true</code> if a new attempt is scheduled, <code>false</code> otherwise.
+   */
+  private boolean retry(long delay)
+  {
+    if ((delay<0) || (_terminationListener==null))
+    {
+      return false;
+    }
+    synchronized(this)
+    {
+      _task.setDownloadState(DownloadState.RETRYING);
+    }
+    long doneSize=_task.getDoneSize();
+    _resumeOffset=doneSize;
+    DownloadJournal journal=_task.getJournal();
+    if (journal!=null)
+    {
+      journal.addRange(0,doneSize);
+      saveJournal(journal);
+    }
+    LOGGER.info("Attempt "+_task.getAttempts()+" failed, retrying in "+delay+"ms: "+_task);
+    invokeListener();
+    _terminationListener.downloadRetrying(this,delay);
+    return true;
+  }
+
+  /**
+   * Leave the {@link DownloadState#RETRYING} state.
+   * @param state New state.
+   * @return <code>true</code> if this download was waiting for a retry, <code>false</code> otherwise.
+   */
+  synchronized boolean leaveRetry(DownloadState state)
+  {
+    if (_task.getDownloadState()!=DownloadState.RETRYING)
+    {
+      return false;
+    }
+    _task.setDownloadState(state);
+    return true;
+  }
+
+  /**
+   * Handle the cancellation of the request.
+   */
+  void handleCancellation()
   {
     LOGGER.warn("Cancellation received for: "+_task);
     _task.setDownloadState(DownloadState.CANCELLED);
     handleTermination();
   }
 
-  private void handleTermination()
+  /**
+   * Handle the termination of this download.
+   * The task state shall be set before calling this method. Termination is finished
+   * asynchronously, out of the I/O reactor threads: receivers may wait for pending
+   * bytes or do disk I/O when they are terminated.
+   */
+  void handleTermination()
+  {
+    runOffReactor(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        finishTermination();
+      }
+    });
+  }
+
+  /**
+   * Terminate the reception, then notify the termination of this download.
+   */
+  private void finishTermination()
+  {
+    terminateReception();
+    updateJournal();
+    notifyTermination();
+  }
+
+  private void updateJournal()
+  {
+    DownloadJournal journal=_task.getJournal();
+    if (journal==null)
+    {
+      return;
+    }
+    synchronized(journal)
+    {
+      // Pending saves are stale
+      _journalGeneration++;
+      if ((_task.getDownloadState()==DownloadState.OK) || (journal.getIfRangeValidator()==null))
+      {
+        journal.delete();
+      }
+      else
+      {
+        journal.addRange(0,_task.getDoneSize());
+        journal.save();
+      }
+    }
+  }
+
+  private void notifyTermination()
   {
-    BytesReceiver receiver=_task.getReceiver();
-    receiver.terminate();
     invokeListener();
+    if (_terminationListener!=null)
+    {
+      _terminationListener.downloadTerminated(this);
+    }
     LOGGER.debug("Releasing latch!");
-    _latch.countDown();
+    if (_latch!=null)
+    {
+      _latch.countDown();
+    }
+    complete();
+    CountDownLatch responseLatch=_responseLatch;
+    if (responseLatch!=null)
+    {
+      responseLatch.countDown();
+    }
+    CountDownLatch terminationLatch=_terminationLatch;
+    if (terminationLatch!=null)
+    {
+      terminationLatch.countDown();
+    }
+  }
+
+  /**
+   * Terminate the reception of bytes.
+   */
+  void terminateReception()
+  {
+    endDecoding();
+    terminateReceiver(_task.getReceiver());
+  }
+
+  /**
+   * Terminate a receiver of this download.
+   * If it fails (bytes not flushed, archive not extracted...), a successful download fails.
+   * @param receiver Receiver to terminate.
+   */
+  void terminateReceiver(BytesReceiver receiver)
+  {
+    boolean ok=receiver.terminate();
+    if ((!ok) && (_task.getDownloadState()==DownloadState.OK))
+    {
+      LOGGER.warn("Could not terminate reception for: "+_task);
+      _task.setDownloadState(DownloadState.FAILED);
+    }
+  }
+
+  /**
+   * Release the decoder of the current response, if any.
+   */
+  private void endDecoding()
+  {
+    InflatingReceiver inflating=_inflating;
+    if (inflating!=null)
+    {
+      _inflating=null;
+      inflating.end();
+    }
+  }
+
+  /**
+   * Cancel a download that was not started.
+   */
+  void cancelQueued()
+  {
+    _task.setDownloadState(DownloadState.CANCELLED);
+    notifyTermination();
   }
 
   /**
@@ -213,6 +1299,19 @@ public class SingleAsyncDownloadManager
    */
   public void cancel()
   {
+    _cancelRequested=true;
+    if (leaveRetry(DownloadState.CANCELLED))
+    {
+      handleTermination();
+      return;
+    }
+    PipelinedBatch batch=_batch;
+    if (batch!=null)
+    {
+      // The other downloads of the batch fall back to the normal execution
+      batch.abort();
+      return;
+    }
     Future<HttpResponse> future=_task.getFuture();
     if (future!=null)
     {
@@ -240,9 +1339,17 @@ public class SingleAsyncDownloadManager
     }
   }
 
-  private void invokeListener()
+  /**
+   * Invoke the listener of this download, if any.
+   */
+  void invokeListener()
   {
-    if (_listener!=null)
+    ProgressDispatcher.TaskNotifier notifier=_notifier;
+    if (notifier!=null)
+    {
+      notifier.update();
+    }
+    else if (_listener!=null)
     {
       _listener.downloadTaskUpdated(_task);
     }
@@ -0,0 +1,15 @@
+package delta.downloads.async;
+
+/**
+ * Interface of a bytes receiver that uses the announced size of the received data.
+ * @author DAM
+ */
+public interface SizeHintReceiver extends BytesReceiver
+{
+  /**
+   * Invoked when the number of bytes to receive is known, before they are received.
+   * The announced size is a hint: more or less bytes may be received.
+   * @param size Announced size (bytes).
+   */
+  void handleExpectedSize(long size);
+}
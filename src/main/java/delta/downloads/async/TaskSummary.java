@@ -0,0 +1,104 @@
+package delta.downloads.async;
+
+/**
+ * Compact summary of a terminated download task.
+ * <p>
+ * Summaries are kept for tasks evicted from the tasks table of a downloads manager,
+ * without any reference to their receiver or response.
+ * @author DAM
+ */
+public class TaskSummary
+{
+  private int _id;
+  private String _url;
+  private DownloadState _state;
+  private long _doneSize;
+  private Long _expectedSize;
+  private int _attempts;
+  private long _terminationDate;
+
+  /**
+   * Constructor.
+   * @param task Terminated task.
+   * @param terminationDate Termination date.
+   */
+  TaskSummary(DownloadTask task, long terminationDate)
+  {
+    _id=task.getID();
+    _url=task.getURL();
+    _state=task.getDownloadState();
+    _doneSize=task.getDoneSize();
+    _expectedSize=task.getExpectedSize();
+    _attempts=task.getAttempts();
+    _terminationDate=terminationDate;
+  }
+
+  /**
+   * Get the task identifier.
+   * @return a task identifier.
+   */
+  public int getID()
+  {
+    return _id;
+  }
+
+  /**
+   * Get the URL of the task.
+   * @return an URL.
+   */
+  public String getURL()
+  {
+    return _url;
+  }
+
+  /**
+   * Get the final state of the task.
+   * @return a download state.
+   */
+  public DownloadState getDownloadState()
+  {
+    return _state;
+  }
+
+  /**
+   * Get the number of received bytes.
+   * @return a bytes count.
+   */
+  public long getDoneSize()
+  {
+    return _doneSize;
+  }
+
+  /**
+   * Get the expected size.
+   * @return a bytes count, or <code>null</code> if not known.
+   */
+  public Long getExpectedSize()
+  {
+    return _expectedSize;
+  }
+
+  /**
+   * Get the number of attempts.
+   * @return an attempts count.
+   */
+  public int getAttempts()
+  {
+    return _attempts;
+  }
+
+  /**
+   * Get the termination date.
+   * @return a date (milliseconds since Epoch).
+   */
+  public long getTerminationDate()
+  {
+    return _terminationDate;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Task #"+_id+" ("+_url+"): state="+_state+", done "+_doneSize+"/"+((_expectedSize!=null)?_expectedSize:"?")+" bytes, "+_attempts+" attempt(s)";
+  }
+}
@@ -0,0 +1,206 @@
+package delta.downloads.async;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Table of the download tasks of a downloads manager.
+ * <p>
+ * Terminated tasks are kept for a retention time, and at most a given number of them
+ * is kept: older ones are evicted, so that the table does not grow with the number of
+ * downloads. A compact summary of evicted tasks may be kept, in a bounded table.
+ * <p>
+ * This class is thread-safe.
+ * @author DAM
+ */
+class TaskTable
+{
+  /**
+   * Default retention time of terminated tasks (milliseconds).
+   */
+  static final long DEFAULT_RETENTION_TIME=10*60*1000L;
+  /**
+   * Default maximum number of retained terminated tasks.
+   */
+  static final int DEFAULT_RETENTION_COUNT=1000;
+
+  private AtomicInteger _nextID;
+  private ConcurrentHashMap<Integer,SingleAsyncDownloadManager> _tasks;
+  // Terminated tasks, oldest first
+  private ArrayDeque<TerminatedTask> _terminated;
+  private long _retentionTime;
+  private int _retentionCount;
+  private int _maxSummaries;
+  private LinkedHashMap<Integer,TaskSummary> _summaries;
+
+  /**
+   * Constructor.
+   */
+  TaskTable()
+  {
+    _nextID=new AtomicInteger(1);
+    _tasks=new ConcurrentHashMap<Integer,SingleAsyncDownloadManager>();
+    _terminated=new ArrayDeque<TerminatedTask>();
+    _retentionTime=DEFAULT_RETENTION_TIME;
+    _retentionCount=DEFAULT_RETENTION_COUNT;
+    _maxSummaries=0;
+    _summaries=new LinkedHashMap<Integer,TaskSummary>()
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer,TaskSummary> eldest)
+      {
+        return size()>_maxSummaries;
+      }
+    };
+  }
+
+  /**
+   * Set the retention of terminated tasks.
+   * @param retentionTime Retention time (milliseconds).
+   * @param retentionCount Maximum number of retained terminated tasks.
+   */
+  void setRetention(long retentionTime, int retentionCount)
+  {
+    synchronized(this)
+    {
+      _retentionTime=retentionTime;
+      _retentionCount=Math.max(0,retentionCount);
+    }
+    evict();
+  }
+
+  /**
+   * Set the maximum number of summaries of evicted tasks.
+   * @param maxSummaries Summaries count to set (0 to keep no summary).
+   */
+  synchronized void setMaxSummaries(int maxSummaries)
+  {
+    _maxSummaries=Math.max(0,maxSummaries);
+    while (_summaries.size()>_maxSummaries)
+    {
+      _summaries.remove(_summaries.keySet().iterator().next());
+    }
+  }
+
+  /**
+   * Allocate a task identifier.
+   * @return a new task identifier.
+   */
+  int nextID()
+  {
+    return _nextID.getAndIncrement();
+  }
+
+  /**
+   * Register a download.
+   * @param downloadManager Download to register.
+   */
+  void register(SingleAsyncDownloadManager downloadManager)
+  {
+    _tasks.put(Integer.valueOf(downloadManager.getTask().getID()),downloadManager);
+  }
+
+  /**
+   * Get a registered download.
+   * @param taskID Task identifier.
+   * @return A download, or <code>null</code> if not found or evicted.
+   */
+  SingleAsyncDownloadManager get(int taskID)
+  {
+    return _tasks.get(Integer.valueOf(taskID));
+  }
+
+  /**
+   * Get all the registered downloads.
+   * @return a live view of the registered downloads.
+   */
+  Collection<SingleAsyncDownloadManager> getAll()
+  {
+    return _tasks.values();
+  }
+
+  /**
+   * Get the number of registered downloads.
+   * @return a downloads count.
+   */
+  int size()
+  {
+    return _tasks.size();
+  }
+
+  /**
+   * Get the summary of an evicted task.
+   * @param taskID Task identifier.
+   * @return A summary, or <code>null</code> if not found.
+   */
+  synchronized TaskSummary getSummary(int taskID)
+  {
+    return _summaries.get(Integer.valueOf(taskID));
+  }
+
+  /**
+   * Record the termination of a download, and evict old terminated downloads.
+   * @param downloadManager Terminated download.
+   */
+  void terminated(SingleAsyncDownloadManager downloadManager)
+  {
+    TerminatedTask terminated=new TerminatedTask(downloadManager,System.currentTimeMillis());
+    synchronized(this)
+    {
+      _terminated.addLast(terminated);
+    }
+    evict();
+  }
+
+  /**
+   * Evict the terminated downloads that exceed the retention time or count.
+   */
+  synchronized void evict()
+  {
+    long now=System.currentTimeMillis();
+    while (!_terminated.isEmpty())
+    {
+      TerminatedTask first=_terminated.peekFirst();
+      if ((_terminated.size()<=_retentionCount) && (first._date+_retentionTime>now))
+      {
+        break;
+      }
+      _terminated.removeFirst();
+      SingleAsyncDownloadManager downloadManager=first._downloadManager;
+      if (downloadManager.getCompletion()!=first._completion)
+      {
+        // Restarted since then
+        continue;
+      }
+      DownloadTask task=downloadManager.getTask();
+      Integer key=Integer.valueOf(task.getID());
+      if ((_tasks.remove(key,downloadManager)) && (_maxSummaries>0))
+      {
+        _summaries.put(key,new TaskSummary(task,first._date));
+      }
+    }
+  }
+
+  /**
+   * Terminated download.
+   */
+  private static class TerminatedTask
+  {
+    private SingleAsyncDownloadManager _downloadManager;
+    // Completion of the terminated run, to detect restarts
+    private CompletableFuture<DownloadTask> _completion;
+    private long _date;
+
+    private TerminatedTask(SingleAsyncDownloadManager downloadManager, long date)
+    {
+      _downloadManager=downloadManager;
+      _completion=downloadManager.getCompletion();
+      _date=date;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Receiver that gives the received bytes to several receivers.
+ * <p>
+ * Each receiver gets its own view of the received buffers: bytes are not copied.
+ * Reception fails as soon as one of the receivers fails.
+ * @author DAM
+ */
+public class TeeReceiver implements ByteBufferReceiver,SizeHintReceiver,FlowControlledReceiver
+{
+  private List<BytesReceiver> _receivers;
+  private List<ByteBufferReceiver> _adapted;
+
+  /**
+   * Constructor.
+   * @param receivers Receivers to give bytes to.
+   */
+  public TeeReceiver(BytesReceiver... receivers)
+  {
+    _receivers=new ArrayList<BytesReceiver>();
+    _adapted=new ArrayList<ByteBufferReceiver>();
+    for(BytesReceiver receiver : receivers)
+    {
+      _receivers.add(receiver);
+      _adapted.add(BytesReceiverAdapter.adapt(receiver));
+    }
+  }
+
+  /**
+   * Get the receivers.
+   * @return an unmodifiable list of receivers.
+   */
+  public List<BytesReceiver> getReceivers()
+  {
+    return Collections.unmodifiableList(_receivers);
+  }
+
+  @Override
+  public boolean start()
+  {
+    boolean ok=true;
+    for(BytesReceiver receiver : _receivers)
+    {
+      ok&=receiver.start();
+    }
+    return ok;
+  }
+
+  @Override
+  public void handleExpectedSize(long size)
+  {
+    for(BytesReceiver receiver : _receivers)
+    {
+      if (receiver instanceof SizeHintReceiver)
+      {
+        ((SizeHintReceiver)receiver).handleExpectedSize(size);
+      }
+    }
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    int nbReceivers=_adapted.size();
+    for(int i=0;i<nbReceivers;i++)
+    {
+      // The last receiver may consume the buffer itself
+      ByteBuffer view=(i<nbReceivers-1)?buffer.duplicate():buffer;
+      if (!_adapted.get(i).handleBytes(view))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean isFull()
+  {
+    return (getFullReceiver()!=null);
+  }
+
+  @Override
+  public boolean awaitDrain(Runnable callback)
+  {
+    FlowControlledReceiver full=getFullReceiver();
+    return ((full!=null) && (full.awaitDrain(callback)));
+  }
+
+  private FlowControlledReceiver getFullReceiver()
+  {
+    for(BytesReceiver receiver : _receivers)
+    {
+      if ((receiver instanceof FlowControlledReceiver) && (((FlowControlledReceiver)receiver).isFull()))
+      {
+        return (FlowControlledReceiver)receiver;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    boolean ok=true;
+    for(BytesReceiver receiver : _receivers)
+    {
+      ok&=receiver.terminate();
+    }
+    return ok;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Tee receiver to: "+_receivers;
+  }
+}
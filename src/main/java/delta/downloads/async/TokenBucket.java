@@ -0,0 +1,71 @@
+package delta.downloads.async;
+
+/**
+ * Token bucket for bandwidth limitation.
+ * <p>
+ * Tokens are bytes. The bucket is refilled at a given rate, up to one second of traffic.
+ * Consumption may exceed the available tokens: the debt gives the time to wait
+ * before reading more bytes.
+ * @author DAM
+ */
+class TokenBucket
+{
+  private long _rate;
+  private double _tokens;
+  private long _lastRefill;
+
+  /**
+   * Constructor.
+   * @param rate Rate (bytes per second).
+   */
+  TokenBucket(long rate)
+  {
+    _rate=rate;
+    _tokens=rate;
+    _lastRefill=System.nanoTime();
+  }
+
+  /**
+   * Get the rate of this bucket.
+   * @return a rate in bytes per second.
+   */
+  synchronized long getRate()
+  {
+    return _rate;
+  }
+
+  /**
+   * Set the rate of this bucket.
+   * @param rate Rate to set (bytes per second).
+   */
+  synchronized void setRate(long rate)
+  {
+    refill();
+    _rate=rate;
+    _tokens=Math.min(_tokens,rate);
+  }
+
+  /**
+   * Consume some tokens.
+   * @param count Number of tokens to consume.
+   * @return the time to wait before the debt is paid back, in milliseconds.
+   */
+  synchronized long consume(long count)
+  {
+    refill();
+    _tokens-=count;
+    if (_tokens>=0)
+    {
+      return 0;
+    }
+    return (long)Math.ceil((-_tokens*1000)/_rate);
+  }
+
+  private void refill()
+  {
+    long now=System.nanoTime();
+    double added=((now-_lastRefill)*(double)_rate)/1000000000L;
+    _tokens=Math.min(_rate,_tokens+added);
+    _lastRefill=now;
+  }
+}
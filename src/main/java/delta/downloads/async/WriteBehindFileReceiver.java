@@ -0,0 +1,317 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receives bytes into a file, using write-behind.
+ * <p>
+ * Received bytes are copied into buffers of a {@link WriteBehindWriter} ring,
+ * that are written to disk, in order, by its writer threads. So the network
+ * threads never wait for the disk, unless the receiver is terminated.
+ * <p>
+ * Each receiver may queue a quarter of the ring at most, so that a fast download
+ * does not slow down the others. When it is full, its partly filled buffer is queued
+ * too, so that it is written while the network waits. If the ring is exhausted by
+ * the buffers other receivers are filling, bytes are copied into an overflow buffer,
+ * out of the ring, that is queued like the others: the receiver is full until it is
+ * written, so the network threads never write to disk.
+ * @author DAM
+ */
+public class WriteBehindFileReceiver extends FileReceiver implements FlowControlledReceiver
+{
+  private static final Logger LOGGER=Logger.getLogger(WriteBehindFileReceiver.class);
+
+  private WriteBehindWriter _writer;
+  private ByteBuffer _current;
+  private Runnable _writeTask;
+  private int _maxQueued;
+  // State, protected by this object lock
+  private Deque<ByteBuffer> _pending;
+  private int _overflows;
+  private boolean _writing;
+  private boolean _failed;
+  private Runnable _drainCallback;
+
+  /**
+   * Constructor.
+   * @param to Target file.
+   * @param writer Writer to use.
+   */
+  public WriteBehindFileReceiver(File to, WriteBehindWriter writer)
+  {
+    super(to);
+    _writer=writer;
+    _maxQueued=Math.max(2,writer.getBufferCount()/4);
+    _pending=new ArrayDeque<ByteBuffer>();
+    _writeTask=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        write();
+      }
+    };
+  }
+
+  @Override
+  public long start(long offset)
+  {
+    flush();
+    synchronized(this)
+    {
+      _failed=false;
+      _drainCallback=null;
+    }
+    return super.start(offset);
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    synchronized(this)
+    {
+      if (_failed)
+      {
+        return false;
+      }
+    }
+    while (buffer.hasRemaining())
+    {
+      if (_current==null)
+      {
+        _current=_writer.acquire();
+        if (_current==null)
+        {
+          submitOverflow(buffer);
+          break;
+        }
+      }
+      int count=Math.min(buffer.remaining(),_current.remaining());
+      ByteBuffer slice=buffer.duplicate();
+      slice.limit(slice.position()+count);
+      _current.put(slice);
+      buffer.position(buffer.position()+count);
+      if (!_current.hasRemaining())
+      {
+        submitCurrent();
+      }
+    }
+    synchronized(this)
+    {
+      return !_failed;
+    }
+  }
+
+  /**
+   * Queue the given bytes in a buffer out of the ring, when the ring is exhausted.
+   * This receiver is full until they are written.
+   * @param buffer Bytes to queue.
+   */
+  private void submitOverflow(ByteBuffer buffer)
+  {
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Write buffers exhausted, queuing "+buffer.remaining()+" bytes out of the ring for: "+getFile());
+    }
+    ByteBuffer overflow=ByteBuffer.allocate(buffer.remaining());
+    overflow.put(buffer);
+    overflow.flip();
+    submit(overflow,true);
+  }
+
+  private void submitCurrent()
+  {
+    ByteBuffer buffer=_current;
+    _current=null;
+    buffer.flip();
+    _writer.queued();
+    submit(buffer,false);
+  }
+
+  private void submit(ByteBuffer buffer, boolean overflow)
+  {
+    boolean schedule;
+    synchronized(this)
+    {
+      _pending.add(buffer);
+      if (overflow)
+      {
+        _overflows++;
+      }
+      schedule=!_writing;
+      _writing=true;
+    }
+    if (schedule)
+    {
+      try
+      {
+        _writer.execute(_writeTask);
+      }
+      catch(RejectedExecutionException ree)
+      {
+        LOGGER.warn("Writer is disposed, could not write: "+getFile());
+        synchronized(this)
+        {
+          _failed=true;
+        }
+        write();
+      }
+    }
+  }
+
+  private void write()
+  {
+    while (true)
+    {
+      ByteBuffer buffer;
+      boolean failed;
+      synchronized(this)
+      {
+        buffer=_pending.peek();
+        if (buffer==null)
+        {
+          _writing=false;
+          notifyAll();
+          return;
+        }
+        failed=_failed;
+      }
+      if (!failed)
+      {
+        boolean ok=super.handleBytes(buffer);
+        if (!ok)
+        {
+          synchronized(this)
+          {
+            _failed=true;
+          }
+        }
+      }
+      // Overflow buffers are heap buffers, out of the ring
+      boolean overflow=!buffer.isDirect();
+      if (!overflow)
+      {
+        _writer.written(buffer);
+      }
+      Runnable callback=null;
+      synchronized(this)
+      {
+        _pending.poll();
+        if (overflow)
+        {
+          _overflows--;
+        }
+        if ((_drainCallback!=null) && (_pending.size()<=_maxQueued/2) && (_overflows==0))
+        {
+          callback=_drainCallback;
+          _drainCallback=null;
+        }
+      }
+      if (callback!=null)
+      {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * Wait until all received bytes are written.
+   */
+  private void flush()
+  {
+    if (_current!=null)
+    {
+      if (_current.position()>0)
+      {
+        submitCurrent();
+      }
+      else
+      {
+        _writer.release(_current);
+        _current=null;
+      }
+    }
+    waitForWrites();
+  }
+
+  /**
+   * Wait until all queued buffers are written.
+   */
+  private void waitForWrites()
+  {
+    synchronized(this)
+    {
+      while (_writing)
+      {
+        try
+        {
+          wait();
+        }
+        catch(InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Indicates if this receiver cannot take more bytes for now.
+   * If so, its partly filled buffer is queued for writing, since the network
+   * will wait until queued buffers are written.
+   * @return <code>true</code> if it is full, <code>false</code> otherwise.
+   */
+  @Override
+  public boolean isFull()
+  {
+    boolean full;
+    synchronized(this)
+    {
+      full=((_pending.size()>=_maxQueued) || (_overflows>0));
+    }
+    full=((full) || (_writer.isFull()));
+    if ((full) && (_current!=null) && (_current.position()>0))
+    {
+      submitCurrent();
+    }
+    return full;
+  }
+
+  @Override
+  public boolean awaitDrain(Runnable callback)
+  {
+    synchronized(this)
+    {
+      if ((_pending.size()>=_maxQueued) || (_overflows>0))
+      {
+        _drainCallback=callback;
+        return true;
+      }
+    }
+    return _writer.awaitDrain(callback);
+  }
+
+  @Override
+  public boolean terminate()
+  {
+    flush();
+    boolean ok=super.terminate();
+    synchronized(this)
+    {
+      return ((ok) && (!_failed));
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Write-behind file receiver: "+getFile();
+  }
+}
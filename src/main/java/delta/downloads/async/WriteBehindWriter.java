@@ -0,0 +1,199 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared resources of write-behind file receivers: a bounded ring of reusable
+ * direct buffers, and the writer threads that write them to disk.
+ * <p>
+ * The ring is full when most of its buffers are queued for writing: receivers then
+ * ask the network to slow down until half of the ring is no longer queued. Buffers
+ * that receivers are still filling are not counted, since only queued buffers are
+ * sure to be released.
+ * @author DAM
+ */
+public class WriteBehindWriter
+{
+  /**
+   * Default size of buffers (bytes).
+   */
+  public static final int DEFAULT_BUFFER_SIZE=64*1024;
+  /**
+   * Default number of buffers.
+   */
+  public static final int DEFAULT_BUFFER_COUNT=64;
+  /**
+   * Default number of writer threads.
+   */
+  public static final int DEFAULT_THREADS=2;
+
+  private int _bufferSize;
+  private int _bufferCount;
+  private ExecutorService _executor;
+  // State, protected by this object lock
+  private Deque<ByteBuffer> _free;
+  private int _allocated;
+  private int _queued;
+  private List<Runnable> _drainCallbacks;
+
+  /**
+   * Constructor.
+   */
+  public WriteBehindWriter()
+  {
+    this(DEFAULT_BUFFER_COUNT,DEFAULT_BUFFER_SIZE,DEFAULT_THREADS);
+  }
+
+  /**
+   * Constructor.
+   * @param bufferCount Number of buffers in the ring.
+   * @param bufferSize Size of buffers (bytes).
+   * @param nbThreads Number of writer threads.
+   */
+  public WriteBehindWriter(int bufferCount, int bufferSize, int nbThreads)
+  {
+    _bufferSize=bufferSize;
+    _bufferCount=bufferCount;
+    _executor=Executors.newFixedThreadPool(nbThreads,new DaemonThreadFactory("Download writer"));
+    _free=new ArrayDeque<ByteBuffer>();
+    _allocated=0;
+    _queued=0;
+    _drainCallbacks=new ArrayList<Runnable>();
+  }
+
+  /**
+   * Get the size of buffers.
+   * @return a size in bytes.
+   */
+  public int getBufferSize()
+  {
+    return _bufferSize;
+  }
+
+  /**
+   * Get the number of buffers in the ring.
+   * @return a buffers count.
+   */
+  public int getBufferCount()
+  {
+    return _bufferCount;
+  }
+
+  /**
+   * Get the number of free buffers in the ring.
+   * @return a buffers count.
+   */
+  public synchronized int getFreeBuffersCount()
+  {
+    return _free.size()+(_bufferCount-_allocated);
+  }
+
+  /**
+   * Get a buffer from the ring.
+   * @return A cleared buffer, or <code>null</code> if the ring is exhausted.
+   */
+  synchronized ByteBuffer acquire()
+  {
+    ByteBuffer ret=_free.poll();
+    if ((ret==null) && (_allocated<_bufferCount))
+    {
+      ret=ByteBuffer.allocateDirect(_bufferSize);
+      _allocated++;
+    }
+    return ret;
+  }
+
+  /**
+   * Give an unused buffer back to the ring.
+   * @param buffer Buffer to release.
+   */
+  synchronized void release(ByteBuffer buffer)
+  {
+    buffer.clear();
+    _free.add(buffer);
+  }
+
+  /**
+   * Indicates that a buffer is queued for writing.
+   */
+  synchronized void queued()
+  {
+    _queued++;
+  }
+
+  /**
+   * Give a written buffer back to the ring.
+   * @param buffer Buffer to release.
+   */
+  void written(ByteBuffer buffer)
+  {
+    buffer.clear();
+    List<Runnable> callbacks=null;
+    synchronized(this)
+    {
+      _free.add(buffer);
+      _queued--;
+      if ((!_drainCallbacks.isEmpty()) && (_queued<=_bufferCount/2))
+      {
+        callbacks=new ArrayList<Runnable>(_drainCallbacks);
+        _drainCallbacks.clear();
+      }
+    }
+    if (callbacks!=null)
+    {
+      for(Runnable callback : callbacks)
+      {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * Indicates if the ring is full.
+   * @return <code>true</code> if more than three quarters of the buffers are queued for writing.
+   */
+  synchronized boolean isFull()
+  {
+    return (_bufferCount-_queued<_bufferCount/4);
+  }
+
+  /**
+   * Register a callback to be invoked when half of the ring is no longer queued for writing.
+   * @param callback Callback to invoke once.
+   * @return <code>true</code> if the callback was registered,
+   * <code>false</code> if the ring is not full.
+   */
+  synchronized boolean awaitDrain(Runnable callback)
+  {
+    if (isFull())
+    {
+      _drainCallbacks.add(callback);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Run a write job on a writer thread.
+   * @param job Job to run.
+   */
+  void execute(Runnable job)
+  {
+    _executor.execute(job);
+  }
+
+  /**
+   * Release all managed resources.
+   * Pending writes are completed.
+   */
+  public void dispose()
+  {
+    _executor.shutdown();
+  }
+}
@@ -0,0 +1,654 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receiver that extracts a ZIP archive while it is received.
+ * <p>
+ * The received bytes are written to an archive file, and the local file headers of
+ * the archive are parsed as they arrive: entries are written to the target directory
+ * without waiting for the end of the download.
+ * <p>
+ * Some archives cannot be extracted in a single pass: stored entries with a data
+ * descriptor, encrypted entries, or unsupported compression methods. Such archives
+ * are extracted from the archive file, using its central directory, when reception
+ * terminates.
+ * <p>
+ * Entries that would be extracted out of the target directory make extraction fail.
+ * @author DAM
+ */
+public class ZipExtractingReceiver implements ByteBufferReceiver,FlowControlledReceiver
+{
+  private static final Logger LOGGER=Logger.getLogger(ZipExtractingReceiver.class);
+
+  private static final int LOCAL_HEADER_SIGNATURE=0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE=0x02014b50;
+  private static final int END_SIGNATURE=0x06054b50;
+  private static final int DESCRIPTOR_SIGNATURE=0x08074b50;
+  private static final int LOCAL_HEADER_SIZE=30;
+  private static final int ZIP64_EXTRA_ID=0x0001;
+  private static final long ZIP64_MAGIC=0xFFFFFFFFL;
+  private static final int FLAG_ENCRYPTED=1;
+  private static final int FLAG_DESCRIPTOR=8;
+  private static final int BUFFER_SIZE=16*1024;
+
+  // States
+  private static final int HEADER=0;
+  private static final int STORED=1;
+  private static final int DEFLATED=2;
+  private static final int DESCRIPTOR=3;
+  private static final int DONE=4;
+  private static final int FALLBACK=5;
+  private static final int FAILED=6;
+
+  private FileReceiver _archive;
+  private ByteBufferReceiver _adaptedArchive;
+  private File _targetDir;
+  private String _targetPath;
+  private int _state;
+  // Pending header bytes
+  private byte[] _pending;
+  private int _pendingLength;
+  private int _descriptorSize;
+  // Current entry
+  private String _entryName;
+  private OutputStream _output;
+  private long _remaining;
+  private long _entryCrc;
+  private long _entrySize;
+  private long _written;
+  private boolean _zip64;
+  private CRC32 _crc;
+  private Inflater _inflater;
+  private byte[] _input;
+  private byte[] _buffer;
+  private List<File> _files;
+
+  /**
+   * Constructor.
+   * @param archive Receiver for the archive file.
+   * @param targetDir Directory to extract entries to.
+   */
+  public ZipExtractingReceiver(FileReceiver archive, File targetDir)
+  {
+    _archive=archive;
+    _adaptedArchive=archive;
+    _targetDir=targetDir;
+    _pending=new byte[LOCAL_HEADER_SIZE];
+    _crc=new CRC32();
+    _buffer=new byte[BUFFER_SIZE];
+    _files=new ArrayList<File>();
+  }
+
+  /**
+   * Get the archive file.
+   * @return a file.
+   */
+  public File getArchiveFile()
+  {
+    return _archive.getFile();
+  }
+
+  /**
+   * Get the extracted files.
+   * @return a list of files.
+   */
+  public synchronized List<File> getExtractedFiles()
+  {
+    return new ArrayList<File>(_files);
+  }
+
+  /**
+   * Indicates if the archive is extracted from the archive file, instead of while it is received.
+   * @return <code>true</code> if it is, <code>false</code> otherwise.
+   */
+  public boolean isFallback()
+  {
+    return (_state==FALLBACK);
+  }
+
+  @Override
+  public boolean start()
+  {
+    closeEntry();
+    synchronized(this)
+    {
+      _files.clear();
+    }
+    _state=HEADER;
+    _pendingLength=0;
+    try
+    {
+      _targetDir.mkdirs();
+      _targetPath=_targetDir.getCanonicalPath()+File.separator;
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Bad target directory: "+_targetDir,ioe);
+      return false;
+    }
+    return _archive.start();
+  }
+
+  @Override
+  public boolean handleBytes(byte[] buffer, int offset, int count)
+  {
+    return handleBytes(ByteBuffer.wrap(buffer,offset,count));
+  }
+
+  @Override
+  public boolean handleBytes(ByteBuffer buffer)
+  {
+    if (_state==FAILED)
+    {
+      return false;
+    }
+    ByteBuffer view=buffer.duplicate();
+    if (!_adaptedArchive.handleBytes(buffer))
+    {
+      return false;
+    }
+    if ((_state==DONE) || (_state==FALLBACK))
+    {
+      return true;
+    }
+    if (view.hasArray())
+    {
+      return process(view.array(),view.arrayOffset()+view.position(),view.remaining());
+    }
+    if (_input==null)
+    {
+      _input=new byte[BUFFER_SIZE];
+    }
+    while (view.hasRemaining())
+    {
+      int count=Math.min(view.remaining(),_input.length);
+      view.get(_input,0,count);
+      if (!process(_input,0,count))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean process(byte[] buffer, int offset, int count)
+  {
+    int end=offset+count;
+    int position=offset;
+    try
+    {
+      while ((position<end) && (_state!=DONE) && (_state!=FALLBACK))
+      {
+        if (_state==HEADER)
+        {
+          position+=handleHeader(buffer,position,end);
+        }
+        else if (_state==STORED)
+        {
+          int stored=(int)Math.min(_remaining,end-position);
+          writeEntry(buffer,position,stored);
+          _remaining-=stored;
+          position+=stored;
+          if (_remaining==0)
+          {
+            finishEntry(_entryCrc,_entrySize);
+          }
+        }
+        else if (_state==DEFLATED)
+        {
+          int remaining=inflate(buffer,position,end-position);
+          position=end-remaining;
+        }
+        else if (_state==DESCRIPTOR)
+        {
+          position+=handleDescriptor(buffer,position,end);
+        }
+      }
+      return true;
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Extraction failed for: "+_archive.getFile(),ioe);
+      closeEntry();
+      _state=FAILED;
+      return false;
+    }
+  }
+
+  private int fill(byte[] buffer, int offset, int end, int size)
+  {
+    if (_pending.length<size)
+    {
+      byte[] newPending=new byte[size];
+      System.arraycopy(_pending,0,newPending,0,_pendingLength);
+      _pending=newPending;
+    }
+    int count=Math.max(0,Math.min(end-offset,size-_pendingLength));
+    System.arraycopy(buffer,offset,_pending,_pendingLength,count);
+    _pendingLength+=count;
+    return count;
+  }
+
+  private int handleHeader(byte[] buffer, int offset, int end) throws IOException
+  {
+    int used=fill(buffer,offset,end,4);
+    if (_pendingLength<4)
+    {
+      return used;
+    }
+    int signature=(int)readInt(0);
+    if ((signature==CENTRAL_HEADER_SIGNATURE) || (signature==END_SIGNATURE))
+    {
+      // Entries are all extracted
+      _state=DONE;
+      return used;
+    }
+    if (signature!=LOCAL_HEADER_SIGNATURE)
+    {
+      fallback("unexpected signature");
+      return used;
+    }
+    used+=fill(buffer,offset+used,end,LOCAL_HEADER_SIZE);
+    if (_pendingLength<LOCAL_HEADER_SIZE)
+    {
+      return used;
+    }
+    int size=LOCAL_HEADER_SIZE+readShort(26)+readShort(28);
+    used+=fill(buffer,offset+used,end,size);
+    if (_pendingLength<size)
+    {
+      return used;
+    }
+    startEntry();
+    _pendingLength=0;
+    return used;
+  }
+
+  private void startEntry() throws IOException
+  {
+    int flags=readShort(6);
+    int method=readShort(8);
+    _entryCrc=readInt(14);
+    long compressedSize=readInt(18);
+    _entrySize=readInt(22);
+    int nameLength=readShort(26);
+    int extraLength=readShort(28);
+    _entryName=new String(_pending,LOCAL_HEADER_SIZE,nameLength,StandardCharsets.UTF_8);
+    boolean descriptor=((flags&FLAG_DESCRIPTOR)!=0);
+    _zip64=false;
+    if ((compressedSize==ZIP64_MAGIC) || (_entrySize==ZIP64_MAGIC))
+    {
+      long[] sizes=readZip64Sizes(LOCAL_HEADER_SIZE+nameLength,extraLength,_entrySize==ZIP64_MAGIC,compressedSize==ZIP64_MAGIC);
+      if (sizes==null)
+      {
+        fallback("missing ZIP64 sizes for "+_entryName);
+        return;
+      }
+      _zip64=true;
+      if (_entrySize==ZIP64_MAGIC)
+      {
+        _entrySize=sizes[0];
+      }
+      if (compressedSize==ZIP64_MAGIC)
+      {
+        compressedSize=sizes[1];
+      }
+    }
+    if ((flags&FLAG_ENCRYPTED)!=0)
+    {
+      fallback("encrypted entry "+_entryName);
+      return;
+    }
+    if ((method!=ZipEntry.STORED) && (method!=ZipEntry.DEFLATED))
+    {
+      fallback("unsupported method "+method+" for "+_entryName);
+      return;
+    }
+    if ((method==ZipEntry.STORED) && (descriptor))
+    {
+      // The end of the entry data cannot be found
+      fallback("stored entry with a data descriptor "+_entryName);
+      return;
+    }
+    File file=resolve(_entryName);
+    if (_entryName.endsWith("/"))
+    {
+      file.mkdirs();
+    }
+    else
+    {
+      File parent=file.getParentFile();
+      if (parent!=null)
+      {
+        parent.mkdirs();
+      }
+      _output=new FileOutputStream(file);
+      synchronized(this)
+      {
+        _files.add(file);
+      }
+    }
+    _crc.reset();
+    _written=0;
+    if (method==ZipEntry.STORED)
+    {
+      _remaining=compressedSize;
+      _state=STORED;
+      if (_remaining==0)
+      {
+        finishEntry(_entryCrc,_entrySize);
+      }
+    }
+    else
+    {
+      if (_inflater==null)
+      {
+        _inflater=new Inflater(true);
+      }
+      else
+      {
+        _inflater.reset();
+      }
+      _descriptorSize=descriptor?-1:0;
+      _state=DEFLATED;
+    }
+  }
+
+  private long[] readZip64Sizes(int offset, int length, boolean size, boolean compressedSize)
+  {
+    int position=offset;
+    int end=offset+length;
+    while (position+4<=end)
+    {
+      int id=readShort(position);
+      int dataSize=readShort(position+2);
+      if ((id==ZIP64_EXTRA_ID) && (position+4+dataSize<=end))
+      {
+        long[] ret=new long[2];
+        int field=position+4;
+        int needed=(size?8:0)+(compressedSize?8:0);
+        if (dataSize<needed)
+        {
+          return null;
+        }
+        if (size)
+        {
+          ret[0]=readLong(field);
+          field+=8;
+        }
+        if (compressedSize)
+        {
+          ret[1]=readLong(field);
+        }
+        return ret;
+      }
+      position+=4+dataSize;
+    }
+    return null;
+  }
+
+  /**
+   * Get the file to extract an entry to.
+   * @param name Entry name.
+   * @return A file in the target directory.
+   * @throws IOException If the entry would be extracted out of the target directory.
+   */
+  private File resolve(String name) throws IOException
+  {
+    File file=new File(_targetDir,name);
+    String path=file.getCanonicalPath();
+    if ((!path.startsWith(_targetPath)) && (!(path+File.separator).equals(_targetPath)))
+    {
+      throw new IOException("Entry is out of the target directory: "+name);
+    }
+    return file;
+  }
+
+  private int inflate(byte[] buffer, int offset, int count) throws IOException
+  {
+    _inflater.setInput(buffer,offset,count);
+    try
+    {
+      while (true)
+      {
+        int decoded=_inflater.inflate(_buffer);
+        if (decoded>0)
+        {
+          writeEntry(_buffer,0,decoded);
+        }
+        if (_inflater.finished())
+        {
+          if (_descriptorSize==0)
+          {
+            finishEntry(_entryCrc,_entrySize);
+          }
+          else
+          {
+            _state=DESCRIPTOR;
+          }
+          return _inflater.getRemaining();
+        }
+        if (_inflater.needsInput())
+        {
+          return 0;
+        }
+        if (_inflater.needsDictionary())
+        {
+          throw new IOException("Entry needs a dictionary: "+_entryName);
+        }
+      }
+    }
+    catch(DataFormatException dfe)
+    {
+      throw new IOException("Bad compressed data for entry: "+_entryName,dfe);
+    }
+  }
+
+  private int handleDescriptor(byte[] buffer, int offset, int end) throws IOException
+  {
+    int used=0;
+    if (_descriptorSize<0)
+    {
+      used=fill(buffer,offset,end,4);
+      if (_pendingLength<4)
+      {
+        return used;
+      }
+      // The descriptor signature is optional
+      int signatureSize=(readInt(0)==(DESCRIPTOR_SIGNATURE&0xFFFFFFFFL))?4:0;
+      _descriptorSize=signatureSize+4+(_zip64?16:8);
+    }
+    used+=fill(buffer,offset+used,end,_descriptorSize);
+    if (_pendingLength<_descriptorSize)
+    {
+      return used;
+    }
+    int crcOffset=_descriptorSize-(_zip64?20:12);
+    long crc=readInt(crcOffset);
+    long size=_zip64?readLong(crcOffset+12):readInt(crcOffset+8);
+    _pendingLength=0;
+    finishEntry(crc,size);
+    return used;
+  }
+
+  private void writeEntry(byte[] buffer, int offset, int count) throws IOException
+  {
+    _crc.update(buffer,offset,count);
+    _written+=count;
+    if (_output!=null)
+    {
+      _output.write(buffer,offset,count);
+    }
+  }
+
+  private void finishEntry(long crc, long size) throws IOException
+  {
+    boolean ok=((_crc.getValue()==crc) && (_written==size));
+    OutputStream output=_output;
+    _output=null;
+    if (output!=null)
+    {
+      output.close();
+    }
+    if (!ok)
+    {
+      throw new IOException("Bad CRC or size for entry: "+_entryName);
+    }
+    if (LOGGER.isDebugEnabled())
+    {
+      LOGGER.debug("Extracted: "+_entryName);
+    }
+    _state=HEADER;
+  }
+
+  private void fallback(String reason)
+  {
+    LOGGER.info("Cannot extract while receiving ("+reason+"), extracting at the end: "+_archive.getFile());
+    closeEntry();
+    _state=FALLBACK;
+  }
+
+  private void closeEntry()
+  {
+    OutputStream output=_output;
+    _output=null;
+    if (output!=null)
+    {
+      try
+      {
+        output.close();
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Could not close extracted file for entry: "+_entryName,ioe);
+      }
+    }
+  }
+
+  private int readShort(int offset)
+  {
+    return (_pending[offset]&0xFF)|((_pending[offset+1]&0xFF)<<8);
+  }
+
+  private long readInt(int offset)
+  {
+    return (readShort(offset)&0xFFFFL)|((readShort(offset+2)&0xFFFFL)<<16);
+  }
+
+  private long readLong(int offset)
+  {
+    return readInt(offset)|(readInt(offset+4)<<32);
+  }
+
+  @Override
+  public boolean isFull()
+  {
+    return ((_archive instanceof FlowControlledReceiver) && (((FlowControlledReceiver)_archive).isFull()));
+  }
+
+  @Override
+  public boolean awaitDrain(Runnable callback)
+  {
+    if (_archive instanceof FlowControlledReceiver)
+    {
+      return ((FlowControlledReceiver)_archive).awaitDrain(callback);
+    }
+    return false;
+  }
+
+  /**
+   * Terminate reception.
+   * Archives that could not be extracted while they were received are extracted here:
+   * it shall not be called from an I/O reactor thread.
+   * @return <code>true</code> if the archive was fully extracted, <code>false</code> otherwise.
+   */
+  @Override
+  public boolean terminate()
+  {
+    closeEntry();
+    if (_inflater!=null)
+    {
+      _inflater.end();
+      _inflater=null;
+    }
+    boolean ok=_archive.terminate();
+    if ((ok) && (_state==FALLBACK))
+    {
+      ok=extractArchive();
+    }
+    return ((ok) && ((_state==DONE) || (_state==FALLBACK)));
+  }
+
+  /**
+   * Extract the archive file.
+   * @return <code>true</code> if it was extracted, <code>false</code> otherwise.
+   */
+  private boolean extractArchive()
+  {
+    File archiveFile=_archive.getFile();
+    synchronized(this)
+    {
+      _files.clear();
+    }
+    try (ZipFile zipFile=new ZipFile(archiveFile))
+    {
+      Enumeration<? extends ZipEntry> entries=zipFile.entries();
+      while (entries.hasMoreElements())
+      {
+        ZipEntry entry=entries.nextElement();
+        File file=resolve(entry.getName());
+        if (entry.isDirectory())
+        {
+          file.mkdirs();
+          continue;
+        }
+        File parent=file.getParentFile();
+        if (parent!=null)
+        {
+          parent.mkdirs();
+        }
+        try (InputStream is=zipFile.getInputStream(entry); OutputStream os=new FileOutputStream(file))
+        {
+          int count;
+          while ((count=is.read(_buffer))>=0)
+          {
+            os.write(_buffer,0,count);
+          }
+        }
+        synchronized(this)
+        {
+          _files.add(file);
+        }
+      }
+      return true;
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not extract archive: "+archiveFile,ioe);
+      return false;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "ZIP extracting receiver: "+_archive.getFile()+" to "+_targetDir;
+  }
+}
@@ -0,0 +1,301 @@
+package delta.downloads.blocks;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Block checksums of a published file.
+ * <p>
+ * The file is split in blocks of a fixed size (the last one may be shorter).
+ * Each block has a weak rolling checksum, to find candidate blocks in another
+ * version of the file, and a strong hash (truncated SHA-256), to confirm them.
+ * The manifest also has the SHA-256 digest of the whole file.
+ * <p>
+ * Binary format (big endian): magic <code>DDBM</code>, version (1 byte), block size (int),
+ * file size (long), strong hash length (1 byte), file digest (32 bytes), then for
+ * each block: weak checksum (int) and strong hash.
+ * @author DAM
+ */
+public class BlockManifest
+{
+  /**
+   * Default block size (bytes).
+   */
+  public static final int DEFAULT_BLOCK_SIZE=4096;
+
+  private static final byte[] MAGIC={'D','D','B','M'};
+  private static final int VERSION=1;
+  private static final int STRONG_HASH_LENGTH=16;
+  private static final int FILE_DIGEST_LENGTH=32;
+  private static final int BUFFER_SIZE=64*1024;
+
+  private int _blockSize;
+  private long _fileSize;
+  private int _strongLength;
+  private byte[] _fileDigest;
+  private int[] _weak;
+  private byte[] _strong;
+
+  private BlockManifest(int blockSize, long fileSize, int strongLength, byte[] fileDigest, int[] weak, byte[] strong)
+  {
+    _blockSize=blockSize;
+    _fileSize=fileSize;
+    _strongLength=strongLength;
+    _fileDigest=fileDigest;
+    _weak=weak;
+    _strong=strong;
+  }
+
+  /**
+   * Get the block size.
+   * @return a size in bytes.
+   */
+  public int getBlockSize()
+  {
+    return _blockSize;
+  }
+
+  /**
+   * Get the size of the file.
+   * @return a size in bytes.
+   */
+  public long getFileSize()
+  {
+    return _fileSize;
+  }
+
+  /**
+   * Get the number of blocks.
+   * @return a blocks count.
+   */
+  public int getBlocksCount()
+  {
+    return _weak.length;
+  }
+
+  /**
+   * Get the offset of a block in the file.
+   * @param index Block index.
+   * @return an offset in bytes.
+   */
+  public long getBlockOffset(int index)
+  {
+    return ((long)index)*_blockSize;
+  }
+
+  /**
+   * Get the length of a block.
+   * @param index Block index.
+   * @return a length in bytes.
+   */
+  public int getBlockLength(int index)
+  {
+    return (int)Math.min(_blockSize,_fileSize-getBlockOffset(index));
+  }
+
+  /**
+   * Get the weak checksum of a block.
+   * @param index Block index.
+   * @return a checksum.
+   */
+  public int getWeakChecksum(int index)
+  {
+    return _weak[index];
+  }
+
+  /**
+   * Compute the strong hash of a candidate block.
+   * @param buffer Buffer to read.
+   * @param offset Offset of the candidate block in the buffer.
+   * @param length Length of the candidate block.
+   * @return a hash, to be given to {@link #matchesStrongHash(int, byte[])}.
+   */
+  public byte[] computeStrongHash(byte[] buffer, int offset, int length)
+  {
+    return computeStrongHash(buffer,offset,length,_strongLength);
+  }
+
+  /**
+   * Check the strong hash of a block.
+   * @param index Block index.
+   * @param hash Strong hash of a candidate block.
+   * @return <code>true</code> if the candidate block has the strong hash of the block.
+   */
+  public boolean matchesStrongHash(int index, byte[] hash)
+  {
+    int start=index*_strongLength;
+    for(int i=0;i<_strongLength;i++)
+    {
+      if (_strong[start+i]!=hash[i])
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the SHA-256 digest of the file.
+   * @return a digest.
+   */
+  public byte[] getFileDigest()
+  {
+    return _fileDigest.clone();
+  }
+
+  private static MessageDigest newDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch(NoSuchAlgorithmException nsae)
+    {
+      throw new IllegalStateException("SHA-256 is not available",nsae);
+    }
+  }
+
+  private static byte[] computeStrongHash(byte[] buffer, int offset, int length, int hashLength)
+  {
+    MessageDigest digest=newDigest();
+    digest.update(buffer,offset,length);
+    return Arrays.copyOf(digest.digest(),hashLength);
+  }
+
+  /**
+   * Build the manifest of a file.
+   * @param file File to use.
+   * @param blockSize Block size (bytes).
+   * @return A new manifest.
+   * @throws IOException If the file cannot be read.
+   */
+  public static BlockManifest build(File file, int blockSize) throws IOException
+  {
+    long fileSize=file.length();
+    int nbBlocks=(int)((fileSize+blockSize-1)/blockSize);
+    int[] weak=new int[nbBlocks];
+    byte[] strong=new byte[nbBlocks*STRONG_HASH_LENGTH];
+    MessageDigest fileDigest=newDigest();
+    byte[] block=new byte[blockSize];
+    try (InputStream is=new BufferedInputStream(new FileInputStream(file),BUFFER_SIZE))
+    {
+      for(int i=0;i<nbBlocks;i++)
+      {
+        int length=(int)Math.min(blockSize,fileSize-((long)i)*blockSize);
+        readFully(is,block,length);
+        weak[i]=RollingChecksum.checksum(block,0,length);
+        byte[] hash=computeStrongHash(block,0,length,STRONG_HASH_LENGTH);
+        System.arraycopy(hash,0,strong,i*STRONG_HASH_LENGTH,STRONG_HASH_LENGTH);
+        fileDigest.update(block,0,length);
+      }
+    }
+    return new BlockManifest(blockSize,fileSize,STRONG_HASH_LENGTH,fileDigest.digest(),weak,strong);
+  }
+
+  private static void readFully(InputStream is, byte[] buffer, int length) throws IOException
+  {
+    int offset=0;
+    while (offset<length)
+    {
+      int count=is.read(buffer,offset,length-offset);
+      if (count<0)
+      {
+        throw new IOException("Unexpected end of data");
+      }
+      offset+=count;
+    }
+  }
+
+  /**
+   * Write this manifest.
+   * @param os Stream to write to.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void write(OutputStream os) throws IOException
+  {
+    DataOutputStream dos=new DataOutputStream(os);
+    dos.write(MAGIC);
+    dos.writeByte(VERSION);
+    dos.writeInt(_blockSize);
+    dos.writeLong(_fileSize);
+    dos.writeByte(_strongLength);
+    dos.write(_fileDigest);
+    for(int i=0;i<_weak.length;i++)
+    {
+      dos.writeInt(_weak[i]);
+      dos.write(_strong,i*_strongLength,_strongLength);
+    }
+    dos.flush();
+  }
+
+  /**
+   * Read a manifest.
+   * @param is Stream to read from.
+   * @return the read manifest.
+   * @throws IOException If an I/O error occurs or if the data is not a valid manifest.
+   */
+  public static BlockManifest read(InputStream is) throws IOException
+  {
+    DataInputStream dis=new DataInputStream(is);
+    byte[] magic=new byte[MAGIC.length];
+    dis.readFully(magic);
+    if (!Arrays.equals(magic,MAGIC))
+    {
+      throw new IOException("Not a block manifest");
+    }
+    int version=dis.readUnsignedByte();
+    if (version!=VERSION)
+    {
+      throw new IOException("Unsupported block manifest version: "+version);
+    }
+    int blockSize=dis.readInt();
+    long fileSize=dis.readLong();
+    int strongLength=dis.readUnsignedByte();
+    if ((blockSize<=0) || (fileSize<0) || (strongLength==0) || (strongLength>FILE_DIGEST_LENGTH))
+    {
+      throw new IOException("Bad block manifest header");
+    }
+    byte[] fileDigest=new byte[FILE_DIGEST_LENGTH];
+    dis.readFully(fileDigest);
+    long nbBlocks=(fileSize+blockSize-1)/blockSize;
+    if (nbBlocks*strongLength>Integer.MAX_VALUE)
+    {
+      throw new IOException("Too many blocks: "+nbBlocks);
+    }
+    int[] weak=new int[(int)nbBlocks];
+    byte[] strong=new byte[(int)nbBlocks*strongLength];
+    for(int i=0;i<nbBlocks;i++)
+    {
+      weak[i]=dis.readInt();
+      dis.readFully(strong,i*strongLength,strongLength);
+    }
+    return new BlockManifest(blockSize,fileSize,strongLength,fileDigest,weak,strong);
+  }
+
+  /**
+   * Parse a manifest.
+   * @param data Manifest data.
+   * @return the parsed manifest.
+   * @throws IOException If the data is not a valid manifest.
+   */
+  public static BlockManifest parse(byte[] data) throws IOException
+  {
+    return read(new ByteArrayInputStream(data));
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Block manifest: "+_fileSize+" bytes, "+_weak.length+" blocks of "+_blockSize+" bytes";
+  }
+}
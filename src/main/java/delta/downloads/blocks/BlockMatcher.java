@@ -0,0 +1,218 @@
+package delta.downloads.blocks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the blocks of a manifest in a local file.
+ * <p>
+ * The local file is scanned with a window of the block size, moved one byte at a time.
+ * Candidate blocks are found with the weak checksum and confirmed with the strong hash.
+ * After a match, the window jumps over the matched block. So blocks are found even if
+ * data was inserted or removed before them.
+ * @author DAM
+ */
+public class BlockMatcher
+{
+  private static final int BUFFER_SIZE=256*1024;
+
+  private BlockManifest _manifest;
+  private Map<Integer,List<Integer>> _index;
+  private long[] _offsets;
+  private int _found;
+
+  /**
+   * Constructor.
+   * @param manifest Manifest to use.
+   */
+  public BlockMatcher(BlockManifest manifest)
+  {
+    _manifest=manifest;
+    _offsets=new long[manifest.getBlocksCount()];
+    Arrays.fill(_offsets,-1);
+    _index=new HashMap<Integer,List<Integer>>();
+    int blockSize=manifest.getBlockSize();
+    for(int i=0;i<_offsets.length;i++)
+    {
+      if (manifest.getBlockLength(i)==blockSize)
+      {
+        Integer weak=Integer.valueOf(manifest.getWeakChecksum(i));
+        List<Integer> blocks=_index.get(weak);
+        if (blocks==null)
+        {
+          blocks=new ArrayList<Integer>(1);
+          _index.put(weak,blocks);
+        }
+        blocks.add(Integer.valueOf(i));
+      }
+    }
+  }
+
+  /**
+   * Find the blocks of the manifest in a local file.
+   * @param file Local file.
+   * @return the offset of each block in the local file, or <code>-1</code> for missing blocks.
+   * @throws IOException If the file cannot be read.
+   */
+  public long[] findBlocks(File file) throws IOException
+  {
+    if (file.isFile())
+    {
+      scan(file);
+      matchLastBlock(file);
+    }
+    return _offsets.clone();
+  }
+
+  /**
+   * Get the number of blocks found by the last scan.
+   * @return a blocks count.
+   */
+  public int getFoundBlocksCount()
+  {
+    return _found;
+  }
+
+  private void scan(File file) throws IOException
+  {
+    int blockSize=_manifest.getBlockSize();
+    if (_index.isEmpty())
+    {
+      return;
+    }
+    byte[] buffer=new byte[Math.max(BUFFER_SIZE,2*blockSize)];
+    RollingChecksum checksum=new RollingChecksum(blockSize);
+    boolean valid=false;
+    long bufferPosition=0;
+    int start=0;
+    int end=0;
+    try (InputStream is=new FileInputStream(file))
+    {
+      while (true)
+      {
+        if (end-start<blockSize)
+        {
+          bufferPosition+=start;
+          end=compact(is,buffer,start,end);
+          start=0;
+          if (end<blockSize)
+          {
+            break;
+          }
+        }
+        if (!valid)
+        {
+          checksum.compute(buffer,start,blockSize);
+          valid=true;
+        }
+        if (match(checksum.getValue(),buffer,start,bufferPosition+start))
+        {
+          start+=blockSize;
+          valid=false;
+          continue;
+        }
+        // Roll the window: the next byte shall be in the buffer
+        if (start+blockSize==end)
+        {
+          bufferPosition+=start;
+          end=compact(is,buffer,start,end);
+          start=0;
+          if (end==blockSize)
+          {
+            break;
+          }
+        }
+        checksum.roll(buffer[start],buffer[start+blockSize]);
+        start++;
+      }
+    }
+  }
+
+  private int compact(InputStream is, byte[] buffer, int start, int end) throws IOException
+  {
+    System.arraycopy(buffer,start,buffer,0,end-start);
+    return fill(is,buffer,end-start);
+  }
+
+  private int fill(InputStream is, byte[] buffer, int offset) throws IOException
+  {
+    while (offset<buffer.length)
+    {
+      int count=is.read(buffer,offset,buffer.length-offset);
+      if (count<0)
+      {
+        break;
+      }
+      offset+=count;
+    }
+    return offset;
+  }
+
+  private boolean match(int weak, byte[] buffer, int offset, long position)
+  {
+    List<Integer> candidates=_index.get(Integer.valueOf(weak));
+    if (candidates==null)
+    {
+      return false;
+    }
+    byte[] hash=null;
+    boolean matched=false;
+    for(Integer candidate : candidates)
+    {
+      int index=candidate.intValue();
+      if (_offsets[index]>=0)
+      {
+        continue;
+      }
+      if (hash==null)
+      {
+        hash=_manifest.computeStrongHash(buffer,offset,_manifest.getBlockSize());
+      }
+      if (_manifest.matchesStrongHash(index,hash))
+      {
+        _offsets[index]=position;
+        _found++;
+        matched=true;
+      }
+    }
+    return matched;
+  }
+
+  /**
+   * A short last block can only be found at the end of the local file.
+   */
+  private void matchLastBlock(File file) throws IOException
+  {
+    int last=_offsets.length-1;
+    if (last<0)
+    {
+      return;
+    }
+    int length=_manifest.getBlockLength(last);
+    if ((length==_manifest.getBlockSize()) || (_offsets[last]>=0) || (file.length()<length))
+    {
+      return;
+    }
+    byte[] block=new byte[length];
+    long position=file.length()-length;
+    try (RandomAccessFile raf=new RandomAccessFile(file,"r"))
+    {
+      raf.seek(position);
+      raf.readFully(block);
+    }
+    if ((RollingChecksum.checksum(block,0,length)==_manifest.getWeakChecksum(last))
+        && (_manifest.matchesStrongHash(last,_manifest.computeStrongHash(block,0,length))))
+    {
+      _offsets[last]=position;
+      _found++;
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package delta.downloads.blocks;
+
+/**
+ * Weak checksum of a block of bytes, that can be rolled one byte at a time.
+ * <p>
+ * This is the rsync checksum: two 16 bits sums, the first one of the bytes, the second
+ * one of the bytes weighted by their distance to the end of the block.
+ * @author DAM
+ */
+public class RollingChecksum
+{
+  private int _blockSize;
+  private int _a;
+  private int _b;
+
+  /**
+   * Constructor.
+   * @param blockSize Size of the blocks (bytes).
+   */
+  public RollingChecksum(int blockSize)
+  {
+    _blockSize=blockSize;
+  }
+
+  /**
+   * Compute the checksum of a block.
+   * @param buffer Buffer to read.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   */
+  public void compute(byte[] buffer, int offset, int length)
+  {
+    int a=0;
+    int b=0;
+    for(int i=0;i<length;i++)
+    {
+      int value=buffer[offset+i]&0xFF;
+      a+=value;
+      b+=(length-i)*value;
+    }
+    _a=a&0xFFFF;
+    _b=b&0xFFFF;
+  }
+
+  /**
+   * Move the block one byte forward.
+   * @param out Byte that leaves the block.
+   * @param in Byte that enters the block.
+   */
+  public void roll(byte out, byte in)
+  {
+    int outValue=out&0xFF;
+    _a=(_a-outValue+(in&0xFF))&0xFFFF;
+    _b=(_b-_blockSize*outValue+_a)&0xFFFF;
+  }
+
+  /**
+   * Get the checksum value.
+   * @return a 32 bits checksum.
+   */
+  public int getValue()
+  {
+    return (_b<<16)|_a;
+  }
+
+  /**
+   * Compute the checksum of a block.
+   * @param buffer Buffer to read.
+   * @param offset Offset of the block in the buffer.
+   * @param length Length of the block.
+   * @return a 32 bits checksum.
+   */
+  public static int checksum(byte[] buffer, int offset, int length)
+  {
+    RollingChecksum checksum=new RollingChecksum(length);
+    checksum.compute(buffer,offset,length);
+    return checksum.getValue();
+  }
+}
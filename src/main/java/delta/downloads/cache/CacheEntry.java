@@ -0,0 +1,153 @@
+package delta.downloads.cache;
+
+/**
+ * Metadata of a cached HTTP response.
+ * @author DAM
+ */
+public class CacheEntry
+{
+  private String _url;
+  private String _key;
+  private String _etag;
+  private String _lastModified;
+  private String _contentType;
+  private long _expires;
+  private long _size;
+
+  /**
+   * Constructor.
+   * @param url Resource URL.
+   * @param key Storage key.
+   */
+  CacheEntry(String url, String key)
+  {
+    _url=url;
+    _key=key;
+  }
+
+  /**
+   * Get the URL of the cached resource.
+   * @return an URL.
+   */
+  public String getURL()
+  {
+    return _url;
+  }
+
+  /**
+   * Get the storage key of this entry.
+   * @return a key.
+   */
+  String getKey()
+  {
+    return _key;
+  }
+
+  /**
+   * Get the entity tag of the cached resource.
+   * @return an entity tag or <code>null</code> if not known.
+   */
+  public String getETag()
+  {
+    return _etag;
+  }
+
+  /**
+   * Get the last modification date of the cached resource.
+   * @return an HTTP date or <code>null</code> if not known.
+   */
+  public String getLastModified()
+  {
+    return _lastModified;
+  }
+
+  /**
+   * Set the validators of the cached resource.
+   * @param etag Entity tag (may be <code>null</code>).
+   * @param lastModified Last modification date (may be <code>null</code>).
+   */
+  void setValidators(String etag, String lastModified)
+  {
+    _etag=etag;
+    _lastModified=lastModified;
+  }
+
+  /**
+   * Indicates if this entry can be revalidated.
+   * @return <code>true</code> if it has a validator, <code>false</code> otherwise.
+   */
+  public boolean hasValidator()
+  {
+    return ((_etag!=null) || (_lastModified!=null));
+  }
+
+  /**
+   * Get the content type of the cached resource.
+   * @return a content type or <code>null</code> if not known.
+   */
+  public String getContentType()
+  {
+    return _contentType;
+  }
+
+  /**
+   * Set the content type of the cached resource.
+   * @param contentType Content type to set.
+   */
+  void setContentType(String contentType)
+  {
+    _contentType=contentType;
+  }
+
+  /**
+   * Get the expiration date of this entry.
+   * @return a date (milliseconds since epoch), or <code>0</code> if it must be revalidated.
+   */
+  public long getExpires()
+  {
+    return _expires;
+  }
+
+  /**
+   * Set the expiration date of this entry.
+   * @param expires Date to set (milliseconds since epoch).
+   */
+  void setExpires(long expires)
+  {
+    _expires=expires;
+  }
+
+  /**
+   * Indicates if this entry can be used without revalidation.
+   * @param now Current date (milliseconds since epoch).
+   * @return <code>true</code> if it is fresh, <code>false</code> otherwise.
+   */
+  public boolean isFresh(long now)
+  {
+    return (now<_expires);
+  }
+
+  /**
+   * Get the size of the cached body.
+   * @return a size in bytes.
+   */
+  public long getSize()
+  {
+    return _size;
+  }
+
+  /**
+   * Set the size of the cached body.
+   * @param size Size to set (bytes).
+   */
+  void setSize(long size)
+  {
+    _size=size;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Cache entry for "+_url+": size="+_size+", ETag="+_etag+", Last-Modified="+_lastModified+", expires="+_expires;
+  }
+}
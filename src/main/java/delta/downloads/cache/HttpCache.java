@@ -0,0 +1,588 @@
+package delta.downloads.cache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent cache of HTTP responses.
+ * <p>
+ * Bodies are stored in files, with a metadata file each. An in-memory index, keyed by URL,
+ * keeps entries in least-recently-used order: the least recently used entries are evicted
+ * when the total size of bodies exceeds the size budget.
+ * <p>
+ * Freshness is computed from <code>Cache-Control</code> (<code>max-age</code>,
+ * <code>no-cache</code>, <code>no-store</code>) and <code>Expires</code> headers.
+ * Stale entries are revalidated using their <code>ETag</code>/<code>Last-Modified</code> validators.
+ * This class is thread-safe.
+ * @author DAM
+ */
+public class HttpCache
+{
+  private static final Logger LOGGER=Logger.getLogger(HttpCache.class);
+
+  private static final String META_EXTENSION=".meta";
+  private static final String BODY_EXTENSION=".body";
+
+  private static final String URL="url";
+  private static final String ETAG="etag";
+  private static final String LAST_MODIFIED="lastModified";
+  private static final String CONTENT_TYPE="contentType";
+  private static final String EXPIRES="expires";
+  private static final String SIZE="size";
+
+  private File _directory;
+  private long _maxSize;
+  private long _size;
+  private Map<String,CacheEntry> _index;
+  // Statistics
+  private long _hits;
+  private long _revalidations;
+  private long _misses;
+
+  /**
+   * Constructor.
+   * Existing entries of the given directory are loaded.
+   * @param directory Storage directory.
+   * @param maxSize Size budget (bytes).
+   */
+  public HttpCache(File directory, long maxSize)
+  {
+    _directory=directory;
+    _maxSize=maxSize;
+    _index=new LinkedHashMap<String,CacheEntry>(16,0.75f,true);
+    _directory.mkdirs();
+    load();
+  }
+
+  /**
+   * Get the cache entry for an URL.
+   * @param url URL to use.
+   * @return An entry (fresh or not) or <code>null</code> if not found.
+   */
+  public synchronized CacheEntry lookup(String url)
+  {
+    CacheEntry entry=_index.get(url);
+    if (entry==null)
+    {
+      _misses++;
+    }
+    else if (entry.isFresh(System.currentTimeMillis()))
+    {
+      _hits++;
+      getBodyFile(entry).setLastModified(System.currentTimeMillis());
+    }
+    return entry;
+  }
+
+  /**
+   * Add the validators of a cache entry to a request, to make it conditional.
+   * @param request Request to update.
+   * @param entry Cache entry.
+   */
+  public static void addValidators(HttpRequest request, CacheEntry entry)
+  {
+    if (entry.getETag()!=null)
+    {
+      request.setHeader("If-None-Match",entry.getETag());
+    }
+    if (entry.getLastModified()!=null)
+    {
+      request.setHeader("If-Modified-Since",entry.getLastModified());
+    }
+  }
+
+  /**
+   * Get the body file of a cache entry.
+   * @param entry Cache entry.
+   * @return A file.
+   */
+  public File getBodyFile(CacheEntry entry)
+  {
+    return new File(_directory,entry.getKey()+BODY_EXTENSION);
+  }
+
+  /**
+   * Get the body of a cache entry.
+   * @param entry Cache entry.
+   * @return the cached body, or <code>null</code> if it could not be read.
+   */
+  public byte[] getBody(CacheEntry entry)
+  {
+    File file=getBodyFile(entry);
+    try
+    {
+      byte[] ret=Files.readAllBytes(file.toPath());
+      if (ret.length==entry.getSize())
+      {
+        return ret;
+      }
+      LOGGER.warn("Bad size for cached body: "+file);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not read cached body: "+file,ioe);
+    }
+    remove(entry.getURL());
+    return null;
+  }
+
+  /**
+   * Indicates if a response can be stored.
+   * @param response Response to test.
+   * @return <code>true</code> if it can, <code>false</code> otherwise.
+   */
+  public static boolean isCacheable(HttpResponse response)
+  {
+    if (response.getStatusLine().getStatusCode()!=HttpStatus.SC_OK)
+    {
+      return false;
+    }
+    if (hasDirective(response,"no-store"))
+    {
+      return false;
+    }
+    String vary=getHeader(response,"Vary");
+    if ((vary!=null) && (vary.trim().equals("*")))
+    {
+      return false;
+    }
+    boolean hasValidator=((getHeader(response,"ETag")!=null) || (getHeader(response,"Last-Modified")!=null));
+    return ((hasValidator) || (computeExpires(response,System.currentTimeMillis())>0));
+  }
+
+  /**
+   * Store a response.
+   * @param url Resource URL.
+   * @param response Response.
+   * @param body Response body.
+   * @return the new cache entry, or <code>null</code> if the response was not stored.
+   */
+  public CacheEntry store(String url, HttpResponse response, byte[] body)
+  {
+    if ((!isCacheable(response)) || (body.length>_maxSize))
+    {
+      return null;
+    }
+    CacheEntry entry=new CacheEntry(url,buildKey(url));
+    entry.setValidators(getHeader(response,"ETag"),getHeader(response,"Last-Modified"));
+    entry.setContentType(getHeader(response,"Content-Type"));
+    entry.setExpires(computeExpires(response,System.currentTimeMillis()));
+    entry.setSize(body.length);
+    File bodyFile=getBodyFile(entry);
+    File tmp=new File(_directory,entry.getKey()+"."+Thread.currentThread().getId()+".tmp");
+    try
+    {
+      Files.write(tmp.toPath(),body);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not write cached body: "+bodyFile,ioe);
+      tmp.delete();
+      return null;
+    }
+    synchronized(this)
+    {
+      try
+      {
+        Files.move(tmp.toPath(),bodyFile.toPath(),StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch(IOException ioe)
+      {
+        LOGGER.warn("Could not write cached body: "+bodyFile,ioe);
+        tmp.delete();
+        return null;
+      }
+      putEntry(entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Update an entry after a successful revalidation (<code>304</code> response).
+   * @param entry Revalidated entry.
+   * @param response Response.
+   * @return the updated entry.
+   */
+  public CacheEntry refresh(CacheEntry entry, HttpResponse response)
+  {
+    CacheEntry updated=new CacheEntry(entry.getURL(),entry.getKey());
+    String etag=getHeader(response,"ETag");
+    String lastModified=getHeader(response,"Last-Modified");
+    updated.setValidators((etag!=null)?etag:entry.getETag(),(lastModified!=null)?lastModified:entry.getLastModified());
+    updated.setContentType(entry.getContentType());
+    updated.setExpires(computeExpires(response,System.currentTimeMillis()));
+    updated.setSize(entry.getSize());
+    synchronized(this)
+    {
+      _revalidations++;
+      if (_index.get(entry.getURL())==entry)
+      {
+        putEntry(updated);
+        getBodyFile(updated).setLastModified(System.currentTimeMillis());
+      }
+    }
+    return updated;
+  }
+
+  private void putEntry(CacheEntry entry)
+  {
+    CacheEntry old=_index.put(entry.getURL(),entry);
+    if (old!=null)
+    {
+      _size-=old.getSize();
+    }
+    _size+=entry.getSize();
+    saveMeta(entry);
+    evict();
+  }
+
+  private void evict()
+  {
+    Iterator<CacheEntry> it=_index.values().iterator();
+    while ((_size>_maxSize) && (it.hasNext()))
+    {
+      CacheEntry entry=it.next();
+      it.remove();
+      _size-=entry.getSize();
+      deleteFiles(entry);
+      if (LOGGER.isDebugEnabled())
+      {
+        LOGGER.debug("Evicted: "+entry);
+      }
+    }
+  }
+
+  /**
+   * Remove the entry for an URL.
+   * @param url URL to use.
+   */
+  public synchronized void remove(String url)
+  {
+    CacheEntry entry=_index.remove(url);
+    if (entry!=null)
+    {
+      _size-=entry.getSize();
+      deleteFiles(entry);
+    }
+  }
+
+  /**
+   * Remove all entries.
+   */
+  public synchronized void clear()
+  {
+    for(CacheEntry entry : _index.values())
+    {
+      deleteFiles(entry);
+    }
+    _index.clear();
+    _size=0;
+  }
+
+  /**
+   * Get the total size of cached bodies.
+   * @return a size in bytes.
+   */
+  public synchronized long getSize()
+  {
+    return _size;
+  }
+
+  /**
+   * Get the number of entries.
+   * @return an entries count.
+   */
+  public synchronized int getEntriesCount()
+  {
+    return _index.size();
+  }
+
+  /**
+   * Get a displayable string for the cache statistics.
+   * @return A displayable string.
+   */
+  public synchronized String getStatistics()
+  {
+    return "Cache: "+_index.size()+" entries, "+_size+" bytes - hits="+_hits+", revalidations="+_revalidations+", misses="+_misses;
+  }
+
+  private void deleteFiles(CacheEntry entry)
+  {
+    new File(_directory,entry.getKey()+META_EXTENSION).delete();
+    getBodyFile(entry).delete();
+  }
+
+  private void saveMeta(CacheEntry entry)
+  {
+    Properties props=new Properties();
+    props.setProperty(URL,entry.getURL());
+    if (entry.getETag()!=null)
+    {
+      props.setProperty(ETAG,entry.getETag());
+    }
+    if (entry.getLastModified()!=null)
+    {
+      props.setProperty(LAST_MODIFIED,entry.getLastModified());
+    }
+    if (entry.getContentType()!=null)
+    {
+      props.setProperty(CONTENT_TYPE,entry.getContentType());
+    }
+    props.setProperty(EXPIRES,String.valueOf(entry.getExpires()));
+    props.setProperty(SIZE,String.valueOf(entry.getSize()));
+    File file=new File(_directory,entry.getKey()+META_EXTENSION);
+    try (OutputStream os=new FileOutputStream(file))
+    {
+      props.store(os,null);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not write cache metadata: "+file,ioe);
+    }
+  }
+
+  private synchronized void load()
+  {
+    File[] files=_directory.listFiles();
+    if (files==null)
+    {
+      return;
+    }
+    List<CacheEntry> entries=new ArrayList<CacheEntry>();
+    for(File file : files)
+    {
+      String name=file.getName();
+      if (!name.endsWith(META_EXTENSION))
+      {
+        if (name.endsWith(".tmp"))
+        {
+          file.delete();
+        }
+        continue;
+      }
+      String key=name.substring(0,name.length()-META_EXTENSION.length());
+      CacheEntry entry=loadMeta(file,key);
+      if ((entry!=null) && (getBodyFile(entry).length()==entry.getSize()))
+      {
+        entries.add(entry);
+      }
+      else
+      {
+        file.delete();
+        new File(_directory,key+BODY_EXTENSION).delete();
+      }
+    }
+    // Restore the LRU order from the last access dates
+    final Map<CacheEntry,Long> accessDates=new LinkedHashMap<CacheEntry,Long>();
+    for(CacheEntry entry : entries)
+    {
+      accessDates.put(entry,Long.valueOf(getBodyFile(entry).lastModified()));
+    }
+    Collections.sort(entries,new Comparator<CacheEntry>()
+    {
+      @Override
+      public int compare(CacheEntry e1, CacheEntry e2)
+      {
+        return accessDates.get(e1).compareTo(accessDates.get(e2));
+      }
+    });
+    for(CacheEntry entry : entries)
+    {
+      _index.put(entry.getURL(),entry);
+      _size+=entry.getSize();
+    }
+    evict();
+  }
+
+  private CacheEntry loadMeta(File file, String key)
+  {
+    Properties props=new Properties();
+    try (InputStream is=new FileInputStream(file))
+    {
+      props.load(is);
+    }
+    catch(IOException ioe)
+    {
+      LOGGER.warn("Could not load cache metadata: "+file,ioe);
+      return null;
+    }
+    String url=props.getProperty(URL);
+    if ((url==null) || (!key.equals(buildKey(url))))
+    {
+      return null;
+    }
+    CacheEntry entry=new CacheEntry(url,key);
+    entry.setValidators(props.getProperty(ETAG),props.getProperty(LAST_MODIFIED));
+    entry.setContentType(props.getProperty(CONTENT_TYPE));
+    try
+    {
+      entry.setExpires(Long.parseLong(props.getProperty(EXPIRES,"0")));
+      entry.setSize(Long.parseLong(props.getProperty(SIZE,"-1")));
+    }
+    catch(NumberFormatException nfe)
+    {
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Compute the expiration date of a response.
+   * @param response Response to use.
+   * @param now Current date (milliseconds since epoch).
+   * @return An expiration date (milliseconds since epoch), or <code>0</code> if the response
+   * must be revalidated before each use.
+   */
+  static long computeExpires(HttpResponse response, long now)
+  {
+    if ((hasDirective(response,"no-cache")) || (hasDirective(response,"no-store")))
+    {
+      return 0;
+    }
+    long age=0;
+    Long ageValue=parseSeconds(getHeader(response,"Age"));
+    if (ageValue!=null)
+    {
+      age=ageValue.longValue();
+    }
+    Long maxAge=parseSeconds(getDirectiveValue(response,"max-age"));
+    if (maxAge!=null)
+    {
+      long freshness=maxAge.longValue()-age;
+      return (freshness>0)?now+freshness*1000:0;
+    }
+    String expiresValue=getHeader(response,"Expires");
+    if (expiresValue!=null)
+    {
+      Date expires=DateUtils.parseDate(expiresValue);
+      if (expires==null)
+      {
+        return 0;
+      }
+      // Use the server clock to compute the freshness lifetime
+      long date=now;
+      String dateValue=getHeader(response,"Date");
+      if (dateValue!=null)
+      {
+        Date serverDate=DateUtils.parseDate(dateValue);
+        if (serverDate!=null)
+        {
+          date=serverDate.getTime();
+        }
+      }
+      long freshness=expires.getTime()-date-age*1000;
+      return (freshness>0)?now+freshness:0;
+    }
+    return 0;
+  }
+
+  private static boolean hasDirective(HttpResponse response, String directive)
+  {
+    for(Header header : response.getHeaders("Cache-Control"))
+    {
+      for(String token : header.getValue().split(","))
+      {
+        String name=token.trim().toLowerCase();
+        int equals=name.indexOf('=');
+        if (equals>=0)
+        {
+          name=name.substring(0,equals).trim();
+        }
+        if (name.equals(directive))
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static String getDirectiveValue(HttpResponse response, String directive)
+  {
+    for(Header header : response.getHeaders("Cache-Control"))
+    {
+      for(String token : header.getValue().split(","))
+      {
+        String trimmed=token.trim();
+        int equals=trimmed.indexOf('=');
+        if ((equals>0) && (trimmed.substring(0,equals).trim().equalsIgnoreCase(directive)))
+        {
+          String value=trimmed.substring(equals+1).trim();
+          if (value.startsWith("\"") && (value.endsWith("\"")) && (value.length()>=2))
+          {
+            value=value.substring(1,value.length()-1);
+          }
+          return value;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Long parseSeconds(String value)
+  {
+    if (value==null)
+    {
+      return null;
+    }
+    try
+    {
+      return Long.valueOf(Math.max(Long.parseLong(value.trim()),0));
+    }
+    catch(NumberFormatException nfe)
+    {
+      return null;
+    }
+  }
+
+  private static String getHeader(HttpResponse response, String name)
+  {
+    Header header=response.getFirstHeader(name);
+    return (header!=null)?header.getValue():null;
+  }
+
+  private static String buildKey(String url)
+  {
+    try
+    {
+      MessageDigest digest=MessageDigest.getInstance("SHA-1");
+      byte[] hash=digest.digest(url.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb=new StringBuilder();
+      for(byte b : hash)
+      {
+        sb.append(Character.forDigit((b>>4)&0xF,16));
+        sb.append(Character.forDigit(b&0xF,16));
+      }
+      return sb.toString();
+    }
+    catch(NoSuchAlgorithmException nsae)
+    {
+      throw new IllegalStateException(nsae);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package delta.downloads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for the download service.
+ * @author DAM
+ */
+public class DownloaderTest extends TestCase
+{
+  private byte[] _body;
+  private AtomicInteger _requests;
+  private HttpServer _server;
+  private String _url;
+  private Downloader _downloader;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _body=new byte[100000];
+    new Random(1).nextBytes(_body);
+    _requests=new AtomicInteger();
+    _server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    _server.setExecutor(Executors.newCachedThreadPool());
+    _server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        _requests.incrementAndGet();
+        try
+        {
+          Thread.sleep(300);
+        }
+        catch(InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+        }
+        exchange.sendResponseHeaders(200,_body.length);
+        exchange.getResponseBody().write(_body);
+        exchange.close();
+      }
+    });
+    _server.start();
+    _url="http://127.0.0.1:"+_server.getAddress().getPort()+"/shared";
+    _downloader=new Downloader();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _downloader.dispose();
+    _server.stop(0);
+  }
+
+  /**
+   * Download the test URL from several threads at once.
+   * @param nbThreads Number of threads.
+   * @return the results.
+   * @throws Exception If an error occurs.
+   */
+  private List<byte[]> downloadConcurrently(int nbThreads) throws Exception
+  {
+    final List<byte[]> results=Collections.synchronizedList(new ArrayList<byte[]>());
+    final List<Throwable> errors=Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads=new ArrayList<Thread>();
+    for(int i=0;i<nbThreads;i++)
+    {
+      Thread thread=new Thread("Download "+i)
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            results.add(_downloader.downloadBuffer(_url));
+          }
+          catch(Throwable t)
+          {
+            errors.add(t);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread : threads)
+    {
+      thread.join(10000);
+    }
+    assertTrue(errors.toString(),errors.isEmpty());
+    assertEquals(nbThreads,results.size());
+    return results;
+  }
+
+  /**
+   * Test concurrent identical requests with coalescing: they share a single transfer.
+   * @throws Exception If an error occurs.
+   */
+  public void testCoalescing() throws Exception
+  {
+    _downloader.setCoalesceRequests(true);
+    List<byte[]> results=downloadConcurrently(6);
+    assertEquals(1,_requests.get());
+    for(int i=0;i<results.size();i++)
+    {
+      assertTrue(Arrays.equals(_body,results.get(i)));
+      // Each caller gets its own buffer
+      for(int j=0;j<i;j++)
+      {
+        assertNotSame(results.get(j),results.get(i));
+      }
+    }
+  }
+
+  /**
+   * Test concurrent identical requests without coalescing, the default.
+   * @throws Exception If an error occurs.
+   */
+  public void testNoCoalescing() throws Exception
+  {
+    List<byte[]> results=downloadConcurrently(3);
+    assertEquals(3,_requests.get());
+    for(byte[] result : results)
+    {
+      assertTrue(Arrays.equals(_body,result));
+    }
+  }
+}
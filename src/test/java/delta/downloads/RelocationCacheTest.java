@@ -0,0 +1,48 @@
+package delta.downloads;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the relocation cache.
+ * @author DAM
+ */
+public class RelocationCacheTest extends TestCase
+{
+  /**
+   * Test the expiration of relocations.
+   * @throws Exception If an error occurs.
+   */
+  public void testExpiration() throws Exception
+  {
+    RelocationCache cache=new RelocationCache();
+    cache.setTTL(50,60000);
+    cache.put("http://a/","http://b/",false);
+    cache.put("http://c/","http://d/",true);
+    assertEquals("http://b/",cache.lookup("http://a/"));
+    assertEquals("http://d/",cache.lookup("http://c/"));
+    Thread.sleep(100);
+    // Temporary relocations expire first
+    assertNull(cache.lookup("http://a/"));
+    assertEquals("http://d/",cache.lookup("http://c/"));
+    assertEquals(1,cache.size());
+    cache.remove("http://c/");
+    assertNull(cache.lookup("http://c/"));
+  }
+
+  /**
+   * Test the eviction of the least recently used relocations.
+   */
+  public void testEviction()
+  {
+    RelocationCache cache=new RelocationCache();
+    cache.setMaxEntries(2);
+    cache.put("http://1/","http://1/",false);
+    cache.put("http://2/","http://2/",false);
+    assertEquals("http://1/",cache.lookup("http://1/"));
+    cache.put("http://3/","http://3/",false);
+    assertEquals(2,cache.size());
+    assertNull(cache.lookup("http://2/"));
+    assertEquals("http://1/",cache.lookup("http://1/"));
+    assertEquals("http://3/",cache.lookup("http://3/"));
+  }
+}
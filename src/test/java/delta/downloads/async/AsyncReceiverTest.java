@@ -0,0 +1,144 @@
+package delta.downloads.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the asynchronous receiver.
+ * @author DAM
+ */
+public class AsyncReceiverTest extends TestCase
+{
+  /**
+   * Executor that runs tasks when asked to.
+   */
+  private static class ManualExecutor implements Executor
+  {
+    private List<Runnable> _tasks=new ArrayList<Runnable>();
+    private boolean _rejecting;
+
+    @Override
+    public void execute(Runnable task)
+    {
+      if (_rejecting)
+      {
+        throw new RejectedExecutionException();
+      }
+      _tasks.add(task);
+    }
+
+    private void runAll()
+    {
+      while (!_tasks.isEmpty())
+      {
+        _tasks.remove(0).run();
+      }
+    }
+  }
+
+  /**
+   * Test a reception drained by a thread pool.
+   */
+  public void testQueue()
+  {
+    ExecutorService executor=Executors.newSingleThreadExecutor();
+    try
+    {
+      byte[] data=ReceiverTestUtils.buildData(200000);
+      BufferReceiver buffer=new BufferReceiver();
+      AsyncReceiver receiver=new AsyncReceiver(buffer,executor,16*1024);
+      assertEquals(0,receiver.start(0));
+      assertTrue(ReceiverTestUtils.feed(receiver,data,1000));
+      assertTrue(receiver.terminate());
+      assertTrue(Arrays.equals(data,buffer.getBytes()));
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Test the back-pressure: a full receiver calls back when half of its queue is drained.
+   */
+  public void testBackPressure()
+  {
+    ManualExecutor executor=new ManualExecutor();
+    byte[] data=ReceiverTestUtils.buildData(5000);
+    BufferReceiver buffer=new BufferReceiver();
+    AsyncReceiver receiver=new AsyncReceiver(buffer,executor,4000);
+    assertEquals(0,receiver.start(0));
+    assertFalse(receiver.awaitDrain(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        fail("Not full");
+      }
+    }));
+    assertTrue(ReceiverTestUtils.feed(receiver,data,1000));
+    assertTrue(receiver.isFull());
+    final AtomicInteger drained=new AtomicInteger();
+    assertTrue(receiver.awaitDrain(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        drained.incrementAndGet();
+      }
+    }));
+    assertEquals(1,executor._tasks.size());
+    executor.runAll();
+    assertEquals(1,drained.get());
+    assertFalse(receiver.isFull());
+    assertTrue(receiver.terminate());
+    assertTrue(Arrays.equals(data,buffer.getBytes()));
+  }
+
+  /**
+   * Test a restart from the beginning while bytes are queued: it does not wait for the drain.
+   */
+  public void testRestart()
+  {
+    ManualExecutor executor=new ManualExecutor();
+    byte[] old=ReceiverTestUtils.buildData(3000);
+    byte[] data=ReceiverTestUtils.buildData(2000);
+    data[0]=42;
+    BufferReceiver buffer=new BufferReceiver();
+    AsyncReceiver receiver=new AsyncReceiver(buffer,executor,4000);
+    assertEquals(0,receiver.start(0));
+    assertTrue(ReceiverTestUtils.feed(receiver,old,1000));
+    // Queued bytes are dropped, the drain task restarts the delegate
+    assertEquals(0,receiver.start(0));
+    assertFalse(receiver.isFull());
+    assertTrue(ReceiverTestUtils.feed(receiver,data,700));
+    executor.runAll();
+    assertTrue(receiver.terminate());
+    assertTrue(Arrays.equals(data,buffer.getBytes()));
+  }
+
+  /**
+   * Test an executor that rejects the drain task: the receiver fails without blocking.
+   */
+  public void testRejectedDrain()
+  {
+    ManualExecutor executor=new ManualExecutor();
+    BufferReceiver buffer=new BufferReceiver();
+    AsyncReceiver receiver=new AsyncReceiver(buffer,executor,4000);
+    assertEquals(0,receiver.start(0));
+    executor._rejecting=true;
+    assertFalse(ReceiverTestUtils.feed(receiver,ReceiverTestUtils.buildData(1000),500));
+    assertFalse(receiver.isFull());
+    assertFalse(receiver.handleBytes(new byte[10],0,10));
+    receiver.flush();
+    assertFalse(receiver.terminate());
+  }
+}
@@ -0,0 +1,92 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the buffer receiver.
+ * @author DAM
+ */
+public class BufferReceiverTest extends TestCase
+{
+  /**
+   * Test a reception with an announced size.
+   */
+  public void testPresized()
+  {
+    byte[] data=ReceiverTestUtils.buildData(10000);
+    BufferReceiver receiver=new BufferReceiver();
+    receiver.start();
+    receiver.handleExpectedSize(data.length);
+    assertTrue(ReceiverTestUtils.feed(receiver,data,1000));
+    receiver.terminate();
+    byte[] result=receiver.getBytes();
+    assertTrue(Arrays.equals(data,result));
+    // Backing buffer is given without copy
+    assertSame(result,receiver.getBytes());
+  }
+
+  /**
+   * Test a reception with an unknown size, using pooled chunks.
+   */
+  public void testChunks()
+  {
+    ChunkPool pool=new ChunkPool(1024,10);
+    byte[] data=ReceiverTestUtils.buildData(5000);
+    BufferReceiver receiver=new BufferReceiver(pool);
+    receiver.start();
+    assertTrue(ReceiverTestUtils.feed(receiver,data,700));
+    receiver.terminate();
+    assertEquals(data.length,receiver.getSize());
+    ByteBuffer view=receiver.getByteBuffer();
+    assertTrue(view.isReadOnly());
+    assertEquals(data.length,view.remaining());
+    assertTrue(Arrays.equals(data,receiver.getBytes()));
+    // Chunks were given back to the pool
+    assertEquals(5,pool.getPooledChunksCount());
+  }
+
+  /**
+   * Test a reception with a wrong announced size.
+   */
+  public void testWrongAnnouncedSize()
+  {
+    byte[] data=ReceiverTestUtils.buildData(3000);
+    BufferReceiver receiver=new BufferReceiver();
+    receiver.start();
+    receiver.handleExpectedSize(2000);
+    assertTrue(ReceiverTestUtils.feed(receiver,data,512));
+    assertTrue(Arrays.equals(data,receiver.getBytes()));
+    receiver.start();
+    receiver.handleExpectedSize(5000);
+    assertTrue(ReceiverTestUtils.feed(receiver,data,512));
+    assertTrue(Arrays.equals(data,receiver.getBytes()));
+  }
+
+  /**
+   * Test that a pooled chunk given as result is not reused by other receptions.
+   */
+  public void testExactChunk()
+  {
+    ChunkPool pool=new ChunkPool(1024,10);
+    byte[] data=ReceiverTestUtils.buildData(1024);
+    BufferReceiver receiver=new BufferReceiver(pool);
+    receiver.start();
+    assertTrue(ReceiverTestUtils.feed(receiver,data,300));
+    receiver.terminate();
+    byte[] result=receiver.getBytes();
+    assertTrue(Arrays.equals(data,result));
+    // Restart: the result is not given back to the pool
+    receiver.start();
+    assertEquals(0,pool.getPooledChunksCount());
+    BufferReceiver other=new BufferReceiver(pool);
+    other.start();
+    byte[] otherData=new byte[1024];
+    Arrays.fill(otherData,(byte)0x55);
+    assertTrue(ReceiverTestUtils.feed(other,otherData,512));
+    assertNotSame(result,other.getBytes());
+    assertTrue(Arrays.equals(data,result));
+  }
+}
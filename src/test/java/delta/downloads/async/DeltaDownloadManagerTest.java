@@ -0,0 +1,281 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import delta.downloads.blocks.BlockManifest;
+
+/**
+ * Test class for delta updates.
+ * @author DAM
+ */
+public class DeltaDownloadManagerTest extends TestCase
+{
+  private static final int BLOCK_SIZE=4096;
+  private static final int FILE_SIZE=300000;
+
+  private File _dir;
+  private byte[] _data;
+  private HttpServer _server;
+  private volatile boolean _ranges;
+  private volatile int _failStart;
+  private volatile long _chunkDelay;
+  private List<String> _requests;
+  private DownloadsManager _downloadsMgr;
+  private String _url;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _dir=Files.createTempDirectory("deltaTest").toFile();
+    _data=new byte[FILE_SIZE];
+    new Random(42).nextBytes(_data);
+    _ranges=true;
+    _failStart=-1;
+    _chunkDelay=0;
+    _requests=Collections.synchronizedList(new ArrayList<String>());
+    _server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    _server.setExecutor(Executors.newCachedThreadPool());
+    _server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        handleRequest(exchange);
+      }
+    });
+    _server.start();
+    _url="http://127.0.0.1:"+_server.getAddress().getPort()+"/file";
+    _downloadsMgr=new DownloadsManager();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _downloadsMgr.dispose();
+    _server.stop(0);
+    File[] children=_dir.listFiles();
+    if (children!=null)
+    {
+      for(File child : children)
+      {
+        child.delete();
+      }
+    }
+    _dir.delete();
+  }
+
+  /**
+   * Give the data, or a byte range of it if ranges are enabled.
+   * @param exchange Exchange to handle.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void handleRequest(HttpExchange exchange) throws IOException
+  {
+    String range=exchange.getRequestHeaders().getFirst("Range");
+    _requests.add(String.valueOf(range));
+    int start=0;
+    int end=_data.length-1;
+    int code=200;
+    exchange.getResponseHeaders().add("Connection","close");
+    if ((_ranges) && (range!=null))
+    {
+      String[] bounds=range.substring("bytes=".length()).split("-");
+      start=Integer.parseInt(bounds[0]);
+      end=Math.min(end,Integer.parseInt(bounds[1]));
+      code=206;
+      exchange.getResponseHeaders().add("Content-Range","bytes "+start+"-"+end+"/"+_data.length);
+      if (start==_failStart)
+      {
+        exchange.sendResponseHeaders(500,-1);
+        exchange.close();
+        return;
+      }
+    }
+    exchange.sendResponseHeaders(code,end-start+1);
+    OutputStream os=exchange.getResponseBody();
+    try
+    {
+      // Slow responses are sent in small chunks
+      int chunkSize=(_chunkDelay>0)?256:(end-start+1);
+      for(int offset=start;offset<=end;offset+=chunkSize)
+      {
+        os.write(_data,offset,Math.min(chunkSize,end-offset+1));
+        os.flush();
+        if (_chunkDelay>0)
+        {
+          Thread.sleep(_chunkDelay);
+        }
+      }
+    }
+    catch(Exception e)
+    {
+      // Cancelled by the client
+    }
+    exchange.close();
+  }
+
+  private BlockManifest buildManifest(byte[] data) throws IOException
+  {
+    File published=new File(_dir,"published.bin");
+    Files.write(published.toPath(),data);
+    BlockManifest manifest=BlockManifest.build(published,BLOCK_SIZE);
+    published.delete();
+    return manifest;
+  }
+
+  /**
+   * Build an old version of the data: some blocks are modified.
+   * @param blocks Indexes of the modified blocks.
+   * @return the old data.
+   */
+  private byte[] buildOldData(int... blocks)
+  {
+    byte[] old=_data.clone();
+    for(int block : blocks)
+    {
+      old[block*BLOCK_SIZE+100]^=1;
+    }
+    return old;
+  }
+
+  private DownloadTask update(BlockManifest manifest, File local)
+  {
+    DownloadTask task=_downloadsMgr.newDeltaFileDownload(_url,manifest,local);
+    assertTrue(_downloadsMgr.startDownload(task,null));
+    _downloadsMgr.waitForTaskTermination(task);
+    return task;
+  }
+
+  private File getTemporaryFile(File local)
+  {
+    return new File(local.getPath()+DeltaDownloadManager.TEMPORARY_SUFFIX);
+  }
+
+  /**
+   * Test an update that fetches the modified blocks only.
+   * @throws Exception If an error occurs.
+   */
+  public void testUpdate() throws Exception
+  {
+    File local=new File(_dir,"local.bin");
+    // Blocks 5 and 7 are close enough to be merged, block 60 is not
+    Files.write(local.toPath(),buildOldData(5,7,60));
+    DownloadTask task=update(buildManifest(_data),local);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(local.toPath())));
+    assertFalse(getTemporaryFile(local).exists());
+    List<String> expected=Arrays.asList("bytes=20480-32767","bytes=245760-249855");
+    List<String> requests=new ArrayList<String>(_requests);
+    Collections.sort(requests);
+    assertEquals(expected,requests);
+    assertEquals(FILE_SIZE-4*BLOCK_SIZE,task.getReusedSize());
+    // Up to date: nothing is fetched
+    _requests.clear();
+    task=update(buildManifest(_data),local);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(_requests.isEmpty());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(local.toPath())));
+  }
+
+  /**
+   * Test an update of a missing file: all the blocks are fetched with a single request.
+   * @throws Exception If an error occurs.
+   */
+  public void testMissingFile() throws Exception
+  {
+    File local=new File(_dir,"missing.bin");
+    DownloadTask task=update(buildManifest(_data),local);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(local.toPath())));
+    assertEquals(Arrays.asList("bytes=0-"+(FILE_SIZE-1)),_requests);
+  }
+
+  /**
+   * Test an update with a manifest that does not match the served data.
+   * @throws Exception If an error occurs.
+   */
+  public void testDigestMismatch() throws Exception
+  {
+    File local=new File(_dir,"local.bin");
+    byte[] old=buildOldData(3);
+    Files.write(local.toPath(),old);
+    DownloadTask task=update(buildManifest(buildOldData(10)),local);
+    assertEquals(DownloadState.CHECKSUM_MISMATCH,task.getDownloadState());
+    // Local file untouched
+    assertTrue(Arrays.equals(old,Files.readAllBytes(local.toPath())));
+    assertFalse(getTemporaryFile(local).exists());
+  }
+
+  /**
+   * Test the fallback to a whole download when byte ranges are refused.
+   * @throws Exception If an error occurs.
+   */
+  public void testRangesRefused() throws Exception
+  {
+    _ranges=false;
+    File local=new File(_dir,"local.bin");
+    Files.write(local.toPath(),buildOldData(5,60));
+    DownloadTask task=update(buildManifest(_data),local);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(local.toPath())));
+    assertFalse(getTemporaryFile(local).exists());
+    assertEquals(0,task.getReusedSize());
+    assertTrue(_requests.toString(),_requests.contains("null"));
+  }
+
+  /**
+   * Test a failed range while other ranges are being received.
+   * @throws Exception If an error occurs.
+   */
+  public void testRangeFailure() throws Exception
+  {
+    _chunkDelay=5;
+    _failStart=30*BLOCK_SIZE;
+    File local=new File(_dir,"local.bin");
+    byte[] old=buildOldData(5,30,60);
+    Files.write(local.toPath(),old);
+    DownloadTask task=update(buildManifest(_data),local);
+    assertEquals(DownloadState.FAILED,task.getDownloadState());
+    assertTrue(Arrays.equals(old,Files.readAllBytes(local.toPath())));
+    assertFalse(getTemporaryFile(local).exists());
+  }
+
+  /**
+   * Test the cancellation of an update while ranges are being received.
+   * @throws Exception If an error occurs.
+   */
+  public void testCancel() throws Exception
+  {
+    _chunkDelay=20;
+    File local=new File(_dir,"local.bin");
+    byte[] old=buildOldData(5,30,60);
+    Files.write(local.toPath(),old);
+    DownloadTask task=_downloadsMgr.newDeltaFileDownload(_url,buildManifest(_data),local);
+    assertTrue(_downloadsMgr.startDownload(task,null));
+    while (task.getDoneSize()<=task.getReusedSize())
+    {
+      Thread.sleep(5);
+    }
+    _downloadsMgr.cancelDownload(task);
+    _downloadsMgr.waitForTaskTermination(task);
+    assertEquals(DownloadState.CANCELLED,task.getDownloadState());
+    assertTrue(Arrays.equals(old,Files.readAllBytes(local.toPath())));
+    assertFalse(getTemporaryFile(local).exists());
+  }
+}
@@ -0,0 +1,85 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the digesting receiver.
+ * @author DAM
+ */
+public class DigestingReceiverTest extends TestCase
+{
+  private static final String SHA256_ABC="ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+  /**
+   * Test the CRC-32C checksum against its standard check value.
+   * @throws Exception If an error occurs.
+   */
+  public void testCRC32C() throws Exception
+  {
+    byte[] data="123456789".getBytes("US-ASCII");
+    CRC32C crc=new CRC32C();
+    crc.update(data,0,data.length);
+    assertEquals(0xE3069283L,crc.getValue());
+    crc.reset();
+    for(byte b : data)
+    {
+      crc.update(b);
+    }
+    assertEquals(0xE3069283L,crc.getValue());
+  }
+
+  /**
+   * Test digests computed over chunks, from heap and direct buffers.
+   * @throws Exception If an error occurs.
+   */
+  public void testDigests() throws Exception
+  {
+    byte[] data=new byte[100000];
+    for(int i=0;i<data.length;i++)
+    {
+      data[i]=(byte)(i*31);
+    }
+    CRC32C crc=new CRC32C();
+    crc.update(data,0,data.length);
+    String expectedCrc=String.format("%08x",Long.valueOf(crc.getValue()));
+    BufferReceiver buffer=new BufferReceiver();
+    DigestingReceiver receiver=new DigestingReceiver(buffer,"SHA-256","crc32c");
+    assertTrue(receiver.start());
+    for(int offset=0;offset<data.length;offset+=777)
+    {
+      int count=Math.min(777,data.length-offset);
+      ByteBuffer chunk=ByteBuffer.allocateDirect(count);
+      chunk.put(data,offset,count);
+      chunk.flip();
+      assertTrue(receiver.handleBytes(chunk));
+    }
+    assertTrue(receiver.terminate());
+    assertTrue(Arrays.equals(data,buffer.getBytes()));
+    assertEquals(expectedCrc,receiver.getValue("CRC32C"));
+    assertTrue(receiver.verify(new IntegrityCheck("CRC32C",expectedCrc.toUpperCase(),Long.valueOf(data.length))));
+    assertFalse(receiver.verify(new IntegrityCheck("CRC32C",expectedCrc,Long.valueOf(data.length+1))));
+    // Restart
+    assertTrue(receiver.start());
+    assertTrue(receiver.handleBytes("abc".getBytes("US-ASCII"),0,3));
+    assertEquals(SHA256_ABC,receiver.getValue("SHA-256"));
+    assertTrue(receiver.verify(new IntegrityCheck("SHA-256",SHA256_ABC,null)));
+  }
+
+  /**
+   * Test the abort of the reception when too many bytes are received.
+   */
+  public void testMaxSize()
+  {
+    DigestingReceiver receiver=new DigestingReceiver(new BufferReceiver(),"SHA-256");
+    receiver.setMaxSize(10);
+    assertTrue(receiver.start());
+    assertTrue(receiver.handleBytes(new byte[6],0,6));
+    assertFalse(receiver.isSizeExceeded());
+    assertFalse(receiver.handleBytes(new byte[6],0,6));
+    assertTrue(receiver.isSizeExceeded());
+    assertEquals(6,receiver.getSize());
+  }
+}
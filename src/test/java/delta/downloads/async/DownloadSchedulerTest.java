@@ -0,0 +1,206 @@
+package delta.downloads.async;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the download scheduler.
+ * @author DAM
+ */
+public class DownloadSchedulerTest extends TestCase
+{
+  /**
+   * Download that does not use the network.
+   */
+  private static class TestDownload extends SingleAsyncDownloadManager
+  {
+    private boolean _startResult;
+    private Runnable _onStart;
+    private int _starts;
+    private int _cancels;
+
+    private TestDownload(int id, boolean startResult)
+    {
+      this(id,"localhost",startResult);
+    }
+
+    private TestDownload(int id, String host, boolean startResult)
+    {
+      super(null,new DownloadTask(id,"http://"+host+"/"+id,new BufferReceiver()));
+      _startResult=startResult;
+    }
+
+    @Override
+    public boolean start()
+    {
+      _starts++;
+      if (_onStart!=null)
+      {
+        _onStart.run();
+      }
+      return _startResult;
+    }
+
+    @Override
+    public void cancel()
+    {
+      _cancels++;
+    }
+  }
+
+  /**
+   * Test that many downloads failing to start do not overflow the stack.
+   */
+  public void testFailedStarts()
+  {
+    DownloadScheduler scheduler=new DownloadScheduler(1,1);
+    List<TestDownload> downloads=new ArrayList<TestDownload>();
+    // Block the only slot while downloads are queued
+    TestDownload blocker=new TestDownload(0,true);
+    scheduler.submit(blocker);
+    for(int i=1;i<=50000;i++)
+    {
+      TestDownload download=new TestDownload(i,false);
+      downloads.add(download);
+      scheduler.submit(download);
+    }
+    assertEquals(50000,scheduler.getQueuedCount());
+    scheduler.release(blocker);
+    for(TestDownload download : downloads)
+    {
+      assertEquals(1,download._starts);
+    }
+    assertEquals(0,scheduler.getQueuedCount());
+    assertEquals(0,scheduler.getRunningCount());
+  }
+
+  /**
+   * Test the cancellation of downloads selected for start.
+   */
+  public void testCancelWhileStarting()
+  {
+    final DownloadScheduler scheduler=new DownloadScheduler(0,3);
+    final TestDownload first=new TestDownload(1,true);
+    final TestDownload second=new TestDownload(2,true);
+    final TestDownload third=new TestDownload(3,true);
+    scheduler.submit(first);
+    scheduler.submit(second);
+    scheduler.submit(third);
+    // The start of the first download cancels itself and the second one, already selected
+    first._onStart=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        assertTrue(scheduler.cancel(first));
+        assertTrue(scheduler.cancel(second));
+      }
+    };
+    // First and second downloads are selected, the third one gets the slot of the second one
+    scheduler.setMaxInFlight(2);
+    assertEquals(1,first._starts);
+    assertEquals(1,first._cancels);
+    assertEquals(0,second._starts);
+    assertEquals(DownloadState.CANCELLED,second.getTask().getDownloadState());
+    assertEquals(1,third._starts);
+    assertEquals(2,scheduler.getRunningCount());
+    // Neither queued nor being started
+    assertFalse(scheduler.cancel(third));
+  }
+
+  /**
+   * Test the admission of batches.
+   */
+  public void testBatches()
+  {
+    DownloadScheduler scheduler=new DownloadScheduler(3,1);
+    TestDownload single=new TestDownload(1,"a",true);
+    scheduler.submit(single);
+    final List<TestDownload> batch=new ArrayList<TestDownload>();
+    for(int i=2;i<=5;i++)
+    {
+      batch.add(new TestDownload(i,"b",true));
+    }
+    final List<SingleAsyncDownloadManager> downloads=new ArrayList<SingleAsyncDownloadManager>(batch);
+    final List<SingleAsyncDownloadManager> started=new ArrayList<SingleAsyncDownloadManager>();
+    scheduler.submitBatch(downloads,new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        for(SingleAsyncDownloadManager downloadManager : downloads)
+        {
+          started.add(downloadManager);
+        }
+      }
+    });
+    TestDownload other=new TestDownload(6,"c",true);
+    scheduler.submit(other);
+    // Not enough slots for the batch, the next download waits for it
+    assertEquals(1,scheduler.getRunningCount());
+    assertEquals(5,scheduler.getQueuedCount());
+    assertTrue(started.isEmpty());
+    assertEquals(0,other._starts);
+    // Cancelled while queued
+    assertTrue(scheduler.cancel(batch.get(0)));
+    assertEquals(DownloadState.CANCELLED,batch.get(0).getTask().getDownloadState());
+    scheduler.release(single);
+    assertEquals(batch.subList(1,4),started);
+    assertEquals(3,scheduler.getRunningCount());
+    assertEquals(0,other._starts);
+    // Batch downloads are released one by one
+    scheduler.release(batch.get(1));
+    assertEquals(1,other._starts);
+    assertEquals(0,scheduler.getQueuedCount());
+    assertEquals(3,scheduler.getRunningCount());
+  }
+
+  /**
+   * Test the per-host queues: a busy host does not delay the downloads of other hosts,
+   * and ready hosts are served by priority.
+   */
+  public void testHostQueues()
+  {
+    DownloadScheduler scheduler=new DownloadScheduler(2,1);
+    TestDownload blocker=new TestDownload(0,"busy",true);
+    scheduler.submit(blocker);
+    List<TestDownload> busy=new ArrayList<TestDownload>();
+    for(int i=1;i<=1000;i++)
+    {
+      TestDownload download=new TestDownload(i,"busy",true);
+      download.getTask().setPriority(10);
+      busy.add(download);
+      scheduler.submit(download);
+    }
+    TestDownload other=new TestDownload(2000,"other",true);
+    scheduler.submit(other);
+    assertEquals(1,other._starts);
+    assertEquals(0,busy.get(0)._starts);
+    // Both hosts have queued downloads: the best one is served first
+    TestDownload low=new TestDownload(2001,"other",true);
+    TestDownload high=new TestDownload(2002,"third",true);
+    high.getTask().setPriority(20);
+    scheduler.submit(low);
+    scheduler.submit(high);
+    scheduler.release(blocker);
+    assertEquals(0,busy.get(0)._starts);
+    assertEquals(1,high._starts);
+    scheduler.release(high);
+    assertEquals(1,busy.get(0)._starts);
+    assertEquals(0,low._starts);
+    // Raised host limit
+    scheduler.setHostLimit("busy",Integer.valueOf(3));
+    scheduler.setMaxInFlight(4);
+    assertEquals(1,busy.get(1)._starts);
+    assertEquals(1,busy.get(2)._starts);
+    assertEquals(0,busy.get(3)._starts);
+    // The busy host is full: the other host gets the free slot
+    scheduler.release(other);
+    assertEquals(1,low._starts);
+    assertEquals(0,busy.get(3)._starts);
+    assertEquals(4,scheduler.getRunningCount());
+    assertEquals(997,scheduler.getQueuedCount());
+  }
+}
@@ -1,10 +1,28 @@
 package delta.downloads.async;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
+import org.apache.http.HttpHost;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Test class for the DownloadsManager.
  * @author DAM
@@ -35,4 +53,431 @@ public class DownloadsManagerTest extends TestCase
     }
     System.out.println(Thread.currentThread().getName()+" - Finished!");
   }
+
+  /**
+   * Start a local HTTP server that gives a fixed body.
+   * @param body Body to give.
+   * @return the started server.
+   * @throws IOException If the server could not be started.
+   */
+  private HttpServer startServer(final byte[] body) throws IOException
+  {
+    HttpServer server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        exchange.getResponseHeaders().add("Connection","close");
+        exchange.sendResponseHeaders(200,body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * Test the termination futures of downloads.
+   * @throws Exception If an error occurs.
+   */
+  public void testTermination() throws Exception
+  {
+    byte[] body="Hello, world!".getBytes("US-ASCII");
+    HttpServer server=startServer(body);
+    DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      String url="http://127.0.0.1:"+server.getAddress().getPort()+"/";
+      DownloadTask task1=downloadsMgr.newBufferDownload(url+"1");
+      DownloadTask task2=downloadsMgr.newBufferDownload(url+"2");
+      // Not started: not terminated
+      CompletableFuture<DownloadTask> termination=downloadsMgr.getTermination(task1);
+      assertFalse(termination.isDone());
+      List<DownloadTask> tasks=Arrays.asList(task1,task2);
+      assertFalse(downloadsMgr.awaitAll(tasks,0,TimeUnit.MILLISECONDS));
+      assertNull(downloadsMgr.awaitAny(tasks,0,TimeUnit.MILLISECONDS));
+      assertNull(downloadsMgr.awaitAny(Collections.<DownloadTask>emptyList(),0,TimeUnit.MILLISECONDS));
+      assertTrue(downloadsMgr.waitForTermination(0,TimeUnit.MILLISECONDS));
+      // Future taken before the start is completed by the download
+      assertTrue(downloadsMgr.startDownload(task1,null));
+      assertSame(task1,termination.get(10,TimeUnit.SECONDS));
+      assertEquals(DownloadState.OK,task1.getDownloadState());
+      assertTrue(Arrays.equals(body,((BufferReceiver)task1.getReceiver()).getBytes()));
+      assertSame(task1,downloadsMgr.awaitAny(tasks,0,TimeUnit.MILLISECONDS));
+      assertFalse(downloadsMgr.getTermination(task2).isDone());
+      // A restart uses a new future
+      assertTrue(downloadsMgr.startDownload(task1,null));
+      CompletableFuture<DownloadTask> restart=downloadsMgr.getTermination(task1);
+      assertNotSame(termination,restart);
+      assertSame(task1,restart.get(10,TimeUnit.SECONDS));
+      assertTrue(downloadsMgr.waitForTermination(10,TimeUnit.SECONDS));
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Start a local HTTP server that gives the path of requests, and records the client ports.
+   * @param close Indicates if connections are closed after each response.
+   * @param ports Storage for the client ports.
+   * @return the started server.
+   * @throws IOException If the server could not be started.
+   */
+  private HttpServer startPathServer(final boolean close, final Set<Integer> ports) throws IOException
+  {
+    HttpServer server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        synchronized(ports)
+        {
+          ports.add(Integer.valueOf(exchange.getRemoteAddress().getPort()));
+        }
+        byte[] body=exchange.getRequestURI().getPath().getBytes("US-ASCII");
+        if (close)
+        {
+          exchange.getResponseHeaders().add("Connection","close");
+        }
+        exchange.sendResponseHeaders(200,body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private List<DownloadTask> newPathDownloads(DownloadsManager downloadsMgr, HttpServer server, String prefix, int count)
+  {
+    List<DownloadTask> tasks=new ArrayList<DownloadTask>();
+    for(int i=0;i<count;i++)
+    {
+      tasks.add(downloadsMgr.newBufferDownload("http://127.0.0.1:"+server.getAddress().getPort()+"/"+prefix+i));
+    }
+    return tasks;
+  }
+
+  private void checkPathDownloads(List<DownloadTask> tasks, String prefix) throws Exception
+  {
+    for(int i=0;i<tasks.size();i++)
+    {
+      DownloadTask task=tasks.get(i);
+      assertEquals(DownloadState.OK,task.getDownloadState());
+      byte[] expected=("/"+prefix+i).getBytes("US-ASCII");
+      assertTrue(Arrays.equals(expected,((BufferReceiver)task.getReceiver()).getBytes()));
+    }
+  }
+
+  /**
+   * Test the split of downloads into pipelined batches.
+   */
+  public void testSplitBatches()
+  {
+    List<Integer> group=new ArrayList<Integer>();
+    for(int i=0;i<10;i++)
+    {
+      group.add(Integer.valueOf(i));
+    }
+    // Spread on the connections
+    List<List<Integer>> batches=DownloadsManager.splitBatches(group,4,16);
+    assertEquals(4,batches.size());
+    assertEquals(Arrays.asList(Integer.valueOf(0),Integer.valueOf(1),Integer.valueOf(2)),batches.get(0));
+    assertEquals(Arrays.asList(Integer.valueOf(9)),batches.get(3));
+    // Limited depth
+    batches=DownloadsManager.splitBatches(group,1,4);
+    assertEquals(3,batches.size());
+    assertEquals(4,batches.get(0).size());
+    assertEquals(4,batches.get(1).size());
+    assertEquals(2,batches.get(2).size());
+    // More connections than downloads
+    batches=DownloadsManager.splitBatches(group,20,4);
+    assertEquals(10,batches.size());
+    assertTrue(DownloadsManager.splitBatches(new ArrayList<Integer>(),2,4).isEmpty());
+  }
+
+  /**
+   * Test pipelined batches to several hosts: each host gets its own pipelined connection.
+   * @throws Exception If an error occurs.
+   */
+  public void testPipelinedBatch() throws Exception
+  {
+    Set<Integer> ports1=new HashSet<Integer>();
+    Set<Integer> ports2=new HashSet<Integer>();
+    HttpServer server1=startPathServer(false,ports1);
+    HttpServer server2=startPathServer(false,ports2);
+    DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      downloadsMgr.setPipelining(1,16);
+      List<DownloadTask> tasks1=newPathDownloads(downloadsMgr,server1,"a",6);
+      List<DownloadTask> tasks2=newPathDownloads(downloadsMgr,server2,"b",6);
+      // Interleave hosts
+      List<DownloadTask> tasks=new ArrayList<DownloadTask>();
+      for(int i=0;i<6;i++)
+      {
+        tasks.add(tasks1.get(i));
+        tasks.add(tasks2.get(i));
+      }
+      downloadsMgr.startBatchAsync(tasks,null).get(10,TimeUnit.SECONDS);
+      checkPathDownloads(tasks1,"a");
+      checkPathDownloads(tasks2,"b");
+      // A single pipelined connection per host
+      assertEquals(1,ports1.size());
+      assertEquals(1,ports2.size());
+      assertFalse(downloadsMgr.isPipeliningDisabled(new HttpHost("127.0.0.1",server1.getAddress().getPort())));
+      assertTrue(downloadsMgr.waitForTermination(10,TimeUnit.SECONDS));
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server1.stop(0);
+      server2.stop(0);
+    }
+  }
+
+  /**
+   * Test that pipelined batches are admitted within the maximum number of running downloads.
+   * @throws Exception If an error occurs.
+   */
+  public void testPipelinedAdmission() throws Exception
+  {
+    Set<Integer> ports=new HashSet<Integer>();
+    HttpServer server=startPathServer(false,ports);
+    final DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      downloadsMgr.setPipelining(2,16);
+      downloadsMgr.setMaxInFlight(3);
+      final AtomicInteger maxRunning=new AtomicInteger();
+      DownloadListener listener=new DownloadListener()
+      {
+        @Override
+        public void downloadTaskUpdated(DownloadTask updatedTask)
+        {
+          int running=downloadsMgr.getRunningCount();
+          int max;
+          do
+          {
+            max=maxRunning.get();
+          }
+          while ((running>max) && (!maxRunning.compareAndSet(max,running)));
+        }
+      };
+      List<DownloadTask> tasks=newPathDownloads(downloadsMgr,server,"e",10);
+      downloadsMgr.startBatchAsync(tasks,listener).get(10,TimeUnit.SECONDS);
+      checkPathDownloads(tasks,"e");
+      assertTrue(String.valueOf(maxRunning.get()),maxRunning.get()<=3);
+      assertFalse(downloadsMgr.isPipeliningDisabled(new HttpHost("127.0.0.1",server.getAddress().getPort())));
+      assertTrue(downloadsMgr.waitForTermination(10,TimeUnit.SECONDS));
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Test the fallback of a pipelined batch to a host that closes its connections.
+   * @throws Exception If an error occurs.
+   */
+  public void testPipeliningFallback() throws Exception
+  {
+    Set<Integer> ports=new HashSet<Integer>();
+    HttpServer server=startPathServer(true,ports);
+    DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      downloadsMgr.setPipelining(2,16);
+      List<DownloadTask> tasks=newPathDownloads(downloadsMgr,server,"c",10);
+      downloadsMgr.startBatchAsync(tasks,null).get(10,TimeUnit.SECONDS);
+      checkPathDownloads(tasks,"c");
+      HttpHost host=new HttpHost("127.0.0.1",server.getAddress().getPort());
+      assertTrue(downloadsMgr.isPipeliningDisabled(host));
+      // Later batches use normal requests
+      List<DownloadTask> others=newPathDownloads(downloadsMgr,server,"d",4);
+      downloadsMgr.startBatchAsync(others,null).get(10,TimeUnit.SECONDS);
+      checkPathDownloads(others,"d");
+      assertTrue(downloadsMgr.waitForTermination(10,TimeUnit.SECONDS));
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Start a local HTTP server that gives a fixed body after a delay, and counts requests.
+   * @param body Body to give.
+   * @param delay Delay before the response (milliseconds).
+   * @param requests Requests counter.
+   * @return the started server.
+   * @throws IOException If the server could not be started.
+   */
+  private HttpServer startSlowServer(final byte[] body, final long delay, final AtomicInteger requests) throws IOException
+  {
+    HttpServer server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        requests.incrementAndGet();
+        try
+        {
+          Thread.sleep(delay);
+          exchange.getResponseHeaders().add("Connection","close");
+          exchange.sendResponseHeaders(200,body.length);
+          exchange.getResponseBody().write(body);
+        }
+        catch(Exception e)
+        {
+          // Cancelled by the client
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * Test a hedged download: the late first request loses and is cancelled.
+   * @throws Exception If an error occurs.
+   */
+  public void testHedging() throws Exception
+  {
+    final byte[] body=ReceiverTestUtils.buildData(10000);
+    final AtomicInteger requests=new AtomicInteger();
+    HttpServer server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        try
+        {
+          // Only the first request is late
+          if (requests.incrementAndGet()==1)
+          {
+            Thread.sleep(3000);
+          }
+          exchange.getResponseHeaders().add("Connection","close");
+          exchange.sendResponseHeaders(200,body.length);
+          exchange.getResponseBody().write(body);
+        }
+        catch(Exception e)
+        {
+          // Cancelled by the client
+        }
+        exchange.close();
+      }
+    });
+    server.start();
+    DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      HedgingPolicy policy=downloadsMgr.getHedgingPolicy();
+      policy.setEnabled(true);
+      policy.setDelays(10,100);
+      policy.setBudget(1);
+      String url="http://127.0.0.1:"+server.getAddress().getPort()+"/hedged";
+      long start=System.currentTimeMillis();
+      byte[] bytes=downloadsMgr.syncDownloadBuffer(url,null);
+      assertTrue(Arrays.equals(body,bytes));
+      assertTrue(System.currentTimeMillis()-start<2000);
+      assertEquals(2,requests.get());
+      assertEquals(1,policy.getHedgesCount());
+      assertEquals(1,policy.getHedgeWinsCount());
+      // The first request is cancelled, it does not wait for its response
+      assertTrue(downloadsMgr.waitForTermination(1000,TimeUnit.MILLISECONDS));
+      assertEquals(0,downloadsMgr.getRunningCount());
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Test the coalescing of identical downloads, and the cancellation of their leader.
+   * @throws Exception If an error occurs.
+   */
+  public void testCoalescing() throws Exception
+  {
+    byte[] body=ReceiverTestUtils.buildData(100000);
+    AtomicInteger requests=new AtomicInteger();
+    HttpServer server=startSlowServer(body,300,requests);
+    DownloadsManager downloadsMgr=new DownloadsManager();
+    try
+    {
+      downloadsMgr.setCoalescing(true);
+      String url="http://127.0.0.1:"+server.getAddress().getPort()+"/shared";
+      final List<DownloadState> leaderStates=Collections.synchronizedList(new ArrayList<DownloadState>());
+      DownloadListener leaderListener=new DownloadListener()
+      {
+        @Override
+        public void downloadTaskUpdated(DownloadTask updatedTask)
+        {
+          leaderStates.add(updatedTask.getDownloadState());
+        }
+      };
+      List<DownloadTask> tasks=new ArrayList<DownloadTask>();
+      for(int i=0;i<4;i++)
+      {
+        DownloadTask task=downloadsMgr.newBufferDownload(url);
+        assertTrue(downloadsMgr.startDownload(task,(i==0)?leaderListener:null));
+        tasks.add(task);
+      }
+      // Cancel the leader and a follower: the transfer goes on for the others
+      DownloadTask leader=tasks.get(0);
+      downloadsMgr.cancelDownload(leader);
+      downloadsMgr.cancelDownload(tasks.get(2));
+      downloadsMgr.waitForTaskTermination(tasks.get(2));
+      assertEquals(DownloadState.CANCELLED,tasks.get(2).getDownloadState());
+      for(DownloadTask task : tasks)
+      {
+        downloadsMgr.waitForTaskTermination(task);
+      }
+      assertEquals(DownloadState.CANCELLED,leader.getDownloadState());
+      // The cancelled leader is only notified of its cancellation
+      assertEquals(DownloadState.CANCELLED,leaderStates.get(leaderStates.size()-1));
+      assertFalse(leaderStates.contains(DownloadState.OK));
+      for(int i : new int[] {1,3})
+      {
+        assertEquals(DownloadState.OK,tasks.get(i).getDownloadState());
+        assertTrue(Arrays.equals(body,((BufferReceiver)tasks.get(i).getReceiver()).getBytes()));
+      }
+      assertEquals(1,requests.get());
+      // All downloads cancelled: the transfer is cancelled
+      requests.set(0);
+      DownloadTask first=downloadsMgr.newBufferDownload(url);
+      DownloadTask second=downloadsMgr.newBufferDownload(url);
+      assertTrue(downloadsMgr.startDownload(first,null));
+      assertTrue(downloadsMgr.startDownload(second,null));
+      downloadsMgr.cancelDownload(first);
+      downloadsMgr.cancelDownload(second);
+      assertSame(first,downloadsMgr.getTermination(first).get(200,TimeUnit.MILLISECONDS));
+      assertEquals(DownloadState.CANCELLED,first.getDownloadState());
+      assertEquals(DownloadState.CANCELLED,second.getDownloadState());
+      assertTrue(downloadsMgr.waitForTermination(10,TimeUnit.SECONDS));
+    }
+    finally
+    {
+      downloadsMgr.dispose();
+      server.stop(0);
+    }
+  }
 }
@@ -0,0 +1,108 @@
+package delta.downloads.async;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the hedging policy.
+ * @author DAM
+ */
+public class HedgingPolicyTest extends TestCase
+{
+  /**
+   * Test the default delay, used until enough response delays are known.
+   */
+  public void testDefaultDelay()
+  {
+    HedgingPolicy policy=new HedgingPolicy();
+    policy.setDelays(10,500);
+    assertEquals(500,policy.getHedgeDelay());
+    for(int i=0;i<9;i++)
+    {
+      policy.recordResponseDelay(100);
+    }
+    // Ignored
+    policy.recordResponseDelay(-1);
+    assertEquals(500,policy.getHedgeDelay());
+    policy.recordResponseDelay(100);
+    assertEquals(100,policy.getHedgeDelay());
+  }
+
+  /**
+   * Test the percentile of the response delays.
+   */
+  public void testPercentile()
+  {
+    HedgingPolicy policy=new HedgingPolicy();
+    policy.setDelays(10,500);
+    // Unordered delays from 1 to 100
+    for(int i=0;i<100;i++)
+    {
+      policy.recordResponseDelay(((i*37)%100)+1);
+    }
+    assertEquals(95,policy.getHedgeDelay());
+    policy.setPercentile(50);
+    assertEquals(50,policy.getHedgeDelay());
+    policy.setPercentile(100);
+    assertEquals(100,policy.getHedgeDelay());
+    policy.setPercentile(200);
+    assertEquals(100,policy.getHedgeDelay());
+    // Minimum delay
+    policy.setPercentile(1);
+    assertEquals(10,policy.getHedgeDelay());
+    // Rounded up index: 10 samples, 95th percentile is the greatest one
+    policy=new HedgingPolicy();
+    for(int i=1;i<=10;i++)
+    {
+      policy.recordResponseDelay(i*100);
+    }
+    assertEquals(1000,policy.getHedgeDelay());
+  }
+
+  /**
+   * Test that only the recent response delays are used.
+   */
+  public void testHistory()
+  {
+    HedgingPolicy policy=new HedgingPolicy();
+    policy.setDelays(1,500);
+    for(int i=0;i<1000;i++)
+    {
+      policy.recordResponseDelay(2000);
+    }
+    assertEquals(2000,policy.getHedgeDelay());
+    for(int i=0;i<256;i++)
+    {
+      policy.recordResponseDelay(5);
+    }
+    assertEquals(5,policy.getHedgeDelay());
+  }
+
+  /**
+   * Test the hedging budget.
+   */
+  public void testBudget()
+  {
+    HedgingPolicy policy=new HedgingPolicy();
+    policy.setBudget(0.1);
+    assertFalse(policy.acquireHedge());
+    for(int i=0;i<9;i++)
+    {
+      policy.recordRequest();
+    }
+    assertFalse(policy.acquireHedge());
+    policy.recordRequest();
+    assertTrue(policy.acquireHedge());
+    assertFalse(policy.acquireHedge());
+    for(int i=0;i<10;i++)
+    {
+      policy.recordRequest();
+    }
+    assertTrue(policy.acquireHedge());
+    assertFalse(policy.acquireHedge());
+    policy.recordHedgeResult(true);
+    policy.recordHedgeResult(false);
+    assertEquals(20,policy.getRequestsCount());
+    assertEquals(2,policy.getHedgesCount());
+    assertEquals(1,policy.getHedgeWinsCount());
+  }
+}
@@ -0,0 +1,134 @@
+package delta.downloads.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the inflating receiver.
+ * @author DAM
+ */
+public class InflatingReceiverTest extends TestCase
+{
+  private byte[] gzip(byte[] data) throws IOException
+  {
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    GZIPOutputStream gos=new GZIPOutputStream(bos);
+    gos.write(data);
+    gos.close();
+    return bos.toByteArray();
+  }
+
+  private byte[] deflate(byte[] data, boolean raw) throws IOException
+  {
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    DeflaterOutputStream dos=new DeflaterOutputStream(bos,new Deflater(Deflater.DEFAULT_COMPRESSION,raw));
+    dos.write(data);
+    dos.close();
+    return bos.toByteArray();
+  }
+
+  private byte[] decode(byte[] encoded, InflatingReceiver.Format format, int chunkSize, boolean expectedOk)
+  {
+    BufferReceiver buffer=new BufferReceiver();
+    InflatingReceiver receiver=new InflatingReceiver(buffer,format);
+    assertTrue(receiver.start());
+    boolean ok=ReceiverTestUtils.feed(receiver,encoded,chunkSize);
+    ok&=receiver.terminate();
+    assertEquals(expectedOk,ok);
+    if (ok)
+    {
+      assertEquals(encoded.length,receiver.getInputSize());
+      assertEquals(buffer.getSize(),receiver.getOutputSize());
+    }
+    return buffer.getBytes();
+  }
+
+  /**
+   * Test gzip decoding, with various chunk sizes.
+   * @throws IOException If an error occurs.
+   */
+  public void testGzip() throws IOException
+  {
+    byte[] data=ReceiverTestUtils.buildData(200000);
+    byte[] encoded=gzip(data);
+    assertTrue(encoded.length<data.length);
+    int[] chunkSizes={1,7,1000,encoded.length};
+    for(int chunkSize : chunkSizes)
+    {
+      assertTrue(Arrays.equals(data,decode(encoded,InflatingReceiver.Format.GZIP,chunkSize,true)));
+    }
+  }
+
+  /**
+   * Test gzip decoding with a file name in the header, and several members.
+   * @throws IOException If an error occurs.
+   */
+  public void testGzipMembers() throws IOException
+  {
+    byte[] data=ReceiverTestUtils.buildData(5000);
+    byte[] member=gzip(data);
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    // First member with a file name
+    bos.write(member,0,3);
+    bos.write(member[3]|8);
+    bos.write(member,4,6);
+    bos.write("name.txt\0".getBytes("US-ASCII"));
+    bos.write(member,10,member.length-10);
+    // Second member
+    bos.write(member);
+    byte[] expected=new byte[data.length*2];
+    System.arraycopy(data,0,expected,0,data.length);
+    System.arraycopy(data,0,expected,data.length,data.length);
+    assertTrue(Arrays.equals(expected,decode(bos.toByteArray(),InflatingReceiver.Format.GZIP,3,true)));
+  }
+
+  /**
+   * Test deflate decoding, for zlib and raw streams.
+   * @throws IOException If an error occurs.
+   */
+  public void testDeflate() throws IOException
+  {
+    byte[] data=ReceiverTestUtils.buildData(50000);
+    assertTrue(Arrays.equals(data,decode(deflate(data,false),InflatingReceiver.Format.DEFLATE,1,true)));
+    assertTrue(Arrays.equals(data,decode(deflate(data,true),InflatingReceiver.Format.DEFLATE,500,true)));
+  }
+
+  /**
+   * Test the detection of truncated or corrupted streams.
+   * @throws IOException If an error occurs.
+   */
+  public void testErrors() throws IOException
+  {
+    byte[] encoded=gzip(ReceiverTestUtils.buildData(20000));
+    decode(Arrays.copyOf(encoded,encoded.length-4),InflatingReceiver.Format.GZIP,100,false);
+    encoded[encoded.length-5]^=1;
+    decode(encoded,InflatingReceiver.Format.GZIP,100,false);
+    decode(new byte[]{1,2,3,4,5,6,7,8,9,10,11},InflatingReceiver.Format.GZIP,100,false);
+  }
+
+  /**
+   * Test content encoding parsing.
+   */
+  public void testFormat()
+  {
+    assertNull(InflatingReceiver.getFormat(null));
+    assertNull(InflatingReceiver.getFormat("identity"));
+    assertEquals(InflatingReceiver.Format.GZIP,InflatingReceiver.getFormat("x-gzip"));
+    assertEquals(InflatingReceiver.Format.DEFLATE,InflatingReceiver.getFormat(" Deflate"));
+    try
+    {
+      InflatingReceiver.getFormat("br");
+      fail();
+    }
+    catch(IllegalArgumentException iae)
+    {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package delta.downloads.async;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the mirror policy.
+ * @author DAM
+ */
+public class MirrorPolicyTest extends TestCase
+{
+  private static final String FAST="http://fast.example.org/file";
+  private static final String SLOW="http://slow.example.org/file";
+  private static final String UNKNOWN="http://unknown.example.org/file";
+
+  /**
+   * Test the ranking of mirrors from their throughput history.
+   */
+  public void testRanking()
+  {
+    MirrorPolicy policy=new MirrorPolicy();
+    policy.setMinThroughput(1000);
+    policy.setSmoothing(0.5);
+    List<String> urls=Arrays.asList(SLOW,UNKNOWN,FAST);
+    // No history: given order
+    assertEquals(urls,policy.rank(urls));
+    policy.recordThroughput("fast.example.org",100000);
+    policy.recordThroughput("slow.example.org",10);
+    // Unknown mirrors rank as if they had the minimum throughput
+    assertEquals(Arrays.asList(FAST,UNKNOWN,SLOW),policy.rank(urls));
+    // Failures weight the average down
+    for(int i=0;i<7;i++)
+    {
+      policy.recordFailure("fast.example.org");
+    }
+    assertEquals(Arrays.asList(UNKNOWN,FAST,SLOW),policy.rank(urls));
+  }
+
+  /**
+   * Test the moving average of throughputs.
+   */
+  public void testAverage()
+  {
+    MirrorPolicy policy=new MirrorPolicy();
+    policy.setSmoothing(0.5);
+    assertNull(policy.getThroughput("host"));
+    policy.recordThroughput("host",1000);
+    assertEquals(1000,policy.getThroughput("host").doubleValue(),0.001);
+    policy.recordThroughput("host",2000);
+    assertEquals(1500,policy.getThroughput("host").doubleValue(),0.001);
+    policy.recordFailure("host");
+    assertEquals(750,policy.getThroughput("host").doubleValue(),0.001);
+  }
+}
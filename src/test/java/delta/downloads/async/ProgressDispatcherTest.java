@@ -0,0 +1,81 @@
+package delta.downloads.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the progress dispatcher.
+ * @author DAM
+ */
+public class ProgressDispatcherTest extends TestCase
+{
+  /**
+   * Test that delivered updates have the state and sizes of the update time,
+   * even when they are delivered late.
+   * @throws Exception If an error occurs.
+   */
+  public void testSnapshots() throws Exception
+  {
+    ScheduledExecutorService executor=Executors.newSingleThreadScheduledExecutor();
+    try
+    {
+      ProgressDispatcher dispatcher=new ProgressDispatcher(executor);
+      final List<DownloadState> states=new ArrayList<DownloadState>();
+      final List<Long> sizes=new ArrayList<Long>();
+      DownloadListener listener=new DownloadListener()
+      {
+        @Override
+        public void downloadTaskUpdated(DownloadTask task)
+        {
+          states.add(task.getDownloadState());
+          sizes.add(Long.valueOf(task.getDoneSize()));
+        }
+      };
+      DownloadTask task=new DownloadTask(1,"http://localhost/file",new BufferReceiver());
+      ProgressDispatcher.TaskNotifier notifier=dispatcher.buildNotifier(task,listener);
+      // Block deliveries while the task changes
+      final CountDownLatch blocker=new CountDownLatch(1);
+      executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            blocker.await();
+          }
+          catch(InterruptedException ie)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+      });
+      DownloadState[] transitions={DownloadState.QUEUED,DownloadState.RUNNING,DownloadState.RETRYING,DownloadState.RUNNING,DownloadState.OK};
+      long size=0;
+      for(DownloadState state : transitions)
+      {
+        task.setDownloadState(state);
+        notifier.update();
+        size+=100;
+        task.setDoneSize(size);
+        notifier.update();
+      }
+      blocker.countDown();
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(5,TimeUnit.SECONDS));
+      assertEquals(Arrays.asList(transitions),states);
+      assertEquals(Arrays.asList(Long.valueOf(0),Long.valueOf(100),Long.valueOf(200),Long.valueOf(300),Long.valueOf(400)),sizes);
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+package delta.downloads.async;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for receiver pipelines.
+ * @author DAM
+ */
+public class ReceiverPipelineTest extends TestCase
+{
+  private String sha256(byte[] data) throws Exception
+  {
+    byte[] digest=MessageDigest.getInstance("SHA-256").digest(data);
+    StringBuilder sb=new StringBuilder();
+    for(byte b : digest)
+    {
+      sb.append(String.format("%02x",Byte.valueOf(b)));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Test a pipeline that decompresses, digests, and stores bytes in two sinks.
+   * @throws Exception If an error occurs.
+   */
+  public void testPipeline() throws Exception
+  {
+    byte[] data=ReceiverTestUtils.buildData(300000);
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    GZIPOutputStream gos=new GZIPOutputStream(bos);
+    gos.write(data);
+    gos.close();
+    byte[] encoded=bos.toByteArray();
+
+    BufferReceiver copy=new BufferReceiver();
+    BufferReceiver sink=new BufferReceiver();
+    ReceiverPipeline pipeline=ReceiverPipeline.builder()
+        .decompress(InflatingReceiver.Format.GZIP)
+        .digest("SHA-256","CRC32C")
+        .tee(copy)
+        .build(sink);
+    assertEquals(3,pipeline.getStages().size());
+    assertTrue(pipeline.start());
+    assertTrue(ReceiverTestUtils.feed(pipeline,encoded,1000));
+    assertTrue(pipeline.terminate());
+    assertTrue(Arrays.equals(data,sink.getBytes()));
+    assertTrue(Arrays.equals(data,copy.getBytes()));
+    assertEquals(sha256(data),pipeline.getDigestValue("SHA-256"));
+    assertNull(pipeline.getDigestValue("MD5"));
+  }
+
+  /**
+   * Test that a failing sink fails the pipeline.
+   */
+  public void testFailure()
+  {
+    BytesReceiver failing=new BytesReceiver()
+    {
+      @Override
+      public boolean start()
+      {
+        return true;
+      }
+
+      @Override
+      public boolean handleBytes(byte[] buffer, int offset, int count)
+      {
+        return false;
+      }
+
+      @Override
+      public boolean terminate()
+      {
+        return true;
+      }
+    };
+    BufferReceiver sink=new BufferReceiver();
+    ReceiverPipeline pipeline=ReceiverPipeline.builder().tee(failing).build(sink);
+    assertTrue(pipeline.start());
+    assertFalse(pipeline.handleBytes(new byte[10],0,10));
+  }
+}
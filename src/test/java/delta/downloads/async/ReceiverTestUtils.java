@@ -0,0 +1,50 @@
+package delta.downloads.async;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Test data and helpers shared by receiver tests.
+ * @author DAM
+ */
+public class ReceiverTestUtils
+{
+  /**
+   * Build test data.
+   * The data is compressible, but not periodic.
+   * @param size Size of the data.
+   * @return some bytes.
+   */
+  public static byte[] buildData(int size)
+  {
+    byte[] data=new byte[size];
+    for(int i=0;i<size;i++)
+    {
+      data[i]=(byte)((i%37)+(i/1000));
+    }
+    return data;
+  }
+
+  /**
+   * Give some data to a receiver, chunk by chunk.
+   * Each chunk is copied into its own array, so that receivers cannot read around it.
+   * Feeding stops on the first failure.
+   * @param receiver Receiver to use.
+   * @param data Data to give.
+   * @param chunkSize Size of chunks.
+   * @return <code>true</code> if the receiver took all the data, <code>false</code> otherwise.
+   */
+  public static boolean feed(ByteBufferReceiver receiver, byte[] data, int chunkSize)
+  {
+    for(int offset=0;offset<data.length;offset+=chunkSize)
+    {
+      int count=Math.min(chunkSize,data.length-offset);
+      byte[] chunk=Arrays.copyOfRange(data,offset,offset+count);
+      if (!receiver.handleBytes(ByteBuffer.wrap(chunk)))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+}
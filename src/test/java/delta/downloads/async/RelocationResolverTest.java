@@ -0,0 +1,147 @@
+package delta.downloads.async;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import delta.downloads.RelocationCache;
+
+/**
+ * Test class for the relocation resolver.
+ * @author DAM
+ */
+public class RelocationResolverTest extends TestCase
+{
+  private static final long LONG_TTL=60*60*1000L;
+
+  private HttpServer _server;
+  private CloseableHttpAsyncClient _client;
+  private RelocationCache _cache;
+  private RelocationResolver _resolver;
+  private String _root;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    _server.setExecutor(Executors.newCachedThreadPool());
+    _server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        handleRequest(exchange);
+      }
+    });
+    _server.start();
+    _root="http://127.0.0.1:"+_server.getAddress().getPort();
+    _client=HttpAsyncClients.createDefault();
+    _client.start();
+    _cache=new RelocationCache();
+    _resolver=new RelocationResolver(_client,_cache);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _client.close();
+    _server.stop(0);
+  }
+
+  /**
+   * Serve redirects and final statuses:
+   * <ul>
+   * <li>/moved: permanent redirect to /final,
+   * <li>/found: temporary redirect to /final,
+   * <li>/movedMissing: permanent redirect to /missing,
+   * <li>/missing: 404,
+   * <li>/error: 503,
+   * <li>anything else: 200.
+   * </ul>
+   * @param exchange Exchange to handle.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void handleRequest(HttpExchange exchange) throws IOException
+  {
+    String path=exchange.getRequestURI().getPath();
+    int code=200;
+    exchange.getResponseHeaders().add("Connection","close");
+    if ("/moved".equals(path))
+    {
+      code=301;
+      exchange.getResponseHeaders().add("Location","/final");
+    }
+    else if ("/found".equals(path))
+    {
+      code=302;
+      exchange.getResponseHeaders().add("Location","/final");
+    }
+    else if ("/movedMissing".equals(path))
+    {
+      code=301;
+      exchange.getResponseHeaders().add("Location","/missing");
+    }
+    else if ("/missing".equals(path))
+    {
+      code=404;
+    }
+    else if ("/error".equals(path))
+    {
+      code=503;
+    }
+    exchange.sendResponseHeaders(code,-1);
+    exchange.close();
+  }
+
+  /**
+   * Test the resolved locations.
+   */
+  public void testResolve()
+  {
+    Map<String,String> locations=_resolver.syncResolve(Arrays.asList(_root+"/moved",_root+"/found",_root+"/plain",_root+"/missing"));
+    assertEquals(_root+"/final",locations.get(_root+"/moved"));
+    assertEquals(_root+"/final",locations.get(_root+"/found"));
+    assertEquals(_root+"/plain",locations.get(_root+"/plain"));
+    assertEquals(_root+"/missing",locations.get(_root+"/missing"));
+  }
+
+  /**
+   * Test the TTL of cached relocations: only chains with permanent redirects use the long TTL.
+   */
+  public void testPermanentRelocations()
+  {
+    // Temporary relocations are not cached
+    _cache.setTTL(0,LONG_TTL);
+    _resolver.syncResolve(Arrays.asList(_root+"/moved",_root+"/found",_root+"/plain"));
+    assertEquals(_root+"/final",_cache.lookup(_root+"/moved"));
+    assertNull(_cache.lookup(_root+"/found"));
+    // Not redirected: temporary
+    assertNull(_cache.lookup(_root+"/plain"));
+    assertEquals(1,_cache.size());
+  }
+
+  /**
+   * Test that chains which do not end with a successful response are not cached.
+   */
+  public void testFailuresNotCached()
+  {
+    _cache.setTTL(LONG_TTL,LONG_TTL);
+    _resolver.syncResolve(Arrays.asList(_root+"/missing",_root+"/error",_root+"/movedMissing",_root+"/plain"));
+    assertNull(_cache.lookup(_root+"/missing"));
+    assertNull(_cache.lookup(_root+"/error"));
+    assertNull(_cache.lookup(_root+"/movedMissing"));
+    assertEquals(_root+"/plain",_cache.lookup(_root+"/plain"));
+    assertEquals(1,_cache.size());
+  }
+}
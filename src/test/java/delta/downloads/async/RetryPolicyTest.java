@@ -0,0 +1,116 @@
+package delta.downloads.async;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Test class for the retry policy.
+ * @author DAM
+ */
+public class RetryPolicyTest extends TestCase
+{
+  private static HttpResponse buildResponse(int statusCode, String retryAfter)
+  {
+    HttpResponse response=new BasicHttpResponse(HttpVersion.HTTP_1_1,statusCode,"Test");
+    if (retryAfter!=null)
+    {
+      response.addHeader("Retry-After",retryAfter);
+    }
+    return response;
+  }
+
+  /**
+   * Test that retries are disabled by default.
+   */
+  public void testDefault()
+  {
+    RetryPolicy policy=new RetryPolicy();
+    assertEquals(1,policy.getMaxAttempts());
+    assertEquals(-1,policy.getRetryDelay(new SocketTimeoutException(),1));
+    assertEquals(-1,policy.getRetryDelay(buildResponse(503,null),1));
+  }
+
+  /**
+   * Test the bounds of the backoff delays, and their jitter.
+   */
+  public void testBackoff()
+  {
+    RetryPolicy policy=new RetryPolicy();
+    policy.setDelays(100,1000);
+    long[] caps={100,200,400,800,1000,1000};
+    for(int i=0;i<caps.length;i++)
+    {
+      int attempts=i+1;
+      long min=Long.MAX_VALUE;
+      long max=0;
+      for(int j=0;j<2000;j++)
+      {
+        long delay=policy.getBackoffDelay(attempts);
+        assertTrue(String.valueOf(delay),(delay>=0) && (delay<=caps[i]));
+        min=Math.min(min,delay);
+        max=Math.max(max,delay);
+      }
+      // Full jitter: delays are spread over the whole range
+      assertTrue(String.valueOf(min),min<caps[i]/4);
+      assertTrue(String.valueOf(max),max>caps[i]*3/4);
+    }
+    // No overflow for many attempts
+    long delay=policy.getBackoffDelay(100);
+    assertTrue((delay>=0) && (delay<=1000));
+    policy.setDelays(0,1000);
+    assertEquals(0,policy.getBackoffDelay(3));
+  }
+
+  /**
+   * Test the retries of unexpected responses.
+   */
+  public void testResponses()
+  {
+    RetryPolicy policy=new RetryPolicy();
+    policy.setMaxAttempts(3);
+    policy.setDelays(100,1000);
+    policy.setMaxRetryAfter(10000);
+    assertTrue(policy.getRetryDelay(buildResponse(503,null),1)>=0);
+    assertTrue(policy.getRetryDelay(buildResponse(500,null),2)>=0);
+    // Attempts exhausted
+    assertEquals(-1,policy.getRetryDelay(buildResponse(503,null),3));
+    // Not transient
+    assertEquals(-1,policy.getRetryDelay(buildResponse(404,null),1));
+    assertEquals(-1,policy.getRetryDelay(buildResponse(501,null),1));
+    assertEquals(-1,policy.getRetryDelay(buildResponse(505,null),1));
+    // Throttling: only with a Retry-After delay that is not too long
+    assertEquals(-1,policy.getRetryDelay(buildResponse(429,null),1));
+    assertTrue(policy.getRetryDelay(buildResponse(429,"5"),1)>=5000);
+    assertEquals(-1,policy.getRetryDelay(buildResponse(429,"20"),1));
+    assertTrue(policy.getRetryDelay(buildResponse(503,"2"),1)>=2000);
+    assertEquals(-1,policy.getRetryDelay(buildResponse(503,"20"),1));
+  }
+
+  /**
+   * Test the transient failures.
+   */
+  public void testIsRetryable()
+  {
+    RetryPolicy policy=new RetryPolicy();
+    assertTrue(policy.isRetryable(new SocketTimeoutException()));
+    assertTrue(policy.isRetryable(new ConnectException()));
+    assertTrue(policy.isRetryable(new SocketException("Connection reset")));
+    assertTrue(policy.isRetryable(new IOException(new SocketException("Connection reset"))));
+    assertFalse(policy.isRetryable(new IOException("Disk full")));
+    assertFalse(policy.isRetryable(new HttpException("Bad response")));
+    assertFalse(policy.isRetryable(null));
+    policy.setMaxAttempts(2);
+    assertTrue(policy.getRetryDelay(new ConnectException(),1)>=0);
+    assertEquals(-1,policy.getRetryDelay(new ConnectException(),2));
+    assertEquals(-1,policy.getRetryDelay(new IOException("Disk full"),1));
+  }
+}
@@ -0,0 +1,225 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for segmented downloads.
+ * @author DAM
+ */
+public class SegmentedDownloadManagerTest extends TestCase
+{
+  private static final int FILE_SIZE=(int)(4*SegmentedDownloadManager.MIN_SEGMENT_SIZE)+1000;
+
+  private File _dir;
+  private volatile byte[] _data;
+  private volatile String _etag;
+  private volatile boolean _ranges;
+  private volatile boolean _changeAfterProbe;
+  private volatile int _rangeShift;
+  private List<String> _requests;
+  private HttpServer _server;
+  private DownloadsManager _downloadsMgr;
+  private String _url;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _dir=Files.createTempDirectory("segmentedTest").toFile();
+    _data=new byte[FILE_SIZE];
+    new Random(42).nextBytes(_data);
+    _etag="\"v1\"";
+    _ranges=true;
+    _changeAfterProbe=false;
+    _rangeShift=0;
+    _requests=Collections.synchronizedList(new ArrayList<String>());
+    _server=HttpServer.create(new InetSocketAddress("127.0.0.1",0),0);
+    _server.setExecutor(Executors.newCachedThreadPool());
+    _server.createContext("/",new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        handleRequest(exchange);
+      }
+    });
+    _server.start();
+    _url="http://127.0.0.1:"+_server.getAddress().getPort()+"/file";
+    _downloadsMgr=new DownloadsManager();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _downloadsMgr.dispose();
+    _server.stop(0);
+    File[] children=_dir.listFiles();
+    if (children!=null)
+    {
+      for(File child : children)
+      {
+        child.delete();
+      }
+    }
+    _dir.delete();
+  }
+
+  /**
+   * Give the data, or a byte range of it if ranges are enabled and the
+   * <code>If-Range</code> validator matches.
+   * @param exchange Exchange to handle.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void handleRequest(HttpExchange exchange) throws IOException
+  {
+    String method=exchange.getRequestMethod();
+    String range=exchange.getRequestHeaders().getFirst("Range");
+    String ifRange=exchange.getRequestHeaders().getFirst("If-Range");
+    _requests.add(method+" "+range+" "+ifRange);
+    byte[] data=_data;
+    exchange.getResponseHeaders().add("Connection","close");
+    exchange.getResponseHeaders().add("ETag",_etag);
+    if (_ranges)
+    {
+      exchange.getResponseHeaders().add("Accept-Ranges","bytes");
+    }
+    if ("HEAD".equals(method))
+    {
+      exchange.getResponseHeaders().add("Content-Length",String.valueOf(data.length));
+      exchange.sendResponseHeaders(200,-1);
+      exchange.close();
+      if (_changeAfterProbe)
+      {
+        byte[] changed=data.clone();
+        changed[0]^=1;
+        _data=changed;
+        _etag="\"v2\"";
+      }
+      return;
+    }
+    int start=0;
+    int end=data.length-1;
+    int code=200;
+    if ((_ranges) && (range!=null) && ((ifRange==null) || (ifRange.equals(_etag))))
+    {
+      String[] bounds=range.substring("bytes=".length()).split("-");
+      start=Integer.parseInt(bounds[0]);
+      end=Math.min(end,Integer.parseInt(bounds[1]));
+      code=206;
+      int shift=_rangeShift;
+      exchange.getResponseHeaders().add("Content-Range","bytes "+(start+shift)+"-"+(end+shift)+"/"+data.length);
+    }
+    exchange.sendResponseHeaders(code,end-start+1);
+    OutputStream os=exchange.getResponseBody();
+    try
+    {
+      os.write(data,start,end-start+1);
+    }
+    catch(IOException ioe)
+    {
+      // Cancelled by the client
+    }
+    exchange.close();
+  }
+
+  private DownloadTask download(File to)
+  {
+    DownloadTask task=_downloadsMgr.newSegmentedFileDownload(_url,to,4);
+    assertTrue(_downloadsMgr.startDownload(task,null));
+    _downloadsMgr.waitForTaskTermination(task);
+    return task;
+  }
+
+  private int countRangeRequests()
+  {
+    int ret=0;
+    synchronized(_requests)
+    {
+      for(String request : _requests)
+      {
+        if (request.startsWith("GET bytes="))
+        {
+          ret++;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Test a segmented download.
+   * @throws Exception If an error occurs.
+   */
+  public void testSegmented() throws Exception
+  {
+    File to=new File(_dir,"file.bin");
+    DownloadTask task=download(to);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(to.toPath())));
+    assertTrue(_requests.toString(),countRangeRequests()>=4);
+    // Range requests are pinned to the probed entity
+    synchronized(_requests)
+    {
+      for(String request : _requests)
+      {
+        if (request.startsWith("GET "))
+        {
+          assertTrue(request,request.endsWith(" \"v1\""));
+        }
+      }
+    }
+  }
+
+  /**
+   * Test a resource that changes after the probe: the download fails.
+   * @throws Exception If an error occurs.
+   */
+  public void testChangedResource() throws Exception
+  {
+    _changeAfterProbe=true;
+    File to=new File(_dir,"file.bin");
+    DownloadTask task=download(to);
+    assertEquals(DownloadState.FAILED,task.getDownloadState());
+  }
+
+  /**
+   * Test a server that sends wrong content ranges: the download fails.
+   * @throws Exception If an error occurs.
+   */
+  public void testWrongContentRange() throws Exception
+  {
+    _rangeShift=1;
+    File to=new File(_dir,"file.bin");
+    DownloadTask task=download(to);
+    assertEquals(DownloadState.FAILED,task.getDownloadState());
+  }
+
+  /**
+   * Test a server that does not support byte ranges: a single stream is used.
+   * @throws Exception If an error occurs.
+   */
+  public void testNoRanges() throws Exception
+  {
+    _ranges=false;
+    File to=new File(_dir,"file.bin");
+    DownloadTask task=download(to);
+    assertEquals(DownloadState.OK,task.getDownloadState());
+    assertTrue(Arrays.equals(_data,Files.readAllBytes(to.toPath())));
+    assertEquals(0,countRangeRequests());
+  }
+}
@@ -0,0 +1,72 @@
+package delta.downloads.async;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the tasks table.
+ * @author DAM
+ */
+public class TaskTableTest extends TestCase
+{
+  private SingleAsyncDownloadManager register(TaskTable table)
+  {
+    DownloadTask task=new DownloadTask(table.nextID(),"http://localhost/file",new BufferReceiver());
+    SingleAsyncDownloadManager downloadManager=new SingleAsyncDownloadManager(null,task);
+    table.register(downloadManager);
+    downloadManager.markAttached();
+    return downloadManager;
+  }
+
+  private void terminate(TaskTable table, SingleAsyncDownloadManager downloadManager)
+  {
+    downloadManager.terminateAttached(DownloadState.OK);
+    table.terminated(downloadManager);
+  }
+
+  /**
+   * Test the eviction of terminated tasks by count.
+   */
+  public void testEvictionByCount()
+  {
+    TaskTable table=new TaskTable();
+    table.setRetention(60000,2);
+    table.setMaxSummaries(1);
+    SingleAsyncDownloadManager first=register(table);
+    SingleAsyncDownloadManager second=register(table);
+    SingleAsyncDownloadManager third=register(table);
+    SingleAsyncDownloadManager running=register(table);
+    assertEquals(4,table.size());
+    terminate(table,first);
+    terminate(table,second);
+    assertEquals(4,table.size());
+    terminate(table,third);
+    // Oldest terminated task evicted, with a summary
+    assertEquals(3,table.size());
+    int firstID=first.getTask().getID();
+    assertNull(table.get(firstID));
+    TaskSummary summary=table.getSummary(firstID);
+    assertNotNull(summary);
+    assertEquals(DownloadState.OK,summary.getDownloadState());
+    assertSame(running,table.get(running.getTask().getID()));
+  }
+
+  /**
+   * Test the eviction of terminated tasks by time.
+   * @throws Exception If an error occurs.
+   */
+  public void testEvictionByTime() throws Exception
+  {
+    TaskTable table=new TaskTable();
+    table.setRetention(50,100);
+    SingleAsyncDownloadManager terminated=register(table);
+    SingleAsyncDownloadManager running=register(table);
+    terminate(table,terminated);
+    assertEquals(2,table.size());
+    Thread.sleep(100);
+    table.evict();
+    assertEquals(1,table.size());
+    assertSame(running,table.get(running.getTask().getID()));
+    // No summaries by default
+    assertNull(table.getSummary(terminated.getTask().getID()));
+  }
+}
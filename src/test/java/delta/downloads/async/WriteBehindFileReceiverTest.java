@@ -0,0 +1,192 @@
+package delta.downloads.async;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the write-behind file receiver.
+ * @author DAM
+ */
+public class WriteBehindFileReceiverTest extends TestCase
+{
+  private File _dir;
+  private WriteBehindWriter _writer;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _dir=Files.createTempDirectory("writeBehindTest").toFile();
+    _writer=new WriteBehindWriter(8,1024,2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    _writer.dispose();
+    File[] children=_dir.listFiles();
+    if (children!=null)
+    {
+      for(File child : children)
+      {
+        child.delete();
+      }
+    }
+    _dir.delete();
+  }
+
+  /**
+   * Wait until the given receiver is drained, if it is full.
+   * @param receiver Receiver to use.
+   */
+  private void applyBackPressure(WriteBehindFileReceiver receiver) throws InterruptedException
+  {
+    if (!receiver.isFull())
+    {
+      return;
+    }
+    final CountDownLatch drained=new CountDownLatch(1);
+    Runnable callback=new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        drained.countDown();
+      }
+    };
+    if (receiver.awaitDrain(callback))
+    {
+      assertTrue("Receiver not drained",drained.await(10,TimeUnit.SECONDS));
+    }
+  }
+
+  /**
+   * Test a reception that fills the ring, with back-pressure.
+   * @throws Exception if an error occurs.
+   */
+  public void testBackPressure() throws Exception
+  {
+    byte[] data=ReceiverTestUtils.buildData(100000);
+    File file=new File(_dir,"single.bin");
+    WriteBehindFileReceiver receiver=new WriteBehindFileReceiver(file,_writer);
+    assertEquals(0,receiver.start(0));
+    for(int offset=0;offset<data.length;offset+=700)
+    {
+      int count=Math.min(700,data.length-offset);
+      assertTrue(receiver.handleBytes(ByteBuffer.wrap(data,offset,count)));
+      applyBackPressure(receiver);
+    }
+    assertTrue(receiver.terminate());
+    assertTrue(Arrays.equals(data,Files.readAllBytes(file.toPath())));
+    assertEquals(8,_writer.getFreeBuffersCount());
+  }
+
+  /**
+   * Test receivers that hold all the buffers of the ring while they are filled:
+   * another receiver still makes progress, with back-pressure, and the held buffers
+   * do not make the ring full.
+   * @throws Exception if an error occurs.
+   */
+  public void testExhaustedRing() throws Exception
+  {
+    List<WriteBehindFileReceiver> idle=new ArrayList<WriteBehindFileReceiver>();
+    byte[] start=ReceiverTestUtils.buildData(100);
+    for(int i=0;i<8;i++)
+    {
+      WriteBehindFileReceiver receiver=new WriteBehindFileReceiver(new File(_dir,"idle"+i+".bin"),_writer);
+      receiver.start(0);
+      assertTrue(receiver.handleBytes(ByteBuffer.wrap(start)));
+      assertFalse(receiver.isFull());
+      idle.add(receiver);
+    }
+    assertEquals(0,_writer.getFreeBuffersCount());
+    byte[] data=ReceiverTestUtils.buildData(20000);
+    File file=new File(_dir,"busy.bin");
+    WriteBehindFileReceiver busy=new WriteBehindFileReceiver(file,_writer);
+    busy.start(0);
+    for(int offset=0;offset<data.length;offset+=1500)
+    {
+      int count=Math.min(1500,data.length-offset);
+      assertTrue(busy.handleBytes(ByteBuffer.wrap(data,offset,count)));
+      // Bytes are queued out of the ring: the network waits until they are written
+      applyBackPressure(busy);
+      assertFalse(busy.isFull());
+    }
+    assertTrue(busy.terminate());
+    assertTrue(Arrays.equals(data,Files.readAllBytes(file.toPath())));
+    for(int i=0;i<idle.size();i++)
+    {
+      assertTrue(idle.get(i).terminate());
+      assertTrue(Arrays.equals(start,Files.readAllBytes(new File(_dir,"idle"+i+".bin").toPath())));
+    }
+    assertEquals(8,_writer.getFreeBuffersCount());
+  }
+
+  /**
+   * Test many concurrent receptions sharing a small ring.
+   * @throws Exception if an error occurs.
+   */
+  public void testConcurrentReceivers() throws Exception
+  {
+    final int nbReceivers=40;
+    final List<byte[]> data=new ArrayList<byte[]>();
+    final List<Throwable> errors=new ArrayList<Throwable>();
+    List<Thread> threads=new ArrayList<Thread>();
+    for(int i=0;i<nbReceivers;i++)
+    {
+      data.add(ReceiverTestUtils.buildData(50000+i*1000));
+      final int index=i;
+      Thread thread=new Thread("Receiver "+i)
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            byte[] bytes=data.get(index);
+            WriteBehindFileReceiver receiver=new WriteBehindFileReceiver(new File(_dir,"file"+index+".bin"),_writer);
+            assertEquals(0,receiver.start(0));
+            Random random=new Random(index);
+            int offset=0;
+            while (offset<bytes.length)
+            {
+              int count=Math.min(1+random.nextInt(3000),bytes.length-offset);
+              assertTrue(receiver.handleBytes(ByteBuffer.wrap(bytes,offset,count)));
+              applyBackPressure(receiver);
+              offset+=count;
+            }
+            assertTrue(receiver.terminate());
+          }
+          catch(Throwable t)
+          {
+            synchronized(errors)
+            {
+              errors.add(t);
+            }
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for(Thread thread : threads)
+    {
+      thread.join(60000);
+      assertFalse("Reception is stuck",thread.isAlive());
+    }
+    assertTrue(errors.toString(),errors.isEmpty());
+    for(int i=0;i<nbReceivers;i++)
+    {
+      assertTrue(Arrays.equals(data.get(i),Files.readAllBytes(new File(_dir,"file"+i+".bin").toPath())));
+    }
+    assertEquals(8,_writer.getFreeBuffersCount());
+  }
+}
@@ -0,0 +1,151 @@
+package delta.downloads.async;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the ZIP extracting receiver.
+ * @author DAM
+ */
+public class ZipExtractingReceiverTest extends TestCase
+{
+  private File _dir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _dir=Files.createTempDirectory("zipTest").toFile();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    delete(_dir);
+  }
+
+  private void delete(File file)
+  {
+    File[] children=file.listFiles();
+    if (children!=null)
+    {
+      for(File child : children)
+      {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private byte[] buildArchive(String[] names, byte[] data) throws Exception
+  {
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    ZipOutputStream zos=new ZipOutputStream(bos);
+    for(int i=0;i<names.length;i++)
+    {
+      ZipEntry entry=new ZipEntry(names[i]);
+      if (i%2==1)
+      {
+        // Stored entry: sizes and CRC are in the local header
+        CRC32 crc=new CRC32();
+        crc.update(data);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCrc(crc.getValue());
+      }
+      zos.putNextEntry(entry);
+      if (!names[i].endsWith("/"))
+      {
+        zos.write(data);
+      }
+      zos.closeEntry();
+    }
+    zos.close();
+    return bos.toByteArray();
+  }
+
+  private ZipExtractingReceiver extract(byte[] archive, int chunkSize, boolean expectedOk)
+  {
+    File target=new File(_dir,"out");
+    ZipExtractingReceiver receiver=new ZipExtractingReceiver(new FileReceiver(new File(_dir,"archive.zip")),target);
+    assertTrue(receiver.start());
+    boolean ok=ReceiverTestUtils.feed(receiver,archive,chunkSize);
+    ok&=receiver.terminate();
+    assertEquals(expectedOk,ok);
+    return receiver;
+  }
+
+  /**
+   * Test extraction while receiving, with deflated (with data descriptors) and stored entries.
+   * @throws Exception If an error occurs.
+   */
+  public void testStreaming() throws Exception
+  {
+    byte[] data=ReceiverTestUtils.buildData(100000);
+    String[] names={"a.txt","dir/b.bin","dir/sub/","dir/sub/c.txt"};
+    byte[] archive=buildArchive(names,data);
+    int[] chunkSizes={1,333,archive.length};
+    for(int chunkSize : chunkSizes)
+    {
+      ZipExtractingReceiver receiver=extract(archive,chunkSize,true);
+      assertFalse(receiver.isFallback());
+      assertEquals(3,receiver.getExtractedFiles().size());
+      File out=new File(_dir,"out");
+      assertTrue(Arrays.equals(data,Files.readAllBytes(new File(out,"a.txt").toPath())));
+      assertTrue(Arrays.equals(data,Files.readAllBytes(new File(out,"dir/b.bin").toPath())));
+      assertTrue(Arrays.equals(data,Files.readAllBytes(new File(out,"dir/sub/c.txt").toPath())));
+      assertTrue(Arrays.equals(archive,Files.readAllBytes(receiver.getArchiveFile().toPath())));
+    }
+  }
+
+  /**
+   * Test the extraction from the archive file, when the archive cannot be extracted while receiving.
+   * @throws Exception If an error occurs.
+   */
+  public void testFallback() throws Exception
+  {
+    byte[] data=ReceiverTestUtils.buildData(5000);
+    byte[] archive=buildArchive(new String[]{"a.txt","b.txt"},data);
+    // Unknown method in the first local header: only the central directory is right
+    archive[8]=99;
+    ZipExtractingReceiver receiver=extract(archive,100,true);
+    assertTrue(receiver.isFallback());
+    assertEquals(2,receiver.getExtractedFiles().size());
+    assertTrue(Arrays.equals(data,Files.readAllBytes(new File(_dir,"out/b.txt").toPath())));
+  }
+
+  /**
+   * Test that entries out of the target directory are rejected.
+   * @throws Exception If an error occurs.
+   */
+  public void testZipSlip() throws Exception
+  {
+    byte[] archive=buildArchive(new String[]{"../evil.txt"},ReceiverTestUtils.buildData(10));
+    extract(archive,1000,false);
+    assertFalse(new File(_dir,"evil.txt").exists());
+  }
+
+  /**
+   * Test the detection of corrupted entries.
+   * @throws Exception If an error occurs.
+   */
+  public void testCorrupted() throws Exception
+  {
+    byte[] data=ReceiverTestUtils.buildData(1000);
+    byte[] archive=buildArchive(new String[]{"a.txt","b.txt"},data);
+    // Corrupt the CRC of the stored entry
+    int offset=archive.length-1;
+    while (!((archive[offset]==0x50) && (archive[offset+1]==0x4b) && (archive[offset+2]==3) && (archive[offset+3]==4)))
+    {
+      offset--;
+    }
+    archive[offset+14]^=1;
+    extract(archive,1000,false);
+  }
+}
@@ -0,0 +1,118 @@
+package delta.downloads.blocks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test class for the block manifests and the block matcher.
+ * @author DAM
+ */
+public class BlockMatcherTest extends TestCase
+{
+  private static final int BLOCK_SIZE=1024;
+
+  /**
+   * Test that a rolled checksum equals a computed one.
+   * @throws Exception If an error occurs.
+   */
+  public void testRollingChecksum() throws Exception
+  {
+    byte[] data=randomBytes(5000,1);
+    RollingChecksum checksum=new RollingChecksum(BLOCK_SIZE);
+    checksum.compute(data,0,BLOCK_SIZE);
+    for(int i=1;i+BLOCK_SIZE<=data.length;i++)
+    {
+      checksum.roll(data[i-1],data[i+BLOCK_SIZE-1]);
+      assertEquals(RollingChecksum.checksum(data,i,BLOCK_SIZE),checksum.getValue());
+    }
+  }
+
+  /**
+   * Test writing and reading a manifest.
+   * @throws Exception If an error occurs.
+   */
+  public void testManifestIO() throws Exception
+  {
+    File file=writeFile(randomBytes(10*BLOCK_SIZE+123,2));
+    BlockManifest manifest=BlockManifest.build(file,BLOCK_SIZE);
+    assertEquals(11,manifest.getBlocksCount());
+    assertEquals(123,manifest.getBlockLength(10));
+    ByteArrayOutputStream bos=new ByteArrayOutputStream();
+    manifest.write(bos);
+    BlockManifest read=BlockManifest.parse(bos.toByteArray());
+    assertEquals(manifest.getFileSize(),read.getFileSize());
+    assertEquals(manifest.getBlockSize(),read.getBlockSize());
+    assertTrue(Arrays.equals(manifest.getFileDigest(),read.getFileDigest()));
+    for(int i=0;i<manifest.getBlocksCount();i++)
+    {
+      assertEquals(manifest.getWeakChecksum(i),read.getWeakChecksum(i));
+    }
+    try
+    {
+      BlockManifest.parse(new byte[10]);
+      fail("Bad data accepted");
+    }
+    catch(IOException ioe)
+    {
+      // Expected
+    }
+  }
+
+  /**
+   * Test finding blocks in a local file where bytes were inserted and modified.
+   * @throws Exception If an error occurs.
+   */
+  public void testFindShiftedBlocks() throws Exception
+  {
+    byte[] newVersion=randomBytes(20*BLOCK_SIZE+500,3);
+    BlockManifest manifest=BlockManifest.build(writeFile(newVersion),BLOCK_SIZE);
+    // Old version: 7 extra bytes at the start, block 5 modified
+    byte[] oldVersion=new byte[newVersion.length+7];
+    System.arraycopy(newVersion,0,oldVersion,7,newVersion.length);
+    oldVersion[7+5*BLOCK_SIZE+10]^=0x55;
+    long[] offsets=new BlockMatcher(manifest).findBlocks(writeFile(oldVersion));
+    assertEquals(21,offsets.length);
+    for(int i=0;i<offsets.length;i++)
+    {
+      if (i==5)
+      {
+        assertEquals(-1,offsets[i]);
+      }
+      else
+      {
+        assertEquals(7+((long)i)*BLOCK_SIZE,offsets[i]);
+      }
+    }
+    // Missing local file
+    offsets=new BlockMatcher(manifest).findBlocks(new File("missing-file"));
+    for(long offset : offsets)
+    {
+      assertEquals(-1,offset);
+    }
+  }
+
+  private byte[] randomBytes(int size, long seed)
+  {
+    byte[] ret=new byte[size];
+    new Random(seed).nextBytes(ret);
+    return ret;
+  }
+
+  private File writeFile(byte[] data) throws Exception
+  {
+    File file=File.createTempFile("blocks",".bin");
+    file.deleteOnExit();
+    try (OutputStream os=new FileOutputStream(file))
+    {
+      os.write(data);
+    }
+    return file;
+  }
+}
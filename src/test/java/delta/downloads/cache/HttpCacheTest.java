@@ -0,0 +1,136 @@
+package delta.downloads.cache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * Test class for the HTTP cache.
+ * @author DAM
+ */
+public class HttpCacheTest extends TestCase
+{
+  private File _dir;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    _dir=new File(System.getProperty("java.io.tmpdir"),"httpCacheTest"+System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    File[] files=_dir.listFiles();
+    if (files!=null)
+    {
+      for(File file : files)
+      {
+        file.delete();
+      }
+    }
+    _dir.delete();
+  }
+
+  private HttpResponse buildResponse(int statusCode)
+  {
+    return new BasicHttpResponse(HttpVersion.HTTP_1_1,statusCode,"");
+  }
+
+  /**
+   * Test the computation of freshness.
+   */
+  public void testFreshness()
+  {
+    long now=System.currentTimeMillis();
+    HttpResponse response=buildResponse(200);
+    response.addHeader("Cache-Control","public, max-age=60");
+    response.addHeader("Age","10");
+    assertEquals(now+50000,HttpCache.computeExpires(response,now));
+
+    response=buildResponse(200);
+    response.addHeader("Cache-Control","no-cache, max-age=60");
+    assertEquals(0,HttpCache.computeExpires(response,now));
+
+    // Expires is relative to the server date
+    response=buildResponse(200);
+    Date serverDate=new Date(now-3600000);
+    response.addHeader("Date",DateUtils.formatDate(serverDate));
+    response.addHeader("Expires",DateUtils.formatDate(new Date(serverDate.getTime()+120000)));
+    long expires=HttpCache.computeExpires(response,now);
+    assertTrue(Math.abs(expires-(now+120000))<=1000);
+
+    response=buildResponse(200);
+    response.addHeader("ETag","\"a\"");
+    assertEquals(0,HttpCache.computeExpires(response,now));
+    assertTrue(HttpCache.isCacheable(response));
+
+    response=buildResponse(200);
+    response.addHeader("Cache-Control","no-store");
+    response.addHeader("ETag","\"a\"");
+    assertFalse(HttpCache.isCacheable(response));
+    assertFalse(HttpCache.isCacheable(buildResponse(200)));
+  }
+
+  /**
+   * Test store, revalidation and reload.
+   */
+  public void testStoreAndReload()
+  {
+    HttpCache cache=new HttpCache(_dir,1000);
+    HttpResponse response=buildResponse(200);
+    response.addHeader("ETag","\"v1\"");
+    response.addHeader("Content-Type","text/plain; charset=UTF-8");
+    byte[] body=new byte[] {1,2,3,4};
+    assertNotNull(cache.store("http://host/a",response,body));
+    CacheEntry entry=cache.lookup("http://host/a");
+    assertNotNull(entry);
+    assertFalse(entry.isFresh(System.currentTimeMillis()));
+    assertEquals("\"v1\"",entry.getETag());
+    assertTrue(Arrays.equals(body,cache.getBody(entry)));
+
+    HttpResponse notModified=buildResponse(304);
+    notModified.addHeader("Cache-Control","max-age=100");
+    CacheEntry updated=cache.refresh(entry,notModified);
+    assertTrue(updated.isFresh(System.currentTimeMillis()));
+    assertEquals("\"v1\"",updated.getETag());
+
+    HttpCache reloaded=new HttpCache(_dir,1000);
+    CacheEntry reloadedEntry=reloaded.lookup("http://host/a");
+    assertNotNull(reloadedEntry);
+    assertTrue(reloadedEntry.isFresh(System.currentTimeMillis()));
+    assertEquals("text/plain; charset=UTF-8",reloadedEntry.getContentType());
+    assertTrue(Arrays.equals(body,reloaded.getBody(reloadedEntry)));
+  }
+
+  /**
+   * Test the eviction of least recently used entries.
+   */
+  public void testEviction()
+  {
+    HttpCache cache=new HttpCache(_dir,250);
+    for(String name : new String[] {"a","b","c"})
+    {
+      HttpResponse response=buildResponse(200);
+      response.addHeader("ETag","\""+name+"\"");
+      cache.store("http://host/"+name,response,new byte[100]);
+      if (name.equals("b"))
+      {
+        // Use "a" so that "b" is the least recently used one
+        assertNotNull(cache.lookup("http://host/a"));
+      }
+    }
+    assertEquals(2,cache.getEntriesCount());
+    assertEquals(200,cache.getSize());
+    assertNotNull(cache.lookup("http://host/a"));
+    assertNull(cache.lookup("http://host/b"));
+    assertNotNull(cache.lookup("http://host/c"));
+  }
+}